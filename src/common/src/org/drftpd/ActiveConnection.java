@@ -20,6 +20,7 @@ package org.drftpd;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
@@ -46,8 +47,21 @@ public class ActiveConnection extends Connection {
 	
 	private String _bindIP;
 
+	private boolean _useChannel;
+
 	public ActiveConnection(SSLContext ctx, InetSocketAddress addr,
 			boolean useSSLClientHandshake, String bindIP) {
+		this(ctx, addr, useSSLClientHandshake, bindIP, false);
+	}
+
+	/**
+	 * @param useChannel
+	 *            if true and ctx==null the Socket is backed by a SocketChannel,
+	 *            see {@link Socket#getChannel()}
+	 */
+	public ActiveConnection(SSLContext ctx, InetSocketAddress addr,
+			boolean useSSLClientHandshake, String bindIP, boolean useChannel) {
+		_useChannel = useChannel;
 		_addr = addr;
 		_ctx = ctx;
 		_bindIP = bindIP;
@@ -81,7 +95,7 @@ public class ActiveConnection extends Connection {
 			sslsock.startHandshake();
 			_sock = sslsock;
 		} else {
-			_sock = SocketFactory.getDefault().createSocket();
+			_sock = _useChannel ? SocketChannel.open().socket() : SocketFactory.getDefault().createSocket();
 			if (bufferSize > 0) {
 				_sock.setReceiveBufferSize(bufferSize);
 			}
@@ -53,9 +53,21 @@ public class PassiveConnection extends Connection {
 	 */
 	public PassiveConnection(SSLContext ctx, PortRange portRange,
 			boolean useSSLClientMode, String bindIP) throws IOException {
+		this(ctx, portRange, useSSLClientMode, bindIP, false);
+	}
+
+	/**
+	 * @param useChannel
+	 *            if true and ctx==null the accepted Socket is backed by a
+	 *            SocketChannel, see {@link Socket#getChannel()}
+	 */
+	public PassiveConnection(SSLContext ctx, PortRange portRange,
+			boolean useSSLClientMode, String bindIP, boolean useChannel) throws IOException {
 		_useSSLClientMode = useSSLClientMode;
 		if (ctx != null) {
 			_serverSocket = portRange.getPort(ctx.getServerSocketFactory(),bindIP);
+		} else if (useChannel) {
+			_serverSocket = portRange.getPort(ChannelServerSocketFactory.getDefault(),bindIP);
 		} else {
 			_serverSocket = portRange.getPort(ServerSocketFactory.getDefault(),bindIP);
 		}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+
+/**
+ * Reads the streams written by {@link CompactObjectOutputStream}.
+ * @version $Id$
+ */
+public class CompactObjectInputStream extends ObjectInputStream {
+
+	private ArrayList<ObjectStreamClass> _classes = new ArrayList<ObjectStreamClass>();
+
+	private volatile boolean _compact;
+
+	public CompactObjectInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+
+	/**
+	 * Switches to compact class descriptors, must be called right after the
+	 * last object that the other side wrote in standard mode has been read.
+	 */
+	public void setCompact(boolean compact) {
+		_compact = compact;
+	}
+
+	public boolean isCompact() {
+		return _compact;
+	}
+
+	@Override
+	protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+		if (!_compact) {
+			return super.readClassDescriptor();
+		}
+		int id = readInt();
+		if (id < 0) {
+			if (-id - 1 != _classes.size()) {
+				throw new StreamCorruptedException("Unexpected class descriptor id " + (-id - 1));
+			}
+			ObjectStreamClass desc = super.readClassDescriptor();
+			_classes.add(desc);
+			return desc;
+		}
+		if (id >= _classes.size()) {
+			throw new StreamCorruptedException("Unknown class descriptor id " + id);
+		}
+		return _classes.get(id);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.protocol;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * ObjectOutputStream used on the master/slave connection.<br>
+ * Once compact mode has been negotiated (see {@link HandshakeWrapper}) every class
+ * descriptor is only sent in full the first time it is used on the connection,
+ * afterwards it is replaced by a small id. This makes the reset() done after
+ * every command or response cheap, since it no longer causes the descriptors of
+ * all classes in the object graph to be sent again.
+ * @see CompactObjectInputStream
+ * @version $Id$
+ */
+public class CompactObjectOutputStream extends ObjectOutputStream {
+
+	private HashMap<String, Integer> _classIds = new HashMap<String, Integer>();
+
+	private volatile boolean _compact;
+
+	public CompactObjectOutputStream(OutputStream out) throws IOException {
+		super(out);
+	}
+
+	/**
+	 * Switches to compact class descriptors, must be called right after the
+	 * last object that the other side reads in standard mode has been written.
+	 */
+	public void setCompact(boolean compact) {
+		_compact = compact;
+	}
+
+	public boolean isCompact() {
+		return _compact;
+	}
+
+	@Override
+	protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+		if (!_compact) {
+			super.writeClassDescriptor(desc);
+			return;
+		}
+		Integer id = _classIds.get(desc.getName());
+		if (id != null) {
+			writeInt(id);
+			return;
+		}
+		id = _classIds.size();
+		_classIds.put(desc.getName(), id);
+		// negative ids announce a new descriptor which follows in full
+		writeInt(-id - 1);
+		super.writeClassDescriptor(desc);
+	}
+}
@@ -24,10 +24,27 @@ import java.io.Serializable;
  * @author fr0w
  * @version $Id$
  */
-@SuppressWarnings("serial")
 public class HandshakeWrapper implements Serializable {
+	/**
+	 * Same as the computed value before the protocol mode was added,
+	 * older slaves and masters can still read this object.
+	 */
+	private static final long serialVersionUID = -7628871864421559526L;
+
+	/**
+	 * Standard java serialization, reset after every object.
+	 */
+	public static final String PROTOCOL_OBJECT = "object";
+
+	/**
+	 * Java serialization with class descriptors sent once per connection.
+	 * @see CompactObjectOutputStream
+	 */
+	public static final String PROTOCOL_COMPACT = "compact";
+
 	private boolean _status;
 	private Exception _exception;
+	private String _protocolMode;
 
 	/**
 	 * @return true if *all* plugins were found on the slave-side
@@ -67,7 +84,25 @@ public class HandshakeWrapper implements Serializable {
 		_exception = e;
 	}
 	
+	/**
+	 * @return the protocol mode requested by the slave, {@link #PROTOCOL_OBJECT}
+	 * for older slaves which don't send one.
+	 */
+	public String getProtocolMode() {
+		return _protocolMode == null ? PROTOCOL_OBJECT : _protocolMode;
+	}
+
+	/**
+	 * Requests a protocol mode, unless it is {@link #PROTOCOL_OBJECT} the master
+	 * answers with the mode which will be used by writing a String right after
+	 * reading this object.
+	 * @param protocolMode
+	 */
+	public void setProtocolMode(String protocolMode) {
+		_protocolMode = protocolMode;
+	}
+	
 	public String toString() {
-		return getClass().getName() + "[pluginStatus="+pluginStatus()+"]";
+		return getClass().getName() + "[pluginStatus="+pluginStatus()+",protocolMode="+getProtocolMode()+"]";
 	}
 }
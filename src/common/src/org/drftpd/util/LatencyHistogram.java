@@ -0,0 +1,132 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with power of two microsecond buckets.<br>
+ * Percentiles are reported as the upper bound of the bucket they fall in,
+ * which is plenty for status output and costs two atomic increments per sample.
+ * @version $Id$
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong _count = new AtomicLong();
+
+	private final AtomicLong _totalMicros = new AtomicLong();
+
+	private final AtomicLong _maxMicros = new AtomicLong();
+
+	/**
+	 * Records a sample measured with {@link System#nanoTime()}.
+	 */
+	public void recordNanos(long nanos) {
+		record(nanos / 1000L);
+	}
+
+	public void recordMillis(long millis) {
+		record(millis * 1000L);
+	}
+
+	private void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		_buckets.incrementAndGet(bucket);
+		_count.incrementAndGet();
+		_totalMicros.addAndGet(micros);
+		long max;
+		while (micros > (max = _maxMicros.get())) {
+			if (_maxMicros.compareAndSet(max, micros)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return _count.get();
+	}
+
+	public long getAverageMicros() {
+		long count = _count.get();
+		return count == 0 ? 0 : _totalMicros.get() / count;
+	}
+
+	public long getMaxMicros() {
+		return _maxMicros.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound in microseconds of the bucket holding the percentile.
+	 */
+	public long getPercentileMicros(double percentile) {
+		long count = _count.get();
+		if (count == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(count * percentile / 100D);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += _buckets.get(i);
+			if (seen >= target) {
+				return Math.min(1L << i, _maxMicros.get());
+			}
+		}
+		return _maxMicros.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			_buckets.set(i, 0);
+		}
+		_count.set(0);
+		_totalMicros.set(0);
+		_maxMicros.set(0);
+	}
+
+	/**
+	 * @return a human readable duration, ie. 850us, 12.5ms or 3.2s
+	 */
+	public static String formatMicros(long micros) {
+		if (micros < 1000L) {
+			return micros + "us";
+		}
+		if (micros < 1000000L) {
+			return String.format("%.1fms", micros / 1000D);
+		}
+		return String.format("%.1fs", micros / 1000000D);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount()
+				+ " avg=" + formatMicros(getAverageMicros())
+				+ " p50=" + formatMicros(getPercentileMicros(50))
+				+ " p95=" + formatMicros(getPercentileMicros(95))
+				+ " p99=" + formatMicros(getPercentileMicros(99))
+				+ " max=" + formatMicros(getMaxMicros());
+	}
+}
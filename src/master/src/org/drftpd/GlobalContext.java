@@ -106,6 +106,7 @@ public class GlobalContext {
 
 	public void reloadFtpConfig() {
 		_config.reload();
+		eventService.configure(_config.getMainProperties());
 	}
 
 	/**
@@ -276,6 +277,7 @@ public class GlobalContext {
 				} catch (InterruptedException e) {
 				}
 			}
+			VirtualFileSystem.getVirtualFileSystem().flushAggregated();
 			while (GlobalContext.getEventService().getQueueSize() > 0) {
 				logger.info("Waiting for queued events to be processed - " + 
 						GlobalContext.getEventService().getQueueSize() + " remaining");
@@ -292,6 +294,7 @@ public class GlobalContext {
 				} catch (InterruptedException e) {
 				}
 			}
+			VirtualFileSystem.getVirtualFileSystem().shutdown();
 			logger.info("Shutdown complete, exiting");
 			WrapperManager.stop(0);
 		}
@@ -336,6 +339,7 @@ public class GlobalContext {
 	public void init() {
 		_config = new ConfigManager();
 		_config.reload();
+		eventService.configure(_config.getMainProperties());
 
 		CommitManager.getCommitManager().start();
 		_timeManager = new TimeManager();
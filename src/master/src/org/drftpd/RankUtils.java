@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 
 import org.drftpd.util.GroupPosition;
@@ -128,9 +129,19 @@ public class RankUtils {
 			}
 		}
 
-		Collections.sort(ret, new UserComparator(type, sort));
+		return sortUploaders(ret, type, sort);
+	}
 
-		return ret;
+	/**
+	 * Sorts uploaders which are already tallied.
+	 * @param type bytes, xferspeed or xfertime.
+	 * @param sort high or low first.
+	 */
+	public static List<UploaderPosition> sortUploaders(List<UploaderPosition> uploaders,
+			String type, String sort) {
+		Collections.sort(uploaders, new UserComparator(type, sort));
+
+		return uploaders;
 	}
 }
 
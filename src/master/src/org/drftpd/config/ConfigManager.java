@@ -29,12 +29,14 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.drftpd.GlobalContext;
 import org.drftpd.dynamicdata.Key;
 import org.drftpd.dynamicdata.KeyedMap;
 import org.drftpd.master.config.ConfigInterface;
+import org.drftpd.permissions.CompiledPathPermissions;
 import org.drftpd.permissions.PathPermission;
 import org.drftpd.permissions.Permission;
 import org.drftpd.usermanager.User;
@@ -67,6 +69,7 @@ public class ConfigManager implements ConfigInterface {
     private HashMap<String, ConfigContainer> _directivesMap;
     private KeyedMap<Key<?>, Object> _keyedMap;
     private Properties _mainCfg;
+    private ConcurrentHashMap<String, CompiledPathPermissions> _compiledPathPerms;
 
     private VFSPermissions _vfsPerms;
 
@@ -211,6 +214,7 @@ public class ConfigManager implements ConfigInterface {
 
         _keyedMap.setObject(PATHPERMS, new Hashtable<String, ArrayList<PathPermission>>());
         _keyedMap.setObject(PERMS, new Hashtable<String, Permission>());
+        _compiledPathPerms = new ConcurrentHashMap<String, CompiledPathPermissions>();
     }
 
     private Hashtable<String, ArrayList<PathPermission>> getPathPermsMap() {
@@ -314,7 +318,7 @@ public class ConfigManager implements ConfigInterface {
         }
     }
 
-    public void addPathPermission(String directive, PathPermission perm) {
+    public synchronized void addPathPermission(String directive, PathPermission perm) {
         ArrayList<PathPermission> list;
         if (!getPathPermsMap().containsKey(directive)) {
             list = new ArrayList<PathPermission>();
@@ -324,6 +328,18 @@ public class ConfigManager implements ConfigInterface {
         }
 
         list.add(perm);
+        _compiledPathPerms.remove(directive);
+    }
+
+    private synchronized CompiledPathPermissions compilePathPermissions(String directive) {
+        CompiledPathPermissions compiled = _compiledPathPerms.get(directive);
+        if (compiled == null) {
+            // fetched again, the caller might still hold the rules from before a reload
+            ArrayList<PathPermission> perms = getPathPermsMap().get(directive);
+            compiled = new CompiledPathPermissions(perms == null ? new ArrayList<PathPermission>() : perms);
+            _compiledPathPerms.put(directive, compiled);
+        }
+        return compiled;
     }
 
 
@@ -337,10 +353,13 @@ public class ConfigManager implements ConfigInterface {
         ArrayList<PathPermission> perms = getPathPermsMap().get(directive);
 
         if (perms != null && !perms.isEmpty()) {
-            for (PathPermission perm : perms) {
-                if (perm.checkPath(path)) {
-                    return perm.check(user);
-                }
+            CompiledPathPermissions compiled = _compiledPathPerms.get(directive);
+            if (compiled == null) {
+                compiled = compilePathPermissions(directive);
+            }
+            int rule = compiled.getMatchingRule(path);
+            if (rule != -1) {
+                return compiled.check(rule, user);
             }
         }
 
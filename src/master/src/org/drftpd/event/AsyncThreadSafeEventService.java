@@ -18,44 +18,244 @@
 package org.drftpd.event;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.log4j.Logger;
+import org.bushe.swing.event.EventSubscriber;
+import org.bushe.swing.event.EventTopicSubscriber;
+import org.bushe.swing.event.ProxySubscriber;
 import org.bushe.swing.event.ThreadSafeEventService;
+import org.drftpd.PropertyHelper;
+import org.drftpd.util.CommonPluginUtils;
+import org.drftpd.util.LatencyHistogram;
+import org.drftpd.vfs.event.VirtualFileSystemEvent;
+import org.drftpd.vfs.event.VirtualFileSystemInodeCreatedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemInodeDeletedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemRenameEvent;
 
 /**
+ * Asynchronous events are queued per subscriber, each queue is drained by at
+ * most one thread of a small pool at a time.<br>
+ * A slow subscriber only delays its own events, and every subscriber still
+ * sees events in the order they were published, so per inode path ordering
+ * is kept. When a queue is full the subscriber's overflow policy decides:
+ * <ul>
+ * <li>block - the publisher waits for room</li>
+ * <li>drop - the new event is discarded</li>
+ * <li>coalesce - a queued VFS state event (size, last modified, slaves...) for
+ * the same path is replaced by the new one, otherwise the publisher waits</li>
+ * </ul>
+ * Dispatch threads never wait on a full queue, a subscriber publishing events
+ * could otherwise end up waiting on itself. Other publishers often hold VFS or
+ * transfer locks, so they only wait 'event.queue.wait' milliseconds and then
+ * queue the event anyway, these events are counted as overflowed.<br>
+ * Veto listeners are not consulted for asynchronous events.
  * @author djb61
  * @version $Id$
  */
 public final class AsyncThreadSafeEventService extends ThreadSafeEventService {
 
-	private LinkedBlockingQueue<QueuedAsyncEvent> _eventQueue = new LinkedBlockingQueue<QueuedAsyncEvent>();
+	private static final Logger logger = Logger.getLogger(AsyncThreadSafeEventService.class);
+
+	/**
+	 * Events delivered to a subscriber before its queue lets the others have a go.
+	 */
+	private static final int BATCH_SIZE = 64;
+
+	/**
+	 * How far back from the tail of a full queue coalescing looks for the same path.
+	 */
+	private static final int COALESCE_WINDOW = 256;
+
+	private static final ThreadLocal<Boolean> DISPATCHING = new ThreadLocal<Boolean>();
+
+	public enum OverflowPolicy {
+		BLOCK, DROP, COALESCE
+	}
+
+	private ThreadPoolExecutor _dispatchers;
+
+	private ConcurrentHashMap<Object, SubscriberQueue> _queues = new ConcurrentHashMap<Object, SubscriberQueue>();
+
+	private ConcurrentHashMap<String, SubscriberStats> _stats = new ConcurrentHashMap<String, SubscriberStats>();
+
+	private AtomicInteger _pending = new AtomicInteger();
+
+	private volatile int _queueSize = 10000;
+
+	/**
+	 * Longest a publisher waits for room in milliseconds, it may hold a lock the subscriber is waiting for.
+	 */
+	private volatile long _queueWait = 50L;
+
+	private volatile OverflowPolicy _defaultPolicy = OverflowPolicy.COALESCE;
+
+	private volatile Map<String, OverflowPolicy> _policies = Collections.emptyMap();
 
 	public AsyncThreadSafeEventService() {
 		super();
-		new Thread(new EventHandler()).start();
+		_dispatchers = new ThreadPoolExecutor(4, 4, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new EventThreadFactory());
+	}
+
+	/**
+	 * Reads 'event.threads', 'event.queue.size', 'event.queue.wait', 'event.overflow' and the per subscriber
+	 * 'event.overflow.&lt;class name&gt;' settings, events published before this is
+	 * called use the defaults.
+	 */
+	public void configure(Properties cfg) {
+		int threads = 4;
+		int queueSize = 10000;
+		long queueWait = 50L;
+		try {
+			threads = Math.max(1, Integer.parseInt(PropertyHelper.getProperty(cfg, "event.threads", "4").trim()));
+			queueSize = Math.max(1, Integer.parseInt(PropertyHelper.getProperty(cfg, "event.queue.size", "10000").trim()));
+			queueWait = Math.max(0L, Long.parseLong(PropertyHelper.getProperty(cfg, "event.queue.wait", "50").trim()));
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid event.threads, event.queue.size or event.queue.wait, using " + threads
+					+ ", " + queueSize + " and " + queueWait);
+		}
+		OverflowPolicy defaultPolicy = parsePolicy("event.overflow",
+				PropertyHelper.getProperty(cfg, "event.overflow", "coalesce"), OverflowPolicy.COALESCE);
+		HashMap<String, OverflowPolicy> policies = new HashMap<String, OverflowPolicy>();
+		for (String key : cfg.stringPropertyNames()) {
+			if (key.startsWith("event.overflow.")) {
+				policies.put(key.substring("event.overflow.".length()),
+						parsePolicy(key, cfg.getProperty(key), defaultPolicy));
+			}
+		}
+
+		if (threads > _dispatchers.getMaximumPoolSize()) {
+			_dispatchers.setMaximumPoolSize(threads);
+			_dispatchers.setCorePoolSize(threads);
+		} else {
+			_dispatchers.setCorePoolSize(threads);
+			_dispatchers.setMaximumPoolSize(threads);
+		}
+		_queueSize = queueSize;
+		_queueWait = queueWait;
+		_defaultPolicy = defaultPolicy;
+		_policies = policies;
+		for (SubscriberStats stats : _stats.values()) {
+			stats._policy = getPolicy(stats.getName());
+		}
+	}
+
+	private static OverflowPolicy parsePolicy(String key, String value, OverflowPolicy defaultPolicy) {
+		try {
+			return OverflowPolicy.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			logger.warn("Invalid " + key + " '" + value + "', using " + defaultPolicy.name().toLowerCase());
+			return defaultPolicy;
+		}
+	}
+
+	private OverflowPolicy getPolicy(String subscriberName) {
+		OverflowPolicy policy = _policies.get(subscriberName);
+		return policy == null ? _defaultPolicy : policy;
 	}
 
 	public void publishAsync(Object event) {
-		_eventQueue.add(new QueuedAsyncEvent(event));
+		dispatch(new QueuedAsyncEvent(event), getSubscribers(event.getClass()));
 	}
 
 	public void publishAsync(Type genericType, Object event) {
-		_eventQueue.add(new QueuedAsyncEvent(genericType,event));
+		dispatch(new QueuedAsyncEvent(event), getSubscribers(genericType));
 	}
 
 	public void publishAsync(String topicName, Object eventObj) {
-		_eventQueue.add(new QueuedAsyncEvent(topicName,eventObj));
+		dispatch(new QueuedAsyncEvent(topicName,eventObj), getSubscribers(topicName));
 	}
 
+	/**
+	 * @return the number of events queued or being delivered, counted once per subscriber.
+	 */
 	public int getQueueSize() {
-		return _eventQueue.size();
+		return _pending.get();
+	}
+
+	public int getThreadCount() {
+		return _dispatchers.getCorePoolSize();
+	}
+
+	public int getActiveThreadCount() {
+		return _dispatchers.getActiveCount();
+	}
+
+	/**
+	 * @return the delivery statistics of every subscriber seen so far, sorted by name.
+	 */
+	public List<SubscriberStats> getSubscriberStats() {
+		ArrayList<SubscriberStats> stats = new ArrayList<SubscriberStats>(_stats.values());
+		Collections.sort(stats, new Comparator<SubscriberStats>() {
+			public int compare(SubscriberStats s1, SubscriberStats s2) {
+				return s1.getName().compareTo(s2.getName());
+			}
+		});
+		return stats;
+	}
+
+	private void dispatch(QueuedAsyncEvent event, Collection<?> subscribers) {
+		for (Object subscriber : subscribers) {
+			while (true) {
+				SubscriberQueue queue = _queues.get(subscriber);
+				if (queue == null) {
+					SubscriberQueue created = new SubscriberQueue(subscriber, getStats(subscriber));
+					queue = _queues.putIfAbsent(subscriber, created);
+					if (queue == null) {
+						queue = created;
+					}
+				}
+				if (queue.offer(event)) {
+					break;
+				}
+				// the queue drained and retired meanwhile, the next one takes over
+			}
+		}
+	}
+
+	private SubscriberStats getStats(Object subscriber) {
+		Object target = subscriber;
+		if (subscriber instanceof ProxySubscriber) {
+			Object proxied = ((ProxySubscriber) subscriber).getProxiedSubscriber();
+			if (proxied != null) {
+				target = proxied;
+			}
+		}
+		String name = target.getClass().getName();
+		SubscriberStats stats = _stats.get(name);
+		if (stats == null) {
+			SubscriberStats created = new SubscriberStats(name, getPolicy(name));
+			stats = _stats.putIfAbsent(name, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
 	}
 
 	private static class QueuedAsyncEvent {
 
 		private Object _event;
 		private String _topic;
-		private Type _genericType;
+		private long _published = System.nanoTime();
 
 		private QueuedAsyncEvent(Object event) {
 			_event = event;
@@ -66,11 +266,6 @@ public final class AsyncThreadSafeEventService extends ThreadSafeEventService {
 			_event = event;
 		}
 
-		private QueuedAsyncEvent(Type genericType, Object event) {
-			_genericType = genericType;
-			_event = event;
-		}
-
 		private Object getEvent() {
 			return _event;
 		}
@@ -79,29 +274,277 @@ public final class AsyncThreadSafeEventService extends ThreadSafeEventService {
 			return _topic;
 		}
 
-		private Type getGenericType() {
-			return _genericType;
+		private long getPublished() {
+			return _published;
+		}
+
+		/**
+		 * @return the inode path of a VFS event, null for anything else.
+		 */
+		private String getPath() {
+			if (_event instanceof VirtualFileSystemEvent) {
+				return ((VirtualFileSystemEvent) _event).getImmutableInode().getPath();
+			}
+			return null;
+		}
+
+		/**
+		 * Only events which describe the latest state of an inode can replace each other.
+		 */
+		private boolean isCoalescible() {
+			return _event instanceof VirtualFileSystemEvent
+					&& !(_event instanceof VirtualFileSystemInodeCreatedEvent)
+					&& !(_event instanceof VirtualFileSystemInodeDeletedEvent)
+					&& !(_event instanceof VirtualFileSystemRenameEvent);
 		}
 	}
 
-	private class EventHandler implements Runnable {
+	private class SubscriberQueue implements Runnable {
 
-		public void run() {
-			Thread.currentThread().setName("AsyncEventHandler");
-			while (true) {
-				try {
-					QueuedAsyncEvent queuedEvent = _eventQueue.take();
-					if (queuedEvent.getTopic() != null) {
-						publish(queuedEvent.getTopic(),queuedEvent.getEvent());
-					} else if (queuedEvent.getGenericType() != null) {
-						publish(queuedEvent.getGenericType(),queuedEvent.getEvent());
-					} else {
-						publish(queuedEvent.getEvent());
+		private Object _subscriber;
+
+		private SubscriberStats _stats;
+
+		private LinkedList<QueuedAsyncEvent> _events = new LinkedList<QueuedAsyncEvent>();
+
+		private boolean _scheduled;
+
+		private boolean _retired;
+
+		private SubscriberQueue(Object subscriber, SubscriberStats stats) {
+			_subscriber = subscriber;
+			_stats = stats;
+		}
+
+		/**
+		 * @return false if this queue is retired and the event must go to a new one.
+		 */
+		private synchronized boolean offer(QueuedAsyncEvent event) {
+			long deadline = 0L;
+			while (!_retired && _events.size() >= _queueSize) {
+				OverflowPolicy policy = _stats._policy;
+				if (policy == OverflowPolicy.DROP) {
+					if (_stats._dropped.incrementAndGet() % 1000 == 1) {
+						logger.warn("Event queue of " + _stats.getName() + " is full, dropped "
+								+ _stats._dropped.get() + " events so far");
 					}
+					return true;
+				}
+				if (policy == OverflowPolicy.COALESCE && coalesce(event)) {
+					_stats._coalesced.incrementAndGet();
+					return true;
+				}
+				if (DISPATCHING.get() != null) {
+					break;
+				}
+				long now = System.currentTimeMillis();
+				if (deadline == 0L) {
+					deadline = now + _queueWait;
+				}
+				if (now >= deadline) {
+					if (_stats._overflowed.incrementAndGet() % 1000 == 1) {
+						logger.warn("Event queue of " + _stats.getName() + " is full, queued "
+								+ _stats._overflowed.get() + " events over its size so far");
+					}
+					break;
+				}
+				try {
+					wait(deadline - now);
 				} catch (InterruptedException e) {
-					// Do nothing just loop and try again
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (_retired) {
+				return false;
+			}
+			_events.addLast(event);
+			_pending.incrementAndGet();
+			_stats.queued(_events.size());
+			if (!_scheduled) {
+				_scheduled = true;
+				_dispatchers.execute(this);
+			}
+			return true;
+		}
+
+		private boolean coalesce(QueuedAsyncEvent event) {
+			String path = event.getPath();
+			if (path == null || !event.isCoalescible()) {
+				return false;
+			}
+			ListIterator<QueuedAsyncEvent> iter = _events.listIterator(_events.size());
+			for (int i = 0; i < COALESCE_WINDOW && iter.hasPrevious(); i++) {
+				QueuedAsyncEvent queued = iter.previous();
+				if (queued.getEvent() instanceof VirtualFileSystemRenameEvent) {
+					// moves a whole tree, nothing before it can be replaced safely
+					return false;
+				}
+				if (path.equals(queued.getPath())) {
+					if (queued.isCoalescible() && queued.getEvent().getClass() == event.getEvent().getClass()) {
+						iter.set(event);
+						return true;
+					}
+					return false;
+				}
+			}
+			return false;
+		}
+
+		public void run() {
+			DISPATCHING.set(Boolean.TRUE);
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				QueuedAsyncEvent event;
+				synchronized (this) {
+					event = _events.poll();
+					if (event == null) {
+						retire();
+						return;
+					}
+					_stats._depth.decrementAndGet();
+					notifyAll();
+				}
+				deliver(event);
+			}
+			synchronized (this) {
+				if (_events.isEmpty()) {
+					retire();
+				} else {
+					_dispatchers.execute(this);
+				}
+			}
+		}
+
+		/**
+		 * Empty queues are dropped so unsubscribed subscribers are not kept around.
+		 */
+		private void retire() {
+			_scheduled = false;
+			_retired = true;
+			_queues.remove(_subscriber, this);
+			notifyAll();
+		}
+
+		@SuppressWarnings("unchecked")
+		private void deliver(QueuedAsyncEvent event) {
+			long start = System.nanoTime();
+			_stats._waitLatency.recordNanos(start - event.getPublished());
+			try {
+				if (event.getTopic() != null) {
+					((EventTopicSubscriber<Object>) _subscriber).onEvent(event.getTopic(), event.getEvent());
+				} else {
+					((EventSubscriber<Object>) _subscriber).onEvent(event.getEvent());
+				}
+			} catch (Throwable t) {
+				logger.error("Exception delivering " + event.getEvent().getClass().getName()
+						+ " to " + _stats.getName(), t);
+			} finally {
+				_stats._deliverLatency.recordNanos(System.nanoTime() - start);
+				_stats._delivered.incrementAndGet();
+				_pending.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Queue and delivery figures of one subscriber class.
+	 */
+	public static class SubscriberStats {
+
+		private String _name;
+
+		private volatile OverflowPolicy _policy;
+
+		private AtomicInteger _depth = new AtomicInteger();
+
+		private AtomicInteger _maxDepth = new AtomicInteger();
+
+		private AtomicLong _delivered = new AtomicLong();
+
+		private AtomicLong _dropped = new AtomicLong();
+
+		private AtomicLong _coalesced = new AtomicLong();
+
+		private AtomicLong _overflowed = new AtomicLong();
+
+		private LatencyHistogram _waitLatency = new LatencyHistogram();
+
+		private LatencyHistogram _deliverLatency = new LatencyHistogram();
+
+		private SubscriberStats(String name, OverflowPolicy policy) {
+			_name = name;
+			_policy = policy;
+		}
+
+		private void queued(int size) {
+			_depth.incrementAndGet();
+			int max;
+			while (size > (max = _maxDepth.get())) {
+				if (_maxDepth.compareAndSet(max, size)) {
+					break;
 				}
 			}
 		}
+
+		public String getName() {
+			return _name;
+		}
+
+		public OverflowPolicy getPolicy() {
+			return _policy;
+		}
+
+		public int getDepth() {
+			return _depth.get();
+		}
+
+		public int getMaxDepth() {
+			return _maxDepth.get();
+		}
+
+		public long getDeliveredCount() {
+			return _delivered.get();
+		}
+
+		public long getDroppedCount() {
+			return _dropped.get();
+		}
+
+		public long getCoalescedCount() {
+			return _coalesced.get();
+		}
+
+		/**
+		 * @return events queued over the queue size because the publisher stopped waiting for room.
+		 */
+		public long getOverflowedCount() {
+			return _overflowed.get();
+		}
+
+		/**
+		 * @return the time from publishing an event to its delivery starting.
+		 */
+		public LatencyHistogram getWaitLatency() {
+			return _waitLatency;
+		}
+
+		/**
+		 * @return the time the subscriber spent handling each event.
+		 */
+		public LatencyHistogram getDeliverLatency() {
+			return _deliverLatency;
+		}
+	}
+
+	private class EventThreadFactory implements ThreadFactory {
+		private AtomicInteger _count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("AsyncEventHandler-" + _count.incrementAndGet());
+			t.setDaemon(true);
+			t.setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(AsyncThreadSafeEventService.this));
+			return t;
+		}
 	}
 }
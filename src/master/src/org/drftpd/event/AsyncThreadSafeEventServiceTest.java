@@ -0,0 +1,181 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.bushe.swing.event.EventSubscriber;
+import org.drftpd.event.AsyncThreadSafeEventService.SubscriberStats;
+import org.drftpd.vfs.VirtualFileSystemRoot;
+import org.drftpd.vfs.event.VirtualFileSystemSizeEvent;
+
+/**
+ * @version $Id$
+ */
+public class AsyncThreadSafeEventServiceTest extends TestCase {
+
+	private AsyncThreadSafeEventService _service;
+
+	private VirtualFileSystemRoot _inode = new VirtualFileSystemRoot("drftpd", "drftpd");
+
+	public AsyncThreadSafeEventServiceTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_service = new AsyncThreadSafeEventService();
+	}
+
+	private Properties makeConfig(String overflow) {
+		Properties cfg = new Properties();
+		cfg.setProperty("event.threads", "2");
+		cfg.setProperty("event.queue.size", "2");
+		cfg.setProperty("event.overflow", overflow);
+		return cfg;
+	}
+
+	public void testSlowSubscriber() throws InterruptedException {
+		Properties cfg = makeConfig("block");
+		cfg.setProperty("event.overflow." + BlockingSubscriber.class.getName(), "drop");
+		_service.configure(cfg);
+		BlockingSubscriber slow = new BlockingSubscriber();
+		RecordingSubscriber fast = new RecordingSubscriber(100);
+		_service.subscribeStrongly(VirtualFileSystemSizeEvent.class, slow);
+		_service.subscribeStrongly(VirtualFileSystemSizeEvent.class, fast);
+		_service.publishAsync(new VirtualFileSystemSizeEvent(_inode, "/a", 0));
+		assertTrue(slow._started.await(5, TimeUnit.SECONDS));
+		for (int i = 1; i < 100; i++) {
+			_service.publishAsync(new VirtualFileSystemSizeEvent(_inode, "/a", i));
+		}
+		assertTrue(fast._done.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, fast.getSizes().get(i).longValue());
+		}
+		assertEquals(1, slow.getSizes().size());
+		assertEquals(97L, getStats(BlockingSubscriber.class).getDroppedCount());
+		slow._release.countDown();
+	}
+
+	public void testCoalesce() throws InterruptedException {
+		_service.configure(makeConfig("coalesce"));
+		BlockingSubscriber subscriber = new BlockingSubscriber();
+		_service.subscribeStrongly(VirtualFileSystemSizeEvent.class, subscriber);
+		publishWhileBlocked(subscriber);
+		assertEquals(3, subscriber.getSizes().size());
+		assertEquals(5L, subscriber.getSizes().get(2).longValue());
+		assertEquals(2L, getStats(BlockingSubscriber.class).getCoalescedCount());
+	}
+
+	public void testDrop() throws InterruptedException {
+		_service.configure(makeConfig("drop"));
+		BlockingSubscriber subscriber = new BlockingSubscriber();
+		_service.subscribeStrongly(VirtualFileSystemSizeEvent.class, subscriber);
+		publishWhileBlocked(subscriber);
+		assertEquals(3, subscriber.getSizes().size());
+		assertEquals(3L, subscriber.getSizes().get(2).longValue());
+		assertEquals(2L, getStats(BlockingSubscriber.class).getDroppedCount());
+	}
+
+	public void testPublisherWaitIsBounded() throws InterruptedException {
+		Properties cfg = makeConfig("block");
+		cfg.setProperty("event.queue.wait", "20");
+		_service.configure(cfg);
+		BlockingSubscriber subscriber = new BlockingSubscriber();
+		_service.subscribeStrongly(VirtualFileSystemSizeEvent.class, subscriber);
+		_service.publishAsync(new VirtualFileSystemSizeEvent(_inode, "/a", 1));
+		assertTrue(subscriber._started.await(5, TimeUnit.SECONDS));
+		long start = System.currentTimeMillis();
+		for (int i = 2; i <= 5; i++) {
+			_service.publishAsync(new VirtualFileSystemSizeEvent(_inode, "/a", i));
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000L);
+		// the event being delivered, two which fit and two over the size
+		assertEquals(5, _service.getQueueSize());
+		assertEquals(2L, getStats(BlockingSubscriber.class).getOverflowedCount());
+		subscriber._release.countDown();
+	}
+
+	private void publishWhileBlocked(BlockingSubscriber subscriber) throws InterruptedException {
+		_service.publishAsync(new VirtualFileSystemSizeEvent(_inode, "/a", 1));
+		assertTrue(subscriber._started.await(5, TimeUnit.SECONDS));
+		for (int i = 2; i <= 5; i++) {
+			_service.publishAsync(new VirtualFileSystemSizeEvent(_inode, "/a", i));
+		}
+		assertEquals(3, _service.getQueueSize());
+		subscriber._release.countDown();
+		long deadline = System.currentTimeMillis() + 5000L;
+		while (_service.getQueueSize() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, _service.getQueueSize());
+	}
+
+	private SubscriberStats getStats(Class<?> clazz) {
+		for (SubscriberStats stats : _service.getSubscriberStats()) {
+			if (stats.getName().equals(clazz.getName())) {
+				return stats;
+			}
+		}
+		throw new AssertionError("No statistics for " + clazz.getName());
+	}
+
+	private static class RecordingSubscriber implements EventSubscriber<VirtualFileSystemSizeEvent> {
+		private List<Long> _sizes = Collections.synchronizedList(new ArrayList<Long>());
+
+		protected CountDownLatch _done;
+
+		private RecordingSubscriber(int expected) {
+			_done = new CountDownLatch(expected);
+		}
+
+		public void onEvent(VirtualFileSystemSizeEvent event) {
+			_sizes.add(event.getSize());
+			_done.countDown();
+		}
+
+		protected List<Long> getSizes() {
+			return _sizes;
+		}
+	}
+
+	private static class BlockingSubscriber extends RecordingSubscriber {
+		private CountDownLatch _started = new CountDownLatch(1);
+
+		private CountDownLatch _release = new CountDownLatch(1);
+
+		private BlockingSubscriber() {
+			super(0);
+		}
+
+		public void onEvent(VirtualFileSystemSizeEvent event) {
+			super.onEvent(event);
+			_started.countDown();
+			try {
+				_release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -28,12 +28,10 @@ import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLSocket;
 
@@ -63,7 +61,7 @@ import org.drftpd.vfs.DirectoryHandle;
  * @version $Id$
  */
 @SuppressWarnings("serial")
-public class BaseFtpConnection extends Session implements Runnable {
+public class BaseFtpConnection extends Session implements Runnable, ControlChannelHandler {
 	private static final Logger debuglogger = Logger.getLogger(BaseFtpConnection.class.getName() + ".service");
 
 	private static final Logger logger = Logger.getLogger(BaseFtpConnection.class);
@@ -115,7 +113,7 @@ public class BaseFtpConnection extends Session implements Runnable {
 	/**
 	 * Should this thread stop insted of continue looping?
 	 */
-	protected boolean _stopRequest = false;
+	protected volatile boolean _stopRequest = false;
 
 	protected String _stopRequestMessage;
 
@@ -123,12 +121,28 @@ public class BaseFtpConnection extends Session implements Runnable {
 
 	protected String _user;
 
-	private ThreadPoolExecutor _pool;
-
-	private boolean _authDone = false;
+	private volatile boolean _authDone = false;
 
 	private AtomicInteger _commandCount = new AtomicInteger(0);
 
+	/**
+	 * Commands handed to the command threads which haven't finished yet.
+	 */
+	private AtomicInteger _executing = new AtomicInteger(0);
+
+	private final Object _commandLock = new Object();
+
+	private static final AtomicLong _connectionIds = new AtomicLong(0);
+
+	/**
+	 * Set when served by the nio engine, which has no thread per connection.
+	 */
+	private NioControlChannel _controlChannel;
+
+	private long _connectionId;
+
+	private AtomicBoolean _closing = new AtomicBoolean(false);
+
 	protected BaseFtpConnection() {
 	}
 
@@ -136,6 +150,15 @@ public class BaseFtpConnection extends Session implements Runnable {
 		setControlSocket(soc);
 	}
 
+	public BaseFtpConnection(NioControlChannel channel) {
+		_controlChannel = channel;
+		_controlSocket = channel.getSocket();
+		_connectionId = _connectionIds.incrementAndGet();
+		_out = new PrintWriter(new OutputStreamWriter(
+				new AddAsciiOutputStream(new BufferedOutputStream(
+						channel.getOutputStream())), Charset.forName("ISO-8859-1")));
+	}
+
 	/**
 	 * Get client address
 	 */
@@ -155,6 +178,13 @@ public class BaseFtpConnection extends Session implements Runnable {
 		return _controlSocket;
 	}
 
+	/**
+	 * @return the control connection when served by the nio engine, null otherwise.
+	 */
+	public NioControlChannel getControlChannel() {
+		return _controlChannel;
+	}
+
 	public PrintWriter getControlWriter() {
 		return _out;
 	}
@@ -164,10 +194,13 @@ public class BaseFtpConnection extends Session implements Runnable {
 	}
 
 	/*
-	 * Returns thread id number
+	 * Returns thread id number, or a connection number with the nio engine
 	 */
 	public long getThreadID() {
-		return _thread.getId();
+		if (_thread != null) {
+			return _thread.getId();
+		}
+		return _connectionId;
 	}
 	
 	/**
@@ -245,10 +278,13 @@ public class BaseFtpConnection extends Session implements Runnable {
 	 * Returns true if client is executing a command.
 	 */
 	public boolean isExecuting() {
-		return _pool.getActiveCount() > 0;
+		return _executing.get() > 0;
 	}
 
 	public boolean isSecure() {
+		if (_controlChannel != null) {
+			return _controlChannel.isSecure();
+		}
 		return _controlSocket instanceof SSLSocket;
 	}
 
@@ -257,42 +293,40 @@ public class BaseFtpConnection extends Session implements Runnable {
 	}
 
 	/**
-	 * Server one FTP connection.
+	 * Prepares the session and greets the client.
 	 */
-	public void run() {
+	protected void open() {
 		_commandManager = GlobalContext.getConnectionManager().getCommandManager();
 		setCommands(GlobalContext.getConnectionManager().getCommands());
 		_lastActive = System.currentTimeMillis();
 		setCurrentDirectory(getGlobalContext().getRoot());
-		_thread = Thread.currentThread();
-		GlobalContext.getConnectionManager().dumpThreadPool();
-		
-		_lastActive = System.currentTimeMillis();
+
 		if (!GlobalContext.getConfig().getHideIps()) {
 			logger.info("Handling new request from "
 					+ getClientAddress().getHostAddress());
-			_thread.setName("FtpConn thread " + _thread.getId() + " from "
-					+ getClientAddress().getHostAddress());
 		} else {
 			logger.info("Handling new request from <iphidden>");
-			_thread.setName("FtpConn thread " + _thread.getId()
-					+ " from <iphidden>");
 		}
-		
-		_pool = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
-                60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
-                new CommandThreadFactory(_thread.getName()));
+
+		if (GlobalContext.getGlobalContext().isShutdown()) {
+			stop(GlobalContext.getGlobalContext().getShutdownMessage());
+		} else {
+			printOutput(new FtpReply(220, GlobalContext.getConfig().getLoginPrompt()));
+		}
+	}
+
+	/**
+	 * Server one FTP connection.
+	 */
+	public void run() {
+		_thread = Thread.currentThread();
+		GlobalContext.getConnectionManager().dumpThreadPool();
+		open();
+		_thread.setName(getConnectionName());
 
 		try {
 			_controlSocket.setSoTimeout(1000);
 
-			if (GlobalContext.getGlobalContext().isShutdown()) {
-				stop(GlobalContext.getGlobalContext().getShutdownMessage());
-			} else {
-				FtpReply response = new FtpReply(220, GlobalContext.getConfig().getLoginPrompt());
-				_out.print(response);
-			}
-
 			while (!_stopRequest) {
 				_out.flush();
 
@@ -311,19 +345,7 @@ public class BaseFtpConnection extends Session implements Runnable {
 						stop("Socket unexpectedly closed");
 						break;
 					}
-					int idleTime;
-					try {
-						idleTime = getUser().getIdleTime();
-						if (idleTime > 0) {
-							_pool.setKeepAliveTime(idleTime, TimeUnit.SECONDS);
-						}
-					} catch (NoSuchUserException e) {
-						idleTime = 60;
-						// user not logged in yet
-					}
-					if (idleTime > 0
-							&& ((System.currentTimeMillis() - _lastActive) / 1000 >= idleTime)
-							&& !isExecuting()) {
+					if (isIdleTimedOut(System.currentTimeMillis())) {
 						stop("IdleTimeout");
 						break;
 					}
@@ -343,57 +365,28 @@ public class BaseFtpConnection extends Session implements Runnable {
 					continue;
 				}
 
-				_request = new FtpRequest(commandLine);
-
-				if (!_request.getCommand().equals("PASS")) {
-					debuglogger.debug("<< " + _request.getCommandLine());
-				}
-
-				// execute command
-				_pool.execute(new CommandThread(_request, this));
-				if (_request.getCommand().equalsIgnoreCase("AUTH")) {
-					while(!_authDone && !_stopRequest) {
-						Thread.sleep(100);
+				FtpRequest request = new FtpRequest(commandLine);
+				execute(request);
+				if (request.getCommand().equalsIgnoreCase("AUTH")) {
+					// the control socket is replaced, wait before reading from it again
+					synchronized (_commandLock) {
+						while (!_authDone && !_stopRequest && isExecuting()) {
+							_commandLock.wait(1000);
+						}
 					}
 				}
 				poolStatus();
 				_lastActive = System.currentTimeMillis();
 			}
 
-			if (_stopRequestMessage != null) {
-				_out.print(new FtpReply(421, _stopRequestMessage));
-			} else {
-				_out.println("421 Connection closing");
-			}
-
-			_out.flush();
+			printGoodbye();
 		} catch (SocketException ex) {
 			logger.log(Level.INFO, ex.getMessage() + ", closing for user "
 					+ ((_user == null) ? "<not logged in>" : _user), ex);
 		} catch (Exception ex) {
 			logger.log(Level.INFO, "Exception, closing", ex);
 		} finally {
-			shutdownSocket();
-
-			if (isAuthenticated()) {
-				try {
-					getUser().updateLastAccessTime();
-				} catch (NoSuchUserException e) {
-					logger.error("User does not exist, yet user is authenticated, this is a bug");
-				}
-				
-				GlobalContext.getEventService().publishAsync(new ConnectionEvent(getUserNull(), "LOGOUT"));
-			}
-			
-			if (isExecuting()) {
-				super.abortCommand();
-			}
-			// Reset just the transfer if one is active, a full reset of the TransferState instance is
-			// not required as this object will not be reused. Leaving the rest of the state untouched
-			// will allow any active command threads to terminate gracefully.
-			getTransferState().resetTransfer();
-			_pool.shutdown();
-			GlobalContext.getConnectionManager().remove(this);
+			close();
 			GlobalContext.getConnectionManager().dumpThreadPool();
 			
 			Thread t = Thread.currentThread();
@@ -401,26 +394,121 @@ public class BaseFtpConnection extends Session implements Runnable {
 		}
 	}
 
-	public void setAuthenticated(boolean authenticated) {
-		_authenticated = authenticated;
+	public void lineReceived(NioControlChannel channel, String line) {
+		if (_stopRequest || line.equals("")) {
+			return;
+		}
+		FtpRequest request = new FtpRequest(line);
+		if (request.getCommand().equalsIgnoreCase("AUTH")) {
+			// nothing more is read until the command is done with the channel
+			channel.suspendReads();
+		}
+		execute(request);
+		poolStatus();
+		_lastActive = System.currentTimeMillis();
+	}
+
+	public void channelClosed(NioControlChannel channel, String reason) {
+		stop(reason);
+	}
+
+	public void checkIdle(long now) {
+		if (!_stopRequest && isIdleTimedOut(now)) {
+			stop("IdleTimeout");
+		}
+	}
+
+	private boolean isIdleTimedOut(long now) {
+		int idleTime;
+		try {
+			idleTime = getUser().getIdleTime();
+		} catch (NoSuchUserException e) {
+			idleTime = 60;
+			// user not logged in yet
+		}
+		return idleTime > 0 && ((now - _lastActive) / 1000 >= idleTime) && !isExecuting();
+	}
+
+	private void execute(FtpRequest request) {
+		_request = request;
+
+		if (!_request.getCommand().equals("PASS")) {
+			debuglogger.debug("<< " + _request.getCommandLine());
+		}
+
+		if (_request.getCommand().equalsIgnoreCase("AUTH")) {
+			_authDone = false;
+		}
+		// execute command
+		_executing.incrementAndGet();
+		GlobalContext.getConnectionManager().getCommandExecutor().execute(new CommandThread(_request, this));
+	}
+
+	private synchronized void printGoodbye() {
+		if (_stopRequestMessage != null) {
+			_out.print(new FtpReply(421, _stopRequestMessage));
+		} else {
+			_out.println("421 Connection closing");
+		}
+
+		_out.flush();
+	}
+
+	/**
+	 * Releases everything held by the connection once it is over.
+	 */
+	private void close() {
+		shutdownSocket();
 
 		if (isAuthenticated()) {
 			try {
-				// If hideips is on, hide ip but not user/group
-				if (GlobalContext.getConfig().getHideIps()) {
-					_thread.setName("FtpConn thread " + _thread.getId()
-							+ " servicing " + _user + "/"
-							+ getUser().getGroup());
-				} else {
-					_thread.setName("FtpConn thread " + _thread.getId()
-							+ " from " + getClientAddress().getHostAddress()
-							+ " " + _user + "/" + getUser().getGroup());
-				}
+				getUser().updateLastAccessTime();
 			} catch (NoSuchUserException e) {
-				logger
-						.error("User does not exist, yet user is authenticated, this is a bug");
+				logger.error("User does not exist, yet user is authenticated, this is a bug");
+			}
+			
+			GlobalContext.getEventService().publishAsync(new ConnectionEvent(getUserNull(), "LOGOUT"));
+		}
+		
+		if (isExecuting()) {
+			super.abortCommand();
+		}
+		// Reset just the transfer if one is active, a full reset of the TransferState instance is
+		// not required as this object will not be reused. Leaving the rest of the state untouched
+		// will allow any active command threads to terminate gracefully.
+		getTransferState().resetTransfer();
+		GlobalContext.getConnectionManager().remove(this);
+	}
+
+	/**
+	 * The name given to the threads working for this connection.
+	 */
+	private String getConnectionName() {
+		String name = "FtpConn thread " + getThreadID();
+		if (isAuthenticated()) {
+			User user = getUserNull();
+			if (user == null) {
+				logger.error("User does not exist, yet user is authenticated, this is a bug");
+			} else if (GlobalContext.getConfig().getHideIps()) {
+				// If hideips is on, hide ip but not user/group
+				return name + " servicing " + _user + "/" + user.getGroup();
+			} else {
+				return name + " from " + getClientAddress().getHostAddress()
+						+ " " + _user + "/" + user.getGroup();
 			}
 		}
+		if (GlobalContext.getConfig().getHideIps()) {
+			return name + " from <iphidden>";
+		}
+		return name + " from " + getClientAddress().getHostAddress();
+	}
+
+	public void setAuthenticated(boolean authenticated) {
+		_authenticated = authenticated;
+
+		if (isAuthenticated() && _thread != null) {
+			_thread.setName(getConnectionName());
+		}
 	}
 
 	public void setControlSocket(Socket socket) {
@@ -458,6 +546,25 @@ public class BaseFtpConnection extends Session implements Runnable {
 	public void stop() {
 		getTransferState().abort("Your connection is being shutdown");
 		_stopRequest = true;
+		if (_controlChannel != null && !isExecuting()) {
+			// no reading thread to notice, say goodbye from a command thread
+			GlobalContext.getConnectionManager().getCommandExecutor().execute(new Runnable() {
+				public void run() {
+					closeChannel();
+				}
+			});
+		}
+		// otherwise the last running command closes it once its reply is out
+	}
+
+	/**
+	 * Says goodbye and closes a connection served by the nio engine, only the first call does anything.
+	 */
+	private void closeChannel() {
+		if (_closing.compareAndSet(false, true)) {
+			printGoodbye();
+			close();
+		}
 	}
 
 	public void stop(String message) {
@@ -536,7 +643,10 @@ public class BaseFtpConnection extends Session implements Runnable {
 	}
 
 	public void authDone() {
-		_authDone = true;
+		synchronized (_commandLock) {
+			_authDone = true;
+			_commandLock.notifyAll();
+		}
 	}
 
 	public void poolStatus() {
@@ -568,7 +678,9 @@ public class BaseFtpConnection extends Session implements Runnable {
 			// Already closed
 		}
 		try {
-			if (_controlSocket != null) {
+			if (_controlChannel != null) {
+				_controlChannel.close();
+			} else if (_controlSocket != null) {
 				_controlSocket.close();
 			}
 		} catch (Exception ex) {
@@ -599,6 +711,28 @@ public class BaseFtpConnection extends Session implements Runnable {
 		}
 
 		public void run() {
+			Thread thread = Thread.currentThread();
+			String idleName = thread.getName();
+			thread.setName(getConnectionName() + " - " + _ftpRequest.getCommand());
+			try {
+				executeCommand();
+			} finally {
+				thread.setName(idleName);
+				synchronized (_commandLock) {
+					_executing.decrementAndGet();
+					_commandLock.notifyAll();
+				}
+				if (_controlChannel != null) {
+					if (_stopRequest && !isExecuting()) {
+						closeChannel();
+					} else if (_ftpRequest.getCommand().equalsIgnoreCase("AUTH")) {
+						_controlChannel.resumeReads();
+					}
+				}
+			}
+		}
+
+		private void executeCommand() {
 			if (_commandCount.get() > 0 && !_ftpRequest.getCommand().equalsIgnoreCase("ABOR")) {
 				return;
 			}
@@ -628,19 +762,4 @@ public class BaseFtpConnection extends Session implements Runnable {
 			_commandCount.decrementAndGet();
 		}
 	}
-
-	static class CommandThreadFactory implements ThreadFactory {
-
-		String _parentName;
-
-		private CommandThreadFactory(String parentName) {
-			_parentName = parentName;
-		}
-
-		public Thread newThread(Runnable r) {
-			Thread ret = Executors.defaultThreadFactory().newThread(r);
-			ret.setName(_parentName + " - " + ret.getName());
-			return ret;
-		}
-	}
 }
@@ -0,0 +1,179 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.master;
+
+import java.io.FileNotFoundException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.drftpd.GlobalContext;
+import org.drftpd.PropertyHelper;
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.slave.RemoteIOException;
+import org.drftpd.slave.async.AsyncResponseChecksum;
+import org.drftpd.util.CommonPluginUtils;
+import org.drftpd.vfs.FileHandle;
+
+/**
+ * Fetches the checksums of remerged files in the background.<br>
+ * Remerge only learns names, sizes and dates from the slave, files it creates
+ * are queued here and get their CRC32 once the slave has computed it.<br>
+ * The queue is bounded, files which don't fit keep a checksum of 0 and get it
+ * from the slave the first time it is asked for, as they would without the queue.
+ * @version $Id$
+ */
+public class ChecksumQueue {
+	private static final Logger logger = Logger.getLogger(ChecksumQueue.class);
+
+	private static ChecksumQueue _instance;
+
+	private boolean _enabled;
+
+	private ExecutorService _workers;
+
+	private ConcurrentHashMap<String, Boolean> _queued = new ConcurrentHashMap<String, Boolean>();
+
+	private AtomicLong _completed = new AtomicLong();
+
+	private AtomicLong _failed = new AtomicLong();
+
+	private AtomicLong _dropped = new AtomicLong();
+
+	private ChecksumQueue() {
+		Properties cfg = GlobalContext.getConfig().getMainProperties();
+		_enabled = PropertyHelper.getProperty(cfg, "remerge.checksums", "false").trim().equalsIgnoreCase("true");
+		int threads = 2;
+		try {
+			threads = Math.max(1, Integer.parseInt(PropertyHelper.getProperty(cfg, "remerge.checksum.threads", "2").trim()));
+		} catch (NumberFormatException e) {
+		}
+		int queueSize = 10000;
+		try {
+			queueSize = Math.max(1, Integer.parseInt(PropertyHelper.getProperty(cfg, "remerge.checksum.queue", "10000").trim()));
+		} catch (NumberFormatException e) {
+		}
+		_workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(queueSize), new ChecksumThreadFactory());
+	}
+
+	/**
+	 * @return the unique ChecksumQueue instance, creating the instance if it does not exist yet.
+	 */
+	public static synchronized ChecksumQueue getChecksumQueue() {
+		if (_instance == null) {
+			_instance = new ChecksumQueue();
+		}
+		return _instance;
+	}
+
+	/**
+	 * Queues the file to have its checksum fetched from the slave, files which are
+	 * already queued are ignored and files which don't fit in the queue are dropped.
+	 */
+	public void add(FileHandle file, RemoteSlave rslave) {
+		if (!_enabled) {
+			return;
+		}
+		if (_queued.putIfAbsent(file.getPath(), Boolean.TRUE) == null) {
+			try {
+				_workers.execute(new ChecksumTask(file, rslave));
+			} catch (RejectedExecutionException e) {
+				_queued.remove(file.getPath());
+				if (_dropped.incrementAndGet() % 1000 == 1) {
+					logger.info("Remerge checksum queue is full, " + _dropped.get()
+							+ " files left to get their checksum when first needed");
+				}
+			}
+		}
+	}
+
+	public int getQueueSize() {
+		return _queued.size();
+	}
+
+	public long getCompletedCount() {
+		return _completed.get();
+	}
+
+	public long getFailedCount() {
+		return _failed.get();
+	}
+
+	public long getDroppedCount() {
+		return _dropped.get();
+	}
+
+	private class ChecksumTask implements Runnable {
+		private FileHandle _file;
+
+		private RemoteSlave _rslave;
+
+		public ChecksumTask(FileHandle file, RemoteSlave rslave) {
+			_file = file;
+			_rslave = rslave;
+		}
+
+		public void run() {
+			try {
+				if (!_rslave.isOnline() || _file.getCheckSumCached() != 0L
+						|| !_file.getSlaveNames().contains(_rslave.getName())) {
+					// slave gone, checksum set by an upload or file moved to another slave meanwhile
+					return;
+				}
+				String index = SlaveManager.getBasicIssuer().issueChecksumToSlave(_rslave, _file.getPath());
+				// no timeout, a large file can take a while and this doesn't hold anything else up
+				long checksum = ((AsyncResponseChecksum) _rslave.fetchResponse(index, 0)).getChecksum();
+				_file.setCheckSum(checksum);
+				_completed.incrementAndGet();
+			} catch (FileNotFoundException e) {
+				// deleted since the remerge
+			} catch (SlaveUnavailableException e) {
+				_failed.incrementAndGet();
+			} catch (RemoteIOException e) {
+				_failed.incrementAndGet();
+				logger.warn("Unable to checksum " + _file.getPath() + " on " + _rslave.getName(), e.getCause());
+			} finally {
+				_queued.remove(_file.getPath());
+				if (_queued.isEmpty()) {
+					logger.debug("Remerge checksum queue is empty, " + _completed.get() + " checksums fetched so far");
+				}
+			}
+		}
+	}
+
+	private class ChecksumThreadFactory implements ThreadFactory {
+		private AtomicInteger _count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("ChecksumQueue-" + _count.incrementAndGet());
+			t.setDaemon(true);
+			t.setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(ChecksumQueue.this));
+			return t;
+		}
+	}
+}
@@ -15,24 +15,40 @@
  * along with DrFTPD; if not, write to the Free Software
  * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
  */
-
 package org.drftpd.master;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.drftpd.GlobalContext;
 import org.drftpd.PropertyHelper;
 import org.drftpd.util.CommonPluginUtils;
+import org.drftpd.util.LatencyHistogram;
 
 /**
  * This classes handle all XML commits.
  * The main purpose of having this is to avoiding serializing the same object tons of times,
- * even if it data was not changed. 
+ * even if it data was not changed.<br>
+ * Dirty objects are tracked in an identity keyed map so that adding, removing and
+ * checking an object is O(1), a second queue keeps them in the order they became
+ * dirty so that due objects can be taken from its head and written in batches
+ * by a small pool of workers.<br>
+ * Two live objects can stand for the same path, ie. an evicted inode and its
+ * reloaded copy, their writes are serialized in the order they became dirty so
+ * an older state never overwrites a newer one.
  * @author zubov
  * @version $Id$
  */
@@ -42,18 +58,34 @@ public class CommitManager {
 
 	private static CommitManager _instance;
 
+	private ConcurrentHashMap<IdentityKey, CommitableWrapper> _dirty;
 	private ConcurrentLinkedQueue<CommitableWrapper> _commitQueue;
 	private boolean _isStarted;
-	private AtomicInteger _queueSize;
+	private AtomicInteger _inFlight;
 	private volatile boolean _drainQueue;
 	private Thread _commitThread;
+	private ExecutorService _writers;
+	private int _writerCount;
+
+	private AtomicLong _written = new AtomicLong();
+	private AtomicLong _failed = new AtomicLong();
+	private LatencyHistogram _writeLatency = new LatencyHistogram();
+	private LatencyHistogram _batchLatency = new LatencyHistogram();
+
+	private static final int WRITE_STRIPES = 64;
+
+	private final Object[] _writeLocks = new Object[WRITE_STRIPES];
 
 	/**
 	 * Private constructor in order to make this class a Singleton.
 	 */
 	private CommitManager() {
+		_dirty = new ConcurrentHashMap<IdentityKey, CommitableWrapper>();
 		_commitQueue = new ConcurrentLinkedQueue<CommitableWrapper>();
-		_queueSize = new AtomicInteger();
+		_inFlight = new AtomicInteger();
+		for (int i = 0; i < WRITE_STRIPES; i++) {
+			_writeLocks[i] = new Object();
+		}
 	}
 
 	/**
@@ -76,6 +108,8 @@ public class CommitManager {
 		}
 		
 		_isStarted = true;
+		_writerCount = getIntProperty("disk.commit.threads", 4);
+		_writers = Executors.newFixedThreadPool(_writerCount, new CommitThreadFactory());
 		_commitThread = new Thread(new CommitHandler());
 		_commitThread.start();
 	}
@@ -86,12 +120,15 @@ public class CommitManager {
 	 * @param object
 	 */
 	public void add(Commitable object) {
-		if (contains(object)) {
+		IdentityKey key = new IdentityKey(object);
+		if (_dirty.containsKey(key)) {
 			return;
 			// object already queued to write
 		}
-		_commitQueue.offer(new CommitableWrapper(object));
-		_queueSize.incrementAndGet();
+		CommitableWrapper cw = new CommitableWrapper(key);
+		if (_dirty.putIfAbsent(key, cw) == null) {
+			_commitQueue.offer(cw);
+		}
 	}
 	
 
@@ -101,15 +138,8 @@ public class CommitManager {
 	 */
 	public boolean remove(Commitable object) {
 		if (object == null) return false;
-		for (Iterator<CommitableWrapper> iter = _commitQueue.iterator(); iter.hasNext();) {
-			CommitableWrapper cw = iter.next();
-			if (cw != null && cw.equals(object)) {
-				iter.remove();
-				_queueSize.decrementAndGet();
-				return true;
-			}
-		}
-		return false;
+		// the entry left on the time ordered queue is skipped once it reaches the head
+		return _dirty.remove(new IdentityKey(object)) != null;
 	}
 	
 	/**
@@ -118,20 +148,53 @@ public class CommitManager {
 	 */
 	public boolean contains(Commitable object) {
 		if (object == null) return false;
+		return _dirty.containsKey(new IdentityKey(object));
+	}
+
+	/**
+	 * 
+	 * @return the number of outstanding objects to commit, including the ones being written.
+	 */
+	public int getQueueSize() {
+		return _dirty.size() + _inFlight.get();
+	}
+
+	/**
+	 * @return how long in milliseconds the oldest outstanding object has been waiting, 0 if there is none.
+	 */
+	public long getOldestDirtyAge() {
 		for (CommitableWrapper cw : _commitQueue) {
-			if (cw != null && cw.equals(object)) {
-				return true;
+			if (isCurrent(cw)) {
+				return System.currentTimeMillis() - cw.getTime();
 			}
 		}
-		return false;
+		return 0L;
 	}
 
 	/**
-	 * 
-	 * @return the number of outstanding objects to commit.
+	 * @return latency of writing a single object to disk.
 	 */
-	public int getQueueSize() {
-		return _queueSize.get();
+	public LatencyHistogram getWriteLatency() {
+		return _writeLatency;
+	}
+
+	/**
+	 * @return latency of flushing a whole batch of due objects.
+	 */
+	public LatencyHistogram getBatchLatency() {
+		return _batchLatency;
+	}
+
+	public long getWrittenCount() {
+		return _written.get();
+	}
+
+	public long getFailedCount() {
+		return _failed.get();
+	}
+
+	public int getWriterCount() {
+		return _writerCount;
 	}
 
 	/**
@@ -139,11 +202,18 @@ public class CommitManager {
 	 * @param object
 	 */
 	public void flushImmediate(Commitable object) {
-		if (contains(object)) {
+		if (object == null) return;
+		CommitableWrapper cw = _dirty.remove(new IdentityKey(object));
+		if (cw != null) {
+			_inFlight.incrementAndGet();
 			ClassLoader prevCL = Thread.currentThread().getContextClassLoader();
 			Thread.currentThread().setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(this));
-			writeCommitable(object);
-			Thread.currentThread().setContextClassLoader(prevCL);
+			try {
+				write(cw);
+			} finally {
+				Thread.currentThread().setContextClassLoader(prevCL);
+				_inFlight.decrementAndGet();
+			}
 		}
 	}
 
@@ -167,26 +237,147 @@ public class CommitManager {
 		}
 		return 10000;
 	}
-	
+
+	private int getIntProperty(String name, int def) {
+		Properties cfg = GlobalContext.getConfig().getMainProperties();
+		try {
+			return Math.max(1, Integer.parseInt(PropertyHelper.getProperty(cfg, name, String.valueOf(def)).trim()));
+		} catch (NumberFormatException e) {
+		}
+		return def;
+	}
+
+	/**
+	 * @return true if this wrapper is still the queued entry for its object,
+	 * it is not once the object has been removed, flushed or requeued.
+	 */
+	private boolean isCurrent(CommitableWrapper cw) {
+		return _dirty.get(cw.getKey()) == cw;
+	}
+
+	/**
+	 * Takes up to batchSize objects which have been dirty for longer than the
+	 * cutoff from the head of the queue, they are marked as in flight.
+	 */
+	private List<CommitableWrapper> pollDue(long cutoff, int batchSize) {
+		List<CommitableWrapper> batch = new ArrayList<CommitableWrapper>();
+		CommitableWrapper cw;
+		while (batch.size() < batchSize && (cw = _commitQueue.peek()) != null) {
+			if (!isCurrent(cw)) {
+				_commitQueue.poll();
+				continue;
+			}
+			if (cw.getTime() >= cutoff && !_drainQueue) {
+				break;
+			}
+			_commitQueue.poll();
+			_inFlight.incrementAndGet();
+			if (_dirty.remove(cw.getKey(), cw)) {
+				batch.add(cw);
+			} else {
+				_inFlight.decrementAndGet();
+			}
+		}
+		return batch;
+	}
+
 	private void processAllLoop() {
 		while (true) {
 			long delay = getCommitDelay();
-			long time = System.currentTimeMillis() - delay;
-			for (Iterator<CommitableWrapper> iter = _commitQueue.iterator(); iter.hasNext();) {
-				CommitableWrapper cw = iter.next();
-				if (cw.getTime() < time || _drainQueue) {
-					if (writeCommitable(cw.getCommitable())) {
-						iter.remove();
-						_queueSize.decrementAndGet();
+			int batchSize = getIntProperty("disk.commit.batch", 1000);
+			List<CommitableWrapper> batch;
+			while (!(batch = pollDue(System.currentTimeMillis() - delay, batchSize)).isEmpty()) {
+				flush(batch);
+			}
+
+			long sleep = delay;
+			CommitableWrapper head = _commitQueue.peek();
+			if (head != null) {
+				// wake up when the oldest entry becomes due instead of a whole delay later
+				sleep = Math.max(100L, Math.min(delay, head.getTime() + delay - System.currentTimeMillis()));
+			}
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Splits the batch between the writer threads and waits for all of them to finish.<br>
+	 * Objects for the same path always go to the same writer, which writes them in queue order.
+	 */
+	private void flush(List<CommitableWrapper> batch) {
+		long start = System.nanoTime();
+		int chunkCount = Math.min(_writerCount, batch.size());
+		List<List<CommitableWrapper>> chunks = new ArrayList<List<CommitableWrapper>>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			chunks.add(new ArrayList<CommitableWrapper>());
+		}
+		for (CommitableWrapper cw : batch) {
+			chunks.get(stripe(cw.getCommitable()) % chunkCount).add(cw);
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>(chunkCount);
+		for (final List<CommitableWrapper> chunk : chunks) {
+			if (chunk.isEmpty()) {
+				continue;
+			}
+			futures.add(_writers.submit(new Callable<Object>() {
+				public Object call() {
+					for (CommitableWrapper cw : chunk) {
+						try {
+							write(cw);
+						} finally {
+							_inFlight.decrementAndGet();
+						}
 					}
+					return null;
 				}
-			}
-			
+			}));
+		}
+		for (Future<?> future : futures) {
 			try {
-				Thread.sleep(delay);
+				future.get();
 			} catch (InterruptedException e) {
+				// keep waiting, the chunk still has to finish before the next batch
+				Thread.interrupted();
+				try {
+					future.get();
+				} catch (Exception e1) {
+					logger.error("Error waiting for commit writer", e1);
+				}
+			} catch (ExecutionException e) {
+				logger.error("Error in commit writer", e.getCause());
 			}
 		}
+		_batchLatency.recordNanos(System.nanoTime() - start);
+	}
+
+	/**
+	 * Objects standing for the same path share a stripe, inode paths are case insensitive.
+	 */
+	private static int stripe(Commitable object) {
+		return (object.descriptiveName().toLowerCase().hashCode() & 0x7fffffff) % WRITE_STRIPES;
+	}
+
+	/**
+	 * Writes the object, requeueing it if the write failed.
+	 */
+	private void write(CommitableWrapper cw) {
+		long start = System.nanoTime();
+		Commitable object = cw.getCommitable();
+		boolean written;
+		// flushImmediate() can write another object for the same path at the same time
+		synchronized (_writeLocks[stripe(object)]) {
+			written = writeCommitable(object);
+		}
+		if (written) {
+			_written.incrementAndGet();
+		} else {
+			_failed.incrementAndGet();
+			add(object);
+		}
+		_writeLatency.recordNanos(System.nanoTime() - start);
 	}
 
 	private boolean writeCommitable(Commitable item) {
@@ -215,36 +406,61 @@ public class CommitManager {
 		}
 	}
 
+	private class CommitThreadFactory implements ThreadFactory {
+		private AtomicInteger _count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("CommitWriter-" + _count.incrementAndGet());
+			t.setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(CommitManager.this));
+			return t;
+		}
+	}
+
+	/**
+	 * Map key comparing the wrapped object by identity, two inodes for the same
+	 * path are equal() but only the instance which was changed has to be written.
+	 */
+	private static class IdentityKey {
+		private Commitable _object;
+
+		private IdentityKey(Commitable object) {
+			_object = object;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && ((IdentityKey) obj)._object == _object;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(_object);
+		}
+	}
+
 	/**
 	 * Creates a wrapping object for the Commitable object and current time.
 	 */
 	private class CommitableWrapper {
-		private Commitable _object;
+		private IdentityKey _key;
 		private long _time;
 
-		private CommitableWrapper(Commitable object) {
-			_object = object;
+		private CommitableWrapper(IdentityKey key) {
+			_key = key;
 			_time = System.currentTimeMillis();
 		}
 
+		public IdentityKey getKey() {
+			return _key;
+		}
+
 		public Commitable getCommitable() {
-			return _object;
+			return _key._object;
 		}
 
 		public long getTime() {
 			return _time;
 		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (obj == this) return true;
-			if (obj == null) return false;
-			return (obj instanceof Commitable) && _object.equals(obj);
-		}
-
-		@Override
-		public int hashCode() {
-			return _object.hashCode();
-		}
 	}
 }
@@ -22,6 +22,7 @@ import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -45,6 +46,7 @@ import org.drftpd.commands.UserManagement;
 import org.drftpd.event.ReloadEvent;
 import org.drftpd.usermanager.NoSuchUserException;
 import org.drftpd.usermanager.User;
+import org.drftpd.util.ReplacerUtils;
 import org.tanukisoftware.wrapper.WrapperManager;
 
 /**
@@ -66,6 +68,8 @@ public class ConnectionManager {
 	private List<BaseFtpConnection> _conns = new Vector<BaseFtpConnection>();
 
 	private ThreadPoolExecutor _pool;
+
+	private ThreadPoolExecutor _commandPool;
 	
 	private static String _bindIP;
 
@@ -121,6 +125,21 @@ public class ConnectionManager {
 				useIP = false;
 			}
 
+			if (cfg.getProperty("master.control.engine", "threaded").trim().equalsIgnoreCase("nio")) {
+				int port = Integer.parseInt(PropertyHelper.getProperty(cfg, "master.port"));
+				ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				if (useIP) {
+					serverChannel.socket().bind(new InetSocketAddress(bindip, port));
+					_bindIP = bindip;
+				} else {
+					serverChannel.socket().bind(new InetSocketAddress(port));
+				}
+				logger.info("Listening on " + serverChannel.socket().getInetAddress() + ":"
+						+ serverChannel.socket().getLocalPort() + " with the nio control connection engine");
+				new ControlChannelSelector(serverChannel).run();
+				return;
+			}
+
 			if (useIP) {
 				server = new ServerSocket();
 				server.bind(new InetSocketAddress(bindip, Integer
@@ -162,10 +181,26 @@ public class ConnectionManager {
 		_pool.prestartAllCoreThreads();
 	}
 
+	/**
+	 * @return the threads running the commands of every connection, they are
+	 * started on demand and go away after a minute without work.
+	 */
+	public synchronized ThreadPoolExecutor getCommandExecutor() {
+		if (_commandPool == null) {
+			_commandPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new CommandThreadFactory());
+		}
+		return _commandPool;
+	}
+
 	public void dumpThreadPool() {
-		logger.debug("Active threads: "+_pool.getActiveCount()+" / Completed Tasks: "+ _pool.getCompletedTaskCount());
-		logger.debug("Pool information - Min # of threads: "+_pool.getCorePoolSize()+" / Max: "+ _pool.getMaximumPoolSize());
-		logger.debug("Current # of threads: " + _pool.getPoolSize());
+		if (_pool != null) {
+			logger.debug("Active threads: "+_pool.getActiveCount()+" / Completed Tasks: "+ _pool.getCompletedTaskCount());
+			logger.debug("Pool information - Min # of threads: "+_pool.getCorePoolSize()+" / Max: "+ _pool.getMaximumPoolSize());
+			logger.debug("Current # of threads: " + _pool.getPoolSize());
+		}
+		logger.debug("Command threads: " + getCommandExecutor().getPoolSize()
+				+ " / Active: " + getCommandExecutor().getActiveCount());
 	}
 
 	public FtpReply canLogin(BaseFtpConnection baseconn, User user) {
@@ -299,6 +334,40 @@ public class ConnectionManager {
 		}
 	}
 
+	/**
+	 * Takes a connection accepted by the {@link ControlChannelSelector}.
+	 * @return the connection, null if it was turned away.
+	 */
+	public BaseFtpConnection start(NioControlChannel channel) throws IOException {
+		if (getGlobalContext().isShutdown()) {
+			PrintWriter out = new PrintWriter(channel.getOutputStream());
+			out.println("421 " + getGlobalContext().getShutdownMessage());
+			out.flush();
+			channel.close();
+			return null;
+		}
+
+		// the threaded engine is held to the same limit by the size of its pool
+		int maxConnections = GlobalContext.getConfig().getMaxUsersTotal();
+		maxConnections = Math.max(maxConnections, maxConnections + GlobalContext.getConfig().getMaxUsersExempt());
+		BaseFtpConnection conn = null;
+		synchronized (_conns) {
+			if (_conns.size() < maxConnections) {
+				conn = new BaseFtpConnection(channel);
+				_conns.add(conn);
+			}
+		}
+		if (conn == null) {
+			PrintWriter out = new PrintWriter(channel.getOutputStream());
+			out.print(new FtpReply(421, "Connection closing"));
+			out.flush();
+			channel.close();
+			return null;
+		}
+		conn.open();
+		return conn;
+	}
+
 	/**
 	 * Handles the load of the FTP Commands.
 	 * Firstly, it checks if <code>conf/ftpcommands.conf</code> exists, if not it halts the daemon.
@@ -323,6 +392,7 @@ public class ConnectionManager {
 		logger.info("Reloading "+ cmdConf +", origin "+event.getOrigin());
 		loadCommands();
 		_commandManager.initialize(getCommands(), themeDir);
+		ReplacerUtils.clearFormats();
 		for (BaseFtpConnection conn : getConnections()) {
 			conn.setCommands(getCommands());
 		}
@@ -340,3 +410,15 @@ class ConnectionThreadFactory implements ThreadFactory {
 		return t;
 	}	
 }
+
+class CommandThreadFactory implements ThreadFactory {
+	public static String getIdleThreadName(long threadId) {
+		return "FtpCommand Handler-"+ threadId + " - Waiting for commands";
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread t = Executors.defaultThreadFactory().newThread(r);
+		t.setName(getIdleThreadName(t.getId()));
+		return t;
+	}
+}
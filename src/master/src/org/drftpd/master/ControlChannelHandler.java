@@ -0,0 +1,42 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.master;
+
+/**
+ * Receives what happens on a {@link NioControlChannel}.<br>
+ * Every method is called from the selector thread, anything which can
+ * take a while has to be handed to another thread.
+ * @version $Id$
+ */
+public interface ControlChannelHandler {
+
+	/**
+	 * A complete line was read, without its line terminator.
+	 */
+	public void lineReceived(NioControlChannel channel, String line);
+
+	/**
+	 * The client went away or the channel failed, nothing can be written to it anymore.
+	 */
+	public void channelClosed(NioControlChannel channel, String reason);
+
+	/**
+	 * Called about once a second so that idle connections can be dropped
+	 * without a timer per connection.
+	 */
+	public void checkIdle(long now);
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.master;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+import org.drftpd.GlobalContext;
+
+/**
+ * Accepts FTP control connections and reads from all of them with a single
+ * thread, so an idle login costs a socket and a few buffers instead of a thread.<br>
+ * Commands still run on the command threads of the {@link ConnectionManager},
+ * this thread only splits the input into lines and hands them over.
+ * @version $Id$
+ */
+public class ControlChannelSelector implements Runnable {
+	private static final Logger logger = Logger.getLogger(ControlChannelSelector.class);
+
+	private static final long IDLE_CHECK_INTERVAL = 1000L;
+
+	private final ServerSocketChannel _server;
+
+	private final Selector _selector;
+
+	private final ConcurrentLinkedQueue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private volatile boolean _stopped = false;
+
+	public ControlChannelSelector(ServerSocketChannel server) throws IOException {
+		_server = server;
+		_selector = Selector.open();
+		_server.configureBlocking(false);
+		_server.register(_selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Serves connections until {@link #stop()} is called.
+	 */
+	public void run() {
+		long lastIdleCheck = System.currentTimeMillis();
+		while (!_stopped) {
+			try {
+				_selector.select(IDLE_CHECK_INTERVAL);
+				runTasks();
+				Iterator<SelectionKey> iter = _selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						((NioControlChannel) key.attachment()).onReadable();
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+					lastIdleCheck = now;
+					for (SelectionKey key : _selector.keys()) {
+						if (key.isValid() && key.attachment() instanceof NioControlChannel) {
+							((NioControlChannel) key.attachment()).checkIdle(now);
+						}
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Error serving control connections", e);
+			} catch (RuntimeException e) {
+				// a broken connection must not take down every other one
+				logger.error("Error serving control connections", e);
+			}
+		}
+		for (SelectionKey key : _selector.keys()) {
+			if (key.attachment() instanceof NioControlChannel) {
+				((NioControlChannel) key.attachment()).close();
+			}
+		}
+		try {
+			_selector.close();
+			_server.close();
+		} catch (IOException e) {
+			logger.debug("Error closing the control connection selector", e);
+		}
+	}
+
+	public void stop() {
+		_stopped = true;
+		_selector.wakeup();
+	}
+
+	/**
+	 * Runs the task on the selector thread, which is the only one allowed to
+	 * change the interest set of a connection without waiting for the selector.
+	 */
+	public void execute(Runnable task) {
+		_tasks.add(task);
+		_selector.wakeup();
+	}
+
+	/**
+	 * Runs work a connection has to wait for, away from the selector thread.
+	 */
+	protected Executor getWorkers() {
+		return GlobalContext.getConnectionManager().getCommandExecutor();
+	}
+
+	public int getConnectionCount() {
+		return _selector.keys().size() - 1;
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = _tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel socketChannel;
+		while ((socketChannel = _server.accept()) != null) {
+			socketChannel.configureBlocking(false);
+			NioControlChannel channel = new NioControlChannel(socketChannel, this);
+			try {
+				ControlChannelHandler handler = accepted(channel);
+				if (handler != null) {
+					channel.register(_selector, handler);
+				}
+			} catch (ClosedChannelException e) {
+				// closed while greeting, the handler already knows
+			} catch (IOException e) {
+				logger.warn("Unable to set up control connection", e);
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the handler of the new connection, null if it was turned away.
+	 */
+	protected ControlChannelHandler accepted(NioControlChannel channel) throws IOException {
+		return GlobalContext.getConnectionManager().start(channel);
+	}
+}
@@ -0,0 +1,728 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.master;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import junit.framework.TestCase;
+
+import org.drftpd.GlobalContext;
+import org.drftpd.commandmanager.CommandManagerInterface;
+import org.drftpd.commandmanager.CommandRequestInterface;
+import org.drftpd.commandmanager.CommandResponseInterface;
+import org.drftpd.master.config.ConfigInterface;
+import org.drftpd.tests.DummySlaveManager;
+import org.drftpd.util.ExtendedPropertyResourceBundle;
+import org.drftpd.util.LatencyHistogram;
+import org.drftpd.vfs.DirectoryHandle;
+
+/**
+ * Compares a thread per connection with the {@link ControlChannelSelector}
+ * for a crowd of idle sessions and a few busy ones, the way autotraders sit
+ * logged in on a site.<br>
+ * Both servers only answer NOOP so the numbers are about the control channel,
+ * not about the commands. The session counts can be changed by simple code changes.<br>
+ * {@link #testFtpSession()} runs a real {@link BaseFtpConnection} on the selector
+ * with a stand-in command manager.
+ */
+public class ControlChannelStressTest extends TestCase {
+
+	private static final int IDLE = 1000;
+
+	private static final int ACTIVE = 20;
+
+	private static final int COMMANDS = 200;
+
+	private static final byte[] GREETING = "220 ready\r\n".getBytes();
+
+	private static final byte[] REPLY = "200 NOOP command successful\r\n".getBytes();
+
+	private ExecutorService _commands;
+
+	private AtomicLong _wakeups = new AtomicLong();
+
+	private List<Socket> _clients = new ArrayList<Socket>();
+
+	public ControlChannelStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_commands = Executors.newCachedThreadPool();
+	}
+
+	protected void tearDown() {
+		for (Socket client : _clients) {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+		_commands.shutdownNow();
+	}
+
+	public void testLineFraming() throws Exception {
+		ControlChannelSelector selector = startSelector();
+		try {
+			Socket client = connect(_port);
+			BufferedReader in = reader(client);
+			OutputStream out = client.getOutputStream();
+			out.write("NO".getBytes());
+			out.flush();
+			Thread.sleep(50);
+			out.write("OP\r\nNOOP\n\r\n".getBytes());
+			out.flush();
+			assertEquals("200 NOOP command successful", in.readLine());
+			assertEquals("200 NOOP command successful", in.readLine());
+
+			// a line without an end is dropped along with the connection
+			client.setSoTimeout(5000);
+			try {
+				out.write(new byte[20000]);
+				out.flush();
+				assertNull(in.readLine());
+			} catch (SocketException e) {
+				// reset before everything was sent
+			}
+		} finally {
+			selector.stop();
+		}
+	}
+
+	public void testThreadedSessions() throws Exception {
+		final ServerSocket server = new ServerSocket();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		Thread acceptor = new Thread("acceptor") {
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						new Thread() {
+							public void run() {
+								serveThreaded(socket);
+							}
+						}.start();
+					}
+				} catch (IOException e) {
+					// server closed
+				}
+			}
+		};
+		acceptor.start();
+		try {
+			benchmark("threaded", server.getLocalPort());
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testNioSessions() throws Exception {
+		ControlChannelSelector selector = startSelector();
+		try {
+			benchmark("nio", _port);
+		} finally {
+			selector.stop();
+		}
+	}
+
+	/**
+	 * Goes through {@link ConnectionManager#start(NioControlChannel)}, switches to TLS
+	 * and quits, the reply to QUIT has to reach the client before the connection closes.
+	 */
+	public void testFtpSession() throws Exception {
+		ControlChannelSelector selector = startSession(10);
+		try {
+			Socket client = new Socket("127.0.0.1", _port);
+			_clients.add(client);
+			client.setSoTimeout(10000);
+			BufferedReader in = reader(client);
+			assertEquals("220 ready", in.readLine());
+			OutputStream out = client.getOutputStream();
+			out.write("AUTH TLS\r\n".getBytes());
+			out.flush();
+			assertEquals("234 AUTH TLS successful", in.readLine());
+
+			SSLSocket secure = (SSLSocket) clientContext().getSocketFactory().createSocket(client,
+					"127.0.0.1", client.getPort(), true);
+			secure.startHandshake();
+			in = reader(secure);
+			out = secure.getOutputStream();
+			out.write("QUIT\r\n".getBytes());
+			out.flush();
+			assertEquals("221 Goodbye", in.readLine());
+			assertEquals("421 Connection closing", in.readLine());
+			assertNull(in.readLine());
+			assertClosed();
+		} finally {
+			stopSession(selector);
+		}
+	}
+
+	/**
+	 * The client asks for a new handshake while a writer holds the channel,
+	 * the selector thread keeps serving the other connections meanwhile.
+	 */
+	public void testRenegotiationWhileWriting() throws Exception {
+		ControlChannelSelector selector = startSession(10);
+		try {
+			Socket client = new Socket("127.0.0.1", _port);
+			_clients.add(client);
+			client.setSoTimeout(10000);
+			BufferedReader in = reader(client);
+			assertEquals("220 ready", in.readLine());
+			OutputStream out = client.getOutputStream();
+			out.write("AUTH TLS\r\n".getBytes());
+			out.flush();
+			assertEquals("234 AUTH TLS successful", in.readLine());
+
+			SSLSocket secure = (SSLSocket) clientContext().getSocketFactory().createSocket(client,
+					"127.0.0.1", client.getPort(), true);
+			// TLS 1.3 has no renegotiation
+			secure.setEnabledProtocols(new String[] { "TLSv1.2" });
+			secure.startHandshake();
+
+			NioControlChannel channel = GlobalContext.getConnectionManager().getConnections().get(0).getControlChannel();
+			final ReentrantLock writeLock = (ReentrantLock) getField(channel, NioControlChannel.class, "_writeLock");
+			final CountDownLatch locked = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			Thread writer = new Thread() {
+				public void run() {
+					writeLock.lock();
+					try {
+						locked.countDown();
+						release.await();
+					} catch (InterruptedException e) {
+						// released
+					} finally {
+						writeLock.unlock();
+					}
+				}
+			};
+			writer.start();
+			locked.await();
+			try {
+				secure.startHandshake();
+				// the selector gets the client hello while the lock is held
+				Thread.sleep(200);
+				Socket other = new Socket("127.0.0.1", _port);
+				_clients.add(other);
+				other.setSoTimeout(5000);
+				in = reader(other);
+				assertEquals("220 ready", in.readLine());
+				other.getOutputStream().write("QUIT\r\n".getBytes());
+				assertEquals("221 Goodbye", in.readLine());
+			} finally {
+				release.countDown();
+				writer.join();
+			}
+
+			in = reader(secure);
+			out = secure.getOutputStream();
+			out.write("QUIT\r\n".getBytes());
+			out.flush();
+			assertEquals("221 Goodbye", in.readLine());
+			assertClosed();
+		} finally {
+			stopSession(selector);
+		}
+	}
+
+	/**
+	 * The client asks for a new handshake without reading what it was sent,
+	 * the selector thread can't send its part and keeps serving the other
+	 * connections while a worker waits for the socket to drain.
+	 */
+	public void testRenegotiationWithFullSendBuffer() throws Exception {
+		ControlChannelSelector selector = startSession(10);
+		try {
+			Socket client = new Socket();
+			// small buffers which don't grow while the client isn't reading
+			client.setReceiveBufferSize(8192);
+			client.connect(new InetSocketAddress("127.0.0.1", _port));
+			_clients.add(client);
+			client.setSoTimeout(10000);
+			BufferedReader in = reader(client);
+			assertEquals("220 ready", in.readLine());
+			OutputStream out = client.getOutputStream();
+			out.write("AUTH TLS\r\n".getBytes());
+			out.flush();
+			assertEquals("234 AUTH TLS successful", in.readLine());
+
+			SSLSocket secure = (SSLSocket) clientContext().getSocketFactory().createSocket(client,
+					"127.0.0.1", client.getPort(), true);
+			secure.setEnabledProtocols(new String[] { "TLSv1.2" });
+			secure.startHandshake();
+
+			// stands in for a big reply the client never reads, the client only
+			// sends from now on so what is written doesn't have to be TLS
+			NioControlChannel channel = GlobalContext.getConnectionManager().getConnections().get(0).getControlChannel();
+			SocketChannel socket = (SocketChannel) getField(channel, NioControlChannel.class, "_channel");
+			socket.socket().setSendBufferSize(8192);
+			ByteBuffer filler = ByteBuffer.allocate(65536);
+			for (int i = 0; i < 5; i++) {
+				do {
+					filler.clear();
+				} while (socket.write(filler) > 0);
+				Thread.sleep(50);
+			}
+
+			secure.startHandshake();
+			// the selector gets the client hello with no room left to answer it
+			Thread.sleep(200);
+			Socket other = new Socket("127.0.0.1", _port);
+			_clients.add(other);
+			other.setSoTimeout(5000);
+			in = reader(other);
+			assertEquals("220 ready", in.readLine());
+			other.getOutputStream().write("QUIT\r\n".getBytes());
+			assertEquals("221 Goodbye", in.readLine());
+
+			// the waiting worker gives up once the client is gone
+			secure.close();
+			for (int i = 0; i < 500 && !GlobalContext.getConnectionManager().getConnections().isEmpty(); i++) {
+				Thread.sleep(10);
+			}
+			assertClosed();
+		} finally {
+			stopSession(selector);
+		}
+	}
+
+	/**
+	 * A connection over the limit the threaded engine puts on its pool is turned away with a 421.
+	 */
+	public void testConnectionLimit() throws Exception {
+		ControlChannelSelector selector = startSession(1);
+		try {
+			Socket first = connect(_port);
+			first.setSoTimeout(10000);
+
+			Socket second = new Socket("127.0.0.1", _port);
+			_clients.add(second);
+			second.setSoTimeout(10000);
+			BufferedReader in = reader(second);
+			assertEquals("421 Connection closing", in.readLine());
+			assertNull(in.readLine());
+			assertEquals(1, GlobalContext.getConnectionManager().getConnections().size());
+
+			// the first one is still served
+			in = reader(first);
+			OutputStream out = first.getOutputStream();
+			out.write("QUIT\r\n".getBytes());
+			out.flush();
+			assertEquals("221 Goodbye", in.readLine());
+			assertClosed();
+		} finally {
+			stopSession(selector);
+		}
+	}
+
+	private Object _oldConfig;
+
+	private Object _oldManager;
+
+	/**
+	 * Puts a {@link SessionConnectionManager} allowing <code>maxUsers</code> connections
+	 * in place and accepts them on {@link #_port}.
+	 */
+	private ControlChannelSelector startSession(int maxUsers) throws Exception {
+		HashMap<String, Object> config = new HashMap<String, Object>();
+		config.put("LoginPrompt", "ready");
+		config.put("MainProperties", new Properties());
+		config.put("MaxUsersTotal", maxUsers);
+		config.put("MaxUsersExempt", 0);
+		DummySlaveManager slaveManager = new DummySlaveManager();
+		slaveManager.setSlaves(new HashMap<String, RemoteSlave>());
+		GlobalContext gctx = GlobalContext.getGlobalContext();
+		_oldConfig = swapField(gctx, GlobalContext.class, "_config", stub(ConfigInterface.class, config));
+		// the slave manager stays, the shutdown hook added by ConnectionManager asks for it
+		swapField(gctx, GlobalContext.class, "_slaveManager", slaveManager);
+		_oldManager = swapField(null, ConnectionManager.class, "_connectionManager",
+				new SessionConnectionManager(serverContext()));
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		_port = server.socket().getLocalPort();
+		ControlChannelSelector selector = new ControlChannelSelector(server);
+		new Thread(selector, "selector").start();
+		return selector;
+	}
+
+	private void stopSession(ControlChannelSelector selector) throws Exception {
+		selector.stop();
+		swapField(null, ConnectionManager.class, "_connectionManager", _oldManager);
+		swapField(GlobalContext.getGlobalContext(), GlobalContext.class, "_config", _oldConfig);
+	}
+
+	private static void assertClosed() throws InterruptedException {
+		for (int i = 0; i < 100 && !GlobalContext.getConnectionManager().getConnections().isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(GlobalContext.getConnectionManager().getConnections().isEmpty());
+	}
+
+	private int _port;
+
+	private ControlChannelSelector startSelector() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		_port = server.socket().getLocalPort();
+		ControlChannelSelector selector = new ControlChannelSelector(server) {
+			protected ControlChannelHandler accepted(NioControlChannel channel) throws IOException {
+				channel.getOutputStream().write(GREETING);
+				return new NoopHandler();
+			}
+		};
+		new Thread(selector, "selector").start();
+		return selector;
+	}
+
+	/**
+	 * The same loop BaseFtpConnection runs for each connection with the threaded engine.
+	 */
+	private void serveThreaded(final Socket socket) {
+		try {
+			socket.setSoTimeout(1000);
+			BufferedReader in = reader(socket);
+			final OutputStream out = socket.getOutputStream();
+			out.write(GREETING);
+			while (true) {
+				String line;
+				try {
+					line = in.readLine();
+				} catch (SocketTimeoutException e) {
+					_wakeups.incrementAndGet();
+					continue;
+				}
+				if (line == null) {
+					break;
+				}
+				_commands.execute(new Runnable() {
+					public void run() {
+						try {
+							synchronized (out) {
+								out.write(REPLY);
+							}
+						} catch (IOException e) {
+							// client went away
+						}
+					}
+				});
+			}
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	private class NoopHandler implements ControlChannelHandler {
+		public void lineReceived(final NioControlChannel channel, String line) {
+			if (line.length() == 0) {
+				return;
+			}
+			_commands.execute(new Runnable() {
+				public void run() {
+					try {
+						channel.getOutputStream().write(REPLY);
+					} catch (IOException e) {
+						// client went away
+					}
+				}
+			});
+		}
+
+		public void channelClosed(NioControlChannel channel, String reason) {
+		}
+
+		public void checkIdle(long now) {
+		}
+	}
+
+	/**
+	 * Serves its commands from {@link SessionCommandManager} instead of the plugins.
+	 */
+	private static class SessionConnectionManager extends ConnectionManager {
+		private final CommandManagerInterface _manager;
+
+		private SessionConnectionManager(SSLContext ctx) {
+			_manager = new SessionCommandManager(ctx);
+		}
+
+		public CommandManagerInterface getCommandManager() {
+			return _manager;
+		}
+
+		public HashMap<String, Properties> getCommands() {
+			return new HashMap<String, Properties>();
+		}
+	}
+
+	/**
+	 * Answers AUTH and QUIT the way the real command handlers do.
+	 */
+	private static class SessionCommandManager implements CommandManagerInterface {
+		private final SSLContext _ctx;
+
+		private SessionCommandManager(SSLContext ctx) {
+			_ctx = ctx;
+		}
+
+		public void initialize(HashMap<String, Properties> requiredCmds, String themeDir) {
+		}
+
+		public CommandRequestInterface newRequest(String originalCommand, String argument,
+				DirectoryHandle directory, String user, Session session, Properties config) {
+			CommandRequestInterface request = stub(CommandRequestInterface.class, new HashMap<String, Object>());
+			request.setCommand(originalCommand);
+			request.setArgument(argument);
+			request.setSession(session);
+			return request;
+		}
+
+		public CommandResponseInterface execute(CommandRequestInterface request) {
+			BaseFtpConnection conn = (BaseFtpConnection) request.getSession();
+			if (request.getCommand().equalsIgnoreCase("AUTH")) {
+				conn.printOutput(new FtpReply(234, "AUTH " + request.getArgument() + " successful"));
+				try {
+					conn.getControlChannel().startTLS(_ctx.createSSLEngine());
+					conn.authDone();
+				} catch (IOException e) {
+					conn.stop(e.getMessage());
+				}
+				return null;
+			}
+			if (request.getCommand().equalsIgnoreCase("QUIT")) {
+				conn.stop();
+				try {
+					// a connection closed right away would be gone by now
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return response(221, "Goodbye");
+			}
+			return response(500, request.getCommand() + " not understood");
+		}
+
+		public ExtendedPropertyResourceBundle getResourceBundle() {
+			return null;
+		}
+
+		private static CommandResponseInterface response(int code, String message) {
+			HashMap<String, Object> values = new HashMap<String, Object>();
+			values.put("Code", code);
+			values.put("Message", message);
+			values.put("Comment", new Vector<String>());
+			return stub(CommandResponseInterface.class, values);
+		}
+	}
+
+	/**
+	 * @return an implementation of <code>type</code> keeping what its setters are given
+	 * in <code>values</code> for its getters.
+	 */
+	private static <T> T stub(Class<T> type, final Map<String, Object> values) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(values, args);
+						}
+						String name = method.getName();
+						if (name.startsWith("set")) {
+							values.put(name.substring(3), args[0]);
+							return null;
+						}
+						Object value = values.get(name.substring(name.startsWith("is") ? 2 : 3));
+						if (value == null && method.getReturnType() == boolean.class) {
+							return Boolean.FALSE;
+						}
+						return value;
+					}
+				}));
+	}
+
+	/**
+	 * The singletons have no setters, tests put their own in place.
+	 * @return the previous value.
+	 */
+	private static Object swapField(Object target, Class<?> type, String name, Object value) throws Exception {
+		Field field = type.getDeclaredField(name);
+		field.setAccessible(true);
+		Object old = field.get(target);
+		field.set(target, value);
+		return old;
+	}
+
+	private static Object getField(Object target, Class<?> type, String name) throws Exception {
+		Field field = type.getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(target);
+	}
+
+	/**
+	 * A throwaway self signed certificate made by keytool.
+	 */
+	private static SSLContext serverContext() throws Exception {
+		File keyStore = File.createTempFile("drftpd", ".jks");
+		keyStore.delete();
+		try {
+			Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin"
+					+ File.separator + "keytool", "-genkeypair", "-alias", "drftpd", "-keyalg", "RSA",
+					"-keysize", "2048", "-dname", "CN=localhost", "-validity", "1", "-storetype", "JKS",
+					"-keystore", keyStore.getPath(), "-storepass", "drftpd", "-keypass", "drftpd")
+					.inheritIO().start();
+			assertEquals(0, keytool.waitFor());
+			KeyStore ks = KeyStore.getInstance("JKS");
+			FileInputStream in = new FileInputStream(keyStore);
+			try {
+				ks.load(in, "drftpd".toCharArray());
+			} finally {
+				in.close();
+			}
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(ks, "drftpd".toCharArray());
+			SSLContext ctx = SSLContext.getInstance("TLS");
+			ctx.init(kmf.getKeyManagers(), null, null);
+			return ctx;
+		} finally {
+			keyStore.delete();
+		}
+	}
+
+	private static SSLContext clientContext() throws Exception {
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(null, new TrustManager[] { new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		} }, null);
+		return ctx;
+	}
+
+	private void benchmark(String name, final int port) throws Exception {
+		int threadsBefore = Thread.activeCount();
+		long start = System.nanoTime();
+		for (int i = 0; i < IDLE; i++) {
+			connect(port);
+		}
+		long connectMillis = (System.nanoTime() - start) / 1000000;
+		int serverThreads = Thread.activeCount() - threadsBefore;
+
+		final LatencyHistogram histogram = new LatencyHistogram();
+		List<Thread> active = new ArrayList<Thread>();
+		_wakeups.set(0);
+		start = System.nanoTime();
+		for (int i = 0; i < ACTIVE; i++) {
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						Socket client = connect(port);
+						BufferedReader in = reader(client);
+						OutputStream out = client.getOutputStream();
+						for (int j = 0; j < COMMANDS; j++) {
+							long sent = System.nanoTime();
+							out.write("NOOP\r\n".getBytes());
+							out.flush();
+							in.readLine();
+							histogram.recordNanos(System.nanoTime() - sent);
+						}
+					} catch (IOException e) {
+						fail(e.getMessage());
+					}
+				}
+			};
+			active.add(t);
+			t.start();
+		}
+		for (Thread t : active) {
+			t.join();
+		}
+		// let the idle crowd sit for a moment
+		Thread.sleep(2000);
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+		assertEquals(ACTIVE * COMMANDS, histogram.getCount());
+		System.out.println(name + ": " + IDLE + " idle sessions connected in " + connectMillis + "ms using "
+				+ serverThreads + " server threads, " + ACTIVE + " active sessions NOOP " + histogram
+				+ ", " + (_wakeups.get() * 1000 / elapsedMillis) + " idle wakeups/s");
+	}
+
+	private Socket connect(int port) throws IOException {
+		Socket client = new Socket("127.0.0.1", port);
+		// reset on close, thousands of ports in TIME_WAIT upset the tests which bind port ranges
+		client.setSoLinger(true, 0);
+		synchronized (_clients) {
+			_clients.add(client);
+		}
+		BufferedReader in = reader(client);
+		assertEquals("220 ready", in.readLine());
+		return client;
+	}
+
+	private static BufferedReader reader(Socket socket) throws IOException {
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+	}
+}
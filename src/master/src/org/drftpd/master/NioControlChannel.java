@@ -0,0 +1,584 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.master;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A non blocking FTP control connection driven by a {@link ControlChannelSelector}.<br>
+ * Reads are done by the selector thread and handed to the {@link ControlChannelHandler}
+ * one line at a time, writes are done by whichever thread produces the reply.
+ * After AUTH TLS both directions go through an {@link SSLEngine}.
+ * @version $Id$
+ */
+public class NioControlChannel {
+	private static final Logger logger = Logger.getLogger(NioControlChannel.class);
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Longest command line accepted, the connection is dropped past it.
+	 */
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	private static final long WRITE_TIMEOUT = 60000L;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel _channel;
+
+	private final ControlChannelSelector _selector;
+
+	private final AtomicBoolean _closed = new AtomicBoolean(false);
+
+	private final OutputStream _out = new ChannelOutputStream();
+
+	private volatile SSLEngine _engine;
+
+	private SelectionKey _key;
+
+	private ControlChannelHandler _handler;
+
+	// read side, guarded by _readLock
+
+	private final Object _readLock = new Object();
+
+	private ByteBuffer _appIn = ByteBuffer.allocate(MAX_LINE_LENGTH);
+
+	private ByteBuffer _netIn;
+
+	private boolean _suspended = false;
+
+	// a handshake step waiting on a worker for _writeLock, reading resumes after it
+	private boolean _wrapPending = false;
+
+	// write side, guarded by _writeLock
+
+	private final ReentrantLock _writeLock = new ReentrantLock();
+
+	private final Condition _handshakeDone = _writeLock.newCondition();
+
+	private volatile boolean _handshaking = false;
+
+	private ByteBuffer _netOut;
+
+	// handshake data the selector thread couldn't write, sent before anything else
+	private boolean _netOutPending = false;
+
+	private volatile Selector _writeSelector;
+
+	public NioControlChannel(SocketChannel channel, ControlChannelSelector selector) {
+		_channel = channel;
+		_selector = selector;
+	}
+
+	public Socket getSocket() {
+		return _channel.socket();
+	}
+
+	public OutputStream getOutputStream() {
+		return _out;
+	}
+
+	public boolean isSecure() {
+		return _engine != null;
+	}
+
+	public boolean isClosed() {
+		return _closed.get();
+	}
+
+	void register(Selector selector, ControlChannelHandler handler) throws IOException {
+		_handler = handler;
+		_key = _channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Stops handing lines to the handler until {@link #resumeReads()} is called,
+	 * whatever the client sends meanwhile waits in the socket buffer.<br>
+	 * Only to be called by the handler from {@link ControlChannelHandler#lineReceived(NioControlChannel, String)}.
+	 */
+	public void suspendReads() {
+		synchronized (_readLock) {
+			_suspended = true;
+		}
+		if (_key.isValid()) {
+			_key.interestOps(0);
+		}
+	}
+
+	public void resumeReads() {
+		_selector.execute(new Runnable() {
+			public void run() {
+				synchronized (_readLock) {
+					_suspended = false;
+					if (!_key.isValid() || _wrapPending) {
+						return;
+					}
+					_key.interestOps(SelectionKey.OP_READ);
+					// lines which arrived along with the one that suspended us
+					try {
+						process();
+					} catch (IOException e) {
+						closed(e.getMessage());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Switches the connection to TLS, everything written afterwards is encrypted.<br>
+	 * Reads have to be suspended, as they are while the AUTH command runs.
+	 */
+	public void startTLS(SSLEngine engine) throws IOException {
+		synchronized (_readLock) {
+			_writeLock.lock();
+			try {
+				if (_engine != null) {
+					throw new IOException("Control connection is already secure");
+				}
+				engine.setUseClientMode(false);
+				engine.beginHandshake();
+				_netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				_netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				// whatever followed the AUTH line is already part of the handshake
+				_appIn.flip();
+				_netIn.put(_appIn);
+				_appIn = ByteBuffer.allocate(MAX_LINE_LENGTH + engine.getSession().getApplicationBufferSize());
+				_handshaking = true;
+				_engine = engine;
+			} finally {
+				_writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Called by the selector thread when the channel is readable.
+	 */
+	void onReadable() {
+		synchronized (_readLock) {
+			try {
+				if (_channel.read(_engine == null ? _appIn : _netIn) == -1) {
+					closed("Connection closed by client");
+					return;
+				}
+				process();
+			} catch (IOException e) {
+				closed(e.getMessage());
+			}
+		}
+	}
+
+	void checkIdle(long now) {
+		if (!_closed.get()) {
+			_handler.checkIdle(now);
+		}
+	}
+
+	private void process() throws IOException {
+		boolean more = true;
+		while (more && !_suspended && !_wrapPending && !_closed.get()) {
+			more = _engine != null && unwrap();
+			processLines();
+		}
+	}
+
+	private void processLines() {
+		_appIn.flip();
+		try {
+			while (!_suspended && !_closed.get()) {
+				String line = readLine();
+				if (line == null) {
+					break;
+				}
+				_handler.lineReceived(this, line);
+			}
+		} finally {
+			_appIn.compact();
+		}
+		if (!_suspended && _appIn.position() >= MAX_LINE_LENGTH) {
+			closed("Command line too long");
+		}
+	}
+
+	private String readLine() {
+		for (int i = _appIn.position(); i < _appIn.limit(); i++) {
+			if (_appIn.get(i) == '\n') {
+				int end = i;
+				if (end > _appIn.position() && _appIn.get(end - 1) == '\r') {
+					end--;
+				}
+				byte[] line = new byte[end - _appIn.position()];
+				_appIn.get(line);
+				_appIn.position(i + 1);
+				return new String(line, ISO_8859_1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if it stopped because there was no room left for the plain text.
+	 */
+	private boolean unwrap() throws IOException {
+		_netIn.flip();
+		try {
+			while (true) {
+				SSLEngineResult result = _engine.unwrap(_netIn, _appIn);
+				if (!handshake(result.getHandshakeStatus())) {
+					return false;
+				}
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					return true;
+				case BUFFER_UNDERFLOW:
+					int packetSize = _engine.getSession().getPacketBufferSize();
+					if (_netIn.capacity() < packetSize) {
+						ByteBuffer netIn = ByteBuffer.allocate(packetSize);
+						netIn.put(_netIn);
+						netIn.flip();
+						_netIn = netIn;
+					}
+					return false;
+				case CLOSED:
+					closed("TLS session closed by client");
+					return false;
+				default:
+					break;
+				}
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+						&& _engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
+					return false;
+				}
+			}
+		} finally {
+			_netIn.compact();
+		}
+	}
+
+	/**
+	 * Does the handshake steps which don't need anything from the client.<br>
+	 * Caller must hold _readLock.
+	 * @return false if a step was handed to a worker, reading waits until it is done.
+	 */
+	private boolean handshake(HandshakeStatus status) throws IOException {
+		while (true) {
+			switch (status) {
+			case NEED_TASK:
+				runDelegatedTasks();
+				status = _engine.getHandshakeStatus();
+				break;
+			case NEED_WRAP:
+				// a writer holds the lock for as long as the client takes to read
+				// what it sent, the selector thread can't wait for that
+				if (!_writeLock.tryLock()) {
+					deferHandshake();
+					return false;
+				}
+				try {
+					if (_netOutPending) {
+						deferHandshake();
+						return false;
+					}
+					// nor for a client which doesn't read, only one write is tried
+					// and a worker waits for the socket to drain if it falls short
+					status = wrapOnly(EMPTY).getHandshakeStatus();
+					_channel.write(_netOut);
+					if (_netOut.hasRemaining()) {
+						_netOutPending = true;
+						deferHandshake();
+						return false;
+					}
+				} finally {
+					_writeLock.unlock();
+				}
+				break;
+			case NEED_UNWRAP:
+				return true;
+			default:
+				// FINISHED or NOT_HANDSHAKING, writers only wait for the first handshake
+				if (_handshaking) {
+					_writeLock.lock();
+					try {
+						_handshaking = false;
+						_handshakeDone.signalAll();
+					} finally {
+						_writeLock.unlock();
+					}
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Stops reading and has a worker send the handshake once the writer is done,
+	 * the selector thread then carries on with what the client sent meanwhile.<br>
+	 * Caller must hold _readLock.
+	 */
+	private void deferHandshake() {
+		_wrapPending = true;
+		if (_key.isValid()) {
+			_key.interestOps(0);
+		}
+		_selector.getWorkers().execute(new Runnable() {
+			public void run() {
+				_writeLock.lock();
+				try {
+					flushNetOut();
+					HandshakeStatus status = _engine.getHandshakeStatus();
+					while (!_closed.get() && (status == HandshakeStatus.NEED_WRAP
+							|| status == HandshakeStatus.NEED_TASK)) {
+						if (status == HandshakeStatus.NEED_TASK) {
+							runDelegatedTasks();
+							status = _engine.getHandshakeStatus();
+						} else {
+							status = wrap(EMPTY).getHandshakeStatus();
+						}
+					}
+				} catch (IOException e) {
+					closed(e.getMessage());
+					return;
+				} finally {
+					_writeLock.unlock();
+				}
+				_selector.execute(new Runnable() {
+					public void run() {
+						synchronized (_readLock) {
+							_wrapPending = false;
+							if (!_key.isValid()) {
+								return;
+							}
+							if (!_suspended) {
+								_key.interestOps(SelectionKey.OP_READ);
+							}
+							try {
+								if (handshake(_engine.getHandshakeStatus())) {
+									process();
+								}
+							} catch (IOException e) {
+								closed(e.getMessage());
+							}
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void runDelegatedTasks() {
+		Runnable task;
+		while ((task = _engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Caller must hold _writeLock.
+	 */
+	private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+		flushNetOut();
+		SSLEngineResult result = wrapOnly(src);
+		writeFully(_netOut);
+		return result;
+	}
+
+	/**
+	 * Writes what the selector thread left in _netOut, caller must hold _writeLock.
+	 */
+	private void flushNetOut() throws IOException {
+		if (_netOutPending) {
+			writeFully(_netOut);
+			_netOutPending = false;
+		}
+	}
+
+	/**
+	 * Wraps into _netOut without writing it, caller must hold _writeLock
+	 * and have nothing pending in _netOut.
+	 */
+	private SSLEngineResult wrapOnly(ByteBuffer src) throws IOException {
+		while (true) {
+			_netOut.clear();
+			SSLEngineResult result = _engine.wrap(src, _netOut);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				_netOut = ByteBuffer.allocate(_engine.getSession().getPacketBufferSize());
+				continue;
+			}
+			_netOut.flip();
+			return result;
+		}
+	}
+
+	private void write(ByteBuffer src) throws IOException {
+		_writeLock.lock();
+		try {
+			long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+			while (src.hasRemaining()) {
+				if (_closed.get()) {
+					throw new IOException("Control connection is closed");
+				}
+				if (_engine == null) {
+					writeFully(src);
+					continue;
+				}
+				if (_handshaking) {
+					awaitHandshake(deadline);
+					continue;
+				}
+				SSLEngineResult result = wrap(src);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new IOException("TLS session is closed");
+				}
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+				} else if (result.bytesConsumed() == 0) {
+					// the client asked for a new handshake, the selector thread is on it
+					awaitHandshake(deadline);
+				}
+			}
+		} finally {
+			if (_closed.get()) {
+				closeWriteSelector();
+			}
+			_writeLock.unlock();
+		}
+	}
+
+	private void awaitHandshake(long deadline) throws IOException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new IOException("Timed out waiting for the TLS handshake");
+		}
+		try {
+			_handshakeDone.await(Math.min(remaining, 1000L), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for the TLS handshake");
+		}
+	}
+
+	/**
+	 * Caller must hold _writeLock.
+	 */
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (_channel.write(buffer) == 0) {
+				awaitWritable();
+			}
+		}
+	}
+
+	/**
+	 * The socket buffer is full, which is rare on a control connection, so
+	 * the selector needed to wait for it is only opened when it happens.
+	 */
+	private void awaitWritable() throws IOException {
+		if (_writeSelector == null) {
+			_writeSelector = Selector.open();
+			_channel.register(_writeSelector, SelectionKey.OP_WRITE);
+		}
+		if (_writeSelector.select(WRITE_TIMEOUT) == 0) {
+			throw new IOException("Timed out writing to the control connection");
+		}
+		_writeSelector.selectedKeys().clear();
+	}
+
+	private void closeWriteSelector() {
+		if (_writeSelector != null) {
+			try {
+				_writeSelector.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
+			_writeSelector = null;
+		}
+	}
+
+	private void closed(String reason) {
+		if (close()) {
+			_handler.channelClosed(this, reason);
+		}
+	}
+
+	/**
+	 * Closes the connection, on TLS a close_notify is sent first when nothing else is being written.<br>
+	 * The close_notify gets a single write which never waits for the socket to drain,
+	 * as the selector thread closes connections too.
+	 * @return false if it was already closed.
+	 */
+	public boolean close() {
+		if (!_closed.compareAndSet(false, true)) {
+			return false;
+		}
+		if (_writeLock.tryLock()) {
+			try {
+				if (_engine != null && !_handshaking && !_netOutPending) {
+					_engine.closeOutbound();
+					wrapOnly(EMPTY);
+					_channel.write(_netOut);
+				}
+			} catch (IOException e) {
+				logger.debug("Unable to send close_notify", e);
+			} finally {
+				closeWriteSelector();
+				_writeLock.unlock();
+			}
+		}
+		try {
+			_channel.close();
+		} catch (IOException e) {
+			// already gone
+		}
+		// a writer still holding the lock wakes up, sees the channel closed and cleans up
+		Selector writeSelector = _writeSelector;
+		if (writeSelector != null) {
+			writeSelector.wakeup();
+		}
+		return true;
+	}
+
+	private class ChannelOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			NioControlChannel.this.write(ByteBuffer.wrap(b, off, len));
+		}
+	}
+}
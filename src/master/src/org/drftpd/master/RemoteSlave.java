@@ -148,6 +148,8 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
 	private transient RemergeThread _remergeThread;
 
+	private transient long _pendingRemergeManifest;
+
 	public RemoteSlave(String name) {
 		_name = name;
 		_keysAndValues = new Properties();
@@ -161,6 +163,15 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 	
 	public static final Key<Boolean> SSL = new Key<Boolean>(RemoteSlave.class, "ssl");
 
+	/**
+	 * The manifest generation acknowledged for this slave is kept on the root
+	 * of the vfs rather than with the slave, so a wiped or restored vfs does
+	 * not let the slave skip directories it no longer holds.
+	 */
+	protected Key<Long> getRemergeManifestKey() {
+		return new Key<Long>(RemoteSlave.class, "remergeManifest." + getName());
+	}
+
 	public static Hashtable<String,RemoteSlave> rslavesToHashtable(Collection<RemoteSlave> rslaves) {
 		Hashtable<String, RemoteSlave> map = new Hashtable<String, RemoteSlave>(
 				rslaves.size());
@@ -422,13 +433,30 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 				GlobalContext.getEventService().publishAsync(new SlaveEvent("ADDSLAVE", this));
 			}
 		}
+		// the slave skips directories unchanged since the manifest acknowledged here,
+		// the new one is acknowledged once this remerge has been fully processed
+		long manifestAcknowledged = 0L;
+		_pendingRemergeManifest = 0L;
+		if (GlobalContext.getConfig().getMainProperties().getProperty("remerge.manifest", "false").trim().equalsIgnoreCase("true")) {
+			try {
+				manifestAcknowledged = getGlobalContext().getRoot().getPluginMetaData(getRemergeManifestKey());
+			} catch (KeyNotFoundException e) {
+				// this vfs never merged a manifest from the slave, a full remerge rebuilds it
+			} catch (FileNotFoundException e) {
+				logger.warn("Unable to read the remerge manifest for " + getName() + ", performing a full remerge", e);
+			}
+			_pendingRemergeManifest = System.currentTimeMillis();
+		}
 		String remergeIndex;
 		if (partialRemerge) {
-			remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", true, skipAgeCutoff, System.currentTimeMillis(), false);
+			remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", true, skipAgeCutoff, System.currentTimeMillis(), false,
+					manifestAcknowledged, _pendingRemergeManifest);
 		} else if (instantOnline) {
-			remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", false, 0L, 0L, true);
+			remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", false, 0L, 0L, true,
+					manifestAcknowledged, _pendingRemergeManifest);
 		} else {
-			remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", false, 0L, 0L, false);
+			remergeIndex = SlaveManager.getBasicIssuer().issueRemergeToSlave(this, "/", false, 0L, 0L, false,
+					manifestAcknowledged, _pendingRemergeManifest);
 		}
 
 		try {
@@ -545,6 +573,14 @@ public class RemoteSlave extends ExtendedTimedStats implements Runnable, Compara
 
 	protected void makeAvailableAfterRemerge() {
         setProperty("lastConnect", Long.toString(System.currentTimeMillis()));
+        if (_pendingRemergeManifest != 0L) {
+            try {
+                getGlobalContext().getRoot().addPluginMetaData(getRemergeManifestKey(), _pendingRemergeManifest);
+            } catch (FileNotFoundException e) {
+                logger.warn("Unable to store the remerge manifest for " + getName(), e);
+            }
+            _pendingRemergeManifest = 0L;
+        }
         if (GlobalContext.getConfig().getMainProperties().getProperty("partial.remerge.mode").equalsIgnoreCase("instant")) {
             setRemerging(false);
             GlobalContext.getEventService().publishAsync(new SlaveEvent("MSGSLAVE", "Remerge queueprocess finished", this));
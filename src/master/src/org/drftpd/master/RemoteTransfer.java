@@ -43,7 +43,7 @@ public class RemoteTransfer {
 
 	private RemoteSlave _rslave;
 
-	private TransferStatus _status;
+	private volatile TransferStatus _status;
 
 	private char _transferDirection = Transfer.TRANSFER_UNKNOWN;
 
@@ -68,10 +68,21 @@ public class RemoteTransfer {
 					_pointer.unlinkPointer(this);
 				}
 				_pointer = null;
+				notifyAll();
 			}
 		}
 	}
 
+	/**
+	 * Waits until the slave reports the transfer as finished, or at most
+	 * <code>timeout</code> milliseconds so callers notice a slave going offline.
+	 */
+	public synchronized void waitForFinish(long timeout) throws InterruptedException {
+		if (!_status.isFinished() && _rslave.isOnline()) {
+			wait(timeout);
+		}
+	}
+
 	public char getTransferDirection() {
 		return _transferDirection;
 	}
@@ -148,16 +159,26 @@ public class RemoteTransfer {
 					_pointer.unlinkPointer(this);
 				}
 				_pointer = null;
+				notifyAll();
 			}
 		}
 	}
 	
 	public void receiveFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed)
 			throws IOException, SlaveUnavailableException {
+		receiveFile(path, type, position, inetAddress, minSpeed, maxSpeed, null, null);
+	}
+
+	/**
+	 * @param user user whose bandwidth buckets the transfer draws from on the slave, may be null
+	 * @param group group whose bandwidth buckets the transfer draws from on the slave, may be null
+	 */
+	public void receiveFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed,
+			String user, String group) throws IOException, SlaveUnavailableException {
 		_path = path;
 		
 		String index = SlaveManager.getBasicIssuer().issueReceiveToSlave(
-				_rslave, path, type, position,	inetAddress, getTransferIndex(), minSpeed, maxSpeed);
+				_rslave, path, type, position,	inetAddress, getTransferIndex(), minSpeed, maxSpeed, user, group);
 		
 		_transferDirection = Transfer.TRANSFER_RECEIVING_UPLOAD;
 		try {
@@ -170,9 +191,17 @@ public class RemoteTransfer {
 
 	public void sendFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed)
 			throws IOException, SlaveUnavailableException {
+		sendFile(path, type, position, inetAddress, minSpeed, maxSpeed, null, null);
+	}
+
+	/**
+	 * @see #receiveFile(String, char, long, String, long, long, String, String)
+	 */
+	public void sendFile(String path, char type, long position, String inetAddress, long minSpeed, long maxSpeed,
+			String user, String group) throws IOException, SlaveUnavailableException {
 		_path = path;
 		String index = SlaveManager.getBasicIssuer().issueSendToSlave(
-				_rslave, path, type, position, inetAddress, getTransferIndex(), minSpeed, maxSpeed);
+				_rslave, path, type, position, inetAddress, getTransferIndex(), minSpeed, maxSpeed, user, group);
 		_transferDirection = Transfer.TRANSFER_SENDING_DOWNLOAD;
 		try {
 			_rslave.fetchResponse(index);
@@ -55,6 +55,8 @@ import org.drftpd.exceptions.SSLUnavailableException;
 import org.drftpd.exceptions.SlaveFileException;
 import org.drftpd.exceptions.SlaveUnavailableException;
 import org.drftpd.master.cron.TimeEventInterface;
+import org.drftpd.protocol.CompactObjectInputStream;
+import org.drftpd.protocol.CompactObjectOutputStream;
 import org.drftpd.protocol.master.AbstractBasicIssuer;
 import org.drftpd.protocol.master.AbstractIssuer;
 import org.drftpd.protocol.master.MasterProtocolCentral;
@@ -211,6 +213,7 @@ public class SlaveManager implements Runnable, TimeEventInterface {
 			rslave.setOffline("Slave has been deleted");
 			_rslaves.remove(slaveName);
 			getGlobalContext().getRoot().removeSlave(rslave);
+			getGlobalContext().getRoot().removePluginMetaData(rslave.getRemergeManifestKey());
 		} catch (ObjectNotFoundException e) {
 			throw new IllegalArgumentException("Slave not found");
 		} catch (FileNotFoundException e) {
@@ -425,9 +428,9 @@ public class SlaveManager implements Runnable, TimeEventInterface {
 				logger.debug("Slave connected from "
 						+ socket.getRemoteSocketAddress());
 
-				out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				out = new CompactObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 				out.flush();
-				in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+				in = new CompactObjectInputStream(new BufferedInputStream(socket.getInputStream()));
 
 				String slavename = RemoteSlave.getSlaveNameFromObjectInput(in);
 
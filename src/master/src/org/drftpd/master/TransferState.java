@@ -361,11 +361,21 @@ public class TransferState {
 		getTransfer().sendFile(path, type, resumePosition, address, minSpeed, maxSpeed);
 	}
 
+	public synchronized void sendFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed,
+			String user, String group) throws IOException, SlaveUnavailableException {
+		getTransfer().sendFile(path, type, resumePosition, address, minSpeed, maxSpeed, user, group);
+	}
+
 	public synchronized void receiveFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed)
 	throws IOException, SlaveUnavailableException {
 		getTransfer().receiveFile(path, type, resumePosition, address, minSpeed, maxSpeed);
 	}
 
+	public synchronized void receiveFile(String path, char type, long resumePosition, String address, long minSpeed, long maxSpeed,
+			String user, String group) throws IOException, SlaveUnavailableException {
+		getTransfer().receiveFile(path, type, resumePosition, address, minSpeed, maxSpeed, user, group);
+	}
+
 	public synchronized long getElapsed() {
 		return getTransfer().getElapsed();
 	}
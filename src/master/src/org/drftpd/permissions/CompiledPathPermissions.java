@@ -0,0 +1,191 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.permissions;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.drftpd.usermanager.User;
+import org.drftpd.vfs.InodeHandle;
+import org.drftpd.vfs.VirtualFileSystem;
+
+/**
+ * An ordered list of {@link PathPermission}s prepared for lookups, the first
+ * rule whose path matches decides, exactly as walking the list does.<br>
+ * Rules are indexed by the literal start of their path in a trie so only the
+ * few that can match a path have their pattern run, the matching rule is
+ * remembered per path and the outcome of every rule per user, or per group
+ * set when no rule names a user.<br>
+ * Instances are rebuilt whenever rules are added, a changed user gets a new
+ * key and so never sees outcomes from before the change.
+ * @version $Id$
+ */
+public class CompiledPathPermissions {
+	private static final int MAX_PATHS = 20000;
+
+	private static final int MAX_USERS = 5000;
+
+	private static final String NO_USER = "";
+
+	private final PathPermission[] _rules;
+
+	private final Node _root = new Node();
+
+	private final boolean _pathOnly;
+
+	private final boolean _userEntries;
+
+	private final ConcurrentHashMap<String, Integer> _matches = new ConcurrentHashMap<String, Integer>();
+
+	private final ConcurrentHashMap<String, boolean[]> _outcomes = new ConcurrentHashMap<String, boolean[]>();
+
+	public CompiledPathPermissions(List<? extends PathPermission> rules) {
+		_rules = rules.toArray(new PathPermission[rules.size()]);
+		boolean pathOnly = true;
+		boolean userEntries = false;
+		for (int i = 0; i < _rules.length; i++) {
+			_root.add(_rules[i].getPathPrefix(), 0, i);
+			pathOnly &= _rules[i].isPathOnly();
+			userEntries |= _rules[i].hasUserEntries();
+		}
+		_pathOnly = pathOnly;
+		_userEntries = userEntries;
+	}
+
+	public int size() {
+		return _rules.length;
+	}
+
+	public PathPermission getRule(int rule) {
+		return _rules[rule];
+	}
+
+	/**
+	 * @return the index of the first rule matching the inode, -1 if none does.
+	 */
+	public int getMatchingRule(InodeHandle inode) {
+		String path = inode.getPath();
+		if (inode.isDirectory() && !path.endsWith(VirtualFileSystem.separator)) {
+			path = path.concat(VirtualFileSystem.separator);
+		}
+		if (!_pathOnly) {
+			return match(inode, path);
+		}
+		Integer rule = _matches.get(path);
+		if (rule == null) {
+			rule = match(inode, path);
+			if (_matches.size() >= MAX_PATHS) {
+				_matches.clear();
+			}
+			_matches.put(path, rule);
+		}
+		return rule;
+	}
+
+	/**
+	 * @return the outcome of {@link Permission#check(User)} of this rule for the user.
+	 */
+	public boolean check(int rule, User user) {
+		String key = getUserKey(user);
+		boolean[] outcomes = _outcomes.get(key);
+		if (outcomes == null) {
+			outcomes = new boolean[_rules.length];
+			for (int i = 0; i < _rules.length; i++) {
+				outcomes[i] = _rules[i].check(user);
+			}
+			if (_outcomes.size() >= MAX_USERS) {
+				_outcomes.clear();
+			}
+			_outcomes.put(key, outcomes);
+		}
+		return outcomes[rule];
+	}
+
+	private int match(InodeHandle inode, String path) {
+		BitSet candidates = new BitSet(_rules.length);
+		Node node = _root;
+		for (int i = 0; node != null; i++) {
+			node.addRules(candidates);
+			if (i == path.length()) {
+				break;
+			}
+			node = node.getChild(path.charAt(i));
+		}
+		for (int rule = candidates.nextSetBit(0); rule >= 0; rule = candidates.nextSetBit(rule + 1)) {
+			if (_rules[rule].checkPath(inode)) {
+				return rule;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Permission.check() only looks at the name and the groups of a user.
+	 */
+	private String getUserKey(User user) {
+		if (user == null) {
+			return NO_USER;
+		}
+		StringBuilder sb = new StringBuilder(64);
+		if (_userEntries) {
+			sb.append(user.getName());
+		}
+		sb.append('\n').append(user.getGroup());
+		for (String group : user.getGroups()) {
+			sb.append(' ').append(group);
+		}
+		return sb.toString();
+	}
+
+	private static class Node {
+		private HashMap<Character, Node> _children;
+
+		private int[] _rules;
+
+		private void add(String prefix, int offset, int rule) {
+			if (offset == prefix.length()) {
+				_rules = _rules == null ? new int[1] : Arrays.copyOf(_rules, _rules.length + 1);
+				_rules[_rules.length - 1] = rule;
+				return;
+			}
+			if (_children == null) {
+				_children = new HashMap<Character, Node>();
+			}
+			Node child = _children.get(prefix.charAt(offset));
+			if (child == null) {
+				child = new Node();
+				_children.put(prefix.charAt(offset), child);
+			}
+			child.add(prefix, offset + 1, rule);
+		}
+
+		private Node getChild(char c) {
+			return _children == null ? null : _children.get(c);
+		}
+
+		private void addRules(BitSet candidates) {
+			if (_rules != null) {
+				for (int rule : _rules) {
+					candidates.set(rule);
+				}
+			}
+		}
+	}
+}
@@ -32,6 +32,8 @@ import org.drftpd.vfs.InodeHandle;
 public class GlobPathPermission extends PathPermission {
 	Pattern _pat;
 
+	private String _prefix = "";
+
 	public GlobPathPermission(Pattern pat, Collection<String> users) {
 		super(users);
 		_pat = pat;
@@ -40,6 +42,12 @@ public class GlobPathPermission extends PathPermission {
 	public GlobPathPermission(String pattern, Collection<String> users) throws MalformedPatternException {
 		super(users);	
 		_pat = new GlobCompiler().compile(pattern);		
+		// the literal part before the first wildcard
+		int i = 0;
+		while (i < pattern.length() && "*?[\\".indexOf(pattern.charAt(i)) == -1) {
+			i++;
+		}
+		_prefix = pattern.substring(0, i);
 	}
 
 	public boolean checkPath(InodeHandle inode) {
@@ -53,6 +61,14 @@ public class GlobPathPermission extends PathPermission {
 		return m.matches(path, _pat);
 	}
 
+	public String getPathPrefix() {
+		return _prefix;
+	}
+
+	public boolean isPathOnly() {
+		return true;
+	}
+
 	public Pattern getPattern() {
 		return _pat;
 	}
@@ -31,4 +31,20 @@ public abstract class PathPermission extends Permission {
 	}
 
 	public abstract boolean checkPath(InodeHandle inode);
+
+	/**
+	 * @return a string every path accepted by {@link #checkPath(InodeHandle)} starts with,
+	 * directory paths ending with a '/', an empty string if it could be any path.
+	 */
+	public String getPathPrefix() {
+		return "";
+	}
+
+	/**
+	 * @return true if {@link #checkPath(InodeHandle)} only depends on the path and on
+	 * the inode being a directory or not, so its result can be remembered per path.
+	 */
+	public boolean isPathOnly() {
+		return false;
+	}
 }
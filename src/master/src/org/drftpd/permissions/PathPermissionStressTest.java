@@ -0,0 +1,225 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.permissions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.apache.oro.text.regex.MalformedPatternException;
+import org.drftpd.exceptions.DuplicateElementException;
+import org.drftpd.tests.DummyUser;
+import org.drftpd.usermanager.User;
+import org.drftpd.vfs.DirectoryHandle;
+import org.drftpd.vfs.FileHandle;
+import org.drftpd.vfs.InodeHandle;
+
+/**
+ * Checks that {@link CompiledPathPermissions} decides exactly like walking the
+ * rules in order and compares the time both take, on rules shaped like the
+ * perms.conf of a site with a few dozen sections and affiliated groups.<br>
+ * The amount of rules, users and paths can be changed by simple code changes.
+ */
+public class PathPermissionStressTest extends TestCase {
+
+	private static final String[] SECTIONS = { "0DAY", "APPS", "DVDR", "EBOOK", "GAMES", "MP3",
+			"MVID", "TV", "TV-HD", "X264", "XVID", "REQUESTS" };
+
+	private static final int GROUPS = 30;
+
+	private static final int USERS = 300;
+
+	private static final int LOOKUPS = 200000;
+
+	private Map<String, List<PathPermission>> _rules;
+
+	private List<User> _users;
+
+	private List<InodeHandle> _inodes;
+
+	public PathPermissionStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws MalformedPatternException, DuplicateElementException {
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add("privpath /STAFF/* =siteop");
+		for (int g = 0; g < GROUPS; g++) {
+			lines.add("privpath /PRE/GRP" + g + "/* =siteop =GRP" + g);
+		}
+		lines.add("privpath /ARCHIVE/*/_INCOMPLETE/* =siteop");
+		lines.add("privpath ^/[^/]+/[^/]*NUKED-.*$ =siteop =nukers");
+		lines.add("upload /ARCHIVE/* =siteop");
+		lines.add("upload /PRE/* =siteop =affils");
+		lines.add("upload /REQUESTS/* * ");
+		for (String section : SECTIONS) {
+			lines.add("upload /" + section + "/*/Sample/* !=leech *");
+			lines.add("upload /" + section + "/* !=trial !=leech *");
+		}
+		lines.add("upload * =siteop");
+		lines.add("download /PRE/* =siteop");
+		lines.add("download ^/ARCHIVE/.*\\.(nfo|sfv)$ *");
+		lines.add("download /ARCHIVE/* =siteop =vip");
+		for (String section : SECTIONS) {
+			lines.add("download /" + section + "/*-INTERNAL/* !=trial *");
+		}
+		lines.add("download * *");
+		lines.add("makedir /ARCHIVE/* =siteop");
+		lines.add("makedir /PRE/* =siteop =affils");
+		for (String section : SECTIONS) {
+			lines.add("makedir /" + section + "/* !=leech *");
+		}
+		lines.add("makedir * =siteop");
+
+		_rules = new LinkedHashMap<String, List<PathPermission>>();
+		for (String line : lines) {
+			StringTokenizer st = new StringTokenizer(line);
+			String type = st.nextToken();
+			String path = st.nextToken();
+			List<PathPermission> rules = _rules.get(type);
+			if (rules == null) {
+				rules = new ArrayList<PathPermission>();
+				_rules.put(type, rules);
+			}
+			if (path.startsWith("^")) {
+				// what the regex VFSPerm plugin would build
+				rules.add(new RegexPathPermission(Pattern.compile(path), Permission.makeUsers(st)));
+			} else {
+				rules.add(new GlobPathPermission(path, Permission.makeUsers(st)));
+			}
+		}
+
+		String[] extraGroups = { "affils", "leech", "trial", "vip", "nukers", "siteop" };
+		_users = new ArrayList<User>();
+		_users.add(null);
+		for (int u = 0; u < USERS; u++) {
+			DummyUser user = new DummyUser("user" + u);
+			user.setGroup("GRP" + (u % GROUPS));
+			if (u % 7 == 0) {
+				user.addSecondaryGroup(extraGroups[u % extraGroups.length]);
+			}
+			_users.add(user);
+		}
+
+		_inodes = new ArrayList<InodeHandle>();
+		_inodes.add(new DirectoryHandle("/"));
+		_inodes.add(new DirectoryHandle("/STAFF"));
+		for (String section : SECTIONS) {
+			String dir = "/" + section;
+			_inodes.add(new DirectoryHandle(dir));
+			for (int r = 0; r < 20; r++) {
+				String release = dir + "/Some.Release." + r + (r % 5 == 0 ? "-INTERNAL" : "-GRP" + r);
+				_inodes.add(new DirectoryHandle(release));
+				_inodes.add(new DirectoryHandle(release + "/Sample"));
+				_inodes.add(new FileHandle(release + "/Sample/sample.mkv"));
+				_inodes.add(new FileHandle(release + "/release.nfo"));
+				_inodes.add(new FileHandle(release + "/release.r0" + r % 10));
+			}
+			_inodes.add(new DirectoryHandle(dir + "/NUKED-Bad.Release"));
+			_inodes.add(new DirectoryHandle("/ARCHIVE/" + section));
+			_inodes.add(new FileHandle("/ARCHIVE/" + section + "/Old.Release/old.nfo"));
+			_inodes.add(new FileHandle("/ARCHIVE/" + section + "/Old.Release/old.rar"));
+			_inodes.add(new DirectoryHandle("/ARCHIVE/" + section + "/_INCOMPLETE/Old.Release"));
+		}
+		for (int g = 0; g < GROUPS; g++) {
+			_inodes.add(new DirectoryHandle("/PRE/GRP" + g));
+			_inodes.add(new FileHandle("/PRE/GRP" + g + "/Pre.Release/pre.rar"));
+		}
+	}
+
+	public void testSameDecisions() {
+		for (Map.Entry<String, List<PathPermission>> entry : _rules.entrySet()) {
+			List<PathPermission> rules = entry.getValue();
+			CompiledPathPermissions compiled = new CompiledPathPermissions(rules);
+			for (InodeHandle inode : _inodes) {
+				for (User user : _users) {
+					// twice, the second answer comes from the memoized rule and outcomes
+					for (int i = 0; i < 2; i++) {
+						assertEquals(entry.getKey() + " " + inode.getPath() + " " + (user == null ? null : user.getName()),
+								walk(rules, user, inode), check(compiled, user, inode));
+					}
+				}
+			}
+		}
+	}
+
+	public void testPrefixes() throws MalformedPatternException {
+		assertEquals("/PRE/GRP1/", new GlobPathPermission("/PRE/GRP1/*", new ArrayList<String>()).getPathPrefix());
+		assertEquals("", new GlobPathPermission("*", new ArrayList<String>()).getPathPrefix());
+		assertEquals("/ARCHIVE/", regex("^/ARCHIVE/.*").getPathPrefix());
+		assertEquals("/TV", regex("^/TVS?/").getPathPrefix());
+		assertEquals("", regex("^/TV|^/MP3").getPathPrefix());
+		assertEquals("", regex("/ARCHIVE/").getPathPrefix());
+		assertEquals("", new RegexPathPermission(Pattern.compile("^/tv/", Pattern.CASE_INSENSITIVE),
+				new ArrayList<String>()).getPathPrefix());
+	}
+
+	public void testThroughput() {
+		for (Map.Entry<String, List<PathPermission>> entry : _rules.entrySet()) {
+			List<PathPermission> rules = entry.getValue();
+			CompiledPathPermissions compiled = new CompiledPathPermissions(rules);
+
+			long start = System.nanoTime();
+			int allowed = 0;
+			for (int i = 0; i < LOOKUPS; i++) {
+				if (walk(rules, _users.get(i % _users.size()), _inodes.get(i % _inodes.size()))) {
+					allowed++;
+				}
+			}
+			long walked = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int compiledAllowed = 0;
+			for (int i = 0; i < LOOKUPS; i++) {
+				if (check(compiled, _users.get(i % _users.size()), _inodes.get(i % _inodes.size()))) {
+					compiledAllowed++;
+				}
+			}
+			long checked = System.nanoTime() - start;
+
+			assertEquals(allowed, compiledAllowed);
+			System.out.println(entry.getKey() + ": " + rules.size() + " rules, " + LOOKUPS + " lookups walked in "
+					+ (walked / 1000000) + "ms, compiled in " + (checked / 1000000) + "ms");
+		}
+	}
+
+	/**
+	 * What VFSPermissions and ConfigManager did before the rules were compiled.
+	 */
+	private static boolean walk(List<PathPermission> rules, User user, InodeHandle inode) {
+		for (PathPermission perm : rules) {
+			if (perm.checkPath(inode)) {
+				return perm.check(user);
+			}
+		}
+		return false;
+	}
+
+	private static boolean check(CompiledPathPermissions compiled, User user, InodeHandle inode) {
+		int rule = compiled.getMatchingRule(inode);
+		return rule != -1 && compiled.check(rule, user);
+	}
+
+	private static RegexPathPermission regex(String regex) {
+		return new RegexPathPermission(Pattern.compile(regex), new ArrayList<String>());
+	}
+}
@@ -20,7 +20,6 @@ package org.drftpd.permissions;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
-import java.util.Iterator;
 import java.util.StringTokenizer;
 
 import org.drftpd.usermanager.User;
@@ -30,12 +29,29 @@ import org.drftpd.usermanager.User;
  * @version $Id$
  */
 public class Permission {
+	private static final byte ANYONE = 0;
+	private static final byte AUTHENTICATED = 1;
+	private static final byte USER = 2;
+	private static final byte GROUP = 3;
+
 	protected Collection<String> _users;
 
 	private boolean _invert = false;
 
+	/*
+	 * _users parsed once, check() no longer strips the modifiers of every
+	 * entry on every call, the names are interned as the same groups come
+	 * back in most lines of perms.conf.
+	 */
+	private byte[] _types;
+
+	private boolean[] _allows;
+
+	private String[] _names;
+
 	public Permission(Collection<String> users) {
 		_users = users;
+		compile();
 	}
 
 	public Permission(Collection<String> users, boolean invert) {
@@ -60,43 +76,24 @@ public class Permission {
 	public boolean check(User user) {
 		boolean allow = false;
 
-		for (Iterator<String> iter = _users.iterator(); iter.hasNext();) {
-			String aclUser = iter.next();
-			allow = true;
-			if (aclUser.charAt(0) == '!') {
-				allow = false;
-				aclUser = aclUser.substring(1);
-			}
-			if (aclUser.equals("%")) {
-				return allow;
-			} else if (aclUser.equals("*") && user != null) {
+		for (int i = 0; i < _types.length; i++) {
+			allow = _allows[i];
+			switch (_types[i]) {
+			case ANYONE:
 				return allow;
-			} else if (aclUser.charAt(0) == '-') {
-				// USER
-				if (user == null) {
-					continue;
-				}
-				if (aclUser.substring(1).equals(user.getName())) {
+			case AUTHENTICATED:
+				if (user != null) {
 					return allow;
 				}
-
-				continue;
-			} else if (aclUser.charAt(0) == '=') {
-				// GROUP
-				if (user == null) {
-					continue;
-				}
-				if (user.isMemberOf(aclUser.substring(1))) {
+				break;
+			case USER:
+				if (user != null && _names[i].equals(user.getName())) {
 					return allow;
 				}
-			} else {
-				// FLAG, we don't have flags, we have groups and that's the same
-				// but multiple letters
-				// Does anyone use these?  Do we want to get rid of the = modifier?
-				if (user == null) {
-					continue;
-				}
-				if (user.isMemberOf(aclUser)) {
+				break;
+			default:
+				// GROUP, flags are groups too
+				if (user != null && user.isMemberOf(_names[i])) {
 					return allow;
 				}
 			}
@@ -105,7 +102,49 @@ public class Permission {
 		// didn't match..
 		return _invert ? (!allow) : false;
 	}
-	
+
+	/**
+	 * @return true if an entry names a user, otherwise only the groups of a user matter.
+	 */
+	boolean hasUserEntries() {
+		for (byte type : _types) {
+			if (type == USER) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void compile() {
+		int size = _users.size();
+		_types = new byte[size];
+		_allows = new boolean[size];
+		_names = new String[size];
+		int i = 0;
+		for (String aclUser : _users) {
+			_allows[i] = true;
+			if (aclUser.length() > 0 && aclUser.charAt(0) == '!') {
+				_allows[i] = false;
+				aclUser = aclUser.substring(1);
+			}
+			if (aclUser.equals("%")) {
+				_types[i] = ANYONE;
+			} else if (aclUser.equals("*")) {
+				_types[i] = AUTHENTICATED;
+			} else if (aclUser.length() > 0 && aclUser.charAt(0) == '-') {
+				_types[i] = USER;
+				_names[i] = aclUser.substring(1).intern();
+			} else {
+				// FLAG, we don't have flags, we have groups and that's the same
+				// but multiple letters
+				// Does anyone use these?  Do we want to get rid of the = modifier?
+				_types[i] = GROUP;
+				_names[i] = (aclUser.length() > 0 && aclUser.charAt(0) == '=' ? aclUser.substring(1) : aclUser).intern();
+			}
+			i++;
+		}
+	}
+
 	public static ArrayList<String> makeUsers(Enumeration<Object> st) {
 		ArrayList<String> users = new ArrayList<String>();
 
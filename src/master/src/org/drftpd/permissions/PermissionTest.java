@@ -0,0 +1,70 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.permissions;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.drftpd.exceptions.DuplicateElementException;
+import org.drftpd.tests.DummyUser;
+
+/**
+ * @version $Id$
+ */
+public class PermissionTest extends TestCase {
+
+	private DummyUser _user;
+
+	public PermissionTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws DuplicateElementException {
+		_user = new DummyUser("user1");
+		_user.setGroup("group1");
+		_user.addSecondaryGroup("siteop");
+	}
+
+	public void testAuthenticated() {
+		assertTrue(new Permission("*").check(_user));
+		assertFalse(new Permission("*").check(null));
+		assertTrue(new Permission("%").check(null));
+		assertFalse(new Permission("!*").check(_user));
+	}
+
+	public void testUserAndGroups() {
+		assertTrue(new Permission("-user1").check(_user));
+		assertFalse(new Permission("-user2").check(_user));
+		assertTrue(new Permission("=group1").check(_user));
+		assertTrue(new Permission("=siteop").check(_user));
+		assertTrue(new Permission("siteop").check(_user));
+		assertFalse(new Permission("=group2").check(_user));
+	}
+
+	public void testFirstMatchDecides() {
+		assertFalse(new Permission("!-user1 =siteop").check(_user));
+		assertTrue(new Permission("=siteop !-user1").check(_user));
+		assertFalse(new Permission("!=group2 =group3").check(_user));
+	}
+
+	public void testInvert() {
+		assertFalse(new Permission(Arrays.asList("=group2"), true).check(_user));
+		assertTrue(new Permission(Arrays.asList("!=group2"), true).check(_user));
+		assertFalse(new Permission(Arrays.asList("!=group1"), true).check(_user));
+	}
+}
@@ -9,16 +9,47 @@ import org.drftpd.vfs.InodeHandle;
 public class RegexPathPermission extends PathPermission {
     private Pattern _pat;
 
+    private String _prefix;
+
     public RegexPathPermission(Pattern pat, Collection<String> users) {
         super(users);
         _pat = pat;
+        _prefix = literalPrefix(pat);
     }
 
+	/**
+	 * @return the literal start of a pattern anchored with '^', an empty
+	 * string for anything else as find() can match anywhere in the path.
+	 */
+	private static String literalPrefix(Pattern pat) {
+		String regex = pat.pattern();
+		if (pat.flags() != 0 || !regex.startsWith("^") || regex.indexOf('|') != -1) {
+			return "";
+		}
+		int i = 1;
+		while (i < regex.length() && "\\.[]{}()*+?^$".indexOf(regex.charAt(i)) == -1) {
+			i++;
+		}
+		if (i < regex.length() && "*+?{".indexOf(regex.charAt(i)) != -1) {
+			// the last literal character is optional or repeated
+			i--;
+		}
+		return i > 1 ? regex.substring(1, i) : "";
+	}
+
 	public boolean checkPath(InodeHandle inode) {
 		Matcher m = _pat.matcher(inode.getPath());
 		return m.find();
 	}
 	
+	public String getPathPrefix() {
+		return _prefix;
+	}
+
+	public boolean isPathOnly() {
+		return true;
+	}
+
 	public String toString() {
 		return getClass().getCanonicalName()+"[pat="+_pat.toString()+",users="+_users.toString()+"]";
 	}
@@ -37,4 +37,12 @@ public class StringPathPermission extends PathPermission {
 	public boolean checkPath(InodeHandle inode) {
 		return inode.getPath().startsWith(_path);
 	}
+
+	public String getPathPrefix() {
+		return _path;
+	}
+
+	public boolean isPathOnly() {
+		return true;
+	}
 }
@@ -16,6 +16,8 @@
  */
 package org.drftpd.protocol.master;
 
+import java.util.Map;
+
 import org.drftpd.exceptions.SSLUnavailableException;
 import org.drftpd.exceptions.SlaveUnavailableException;
 import org.drftpd.master.RemoteSlave;
@@ -44,7 +46,8 @@ public abstract class AbstractBasicIssuer extends AbstractIssuer {
 	public abstract String issuePingToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 
 	public abstract String issueReceiveToSlave(RemoteSlave rslave, String name, char c, long position,
-			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException;
+			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed,
+			String user, String group) throws SlaveUnavailableException;
 
 	public abstract String issueRenameToSlave(RemoteSlave rslave, String from, String toDirPath,
 			String toName) throws SlaveUnavailableException;
@@ -56,14 +59,30 @@ public abstract class AbstractBasicIssuer extends AbstractIssuer {
 
 
 	public abstract String issueSendToSlave(RemoteSlave rslave, String name, char c, long position,
-			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException;
+			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed,
+			String user, String group) throws SlaveUnavailableException;
 
 	public abstract String issueRemergeToSlave(RemoteSlave rslave, String path, boolean partialRemerge,
             long skipAgeCutoff, long masterTime, boolean instantOnline) throws SlaveUnavailableException;
 
+	/**
+	 * @param manifestAcknowledged generation of the slave's remerge manifest already merged, 0 for none.
+	 * @param manifestGeneration generation the slave saves its new manifest as, 0 to not save one.
+	 */
+	public abstract String issueRemergeToSlave(RemoteSlave rslave, String path, boolean partialRemerge,
+            long skipAgeCutoff, long masterTime, boolean instantOnline,
+            long manifestAcknowledged, long manifestGeneration) throws SlaveUnavailableException;
+
 	public abstract void issueRemergePauseToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 
 	public abstract void issueRemergeResumeToSlave(RemoteSlave rslave) throws SlaveUnavailableException;
 
 	public abstract String issueCheckSSL(RemoteSlave rslave) throws SlaveUnavailableException;
+
+	/**
+	 * Replaces the bandwidth shaping rates of the slave, the slave doesn't reply.
+	 * @param rates rates in bytes per second keyed by 'slave', 'group', 'group.&lt;name&gt;',
+	 * 'user' and 'user.&lt;name&gt;'
+	 */
+	public abstract void issueShapingToSlave(RemoteSlave rslave, Map<String, Long> rates) throws SlaveUnavailableException;
 }
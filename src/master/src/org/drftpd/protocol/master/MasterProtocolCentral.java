@@ -26,7 +26,10 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
+import org.drftpd.GlobalContext;
 import org.drftpd.master.RemoteSlave;
+import org.drftpd.protocol.CompactObjectInputStream;
+import org.drftpd.protocol.CompactObjectOutputStream;
 import org.drftpd.protocol.HandshakeWrapper;
 import org.drftpd.protocol.ProtocolException;
 import org.drftpd.util.CommonPluginUtils;
@@ -112,6 +115,19 @@ public class MasterProtocolCentral {
 		return _issuersMap.get(clazz);
 	}
 	
+	/**
+	 * The compact protocol is used when the slave asks for it unless 'slave.protocol'
+	 * is set to 'object' in master.conf.
+	 */
+	private String negotiateProtocolMode(String requested) {
+		String allowed = GlobalContext.getConfig().getMainProperties().getProperty("slave.protocol",
+				HandshakeWrapper.PROTOCOL_COMPACT).trim();
+		if (requested.equals(HandshakeWrapper.PROTOCOL_COMPACT) && allowed.equalsIgnoreCase(HandshakeWrapper.PROTOCOL_COMPACT)) {
+			return HandshakeWrapper.PROTOCOL_COMPACT;
+		}
+		return HandshakeWrapper.PROTOCOL_OBJECT;
+	}
+
 	/**
 	 * Whenever a slave connects, before it even start remerging, a "handshake" is started
 	 * to check if the slave is capable of handling all operations that *might* be requested.
@@ -137,6 +153,20 @@ public class MasterProtocolCentral {
 				logger.debug("There was an error during the handshake, check logs.", hw.getException());
 				throw hw.getException();
 			}
+			if (!hw.getProtocolMode().equals(HandshakeWrapper.PROTOCOL_OBJECT)) {
+				String mode = in instanceof CompactObjectInputStream && out instanceof CompactObjectOutputStream
+						? negotiateProtocolMode(hw.getProtocolMode()) : HandshakeWrapper.PROTOCOL_OBJECT;
+				out.writeObject(mode);
+				out.flush();
+				out.reset();
+				if (mode.equals(HandshakeWrapper.PROTOCOL_COMPACT)) {
+					// the slave switches its output once it has read our answer,
+					// nothing else can be read from it before this point
+					((CompactObjectInputStream) in).setCompact(true);
+					((CompactObjectOutputStream) out).setCompact(true);
+				}
+				logger.debug("Using the " + mode + " protocol with " + rslave.getName());
+			}
 			logger.debug("Handshake successful");
 		} catch (Exception e) {
 			throw new ProtocolException(e);
@@ -0,0 +1,315 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import org.bushe.swing.event.annotation.AnnotationProcessor;
+import org.bushe.swing.event.annotation.EventSubscriber;
+import org.drftpd.GlobalContext;
+import org.drftpd.PropertyHelper;
+import org.drftpd.event.ReloadEvent;
+
+/**
+ * HTTP client shared by everything looking things up on the web, ie. the
+ * IMDB and TvMaze plugins.<br>
+ * Connections are pooled and kept alive, successful responses are cached on
+ * disk per normalized URL, identical lookups running at the same time share
+ * a single request and requests to each host are paced by a {@link RequestRateLimiter}.
+ * @version $Id$
+ */
+public class HttpClientService {
+
+	private static final Logger logger = Logger.getLogger(HttpClientService.class);
+
+	private static HttpClientService _service;
+
+	private final CloseableHttpClient _client;
+
+	private final RequestConfig _requestConfig;
+
+	private final ConcurrentHashMap<String, FutureTask<String>> _inFlight = new ConcurrentHashMap<String, FutureTask<String>>();
+
+	private final ConcurrentHashMap<String, RequestRateLimiter> _limiters = new ConcurrentHashMap<String, RequestRateLimiter>();
+
+	private volatile HttpResponseCache _cache;
+
+	private volatile double _rate;
+
+	private volatile int _burst;
+
+	private final AtomicLong _requests = new AtomicLong();
+
+	private final AtomicLong _hits = new AtomicLong();
+
+	private final AtomicLong _coalesced = new AtomicLong();
+
+	public static synchronized HttpClientService getHttpClientService() {
+		if (_service == null) {
+			_service = new HttpClientService(GlobalContext.getConfig() == null ? new Properties()
+					: GlobalContext.getConfig().getMainProperties());
+			AnnotationProcessor.process(_service);
+		}
+		return _service;
+	}
+
+	public HttpClientService(Properties cfg) {
+		int connections = Integer.parseInt(PropertyHelper.getProperty(cfg, "http.connections", "20").trim());
+		int perHost = Integer.parseInt(PropertyHelper.getProperty(cfg, "http.connections.host", "4").trim());
+		PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+		pool.setMaxTotal(connections);
+		pool.setDefaultMaxPerRoute(perHost);
+		// servers drop idle keep-alive connections without telling us
+		pool.setValidateAfterInactivity(2000);
+		_requestConfig = RequestConfig.custom()
+				.setSocketTimeout(5000)
+				.setConnectTimeout(5000)
+				.setConnectionRequestTimeout(5000)
+				.setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+				.build();
+		_client = HttpClients.custom()
+				.setConnectionManager(pool)
+				.setDefaultRequestConfig(_requestConfig)
+				.setUserAgent(HttpUtils._userAgent)
+				.evictIdleConnections(30, TimeUnit.SECONDS)
+				.build();
+		configure(cfg);
+	}
+
+	private void configure(Properties cfg) {
+		double rate = 2D;
+		int burst = 5;
+		long ttl = 3600L;
+		try {
+			rate = Double.parseDouble(PropertyHelper.getProperty(cfg, "http.rate", "2").trim());
+			burst = Integer.parseInt(PropertyHelper.getProperty(cfg, "http.burst", "5").trim());
+			ttl = Long.parseLong(PropertyHelper.getProperty(cfg, "http.cache.ttl", "3600").trim());
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid http.rate, http.burst or http.cache.ttl, using " + rate + ", " + burst + " and " + ttl);
+		}
+		_rate = rate;
+		_burst = burst;
+		_limiters.clear();
+		if (ttl > 0) {
+			_cache = new HttpResponseCache(new File(PropertyHelper.getProperty(cfg, "http.cache.dir", "cache/http")),
+					ttl * 1000L);
+		} else {
+			_cache = null;
+		}
+	}
+
+	@EventSubscriber
+	public void onReloadEvent(ReloadEvent event) {
+		configure(GlobalContext.getConfig().getMainProperties());
+	}
+
+	/**
+	 * @return the body of a successful GET of the url.
+	 * @throws HttpException if the server answered with anything but 200 OK.
+	 */
+	public String retrieve(String url) throws HttpException, IOException {
+		final String key = normalize(url);
+		final HttpResponseCache cache = _cache;
+		if (cache != null) {
+			String cached = cache.get(key);
+			if (cached != null) {
+				_hits.incrementAndGet();
+				return cached;
+			}
+		}
+		final String target = url;
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			public String call() throws Exception {
+				String data = fetch(target);
+				if (cache != null) {
+					cache.put(key, data);
+				}
+				return data;
+			}
+		});
+		FutureTask<String> running = _inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				_inFlight.remove(key, task);
+			}
+			running = task;
+		} else {
+			_coalesced.incrementAndGet();
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + url);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof HttpException) {
+				throw (HttpException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException("Error for URL " + url, cause);
+		}
+	}
+
+	private String fetch(String url) throws HttpException, IOException {
+		HttpGet httpGet = new HttpGet(url);
+		httpGet.setConfig(_requestConfig);
+		try {
+			getLimiter(httpGet.getURI().getHost()).acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to request " + url);
+		}
+		_requests.incrementAndGet();
+		CloseableHttpResponse response = null;
+		try {
+			response = _client.execute(httpGet);
+			final int statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			if (statusCode != HttpStatus.SC_OK) {
+				// read the body so the connection goes back to the pool
+				EntityUtils.consume(entity);
+				throw new HttpException("Error " + statusCode + " for URL " + url);
+			}
+			return EntityUtils.toString(entity);
+		} catch (IOException e) {
+			throw new IOException("Error for URL " + url, e);
+		} finally {
+			if (response != null) {
+				response.close();
+			}
+		}
+	}
+
+	private RequestRateLimiter getLimiter(String host) {
+		String name = host == null ? "" : host.toLowerCase(Locale.ENGLISH);
+		RequestRateLimiter limiter = _limiters.get(name);
+		if (limiter == null) {
+			limiter = new RequestRateLimiter(_rate, _burst);
+			RequestRateLimiter existing = _limiters.putIfAbsent(name, limiter);
+			if (existing != null) {
+				limiter = existing;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * Normalizes an URL for use as a cache key, the scheme and host are lower
+	 * cased, default ports and fragments are dropped and query parameters are
+	 * sorted. URLs which can't be parsed are used as they are.
+	 */
+	public static String normalize(String url) {
+		URI uri;
+		try {
+			uri = new URI(url.trim());
+		} catch (URISyntaxException e) {
+			return url;
+		}
+		if (uri.getScheme() == null || uri.getRawAuthority() == null) {
+			return url;
+		}
+		String scheme = uri.getScheme().toLowerCase(Locale.ENGLISH);
+		StringBuilder key = new StringBuilder(url.length());
+		key.append(scheme).append("://");
+		if (uri.getRawUserInfo() != null) {
+			key.append(uri.getRawUserInfo()).append('@');
+		}
+		key.append(uri.getHost() == null ? uri.getRawAuthority() : uri.getHost().toLowerCase(Locale.ENGLISH));
+		int port = uri.getPort();
+		if (port != -1 && !(port == 80 && scheme.equals("http")) && !(port == 443 && scheme.equals("https"))) {
+			key.append(':').append(port);
+		}
+		String path = uri.getRawPath();
+		key.append(path == null || path.isEmpty() ? "/" : path);
+		String query = uri.getRawQuery();
+		if (query != null && !query.isEmpty()) {
+			String[] params = query.split("&");
+			Arrays.sort(params);
+			key.append('?');
+			for (int i = 0; i < params.length; i++) {
+				if (i > 0) {
+					key.append('&');
+				}
+				key.append(params[i]);
+			}
+		}
+		return key.toString();
+	}
+
+	public void clearCache() {
+		HttpResponseCache cache = _cache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	public void close() throws IOException {
+		_client.close();
+	}
+
+	/**
+	 * @return the number of requests sent to servers.
+	 */
+	public long getRequests() {
+		return _requests.get();
+	}
+
+	public long getCacheHits() {
+		return _hits.get();
+	}
+
+	/**
+	 * @return the number of lookups which waited for an identical one already running.
+	 */
+	public long getCoalesced() {
+		return _coalesced.get();
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @version $Id$
+ */
+public class HttpClientServiceTest extends TestCase {
+
+	private HttpServer _server;
+
+	private ExecutorService _executor;
+
+	private String _base;
+
+	private File _cacheDir;
+
+	private AtomicInteger _served = new AtomicInteger();
+
+	private Set<Integer> _clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	private CountDownLatch _release = new CountDownLatch(0);
+
+	private List<HttpClientService> _services = new ArrayList<HttpClientService>();
+
+	public HttpClientServiceTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_cacheDir = File.createTempFile("httpcache", "");
+		_cacheDir.delete();
+		_executor = Executors.newCachedThreadPool();
+		_server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		_server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				_served.incrementAndGet();
+				_clientPorts.add(exchange.getRemoteAddress().getPort());
+				String path = exchange.getRequestURI().getPath();
+				if (path.startsWith("/slow")) {
+					try {
+						_release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						// answer anyway
+					}
+				}
+				int status = path.startsWith("/missing") ? 404 : 200;
+				byte[] body = ("body of " + exchange.getRequestURI()).getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+				exchange.sendResponseHeaders(status, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		_server.setExecutor(_executor);
+		_server.start();
+		_base = "http://127.0.0.1:" + _server.getAddress().getPort();
+	}
+
+	protected void tearDown() throws IOException {
+		for (HttpClientService service : _services) {
+			service.close();
+		}
+		_server.stop(0);
+		_executor.shutdownNow();
+		File[] files = _cacheDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		_cacheDir.delete();
+	}
+
+	private HttpClientService createService(String rate, String burst, String ttl) {
+		Properties cfg = new Properties();
+		cfg.setProperty("http.rate", rate);
+		cfg.setProperty("http.burst", burst);
+		cfg.setProperty("http.cache.ttl", ttl);
+		cfg.setProperty("http.cache.dir", _cacheDir.getPath());
+		HttpClientService service = new HttpClientService(cfg);
+		_services.add(service);
+		return service;
+	}
+
+	public void testNormalize() {
+		assertEquals("http://example.com/a?b=2&c=1", HttpClientService.normalize("HTTP://Example.COM:80/a?c=1&b=2#top"));
+		assertEquals("https://example.com/", HttpClientService.normalize("https://example.com:443"));
+		assertEquals("http://example.com:8080/a%20b", HttpClientService.normalize(" http://example.com:8080/a%20b "));
+		assertEquals("not a url", HttpClientService.normalize("not a url"));
+	}
+
+	public void testCacheAndKeepAlive() throws Exception {
+		HttpClientService service = createService("0", "1", "60");
+		assertEquals("body of /a?x=1&y=2", service.retrieve(_base + "/a?x=1&y=2"));
+		assertEquals("body of /a?x=1&y=2", service.retrieve(_base + "/a?y=2&x=1#fragment"));
+		assertEquals(1, _served.get());
+		assertEquals(1, service.getCacheHits());
+
+		service.retrieve(_base + "/b");
+		service.retrieve(_base + "/c");
+		assertEquals(3, service.getRequests());
+		// sequential requests reuse the pooled connection
+		assertEquals(1, _clientPorts.size());
+
+		// the cache survives a restart
+		HttpClientService restarted = createService("0", "1", "60");
+		assertEquals("body of /b", restarted.retrieve(_base + "/b"));
+		assertEquals(0, restarted.getRequests());
+		assertEquals(3, _served.get());
+	}
+
+	public void testErrorsAreNotCached() throws Exception {
+		HttpClientService service = createService("0", "1", "60");
+		for (int i = 0; i < 2; i++) {
+			try {
+				service.retrieve(_base + "/missing");
+				fail("404 should throw an HttpException");
+			} catch (HttpException e) {
+				assertTrue(e.getMessage().startsWith("Error 404"));
+			}
+		}
+		assertEquals(2, _served.get());
+		// the failed response was read so the connection was kept
+		service.retrieve(_base + "/a");
+		assertEquals(1, _clientPorts.size());
+	}
+
+	public void testCoalescing() throws Exception {
+		final HttpClientService service = createService("0", "1", "0");
+		_release = new CountDownLatch(1);
+		final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 5; i++) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						results.add(service.retrieve(_base + "/slow"));
+					} catch (Exception e) {
+						results.add(e.toString());
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (service.getCoalesced() < 4 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		_release.countDown();
+		for (Thread thread : threads) {
+			thread.join(10000L);
+		}
+		assertEquals(4, service.getCoalesced());
+		assertEquals(1, _served.get());
+		assertEquals(5, results.size());
+		for (String result : results) {
+			assertEquals("body of /slow", result);
+		}
+	}
+
+	public void testRateLimit() throws Exception {
+		HttpClientService service = createService("10", "1", "0");
+		long start = System.nanoTime();
+		for (int i = 0; i < 6; i++) {
+			service.retrieve(_base + "/a" + i);
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		// one token up front, then one every 100ms
+		assertTrue("6 requests at 10/s took " + elapsed + "ms", elapsed >= 450);
+		assertEquals(6, _served.get());
+	}
+
+	public void testRequestRateLimiter() {
+		RequestRateLimiter limiter = new RequestRateLimiter(1, 2);
+		assertEquals(0, limiter.reserve());
+		assertEquals(0, limiter.reserve());
+		long wait = limiter.reserve();
+		assertTrue(wait > 900000000L && wait <= 1000000000L);
+		// the next caller queues behind the previous one
+		assertTrue(limiter.reserve() > 1900000000L);
+		assertEquals(0, new RequestRateLimiter(0, 1).reserve());
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Disk backed cache of HTTP response bodies, one file per URL.<br>
+ * Entries live for a fixed time and survive restarts, expired ones are
+ * removed when read and by a sweep every few hundred stores.
+ * @version $Id$
+ */
+public class HttpResponseCache {
+
+	private static final Logger logger = Logger.getLogger(HttpResponseCache.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int VERSION = 1;
+
+	private static final int PURGE_INTERVAL = 256;
+
+	private final File _dir;
+
+	private final long _ttl;
+
+	private final AtomicInteger _stores = new AtomicInteger();
+
+	/**
+	 * @param ttl time to live of the entries in milliseconds.
+	 */
+	public HttpResponseCache(File dir, long ttl) {
+		_dir = dir;
+		_ttl = ttl;
+		if (!_dir.isDirectory() && !_dir.mkdirs()) {
+			logger.warn("Unable to create the HTTP cache directory " + _dir.getPath());
+		}
+		purge();
+	}
+
+	/**
+	 * @return the cached body for the url or null if it isn't cached or has expired.
+	 */
+	public String get(String url) {
+		File file = getFile(url);
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != VERSION || !url.equals(in.readUTF())) {
+				// old format or another url with the same hash
+				return null;
+			}
+			if (in.readLong() < System.currentTimeMillis()) {
+				in.close();
+				in = null;
+				file.delete();
+				return null;
+			}
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return new String(body, UTF8);
+		} catch (FileNotFoundException e) {
+			return null;
+		} catch (IOException e) {
+			logger.warn("Unable to read cached response for " + url + ", dropping it", e);
+			file.delete();
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+	}
+
+	public void put(String url, String body) {
+		File file = getFile(url);
+		File tmp = new File(_dir, file.getName() + ".tmp" + Thread.currentThread().getId());
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(VERSION);
+			out.writeUTF(url);
+			out.writeLong(System.currentTimeMillis() + _ttl);
+			byte[] bytes = body.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.close();
+			out = null;
+			// renameTo() does not replace existing files everywhere
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				logger.debug("Unable to store cached response for " + url);
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to store cached response for " + url, e);
+			tmp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// already closed
+				}
+				tmp.delete();
+			}
+		}
+		if (_stores.incrementAndGet() % PURGE_INTERVAL == 0) {
+			purge();
+		}
+	}
+
+	/**
+	 * Removes the expired entries.
+	 * @return the number of entries removed.
+	 */
+	public int purge() {
+		File[] files = _dir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		int removed = 0;
+		for (File file : files) {
+			// entries are written by put() within the ttl of their mtime
+			if (file.lastModified() + _ttl < now && file.delete()) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	public void clear() {
+		File[] files = _dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	private File getFile(String url) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(UTF8));
+			StringBuilder name = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				name.append(Character.forDigit((b >> 4) & 0xF, 16));
+				name.append(Character.forDigit(b & 0xF, 16));
+			}
+			return new File(_dir, name.toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 is required by every JVM", e);
+		}
+	}
+}
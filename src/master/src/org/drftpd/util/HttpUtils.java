@@ -18,16 +18,7 @@
 package org.drftpd.util;
 
 import org.apache.commons.lang3.StringEscapeUtils;
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.config.CookieSpecs;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
 import java.text.Normalizer;
@@ -38,38 +29,12 @@ import java.text.Normalizer;
 public class HttpUtils {
 	public static final String _userAgent = "Mozilla/5.0 (Windows NT 10.0; WOW64; rv:40.0) Gecko/20100101 Firefox/40.0";
 
+	/**
+	 * Fetches the url through the shared {@link HttpClientService}, so the
+	 * response may come from its cache.
+	 */
 	public static String retrieveHttpAsString(String url) throws HttpException, IOException {
-		RequestConfig requestConfig = RequestConfig.custom()
-				.setSocketTimeout(5000)
-				.setConnectTimeout(5000)
-				.setConnectionRequestTimeout(5000)
-				.setCookieSpec(CookieSpecs.IGNORE_COOKIES)
-				.build();
-		CloseableHttpClient httpclient = HttpClients.custom()
-				.setDefaultRequestConfig(requestConfig)
-				.setUserAgent(_userAgent)
-				.build();
-		HttpGet httpGet = new HttpGet(url);
-		httpGet.setConfig(requestConfig);
-		CloseableHttpResponse response = null;
-		try {
-			response = httpclient.execute(httpGet);
-			final int statusCode = response.getStatusLine().getStatusCode();
-			if (statusCode != HttpStatus.SC_OK) {
-				throw new HttpException("Error " + statusCode + " for URL " + url);
-			}
-			HttpEntity entity = response.getEntity();
-			String data = EntityUtils.toString(entity);
-			EntityUtils.consume(entity);
-			return data;
-		} catch (IOException e) {
-			throw new IOException("Error for URL " + url, e);
-		} finally {
-			if (response != null) {
-				response.close();
-			}
-			httpclient.close();
-		}
+		return HttpClientService.getHttpClientService().retrieve(url);
 	}
 
 	public static String htmlToString(String input) {
@@ -18,6 +18,7 @@
 package org.drftpd.util;
 
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.tanesha.replacer.FormatterException;
@@ -26,12 +27,20 @@ import org.tanesha.replacer.ReplacerFormat;
 import org.tanesha.replacer.SimplePrintf;
 
 /**
+ * Formats messages from resource bundles.<br>
+ * Templates are parsed once per bundle and key, {@link ReplacerFormat} is
+ * immutable once parsed so the cached formats are shared by all threads.
+ * Bundles are compared by identity, reloaded bundles are new objects and
+ * get their own formats, {@link #clearFormats()} drops the old ones.
  * @author mog
  * @version $Id$
  */
 public class ReplacerUtils {
 	
 	private static final Logger logger = Logger.getLogger(ReplacerUtils.class);
+
+	private static final ConcurrentHashMap<ResourceBundle, ConcurrentHashMap<String, ReplacerFormat>> _formats =
+		new ConcurrentHashMap<ResourceBundle, ConcurrentHashMap<String, ReplacerFormat>>();
 	
 	private ReplacerUtils() {
 		super();
@@ -39,8 +48,28 @@ public class ReplacerUtils {
 	
 	public static ReplacerFormat finalFormat(ResourceBundle bundle, String key)
 			throws FormatterException {
+		ConcurrentHashMap<String, ReplacerFormat> formats = _formats.get(bundle);
+		if (formats == null) {
+			formats = new ConcurrentHashMap<String, ReplacerFormat>();
+			ConcurrentHashMap<String, ReplacerFormat> existing = _formats.putIfAbsent(bundle, formats);
+			if (existing != null) {
+				formats = existing;
+			}
+		}
+		ReplacerFormat format = formats.get(key);
+		if (format == null) {
+			// parsing twice on a race is harmless, both results are equal
+			format = ReplacerFormat.createFormat(bundle.getString(key));
+			formats.put(key, format);
+		}
+		return format;
+	}
 
-		return ReplacerFormat.createFormat(bundle.getString(key));
+	/**
+	 * Drops every cached format, called when themes and bundles are reloaded.
+	 */
+	public static void clearFormats() {
+		_formats.clear();
 	}
 
 	public static String jprintf(String key, ReplacerEnvironment env,
@@ -0,0 +1,181 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PropertyResourceBundle;
+import java.util.ResourceBundle;
+
+import junit.framework.TestCase;
+
+import org.tanesha.replacer.FormatterException;
+import org.tanesha.replacer.ReplacerEnvironment;
+import org.tanesha.replacer.ReplacerFormat;
+import org.tanesha.replacer.SimplePrintf;
+
+/**
+ * Renders every message of the .properties bundles shipped in the source
+ * tree, parsing the template on each call as jprintf() used to and through
+ * the cached formats of {@link ReplacerUtils}, and checks both give the same text.<br>
+ * Run it from the top of the source tree, the number of rounds can be
+ * changed by simple code changes.
+ */
+public class ReplacerUtilsStressTest extends TestCase {
+
+	private static final int ROUNDS = 200;
+
+	private List<ResourceBundle> _bundles;
+
+	private int _messages;
+
+	private ReplacerEnvironment _env;
+
+	public ReplacerUtilsStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		ReplacerUtils.clearFormats();
+		_bundles = new ArrayList<ResourceBundle>();
+		File src = new File("src");
+		if (src.isDirectory()) {
+			loadBundles(src);
+		}
+		_env = new ReplacerEnvironment();
+		_env.add("user", "drftpd");
+		_env.add("group", "drftpd");
+		_env.add("path", "/Releases/Some.Release-GRP");
+		_env.add("bytes", "1.2GB");
+		_env.add("files", "42");
+		_env.add("speed", "12.3MB/s");
+		_env.add("percent", "75%");
+		_env.add("position", "1");
+	}
+
+	protected void tearDown() {
+		ReplacerUtils.clearFormats();
+	}
+
+	public void testCachedFormats() throws FormatterException {
+		ResourceBundle bundle = bundle("a=${user}@${group}\nb=plain\n");
+		ReplacerFormat format = ReplacerUtils.finalFormat(bundle, "a");
+		assertSame(format, ReplacerUtils.finalFormat(bundle, "a"));
+		assertEquals("drftpd@drftpd", ReplacerUtils.jprintf("a", _env, bundle));
+		assertEquals("plain", ReplacerUtils.jprintf("b", _env, bundle));
+		// missing keys are not cached and still come back as the key
+		assertEquals("missing", ReplacerUtils.jprintf("missing", _env, bundle));
+
+		// a reloaded bundle is a new object and must not see the old templates
+		ResourceBundle reloaded = bundle("a=${group}\n");
+		assertEquals("drftpd", ReplacerUtils.jprintf("a", _env, reloaded));
+		assertEquals("drftpd@drftpd", ReplacerUtils.jprintf("a", _env, bundle));
+
+		ReplacerUtils.clearFormats();
+		assertNotSame(format, ReplacerUtils.finalFormat(bundle, "a"));
+	}
+
+	public void testThroughput() throws FormatterException {
+		if (_bundles.isEmpty()) {
+			System.out.println("No bundles found under " + new File("src").getAbsolutePath() + ", skipping");
+			return;
+		}
+		List<String> parsed = render(false, ROUNDS);
+		assertEquals(parsed, render(true, ROUNDS));
+
+		long start = System.nanoTime();
+		render(false, ROUNDS);
+		long parsing = System.nanoTime() - start;
+		start = System.nanoTime();
+		render(true, ROUNDS);
+		long cached = System.nanoTime() - start;
+
+		long total = (long) _messages * ROUNDS;
+		System.out.println("replacer: " + _bundles.size() + " bundles, " + _messages + " messages, "
+				+ rate(total, parsing) + " msgs/s parsing every time, " + rate(total, cached) + " msgs/s cached ("
+				+ String.format("%.1f", parsing / (double) Math.max(cached, 1)) + "x)");
+	}
+
+	private List<String> render(boolean cached, int rounds) throws FormatterException {
+		List<String> output = new ArrayList<String>();
+		for (int i = 0; i < rounds; i++) {
+			output.clear();
+			for (ResourceBundle bundle : _bundles) {
+				for (String key : Collections.list(bundle.getKeys())) {
+					ReplacerFormat format;
+					if (cached) {
+						format = ReplacerUtils.finalFormat(bundle, key);
+					} else {
+						format = ReplacerFormat.createFormat(bundle.getString(key));
+					}
+					output.add(SimplePrintf.jprintf(format, _env));
+				}
+			}
+		}
+		return output;
+	}
+
+	private void loadBundles(File dir) throws IOException {
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				loadBundles(file);
+			} else if (file.getName().endsWith(".properties")) {
+				ResourceBundle bundle = load(file);
+				if (bundle != null) {
+					_bundles.add(bundle);
+				}
+			}
+		}
+	}
+
+	private ResourceBundle load(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ResourceBundle bundle = new PropertyResourceBundle(in);
+			for (String key : Collections.list(bundle.getKeys())) {
+				try {
+					ReplacerFormat.createFormat(bundle.getString(key));
+				} catch (FormatterException e) {
+					// not a message bundle, ie. boot or ant properties
+					return null;
+				}
+			}
+			_messages += Collections.list(bundle.getKeys()).size();
+			return bundle;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ResourceBundle bundle(String properties) {
+		try {
+			return new PropertyResourceBundle(new ByteArrayInputStream(properties.getBytes("ISO-8859-1")));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long rate(long count, long nanos) {
+		return count * 1000000000L / Math.max(nanos, 1);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces requests to <code>rate</code> per second on average, allowing
+ * bursts of up to <code>burst</code> requests.<br>
+ * Callers reserve their slot under the lock and sleep outside of it, so
+ * waiting callers are served in the order they asked.
+ * @version $Id$
+ */
+public class RequestRateLimiter {
+
+	private final double _rate;
+
+	private final double _burst;
+
+	private double _tokens;
+
+	private long _lastRefill;
+
+	/**
+	 * @param rate requests allowed per second, 0 or less means unlimited.
+	 * @param burst requests that may be made back to back.
+	 */
+	public RequestRateLimiter(double rate, int burst) {
+		_rate = rate;
+		_burst = Math.max(1, burst);
+		_tokens = _burst;
+		_lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Waits until the next request is allowed.
+	 */
+	public void acquire() throws InterruptedException {
+		long wait = reserve();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Reserves the next request slot, slots keep being handed out to callers already waiting.
+	 * @return the number of nanoseconds to wait before making the request.
+	 */
+	public synchronized long reserve() {
+		if (_rate <= 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		_tokens = Math.min(_burst, _tokens + (now - _lastRefill) * _rate / 1000000000D);
+		_lastRefill = now;
+		_tokens -= 1;
+		if (_tokens >= 0) {
+			return 0;
+		}
+		return (long) (-_tokens * 1000000000D / _rate);
+	}
+
+	public double getRate() {
+		return _rate;
+	}
+}
@@ -30,6 +30,7 @@ import java.util.Set;
 import org.drftpd.GlobalContext;
 import org.drftpd.exceptions.FileExistsException;
 import org.drftpd.io.PermissionDeniedException;
+import org.drftpd.master.ChecksumQueue;
 import org.drftpd.master.RemoteSlave;
 import org.drftpd.slave.LightRemoteInode;
 import org.drftpd.usermanager.User;
@@ -471,9 +472,10 @@ public class DirectoryHandle extends InodeHandle implements
 		}
 		FileHandle newFile = createFileUnchecked(name, "drftpd", "drftpd",
 				rslave, lrf.lastModified(), true, lrf.length());
-		//newFile.setCheckSum(rslave.getCheckSumForPath(newFile.getPath()));
-		// TODO Implement a Checksum queue on remerge
 		newFile.setCheckSum(0);
+		if (lrf.length() != 0L) {
+			ChecksumQueue.getChecksumQueue().add(newFile, rslave);
+		}
 	}
 
     public void collisionHandler(LightRemoteInode lrf, RemoteSlave rslave) {
@@ -151,6 +151,14 @@ public class FileHandle extends InodeHandle implements FileHandleInterface {
 		return checksum;
 	}
 
+	/**
+	 * @return the CRC32 stored for the file, 0 if unknown, without asking any slave.
+	 * @throws FileNotFoundException if there's no such file.
+	 */
+	public long getCheckSumCached() throws FileNotFoundException {
+		return getInode().getChecksum();
+	}
+
 	/**
 	 * @return the CRC32 of the file ignoring the cached value.
 	 * @throws FileNotFoundException if there's no such file.
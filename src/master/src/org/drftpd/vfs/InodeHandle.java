@@ -17,6 +17,7 @@
 package org.drftpd.vfs;
 
 import java.io.FileNotFoundException;
+import java.lang.ref.WeakReference;
 import java.util.Map;
 import java.util.Iterator;
 import java.util.Set;
@@ -42,6 +43,8 @@ import org.drftpd.vfs.perms.VFSPermissions;
 public abstract class InodeHandle implements InodeHandleInterface, Comparable<InodeHandle> {
 	protected String _path = null;
 	protected static final Logger logger = Logger.getLogger(InodeHandle.class.getName());
+
+	private volatile ResolvedInode _resolved = null;
 	
 	/**
 	 * Creates an InodleHandle for the given path.
@@ -140,7 +143,25 @@ public abstract class InodeHandle implements InodeHandleInterface, Comparable<In
 	 * @throws FileNotFoundException if the inode does not exist.
 	 */
 	protected VirtualFileSystemInode getInode() throws FileNotFoundException {
-		return VirtualFileSystem.getVirtualFileSystem().getInodeByPath(_path);
+		long epoch = VirtualFileSystem.getEpoch();
+		ResolvedInode resolved = _resolved;
+		if (resolved != null && resolved._epoch == epoch) {
+			VirtualFileSystemInode inode = resolved.get();
+			if (inode != null) {
+				return inode;
+			}
+		}
+		VirtualFileSystemInode inode = VirtualFileSystem.getVirtualFileSystem().getInodeByPath(_path);
+		setResolvedInode(inode, epoch);
+		return inode;
+	}
+
+	/**
+	 * Remembers the inode this handle points to, until the VFS epoch changes.
+	 * @param epoch the epoch read before the inode was looked up.
+	 */
+	protected void setResolvedInode(VirtualFileSystemInode inode, long epoch) {
+		_resolved = new ResolvedInode(inode, epoch);
 	}
 
 	/**
@@ -562,4 +583,17 @@ public abstract class InodeHandle implements InodeHandleInterface, Comparable<In
 	public void requestRefresh(boolean sync) throws FileNotFoundException {
 		getInode().refresh(sync);
 	}
+
+	/**
+	 * Weakly held so handles kept around don't keep unloaded inodes in memory,
+	 * a collected inode is simply looked up again.
+	 */
+	private static final class ResolvedInode extends WeakReference<VirtualFileSystemInode> {
+		private final long _epoch;
+
+		private ResolvedInode(VirtualFileSystemInode inode, long epoch) {
+			super(inode);
+			_epoch = epoch;
+		}
+	}
 }
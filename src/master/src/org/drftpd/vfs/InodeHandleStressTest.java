@@ -0,0 +1,140 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.vfs;
+
+import java.io.FileNotFoundException;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.drftpd.exceptions.FileExistsException;
+
+/**
+ * Compares looking at every entry of a large directory through handles that
+ * walk the path on each call and through handles holding the resolved inode,
+ * and checks that held inodes are dropped on delete and rename.<br>
+ * The directory size can be changed by simple code changes.
+ */
+public class InodeHandleStressTest extends TestCase {
+
+	private static final int FILES = 500;
+
+	private static final int LISTINGS = 200;
+
+	private VirtualFileSystem _vfs;
+
+	private VirtualFileSystemDirectory _dir;
+
+	public InodeHandleStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws FileNotFoundException {
+		_vfs = VirtualFileSystem.getVirtualFileSystem();
+		try {
+			_vfs.getRoot().createDirectory("HandleStress", "drftpd", "drftpd");
+		} catch (FileExistsException e) {
+		}
+		_dir = (VirtualFileSystemDirectory) _vfs.getInodeByPath("/HandleStress");
+		_dir.createDirectoryRaw("Release", "drftpd", "drftpd");
+		VirtualFileSystemDirectory release = (VirtualFileSystemDirectory) _dir.getInodeByName("Release");
+		for (int i = 0; i < FILES; i++) {
+			try {
+				release.createFile("file" + i + ".rar", "drftpd", "drftpd", "testSlave");
+			} catch (FileExistsException e) {
+			}
+		}
+	}
+
+	protected void tearDown() throws FileNotFoundException {
+		_vfs.getRoot().getInodeByName("HandleStress").delete();
+	}
+
+	public void testInvalidation() throws FileNotFoundException, FileExistsException {
+		FileHandle file = new FileHandle("/HandleStress/Release/file0.rar");
+		assertTrue(file.exists());
+		assertEquals("drftpd", file.getUsername());
+
+		new FileHandle("/HandleStress/Release/file0.rar").getInode().delete();
+		assertFalse(file.exists());
+
+		// a held handle follows the path, not the inode it saw first
+		FileHandle recreated = new FileHandle("/HandleStress/Release/file1.rar");
+		assertEquals("drftpd", recreated.getUsername());
+		new DirectoryHandle("/HandleStress/Release").getInode().delete();
+		assertFalse(recreated.exists());
+		_dir.createDirectoryRaw("Release", "drftpd", "drftpd");
+		((VirtualFileSystemDirectory) _dir.getInodeByName("Release")).createFile("file1.rar", "other", "drftpd", "testSlave");
+		assertEquals("other", recreated.getUsername());
+	}
+
+	public void testListingThroughput() throws FileNotFoundException {
+		DirectoryHandle dir = new DirectoryHandle("/HandleStress/Release");
+		// warm up both paths
+		listWalking(dir);
+		listResolved(dir);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < LISTINGS; i++) {
+			listWalking(dir);
+		}
+		long walking = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < LISTINGS; i++) {
+			listResolved(dir);
+		}
+		long resolved = System.nanoTime() - start;
+
+		System.out.println("walking: " + rate(walking) + " listings/s, resolved: " + rate(resolved)
+				+ " listings/s of " + FILES + " entries");
+	}
+
+	/**
+	 * What a LIST used to cost, every getter walked the whole path.
+	 */
+	private long listWalking(DirectoryHandle dir) throws FileNotFoundException {
+		long total = 0;
+		for (InodeHandle handle : dir.getInodeHandlesUnchecked()) {
+			String path = handle.getPath();
+			total += new FileHandle(path).getSize();
+			total += new FileHandle(path).lastModified();
+			total += new FileHandle(path).getUsername().length();
+			total += new FileHandle(path).getGroup().length();
+			total += new FileHandle(path).getXfertime();
+		}
+		return total;
+	}
+
+	private long listResolved(DirectoryHandle dir) throws FileNotFoundException {
+		long total = 0;
+		Set<InodeHandle> handles = dir.getInodeHandlesUnchecked();
+		for (InodeHandle handle : handles) {
+			FileHandle file = (FileHandle) handle;
+			total += file.getSize();
+			total += file.lastModified();
+			total += file.getUsername().length();
+			total += file.getGroup().length();
+			total += file.getXfertime();
+		}
+		return total;
+	}
+
+	private long rate(long nanos) {
+		return LISTINGS * 1000000000L / Math.max(nanos, 1);
+	}
+}
@@ -0,0 +1,785 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.drftpd.GlobalContext;
+import org.drftpd.io.PermissionDeniedException;
+
+/**
+ * Binary, append-only VFS storage.<br>
+ * Every change is appended to a write-ahead journal as a small checksummed
+ * record, the location of the latest record of each inode is kept in memory.
+ * The live records are periodically compacted into a snapshot file, after
+ * which the journal starts over empty.<br>
+ * <br>
+ * Both files start with a header holding the compaction generation, a journal
+ * whose generation differs from the snapshot's was already folded into it.<br>
+ * Record layout: <code>[int length][byte op][body][int crc32(op + body)]</code>
+ */
+public class JournalVirtualFileSystemStore implements VirtualFileSystemStore {
+
+	private static final Logger logger = Logger.getLogger(JournalVirtualFileSystemStore.class);
+
+	public static final String snapshotName = "vfs.snapshot";
+
+	public static final String journalName = "vfs.journal";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x44465653;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int HEADER_SIZE = 16;
+
+	private static final byte OP_PUT = 1;
+
+	private static final byte OP_DELETE = 2;
+
+	private static final byte OP_DISCARD = 3;
+
+	private static final byte OP_RENAME = 4;
+
+	private static final String[] EMPTY = new String[0];
+
+	private File _directory;
+
+	private VirtualFileSystemInodeCodec _codec = new VirtualFileSystemInodeCodec();
+
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Held for a whole compaction, only one runs at a time.
+	 */
+	private final Object _compactLock = new Object();
+
+	/**
+	 * path -> location of the latest PUT record, see {@link #location(long, boolean)}
+	 */
+	private HashMap<String, Long> _locations = new HashMap<String, Long>();
+
+	/**
+	 * directory path -> names of its children
+	 */
+	private HashMap<String, TreeSet<String>> _children = new HashMap<String, TreeSet<String>>();
+
+	private FileChannel _snapshot;
+
+	private FileChannel _journal;
+
+	private long _journalSize;
+
+	private long _generation;
+
+	private long _records;
+
+	private volatile boolean _dirty;
+
+	private boolean _created;
+
+	private TimerTask _maintenanceTask;
+
+	public JournalVirtualFileSystemStore(String directory) throws IOException {
+		_directory = new File(directory);
+		_directory.mkdirs();
+		File snapshotFile = new File(_directory, snapshotName);
+		File journalFile = new File(_directory, journalName);
+		_created = !snapshotFile.exists() && !journalFile.exists();
+		long start = System.currentTimeMillis();
+		_snapshot = openChannel(snapshotFile, 0);
+		_generation = readGeneration(_snapshot);
+		replay(snapshotFile, _snapshot, false);
+		_journal = openChannel(journalFile, _generation);
+		File tmpJournalFile = new File(_directory, journalName + ".tmp");
+		if (readGeneration(_journal) != _generation && tmpJournalFile.exists()) {
+			FileChannel tmpJournal = openChannel(tmpJournalFile, -1);
+			boolean current = readGeneration(tmpJournal) == _generation;
+			tmpJournal.close();
+			if (current) {
+				// the last compaction didn't get to replace the journal
+				logger.info("Replacing " + journalFile.getPath() + " with " + tmpJournalFile.getPath());
+				_journal.close();
+				replace(tmpJournalFile, journalFile);
+				_journal = openChannel(journalFile, _generation);
+			}
+		}
+		if (readGeneration(_journal) != _generation) {
+			// interrupted right after a compaction, the snapshot already has it all
+			logger.info("Discarding " + journalFile.getPath() + ", it is older than the snapshot");
+			resetJournal(_generation);
+		}
+		_journalSize = replay(journalFile, _journal, true);
+		getOrCreateChildren(VirtualFileSystem.separator);
+		logger.info("Loaded " + _locations.size() + " inodes from " + _directory.getPath()
+				+ " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * @return true if the directory holds a snapshot or a journal.
+	 */
+	public static boolean exists(String directory) {
+		return new File(directory, snapshotName).exists() || new File(directory, journalName).exists();
+	}
+
+	/**
+	 * @return true if neither a snapshot nor a journal existed when this store was opened.
+	 */
+	public boolean isNew() {
+		return _created;
+	}
+
+	/**
+	 * Schedules the periodic journal sync and the compaction check on the GlobalContext timer.
+	 * @param syncInterval milliseconds between forcing the journal to disk.
+	 * @param compactThreshold percentage of obsolete records which triggers a compaction.
+	 */
+	public void startMaintenance(long syncInterval, final int compactThreshold) {
+		_maintenanceTask = new TimerTask() {
+			public void run() {
+				try {
+					sync();
+					if (getObsoletePercentage() >= compactThreshold) {
+						compact();
+					}
+				} catch (IOException e) {
+					logger.error("Error during VFS journal maintenance", e);
+				}
+			}
+		};
+		GlobalContext.getGlobalContext().getTimer().schedule(_maintenanceTask, syncInterval, syncInterval);
+	}
+
+	/**
+	 * @return the number of inodes currently stored.
+	 */
+	public int getInodeCount() {
+		_lock.readLock().lock();
+		try {
+			return _locations.size();
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the percentage of records on disk which have been superseded.
+	 */
+	public int getObsoletePercentage() {
+		_lock.readLock().lock();
+		try {
+			if (_records < 1000) {
+				// not worth rewriting
+				return 0;
+			}
+			return (int) (100 - (_locations.size() * 100 / _records));
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	public VirtualFileSystemInode readInode(String path) throws IOException {
+		byte[] data;
+		_lock.readLock().lock();
+		try {
+			Long location = _locations.get(path);
+			if (location == null) {
+				throw new FileNotFoundException(path + " is not stored");
+			}
+			data = readPutRecord(location).data;
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _codec.decode(data);
+	}
+
+	public String[] getChildNames(String path) {
+		_lock.readLock().lock();
+		try {
+			TreeSet<String> children = _children.get(path);
+			if (children == null) {
+				return EMPTY;
+			}
+			return children.toArray(new String[children.size()]);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	public boolean isDirectory(String path) {
+		_lock.readLock().lock();
+		try {
+			return _children.containsKey(path);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	public void writeInode(VirtualFileSystemInode inode) throws IOException {
+		putInode(inode.getPath(), inode.isDirectory(), _codec.encode(inode));
+	}
+
+	/**
+	 * Stores an already encoded inode, used when importing from another store.
+	 */
+	protected void putInode(String path, boolean isDirectory, byte[] data) throws IOException {
+		byte[] record = createPutRecord(path, isDirectory, data);
+		_lock.writeLock().lock();
+		try {
+			long offset = append(record);
+			applyPut(path, isDirectory, location(offset, true));
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	public void deleteInode(String path) {
+		_lock.writeLock().lock();
+		try {
+			append(createPathRecord(OP_DELETE, path, null));
+			applyDelete(path);
+		} catch (IOException e) {
+			logger.error("Unable to journal delete of " + path, e);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	public boolean discardInode(String path) {
+		_lock.writeLock().lock();
+		try {
+			if (!_locations.containsKey(path)) {
+				return false;
+			}
+			append(createPathRecord(OP_DISCARD, path, null));
+			_locations.remove(path);
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to journal discard of " + path, e);
+			return false;
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	public void renameInode(String source, String destination)
+			throws FileNotFoundException, PermissionDeniedException {
+		_lock.writeLock().lock();
+		try {
+			if (!_locations.containsKey(source) && !_children.containsKey(source)) {
+				throw new FileNotFoundException(source + " cannot be found");
+			}
+			append(createPathRecord(OP_RENAME, source, destination));
+			applyRename(source, destination);
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new PermissionDeniedException("Cannot rename " + source
+					+ " to " + destination + ": " + e.getMessage());
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forces any pending journal writes to disk.
+	 */
+	public void sync() throws IOException {
+		if (!_dirty) {
+			return;
+		}
+		_lock.readLock().lock();
+		try {
+			_dirty = false;
+			_journal.force(false);
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites all live records into a new snapshot and empties the journal.<br>
+	 * The rewrite works from a copy of the index taken at a journal mark, so
+	 * commits go on meanwhile, the write lock is only held to carry the records
+	 * appended since the mark over into the new journal and swap the files.
+	 */
+	public void compact() throws IOException {
+		long start = System.currentTimeMillis();
+		synchronized (_compactLock) {
+			HashMap<String, Long> marked;
+			long mark;
+			long markRecords;
+			_lock.readLock().lock();
+			try {
+				marked = new HashMap<String, Long>(_locations);
+				mark = _journalSize;
+				markRecords = _records;
+			} finally {
+				_lock.readLock().unlock();
+			}
+
+			long generation = _generation + 1;
+			File tmpSnapshotFile = new File(_directory, snapshotName + ".tmp");
+			File tmpJournalFile = new File(_directory, journalName + ".tmp");
+			tmpSnapshotFile.delete();
+			tmpJournalFile.delete();
+			// old location -> location in the new snapshot
+			HashMap<Long, Long> moved = new HashMap<Long, Long>(marked.size() * 2);
+			FileChannel tmp = openChannel(tmpSnapshotFile, generation);
+			try {
+				List<String> paths = new ArrayList<String>(marked.keySet());
+				// parents are written before their children, this keeps related records together
+				Collections.sort(paths);
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024 * 1024);
+				long offset = HEADER_SIZE;
+				for (String path : paths) {
+					// records before the mark are never rewritten, reading them needs no lock
+					Long location = marked.get(path);
+					PutRecord put = readPutRecord(location);
+					byte[] record = createPutRecord(path, put.isDirectory, put.data);
+					moved.put(location, location(offset + buffer.size(), false));
+					buffer.write(record);
+					if (buffer.size() > 512 * 1024) {
+						offset += writeFully(tmp, buffer.toByteArray(), offset);
+						buffer.reset();
+					}
+				}
+				writeFully(tmp, buffer.toByteArray(), offset);
+				tmp.force(true);
+			} finally {
+				tmp.close();
+			}
+
+			_lock.writeLock().lock();
+			try {
+				swap(generation, mark, _records - markRecords + moved.size(), moved,
+						tmpSnapshotFile, tmpJournalFile);
+			} finally {
+				_lock.writeLock().unlock();
+			}
+		}
+		logger.info("Compacted VFS journal, " + getInodeCount() + " inodes in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Moves the journal records written after the mark into a new journal and
+	 * replaces the snapshot and the journal, must be called with the write lock held.<br>
+	 * If the snapshot can't be replaced the old files stay in use, if only the
+	 * journal can't be replaced the new journal is used under its temporary
+	 * name, the constructor picks it up from there.
+	 */
+	private void swap(long generation, long mark, long records, HashMap<Long, Long> moved,
+			File tmpSnapshotFile, File tmpJournalFile) throws IOException {
+		long tailSize = _journalSize - mark;
+		FileChannel tmpJournal = openChannel(tmpJournalFile, generation);
+		try {
+			ByteBuffer tail = ByteBuffer.allocate((int) tailSize);
+			readFully(_journal, tail, mark);
+			while (tail.hasRemaining()) {
+				tmpJournal.write(tail, HEADER_SIZE + tail.position());
+			}
+			tmpJournal.force(true);
+		} finally {
+			tmpJournal.close();
+		}
+
+		HashMap<String, Long> locations = new HashMap<String, Long>(_locations.size() * 2);
+		for (Map.Entry<String, Long> entry : _locations.entrySet()) {
+			long location = entry.getValue();
+			if ((location & 1L) == 1L && (location >>> 1) >= mark) {
+				locations.put(entry.getKey(), location((location >>> 1) - mark + HEADER_SIZE, true));
+			} else {
+				// renamed since the mark keeps its old record
+				locations.put(entry.getKey(), moved.get(location));
+			}
+		}
+
+		File snapshotFile = new File(_directory, snapshotName);
+		File journalFile = new File(_directory, journalName);
+		try {
+			replace(tmpSnapshotFile, snapshotFile);
+		} catch (IOException e) {
+			tmpSnapshotFile.delete();
+			tmpJournalFile.delete();
+			throw new IOException("Unable to replace " + snapshotFile.getPath()
+					+ ", keeping the current snapshot and journal", e);
+		}
+		FileChannel snapshot = _snapshot;
+		FileChannel journal = _journal;
+		_snapshot = openChannel(snapshotFile, generation);
+		try {
+			replace(tmpJournalFile, journalFile);
+		} catch (IOException e) {
+			logger.error("Unable to replace " + journalFile.getPath() + ", journaling to "
+					+ tmpJournalFile.getPath() + " instead", e);
+			journalFile = tmpJournalFile;
+		}
+		_journal = openChannel(journalFile, generation);
+		snapshot.close();
+		journal.close();
+		_generation = generation;
+		_locations = locations;
+		_journalSize = HEADER_SIZE + tailSize;
+		_records = records;
+		_dirty = false;
+	}
+
+	private static void replace(File source, File target) throws IOException {
+		Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public void close() {
+		if (_maintenanceTask != null) {
+			_maintenanceTask.cancel();
+		}
+		synchronized (_compactLock) {
+			_lock.writeLock().lock();
+			try {
+				_journal.force(true);
+				_journal.close();
+				_snapshot.close();
+			} catch (IOException e) {
+				logger.error("Error closing VFS journal", e);
+			} finally {
+				_lock.writeLock().unlock();
+			}
+		}
+	}
+
+	private static long location(long offset, boolean inJournal) {
+		return (offset << 1) | (inJournal ? 1L : 0L);
+	}
+
+	private FileChannel channelFor(long location) {
+		return (location & 1L) == 1L ? _journal : _snapshot;
+	}
+
+	private FileChannel openChannel(File file, long generation) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		if (channel.size() < HEADER_SIZE) {
+			channel.truncate(0);
+			writeHeader(channel, generation);
+		}
+		ByteBuffer header = ByteBuffer.allocate(8);
+		readFully(channel, header, 0);
+		if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+			channel.close();
+			throw new IOException(file.getPath() + " is not a VFS journal of a supported version");
+		}
+		return channel;
+	}
+
+	private static void writeHeader(FileChannel channel, long generation) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(generation).flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+		channel.force(true);
+	}
+
+	private static long readGeneration(FileChannel channel) throws IOException {
+		ByteBuffer generation = ByteBuffer.allocate(8);
+		readFully(channel, generation, 8);
+		return generation.getLong();
+	}
+
+	/**
+	 * Empties the journal, must be called with the write lock held.
+	 */
+	private void resetJournal(long generation) throws IOException {
+		_journal.truncate(HEADER_SIZE);
+		writeHeader(_journal, generation);
+		_journalSize = HEADER_SIZE;
+	}
+
+	/**
+	 * Appends a record to the journal, must be called with the write lock held.
+	 * @return the offset of the record.
+	 */
+	private long append(byte[] record) throws IOException {
+		long offset = _journalSize;
+		_journalSize += writeFully(_journal, record, offset);
+		_records++;
+		_dirty = true;
+		return offset;
+	}
+
+	private static int writeFully(FileChannel channel, byte[] data, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		return data.length;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	private static class PutRecord {
+		private boolean isDirectory;
+		private byte[] data;
+	}
+
+	private PutRecord readPutRecord(long location) throws IOException {
+		FileChannel channel = channelFor(location);
+		long offset = location >>> 1;
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		readFully(channel, lengthBuffer, offset);
+		int length = lengthBuffer.getInt();
+		ByteBuffer recordBuffer = ByteBuffer.allocate(length + 4);
+		readFully(channel, recordBuffer, offset + 4);
+		byte[] body = new byte[length];
+		recordBuffer.get(body);
+		if (!checkCRC(body, recordBuffer.getInt()) || body[0] != OP_PUT) {
+			throw new IOException("Corrupted record at offset " + offset);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 1, length - 1));
+		PutRecord put = new PutRecord();
+		put.isDirectory = in.readBoolean();
+		readString(in);
+		put.data = new byte[in.readInt()];
+		in.readFully(put.data);
+		return put;
+	}
+
+	private static boolean checkCRC(byte[] body, int expected) {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		return (int) crc.getValue() == expected;
+	}
+
+	private static byte[] createPutRecord(String path, boolean isDirectory, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + path.length() + 16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(OP_PUT);
+		out.writeBoolean(isDirectory);
+		writeString(out, path);
+		out.writeInt(data.length);
+		out.write(data);
+		return frame(bytes.toByteArray());
+	}
+
+	private static byte[] createPathRecord(byte op, String path, String destination) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(op);
+		writeString(out, path);
+		if (destination != null) {
+			writeString(out, destination);
+		}
+		return frame(bytes.toByteArray());
+	}
+
+	private static byte[] frame(byte[] body) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(body.length);
+		out.write(body);
+		out.writeInt((int) crc.getValue());
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Replays every valid record of the file into the in-memory index, a
+	 * damaged tail (ie. after a crash in the middle of a write) is cut off.
+	 * @return the offset right after the last valid record.
+	 */
+	private long replay(File file, FileChannel channel, boolean inJournal) throws IOException {
+		long offset = HEADER_SIZE;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256 * 1024));
+		try {
+			// the header was validated when the channel was opened
+			in.skipBytes(HEADER_SIZE);
+			long size = channel.size();
+			while (offset + 4 <= size) {
+				int length = in.readInt();
+				if (length <= 0 || offset + 4 + length + 4 > size) {
+					break;
+				}
+				byte[] body = new byte[length];
+				in.readFully(body);
+				if (!checkCRC(body, in.readInt())) {
+					break;
+				}
+				apply(body, location(offset, inJournal));
+				offset += 4 + length + 4;
+				_records++;
+			}
+		} catch (EOFException e) {
+			// damaged tail, handled below
+		} finally {
+			in.close();
+		}
+		if (offset < channel.size()) {
+			logger.warn("Discarding " + (channel.size() - offset) + " damaged bytes at the end of "
+					+ file.getPath());
+			channel.truncate(offset);
+			channel.force(true);
+		}
+		return offset;
+	}
+
+	private void apply(byte[] body, long location) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+		switch (body[0]) {
+		case OP_PUT:
+			boolean isDirectory = in.readBoolean();
+			applyPut(readString(in), isDirectory, location);
+			break;
+		case OP_DELETE:
+			applyDelete(readString(in));
+			break;
+		case OP_DISCARD:
+			_locations.remove(readString(in));
+			break;
+		case OP_RENAME:
+			String source = readString(in);
+			applyRename(source, readString(in));
+			break;
+		default:
+			throw new IOException("Unknown journal operation " + body[0]);
+		}
+	}
+
+	private void applyPut(String path, boolean isDirectory, long location) {
+		_locations.put(path, location);
+		if (isDirectory) {
+			getOrCreateChildren(path);
+		}
+		if (!path.equals(VirtualFileSystem.separator)) {
+			getOrCreateChildren(VirtualFileSystem.stripLast(path)).add(VirtualFileSystem.getLast(path));
+		}
+	}
+
+	/**
+	 * Returns the children of a directory, registering the directory (and
+	 * its parents) if it is not known yet, the same way mkdirs() would.
+	 */
+	private TreeSet<String> getOrCreateChildren(String path) {
+		TreeSet<String> children = _children.get(path);
+		if (children == null) {
+			children = new TreeSet<String>();
+			_children.put(path, children);
+			if (!path.equals(VirtualFileSystem.separator)) {
+				getOrCreateChildren(VirtualFileSystem.stripLast(path)).add(VirtualFileSystem.getLast(path));
+			}
+		}
+		return children;
+	}
+
+	private void applyDelete(String path) {
+		removeRecursive(path);
+		if (!path.equals(VirtualFileSystem.separator)) {
+			TreeSet<String> siblings = _children.get(VirtualFileSystem.stripLast(path));
+			if (siblings != null) {
+				siblings.remove(VirtualFileSystem.getLast(path));
+			}
+		}
+	}
+
+	private void removeRecursive(String path) {
+		_locations.remove(path);
+		TreeSet<String> children = _children.remove(path);
+		if (children != null) {
+			for (String child : children) {
+				removeRecursive(childPath(path, child));
+			}
+		}
+	}
+
+	private void applyRename(String source, String destination) {
+		TreeSet<String> siblings = _children.get(VirtualFileSystem.stripLast(source));
+		if (siblings != null) {
+			siblings.remove(VirtualFileSystem.getLast(source));
+		}
+		getOrCreateChildren(VirtualFileSystem.stripLast(destination)).add(VirtualFileSystem.getLast(destination));
+		moveRecursive(source, destination);
+	}
+
+	private void moveRecursive(String source, String destination) {
+		Long location = _locations.remove(source);
+		if (location != null) {
+			_locations.put(destination, location);
+		}
+		TreeSet<String> children = _children.remove(source);
+		if (children != null) {
+			_children.put(destination, children);
+			for (String child : children) {
+				moveRecursive(childPath(source, child), childPath(destination, child));
+			}
+		}
+	}
+
+	private static String childPath(String path, String name) {
+		if (path.equals(VirtualFileSystem.separator)) {
+			return VirtualFileSystem.separator + name;
+		}
+		return path + VirtualFileSystem.separator + name;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
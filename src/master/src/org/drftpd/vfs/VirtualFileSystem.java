@@ -17,23 +17,18 @@
  */
 package org.drftpd.vfs;
 
-import java.beans.XMLDecoder;
-import java.beans.XMLEncoder;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Comparator;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.drftpd.GlobalContext;
+import org.drftpd.PropertyHelper;
 import org.drftpd.io.PermissionDeniedException;
-import org.drftpd.io.SafeFileOutputStream;
-import org.drftpd.util.CommonPluginUtils;
 import org.drftpd.vfs.event.VirtualFileSystemEvent;
 import org.drftpd.vfs.event.VirtualFileSystemInodeCreatedEvent;
 import org.drftpd.vfs.event.VirtualFileSystemInodeDeletedEvent;
@@ -56,24 +51,15 @@ public class VirtualFileSystem {
 		}
 	}
 
-	static class DirInodeFilenameFilter implements FilenameFilter {
-
-		@Override
-		public boolean accept(File dir, String file) {
-			return !file.equals(dirName);
-		}
-		
-	}
-
 	private static VirtualFileSystem _vfs = null;
 
 	public static final String dirName = ".dirProperties";
 
 	public static final String fileSystemPath = "files";
 
-	private static final Logger logger = Logger.getLogger(VirtualFileSystem.class);
+	public static final String journalPath = "vfs";
 
-	private static final DirInodeFilenameFilter dirFilter = new DirInodeFilenameFilter();
+	private static final Logger logger = Logger.getLogger(VirtualFileSystem.class);
 
 	public static final String separator = "/";
 
@@ -119,6 +105,18 @@ public class VirtualFileSystem {
 
 	private VirtualFileSystemRoot _root = null;
 
+	private VirtualFileSystemStore _store;
+
+	private VirtualFileSystemAggregator _aggregator;
+
+	private VirtualFileSystemInodeCache _cache;
+
+	/**
+	 * Bumped whenever an inode leaves a directory or a link changes target,
+	 * handles holding an inode resolved in an older epoch walk their path again.
+	 */
+	private static final AtomicLong _epoch = new AtomicLong();
+
 	/**
 	 * Create a VirtualFileSystem object, creating or not a new directory tree.
 	 * If there's a pre-existing tree, it loads the data, if not, it creates a
@@ -128,7 +126,10 @@ public class VirtualFileSystem {
 	 * This constructor is private due to the Singleton architecture.
 	 */
 	private VirtualFileSystem() {
-		new File(fileSystemPath).mkdirs();
+		invalidateResolvedInodes();
+		_aggregator = createAggregator();
+		_cache = createInodeCache();
+		_store = createStore();
 		try {
 			_root = (VirtualFileSystemRoot) loadInode(separator);
 		} catch (FileNotFoundException e) {
@@ -136,19 +137,116 @@ public class VirtualFileSystem {
 		}
 	}
 
+	/**
+	 * Creates the persistence backend selected by 'vfs.backend' in master.conf,
+	 * the first start with the journal backend migrates an existing XML tree.
+	 */
+	private VirtualFileSystemStore createStore() {
+		Properties cfg = GlobalContext.getConfig() == null ? new Properties()
+				: GlobalContext.getConfig().getMainProperties();
+		String backend = PropertyHelper.getProperty(cfg, "vfs.backend", "xml").trim();
+		if (backend.equalsIgnoreCase("journal")) {
+			try {
+				if (!JournalVirtualFileSystemStore.exists(journalPath)
+						&& new File(fileSystemPath + separator + dirName).exists()) {
+					VirtualFileSystemStoreMigrator.migrate(new XMLVirtualFileSystemStore(fileSystemPath), journalPath);
+				}
+				JournalVirtualFileSystemStore store = new JournalVirtualFileSystemStore(journalPath);
+				store.startMaintenance(
+						Long.parseLong(PropertyHelper.getProperty(cfg, "vfs.journal.sync.interval", "1000").trim()),
+						Integer.parseInt(PropertyHelper.getProperty(cfg, "vfs.journal.compact.threshold", "50").trim()));
+				return store;
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to open the VFS journal in " + journalPath, e);
+			}
+		} else if (!backend.equalsIgnoreCase("xml")) {
+			logger.warn("Unknown vfs.backend '" + backend + "', using xml");
+		}
+		return new XMLVirtualFileSystemStore(fileSystemPath);
+	}
+
+	/**
+	 * Directory updates caused by children are coalesced every 'vfs.aggregate.interval'
+	 * milliseconds, 0 disables it.
+	 */
+	private VirtualFileSystemAggregator createAggregator() {
+		Properties cfg = GlobalContext.getConfig() == null ? new Properties()
+				: GlobalContext.getConfig().getMainProperties();
+		long interval = 1000L;
+		try {
+			interval = Long.parseLong(PropertyHelper.getProperty(cfg, "vfs.aggregate.interval", "1000").trim());
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid vfs.aggregate.interval, using " + interval);
+		}
+		VirtualFileSystemAggregator aggregator = new VirtualFileSystemAggregator(interval);
+		aggregator.start();
+		return aggregator;
+	}
+
+	/**
+	 * At most 'vfs.cache.size' inodes are kept loaded, directories up to
+	 * 'vfs.cache.pin.depth' levels below the root are always kept.
+	 */
+	private VirtualFileSystemInodeCache createInodeCache() {
+		Properties cfg = GlobalContext.getConfig() == null ? new Properties()
+				: GlobalContext.getConfig().getMainProperties();
+		long size = 1000000L;
+		int pinDepth = 2;
+		try {
+			size = Long.parseLong(PropertyHelper.getProperty(cfg, "vfs.cache.size", "1000000").trim());
+			pinDepth = Integer.parseInt(PropertyHelper.getProperty(cfg, "vfs.cache.pin.depth", "2").trim());
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid vfs.cache.size or vfs.cache.pin.depth, using " + size + " and " + pinDepth);
+		}
+		return new VirtualFileSystemInodeCache(size, pinDepth);
+	}
+
+	/**
+	 * @see InodeHandle#getInode()
+	 */
+	protected static long getEpoch() {
+		return _epoch.get();
+	}
+
+	protected static void invalidateResolvedInodes() {
+		_epoch.incrementAndGet();
+	}
+
+	protected VirtualFileSystemAggregator getAggregator() {
+		return _aggregator;
+	}
+
+	public VirtualFileSystemInodeCache getInodeCache() {
+		return _cache;
+	}
+
 	private VirtualFileSystemRoot createRootDirectory() {
 		logger.info("Creating new root filesystem");
 		logger.info("If you have already created your filesystem, then stop removing or corrupting your "
 						+ dirName + " file!");
-		new File(fileSystemPath).mkdirs();
 		_root = new VirtualFileSystemRoot("drftpd", "drftpd");
-		File rootFile = new File(fileSystemPath);
-		_root.setFiles(rootFile.list(dirFilter));
+		_root.setFiles(_store.getChildNames(separator));
 		_root.commit();
 		_root.inodeLoadCompleted();
 		return _root;
 	}
 
+	/**
+	 * Sends the pending aggregated directory commits and size events,
+	 * called during shutdown before waiting for the event and commit queues.
+	 */
+	public void flushAggregated() {
+		_aggregator.flush();
+	}
+
+	/**
+	 * Flushes and closes the persistence backend, called once all
+	 * commits have been drained during shutdown.
+	 */
+	public void shutdown() {
+		_store.close();
+	}
+
 	/**
 	 * Deletes a directory or a file from the dir tree, deleting data from the
 	 * disk also.
@@ -156,7 +254,7 @@ public class VirtualFileSystem {
 	 * @param path
 	 */
 	protected void deleteInode(String path) {
-		recursiveDelete(new File(getRealPath(path)));
+		_store.deleteInode(path);
 	}
 
 	/**
@@ -198,15 +296,6 @@ public class VirtualFileSystem {
 		return inode;
 	}
 
-	/**
-	 * @param path
-	 * @return the real path of the file on the disk.<br>
-	 *         Ex: getRealPath('PICS/me.jpg') would return 'files/PICS/me.jpg'
-	 */
-	private String getRealPath(String path) {
-		return fileSystemPath + path;
-	}
-
 	/**
 	 * @return the root directory.
 	 */
@@ -220,36 +309,20 @@ public class VirtualFileSystem {
 	 */
 	protected VirtualFileSystemInode loadInode(String path)
 			throws FileNotFoundException {
-		String fullPath = fileSystemPath + path;
-		//logger.debug("Loading inode - " + fullPath);
-		File xmlFile = new File(fullPath);
-		File realDirectory = null;
-		if (xmlFile.isDirectory()) {
-			realDirectory = xmlFile;
-			fullPath = fullPath + separator + dirName;
-			xmlFile = new File(fullPath);
-		}
-		XMLDecoder xmlDec = null;
+		//logger.debug("Loading inode - " + path);
+		boolean isDirectory = _store.isDirectory(path);
 		try {
-			xmlDec = new XMLDecoder(new BufferedInputStream(new FileInputStream(fullPath)));
-			xmlDec.setExceptionListener(new VFSExceptionListener(fullPath));
-			ClassLoader prevCL = Thread.currentThread().getContextClassLoader();
-			Thread.currentThread().setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(this));
-			VirtualFileSystemInode inode = (VirtualFileSystemInode) xmlDec.readObject();
-			Thread.currentThread().setContextClassLoader(prevCL);
+			VirtualFileSystemInode inode = _store.readInode(path);
 			inode.setName(getLast(path));
 			if (inode.isDirectory()) {
 				VirtualFileSystemDirectory dir = (VirtualFileSystemDirectory) inode;
-				dir.setFiles(realDirectory.list(dirFilter));
+				dir.setFiles(_store.getChildNames(path));
 			}
 			inode.inodeLoadCompleted();
 			return inode;
 		} catch (Exception e) {
-			boolean corruptedXMLFile = xmlFile.exists();
-			if (corruptedXMLFile) {
-				// parsing error! Let's get rid of the offending bugger
-				xmlFile.delete();
-			}
+			// parsing error! Let's get rid of the offending bugger
+			boolean corruptedInode = _store.discardInode(path);
 			// if this object is the Root object, let's create it and get outta
 			// here
 			if (getLast(path).equals(separator)) {
@@ -267,43 +340,19 @@ public class VirtualFileSystem {
 					throw new FileNotFoundException("You're filesystem is really messed up");
 				}
 			}
-			if (realDirectory != null && realDirectory.exists()) {
-				// let's create the .dirProperties file from what we know since
+			if (isDirectory) {
+				// let's recreate the directory inode from what we know since
 				// it should be there
 				parentInode.createDirectoryRaw(getLast(path), "drftpd", "drftpd");
 				return parentInode.getInodeByName(getLast(path));
 			}
-			if (corruptedXMLFile) {
-				// we already deleted the file, but we need to tell the parent
+			if (corruptedInode) {
+				// we already deleted the inode, but we need to tell the parent
 				// directory that it doesn't exist anymore
-				logger.debug("Error loading " + fullPath + ", deleting file", e);
+				logger.debug("Error loading " + path + ", deleting file", e);
 				parentInode.removeMissingChild(getLast(path));
 			}
 			throw new FileNotFoundException();
-		} finally {
-			if (xmlDec != null) {
-				xmlDec.close();
-			}
-		}
-	}
-
-	/**
-	 * If 'file' is a directory, it recurses through it and deletes, everything
-	 * inside it.<br>
-	 * If 'file' is an actual file, it simply deletes it.
-	 * 
-	 * @param file
-	 */
-	private void recursiveDelete(File file) {
-		if (file.isDirectory()) {
-			File[] files = file.listFiles();
-			for (int x = 0; x < files.length; x++) {
-				recursiveDelete(files[x]);
-			}
-		}
-		if (file.exists() && !file.delete()) {
-			logger.error("Could not delete local entry "
-					+ file.getAbsolutePath() + ", check permissions");
 		}
 	}
 
@@ -319,15 +368,7 @@ public class VirtualFileSystem {
 	 */
 	protected void renameInode(String source, String destination)
 			throws FileNotFoundException, PermissionDeniedException {
-		File file = new File(getRealPath(source));
-		if (!file.exists()) {
-			throw new FileNotFoundException(source + " cannot be found");
-		}
-		boolean result = file.renameTo(new File(getRealPath(destination)));
-		if (!result) {
-			throw new PermissionDeniedException("Cannot rename " + source
-					+ " to " + destination);
-		}
+		_store.renameInode(source, destination);
 	}
 
 	/**
@@ -336,31 +377,11 @@ public class VirtualFileSystem {
 	 * @param inode
 	 */
 	protected void writeInode(VirtualFileSystemInode inode) {
-		String fullPath = getRealPath(inode.getPath());
-		XMLEncoder enc = null;
 		try {
-			if (inode instanceof VirtualFileSystemRoot) {
-				new File(fileSystemPath).mkdirs();
-				fullPath = fullPath + separator + dirName;
-			} else if (inode.isDirectory()) {
-				new File(fullPath).mkdirs();
-				fullPath = fullPath + separator + dirName;
-			} else {
-				new File(getRealPath(inode.getParent().getPath())).mkdirs();
-			}
-			enc = new XMLEncoder(new BufferedOutputStream(
-					new SafeFileOutputStream(fullPath)));
-			inode.setupXML(enc);
-			enc.setExceptionListener(new VFSExceptionListener(fullPath));
-			enc.writeObject(inode);
+			_store.writeInode(inode);
 		} catch (IOException e) {
-			logger.error("Unable to write " + fullPath + " to disk", e);
-		} finally {
-			if (enc != null) {
-				enc.close();
-			}
+			logger.error("Unable to write " + inode.getPath() + " to disk", e);
 		}
-		logger.debug("Wrote fullPath " + fullPath);
 	}
 
 	/**
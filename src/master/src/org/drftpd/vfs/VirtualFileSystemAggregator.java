@@ -0,0 +1,122 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+import org.drftpd.GlobalContext;
+
+/**
+ * Coalesces the ancestor updates caused by a change to a file.<br>
+ * Sizes and slave reference counts are still applied to every ancestor straight
+ * away, so getSize() and getSlaveRefCounts() stay accurate, but the commit and
+ * the size event of each directory are deferred and sent once per interval
+ * instead of once for every file which changed below it.
+ */
+public class VirtualFileSystemAggregator {
+
+	private static final Logger logger = Logger.getLogger(VirtualFileSystemAggregator.class);
+
+	private long _interval;
+
+	/**
+	 * Directories waiting to be flushed, the value tells whether the size changed.
+	 */
+	private IdentityHashMap<VirtualFileSystemDirectory, Boolean> _pending =
+		new IdentityHashMap<VirtualFileSystemDirectory, Boolean>();
+
+	private TimerTask _flushTask;
+
+	/**
+	 * @param interval milliseconds between flushes, 0 commits and publishes
+	 * every change synchronously like before.
+	 */
+	public VirtualFileSystemAggregator(long interval) {
+		_interval = interval;
+	}
+
+	public boolean isDeferred() {
+		return _interval > 0;
+	}
+
+	public synchronized void start() {
+		if (!isDeferred() || _flushTask != null) {
+			return;
+		}
+		_flushTask = new TimerTask() {
+			public void run() {
+				try {
+					flush();
+				} catch (Exception e) {
+					logger.error("Error flushing aggregated directory updates", e);
+				}
+			}
+		};
+		GlobalContext.getGlobalContext().getTimer().schedule(_flushTask, _interval, _interval);
+	}
+
+	protected void sizeChanged(VirtualFileSystemDirectory dir) {
+		synchronized (this) {
+			_pending.put(dir, Boolean.TRUE);
+		}
+	}
+
+	protected void changed(VirtualFileSystemDirectory dir) {
+		synchronized (this) {
+			if (!_pending.containsKey(dir)) {
+				_pending.put(dir, Boolean.FALSE);
+			}
+		}
+	}
+
+	/**
+	 * Drops a pending update, used when the directory is deleted.
+	 */
+	protected synchronized void discard(VirtualFileSystemDirectory dir) {
+		_pending.remove(dir);
+	}
+
+	public synchronized int getPendingCount() {
+		return _pending.size();
+	}
+
+	/**
+	 * Commits every pending directory and publishes one size event for each
+	 * directory whose size changed since the last flush.
+	 */
+	public void flush() {
+		IdentityHashMap<VirtualFileSystemDirectory, Boolean> pending;
+		synchronized (this) {
+			if (_pending.isEmpty()) {
+				return;
+			}
+			pending = _pending;
+			_pending = new IdentityHashMap<VirtualFileSystemDirectory, Boolean>();
+		}
+		for (Map.Entry<VirtualFileSystemDirectory, Boolean> entry : pending.entrySet()) {
+			VirtualFileSystemDirectory dir = entry.getKey();
+			dir.commit();
+			if (entry.getValue()) {
+				VirtualFileSystem.getVirtualFileSystem().notifySizeChanged(dir, dir.getSize());
+			}
+		}
+	}
+}
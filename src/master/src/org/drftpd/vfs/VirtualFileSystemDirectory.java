@@ -26,14 +26,20 @@ import java.beans.PersistenceDelegate;
 import java.beans.PropertyDescriptor;
 import java.beans.XMLEncoder;
 import java.io.FileNotFoundException;
-import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import org.drftpd.exceptions.FileExistsException;
 
@@ -49,12 +55,34 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	protected static final Collection<String> transientListDirectory = Arrays
 	.asList("name", "parent", "files");
 
-	private transient TreeMap<String, SoftReference<VirtualFileSystemInode>> _files = 
-		new CaseInsensitiveTreeMap<String, SoftReference<VirtualFileSystemInode>>();
+	/**
+	 * Children known to exist but not loaded from disk yet, or collected since.<br>
+	 * Children are weakly held, {@link VirtualFileSystemInodeCache} decides
+	 * which ones stay loaded.
+	 */
+	private static final WeakReference<VirtualFileSystemInode> NOT_LOADED =
+		new WeakReference<VirtualFileSystemInode>(null);
+
+	/**
+	 * Children being loaded from disk, by path, so concurrent lookups of the
+	 * same child wait for a single load.
+	 */
+	private static final ConcurrentHashMap<String, FutureTask<VirtualFileSystemInode>> _loading =
+		new ConcurrentHashMap<String, FutureTask<VirtualFileSystemInode>>();
+
+	/**
+	 * Lookups and listings don't lock, the directory monitor is only held to
+	 * add or remove children.
+	 */
+	private transient ConcurrentSkipListMap<String, WeakReference<VirtualFileSystemInode>> _files =
+		new ConcurrentSkipListMap<String, WeakReference<VirtualFileSystemInode>>(String.CASE_INSENSITIVE_ORDER);
 
 	private boolean _placeHolderLastModified;
 
-	protected long _size = 0;
+	private static final AtomicLongFieldUpdater<VirtualFileSystemDirectory> SIZE_UPDATER =
+		AtomicLongFieldUpdater.newUpdater(VirtualFileSystemDirectory.class, "_size");
+
+	protected volatile long _size = 0;
 
 	private Map<String,AtomicInteger> _slaveRefCounts = new TreeMap<String,AtomicInteger>();
 
@@ -72,7 +100,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 * @param inode
 	 */
 	protected synchronized void addChild(VirtualFileSystemInode inode, boolean updateLastModified) {
-		_files.put(inode.getName(), new SoftReference<VirtualFileSystemInode>(
+		_files.put(inode.getName(), new WeakReference<VirtualFileSystemInode>(
 				inode));
 		if (updateLastModified && 
 				(getLastModified() < inode.getLastModified() || _placeHolderLastModified)) {
@@ -84,14 +112,43 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 		}
 		addSize(inode.getSize());
 		addChildSlaveRefCounts(inode, inode.getSlaveRefCounts());
+		getVFS().getInodeCache().touch(inode);
 	}
 
-	protected synchronized void addSize(long l) {
+	protected void addSize(long l) {
 		if (l != 0L) {
-			_size = getSize() + l;
-			getParent().addSize(l);
+			VirtualFileSystemAggregator aggregator = getVFS().getAggregator();
+			if (aggregator.isDeferred()) {
+				// no monitors are taken on the way up, commits and events are sent by the aggregator
+				SIZE_UPDATER.addAndGet(this, l);
+				aggregator.sizeChanged(this);
+				if (!isRoot()) {
+					getParent().addSize(l);
+				}
+			} else {
+				addSizeNow(l);
+			}
+		}
+	}
+
+	private synchronized void addSizeNow(long l) {
+		long size = SIZE_UPDATER.addAndGet(this, l);
+		if (!isRoot()) {
+			getParent().addSizeNow(l);
+		}
+		commit();
+		getVFS().notifySizeChanged(this, size);
+	}
+
+	/**
+	 * Commits a change caused by a child, deferring it when updates are aggregated.
+	 */
+	private void commitFromChild() {
+		VirtualFileSystemAggregator aggregator = getVFS().getAggregator();
+		if (aggregator.isDeferred()) {
+			aggregator.changed(this);
+		} else {
 			commit();
-			getVFS().notifySizeChanged(this,_size);
 		}
 	}
 
@@ -102,7 +159,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 * @param group
 	 * @throws FileExistsException if this directory already exists.
 	 */
-	public synchronized void createDirectory(String name, String user,
+	public void createDirectory(String name, String user,
 			String group) throws FileExistsException {
 		createDirectory(name, user, group, false);
 	}
@@ -115,13 +172,16 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 * @param placeHolderLastModified
 	 * @throws FileExistsException if this directory already exists.
 	 */
-	protected synchronized void createDirectory(String name, String user,
+	protected void createDirectory(String name, String user,
 			String group, boolean placeHolderLastModified) throws FileExistsException {
-		if (_files.containsKey(name)) {
-			throw new FileExistsException("An object named " + name
-					+ " already exists in " + getPath());
+		VirtualFileSystemDirectory inode;
+		synchronized (this) {
+			if (_files.containsKey(name)) {
+				throw new FileExistsException("An object named " + name
+						+ " already exists in " + getPath());
+			}
+			inode = createDirectoryRaw(name, user, group, placeHolderLastModified);
 		}
-		VirtualFileSystemDirectory inode = createDirectoryRaw(name, user, group, placeHolderLastModified);
 
 		getVFS().notifyInodeCreated(inode);
 	}
@@ -173,7 +233,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 * @param initialSlave
 	 * @throws FileExistsException if this file already exists.
 	 */
-	public synchronized void createFile(String name, String user, String group,
+	public void createFile(String name, String user, String group,
 			String initialSlave) throws FileExistsException {
 		createFile(name, user, group, initialSlave, 0L, false, 0L);
 	}
@@ -187,7 +247,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 * @param size
 	 * @throws FileExistsException if this file already exists.
 	 */
-	public synchronized void createFile(String name, String user, String group,
+	public void createFile(String name, String user, String group,
 			String initialSlave, long size) throws FileExistsException {
 		createFile(name, user, group, initialSlave, 0L, false, size);
 	}
@@ -203,11 +263,8 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 * @param size
 	 * @throws FileExistsException if this file already exists.
 	 */
-	protected synchronized void createFile(String name, String user, String group,
+	protected void createFile(String name, String user, String group,
 			String initialSlave, long lastModified, boolean setLastModified, long size) throws FileExistsException {
-		if (_files.containsKey(name)) {
-			throw new FileExistsException(name + " already exists");
-		}
 		VirtualFileSystemInode inode = new VirtualFileSystemFile(user, group,
 				size, initialSlave);
 		inode.setName(name);
@@ -218,9 +275,14 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 			}
 			inode.setLastModified(lastModified);
 		}
-		inode.commit();
 		inode.inodeLoadCompleted();
-		addChild(inode, true);
+		synchronized (this) {
+			if (_files.containsKey(name)) {
+				throw new FileExistsException(name + " already exists");
+			}
+			addChild(inode, true);
+		}
+		inode.commit();
 		commit();
 		logger.info("createFile(" + inode + ")");
 
@@ -235,28 +297,37 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 * @param group
 	 * @throws FileExistsException if this link already exists.
 	 */
-	public synchronized void createLink(String name, String target,
+	public void createLink(String name, String target,
 			String user, String group) throws FileExistsException {
-		if (_files.containsKey(name)) {
-			throw new FileExistsException(name + " already exists");
-		}
 		VirtualFileSystemInode inode = new VirtualFileSystemLink(user, group,
 				target);
 		inode.setName(name);
 		inode.setParent(this);
-		inode.commit();
 		inode.inodeLoadCompleted();
-		addChild(inode, true);
+		synchronized (this) {
+			if (_files.containsKey(name)) {
+				throw new FileExistsException(name + " already exists");
+			}
+			addChild(inode, true);
+		}
+		inode.commit();
 		commit();
 		logger.info("createLink(" + inode + ")");
 
 		getVFS().notifyInodeCreated(inode);
 	}
 
+	/**
+	 * @return the number of entries in this directory, this walks the entries.
+	 */
+	protected int getChildCount() {
+		return _files.size();
+	}
+
 	/**
 	 * @return a Set containing all inode names inside this directory.
 	 */
-	public synchronized Set<String> getInodeNames() {
+	public Set<String> getInodeNames() {
 		return new HashSet<String>(_files.keySet());
 	}
 
@@ -265,12 +336,10 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 */
 	public Set<InodeHandle> getInodes() {
 		HashSet<InodeHandle> set = new HashSet<InodeHandle>();
+		long epoch = VirtualFileSystem.getEpoch();
 		String path = getPath() + (getPath().equals("/") ? "" : VirtualFileSystem.separator);
 		// not dynamically called for efficiency
-		HashSet<String> inodeKeys = null;
-		synchronized (this) {
-			inodeKeys = new HashSet<String>(_files.keySet());
-		}
+		HashSet<String> inodeKeys = new HashSet<String>(_files.keySet());
 		for (String inodeName : inodeKeys) {
 			VirtualFileSystemInode inode = null;
 			try {
@@ -279,13 +348,19 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 				// This entry is already removed from the REAL _files Set, but we're iterating over a copy
 				continue;
 			}
+			InodeHandle handle;
 			if (inode.isDirectory()) {
-				set.add(new DirectoryHandle(path + inodeName));
+				handle = new DirectoryHandle(path + inodeName);
 			} else if (inode.isFile()) {
-				set.add(new FileHandle(path + inodeName));
+				handle = new FileHandle(path + inodeName);
 			} else if (inode.isLink()) {
-				set.add(new LinkHandle(path + inodeName));
+				handle = new LinkHandle(path + inodeName);
+			} else {
+				continue;
 			}
+			// the caller will almost certainly look at the inode, save it the walk
+			handle.setResolvedInode(inode, epoch);
+			set.add(handle);
 		}
 		return set;
 
@@ -312,28 +387,77 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 		if (name.equals(".")) {
 			return this;
 		}
-		VirtualFileSystemInode inode = null;
-		synchronized (this) {
-			if (!_files.containsKey(name)) {
+		Map.Entry<String, WeakReference<VirtualFileSystemInode>> entry = _files.ceilingEntry(name);
+		if (entry == null || String.CASE_INSENSITIVE_ORDER.compare(entry.getKey(), name) != 0) {
+			throw new FileNotFoundException("FileNotFound: " + name + " does not exist");
+		}
+		VirtualFileSystemInode inode = entry.getValue().get();
+		if (inode != null) {
+			getVFS().getInodeCache().hit(inode);
+		} else {
+			// load the file from disk using the casing of the name stored
+			// against the parent directory not the casing passed by the caller
+			inode = loadChild(entry.getKey());
+		}
+		return inode;
+	}
+
+	/**
+	 * Loads a child from disk without holding the directory monitor, a child
+	 * requested by several threads at once is only loaded once.
+	 */
+	private VirtualFileSystemInode loadChild(String name) throws FileNotFoundException {
+		final String path = getPath() + VirtualFileSystem.separator + name;
+		FutureTask<VirtualFileSystemInode> load = new FutureTask<VirtualFileSystemInode>(
+				new Callable<VirtualFileSystemInode>() {
+					public VirtualFileSystemInode call() throws FileNotFoundException {
+						return getVFS().loadInode(path);
+					}
+				});
+		FutureTask<VirtualFileSystemInode> running = _loading.putIfAbsent(path, load);
+		VirtualFileSystemInode inode;
+		try {
+			if (running == null) {
+				running = load;
+				long start = System.nanoTime();
+				load.run();
+				inode = load.get();
+				getVFS().getInodeCache().missed(System.nanoTime() - start);
+			} else {
+				inode = running.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof FileNotFoundException) {
+				throw (FileNotFoundException) e.getCause();
+			}
+			throw new RuntimeException("Unable to load " + path, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FileNotFoundException("Interrupted while loading " + path);
+		} finally {
+			if (running == load) {
+				_loading.remove(path, load);
+			}
+		}
+		WeakReference<VirtualFileSystemInode> loaded = new WeakReference<VirtualFileSystemInode>(inode);
+		while (true) {
+			WeakReference<VirtualFileSystemInode> current = _files.get(name);
+			if (current == null) {
+				// removed while it was loading
 				throw new FileNotFoundException("FileNotFound: " + name + " does not exist");
 			}
-			SoftReference<VirtualFileSystemInode> sf = _files.get(name);
-			if (sf != null) {
-				inode = sf.get();
+			VirtualFileSystemInode other = current.get();
+			if (other != null) {
+				// loaded by another thread or recreated by loadInode()
+				return other;
 			}
-			if (inode == null) {
-				// The next line is so that we load the file from disk using the casing of the name
-				// stored against the parent directory not the casing passed by the caller
-				name = _files.ceilingKey(name);
-				inode = getVFS().loadInode(
-						getPath() + VirtualFileSystem.separator + name);
-				inode.setParent(this);
-				// _files.remove(name);
-				// Map instance replaces what is previously there with put()
-				_files.put(name, new SoftReference<VirtualFileSystemInode>(inode));
+			// the cache needs the parent to tell how deep the inode is
+			inode.setParent(this);
+			if (_files.replace(name, current, loaded)) {
+				getVFS().getInodeCache().touch(inode);
+				return inode;
 			}
 		}
-		return inode;
 	}
 
 	/**
@@ -353,7 +477,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 	 */
 	public synchronized void setFiles(String[] files) {
 		for (String file : files) {
-			_files.put(file, null);
+			_files.put(file, NOT_LOADED);
 		}
 	}
 
@@ -424,6 +548,8 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 
 	public synchronized void removeMissingChild(String name) {
 		if (_files.remove(name) != null) {
+			// only after the child is gone, or a racing lookup could cache it under the new epoch
+			VirtualFileSystem.invalidateResolvedInodes();
 			setLastModified(System.currentTimeMillis());
 			commit();
 		}
@@ -470,7 +596,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 				getParent().addChildSlaveRefCounts(childInode, childRefCounts);
 			}
 		}
-		commit();
+		commitFromChild();
 	}
 
 	protected void removeChildSlaveRefCounts(VirtualFileSystemInode childInode, Map<String,AtomicInteger> childRefCounts) {
@@ -493,7 +619,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 				getParent().removeChildSlaveRefCounts(childInode, childRefCounts);
 			}
 		}
-		commit();
+		commitFromChild();
 	}
 
 	protected void incrementSlaveRefCount(String slave) {
@@ -509,7 +635,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 		if (!isRoot()) {
 			getParent().incrementSlaveRefCount(slave);
 		}
-		commit();
+		commitFromChild();
 	}
 
 	protected void decrementSlaveRefCount(String slave) {
@@ -525,7 +651,7 @@ public class VirtualFileSystemDirectory extends VirtualFileSystemInode {
 		if (!isRoot()) {
 			getParent().decrementSlaveRefCount(slave);
 		}
-		commit();
+		commitFromChild();
 	}
 
 	protected boolean isRoot() {
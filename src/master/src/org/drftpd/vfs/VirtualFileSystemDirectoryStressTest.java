@@ -0,0 +1,113 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.vfs;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.drftpd.exceptions.FileExistsException;
+
+/**
+ * Races uploads, lookups and listings in one directory, like a busy dated
+ * directory, and checks that every file ends up there exactly once.<br>
+ * The number of threads and files can be changed by simple code changes.
+ */
+public class VirtualFileSystemDirectoryStressTest extends TestCase {
+
+	private static final int THREADS = 16;
+
+	private static final int FILES = 500;
+
+	private static final int LOOKUPS = 20000;
+
+	private VirtualFileSystem _vfs;
+
+	private VirtualFileSystemDirectory _dir;
+
+	public VirtualFileSystemDirectoryStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws FileNotFoundException {
+		_vfs = VirtualFileSystem.getVirtualFileSystem();
+		try {
+			_vfs.getRoot().createDirectory("DirectoryStress", "drftpd", "drftpd");
+		} catch (FileExistsException e) {
+		}
+		_dir = (VirtualFileSystemDirectory) _vfs.getInodeByPath("/DirectoryStress");
+	}
+
+	protected void tearDown() throws FileNotFoundException {
+		_dir.delete();
+	}
+
+	public void testConcurrentAccess() throws InterruptedException {
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger lookups = new AtomicInteger();
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads.add(new Thread("DirectoryStress-" + t) {
+				public void run() {
+					try {
+						for (int i = 0; i < FILES; i++) {
+							// every thread tries every name, only one create may win
+							String name = "File" + ((i + thread * 31) % FILES) + ".rar";
+							try {
+								_dir.createFile(name, "user" + thread, "drftpd", "testSlave");
+								created.incrementAndGet();
+							} catch (FileExistsException e) {
+								// lost the race
+							}
+						}
+						for (int i = 0; i < LOOKUPS; i++) {
+							assertNotNull(_dir.getInodeByName("file" + (i % FILES) + ".RAR"));
+							lookups.incrementAndGet();
+							if (i % 1000 == 0) {
+								_dir.getInodes();
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (!errors.isEmpty()) {
+			throw new AssertionError(errors.get(0));
+		}
+		assertEquals(FILES, created.get());
+		assertEquals(FILES, _dir.getInodeNames().size());
+		System.out.println(THREADS + " threads: " + (lookups.get() * 1000000000L / Math.max(elapsed, 1))
+				+ " lookups/s with " + FILES + " concurrent creates");
+	}
+}
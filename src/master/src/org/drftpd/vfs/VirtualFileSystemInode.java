@@ -18,6 +18,9 @@
 package org.drftpd.vfs;
 
 import java.beans.DefaultPersistenceDelegate;
+import java.beans.Encoder;
+import java.beans.PersistenceDelegate;
+import java.beans.Statement;
 import java.beans.XMLEncoder;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -44,6 +47,18 @@ public abstract class VirtualFileSystemInode implements Commitable {
 	protected static final Logger logger = Logger
 			.getLogger(VirtualFileSystemInode.class);
 
+	/**
+	 * Writes a KeyedMap as its entries only, newer JDKs no longer treat a
+	 * Hashtable subclass as a map and recurse through its allObjects copy.
+	 */
+	private static final PersistenceDelegate KEYEDMAP_DELEGATE = new DefaultPersistenceDelegate() {
+		protected void initialize(Class<?> type, Object oldInstance, Object newInstance, Encoder out) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) oldInstance).entrySet()) {
+				out.writeStatement(new Statement(oldInstance, "put", new Object[] { entry.getKey(), entry.getValue() }));
+			}
+		}
+	};
+
 	/**
 	 * @return the VirtualFileSystem instance.
 	 */
@@ -70,6 +85,13 @@ public abstract class VirtualFileSystemInode implements Commitable {
 	protected long _creationTime;
 
 	private transient boolean _inodeLoaded;
+
+	// kept by VirtualFileSystemInodeCache
+	transient volatile int _cacheState;
+
+	transient volatile boolean _cacheReferenced;
+
+	transient int _cacheWeight;
 	
 	public String descriptiveName() {
 		return getPath();
@@ -107,6 +129,10 @@ public abstract class VirtualFileSystemInode implements Commitable {
 		VirtualFileSystem.getVirtualFileSystem().deleteInode(getPath());
 		_parent.removeChild(this);
 		CommitManager.getCommitManager().remove(this);
+		getVFS().getInodeCache().removed(this);
+		if (isDirectory()) {
+			getVFS().getAggregator().discard((VirtualFileSystemDirectory) this);
+		}
 
 		getVFS().notifyInodeDeleted(this, path);
 	}
@@ -253,6 +279,8 @@ public abstract class VirtualFileSystemInode implements Commitable {
 		_name = VirtualFileSystem.getLast(destination);
 		_parent = destinationDir;
 		_parent.addChild(this, true);
+		// the inode now answers to another path, drop what was resolved while it moved
+		VirtualFileSystem.invalidateResolvedInodes();
 		fileString = fileString + ",(" + this + ")";
 		logger.info(fileString);
 		getVFS().notifyInodeRenamed(sourcePath,this);
@@ -315,6 +343,7 @@ public abstract class VirtualFileSystemInode implements Commitable {
 	protected void setupXML(XMLEncoder enc) {
 		enc.setPersistenceDelegate(Key.class,
 				new DefaultPersistenceDelegate(new String[] { "owner", "key" }));
+		enc.setPersistenceDelegate(KeyedMap.class, KEYEDMAP_DELEGATE);
 	}
 
 	/**
@@ -0,0 +1,292 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.vfs;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.drftpd.util.LatencyHistogram;
+
+/**
+ * Decides which inodes stay loaded.<br>
+ * Directories only hold weak references to their children, so an inode stays
+ * in memory as long as this cache, or something using it, holds it. Eviction
+ * is a CLOCK sweep, an approximation of LRU where a lookup only sets a flag on
+ * the inode, so reads never lock. Directories up to the pin depth, ie. section
+ * directories and the dated directories inside them, are never evicted.
+ * @version $Id$
+ */
+public class VirtualFileSystemInodeCache {
+
+	private static final int NOT_CACHED = 0;
+
+	private static final int CACHED = 1;
+
+	private static final int PINNED = 2;
+
+	// deleted while cached, no longer counted and dropped when the clock hand gets to it
+	private static final int REMOVED = 3;
+
+	/**
+	 * Deleted inodes left in the clock before it is purged of them, at least
+	 * this many and at least a quarter of the cached ones.
+	 */
+	private static final int PURGE_THRESHOLD = 1024;
+
+	private static final AtomicIntegerFieldUpdater<VirtualFileSystemInode> STATE_UPDATER =
+		AtomicIntegerFieldUpdater.newUpdater(VirtualFileSystemInode.class, "_cacheState");
+
+	private static final int STRIPES = 16;
+
+	// counters are spread over cache lines, lookups of every path component count as hits
+	private static final int STRIPE_WIDTH = 8;
+
+	private final long _capacity;
+
+	private final int _pinDepth;
+
+	private final ConcurrentLinkedQueue<VirtualFileSystemInode> _clock = new ConcurrentLinkedQueue<VirtualFileSystemInode>();
+
+	private final Set<VirtualFileSystemInode> _pinned =
+		Collections.newSetFromMap(new ConcurrentHashMap<VirtualFileSystemInode, Boolean>());
+
+	private final AtomicInteger _size = new AtomicInteger();
+
+	private final AtomicLong _weight = new AtomicLong();
+
+	private final AtomicInteger _removed = new AtomicInteger();
+
+	private final AtomicLongArray _hits = new AtomicLongArray(STRIPES * STRIPE_WIDTH);
+
+	private final AtomicLong _misses = new AtomicLong();
+
+	private final AtomicLong _evictions = new AtomicLong();
+
+	private final LatencyHistogram _loadLatency = new LatencyHistogram();
+
+	private final ReentrantLock _sweepLock = new ReentrantLock();
+
+	/**
+	 * @param capacity the total weight of unpinned inodes kept loaded.
+	 * @param pinDepth directories up to this depth are never evicted, 0 to only keep the root.
+	 */
+	public VirtualFileSystemInodeCache(long capacity, int pinDepth) {
+		_capacity = capacity;
+		_pinDepth = pinDepth;
+	}
+
+	/**
+	 * An inode was found loaded in its directory.
+	 */
+	protected void hit(VirtualFileSystemInode inode) {
+		_hits.incrementAndGet((int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_WIDTH);
+		touch(inode);
+	}
+
+	/**
+	 * An inode had to be read from disk, the copy which ends up in its
+	 * directory is then added with {@link #touch(VirtualFileSystemInode)}.
+	 */
+	protected void missed(long nanos) {
+		_misses.incrementAndGet();
+		_loadLatency.recordNanos(nanos);
+	}
+
+	/**
+	 * Marks the inode as recently used, adding it to the cache if needed.
+	 */
+	protected void touch(VirtualFileSystemInode inode) {
+		int state = inode._cacheState;
+		if (state == CACHED) {
+			if (!inode._cacheReferenced) {
+				inode._cacheReferenced = true;
+			}
+			return;
+		}
+		if (state == PINNED || inode instanceof VirtualFileSystemRoot) {
+			return;
+		}
+		boolean pin = inode.isDirectory() && depth(inode) <= _pinDepth;
+		if (!STATE_UPDATER.compareAndSet(inode, NOT_CACHED, pin ? PINNED : CACHED)) {
+			return;
+		}
+		if (pin) {
+			_pinned.add(inode);
+			return;
+		}
+		inode._cacheWeight = weigh(inode);
+		_clock.add(inode);
+		_size.incrementAndGet();
+		if (_weight.addAndGet(inode._cacheWeight) > _capacity) {
+			sweep();
+		}
+	}
+
+	/**
+	 * The inode was deleted, it stops counting against the capacity right
+	 * away and the sweep drops it from the clock when it gets there. Once
+	 * enough deleted inodes piled up the clock is purged of them, so a cache
+	 * below its capacity doesn't keep them loaded.
+	 */
+	protected void removed(VirtualFileSystemInode inode) {
+		inode._cacheReferenced = false;
+		if (STATE_UPDATER.compareAndSet(inode, CACHED, REMOVED)) {
+			_size.decrementAndGet();
+			_weight.addAndGet(-inode._cacheWeight);
+			if (_removed.incrementAndGet() > Math.max(PURGE_THRESHOLD, _size.get() / 4)) {
+				purge();
+			}
+		} else if (STATE_UPDATER.compareAndSet(inode, PINNED, NOT_CACHED)) {
+			_pinned.remove(inode);
+		}
+	}
+
+	protected boolean contains(VirtualFileSystemInode inode) {
+		int state = inode._cacheState;
+		return state == CACHED || state == PINNED;
+	}
+
+	/**
+	 * Moves the clock hand until the cache fits its capacity again, inodes
+	 * used since the last pass get a second chance. Only one thread sweeps,
+	 * others keep going and the cache can briefly exceed its capacity.
+	 */
+	private void sweep() {
+		if (!_sweepLock.tryLock()) {
+			return;
+		}
+		try {
+			// every inode gets at most two looks, so a cache full of used inodes can't loop forever
+			int budget = _size.get() * 2;
+			while (_weight.get() > _capacity && budget > 0) {
+				VirtualFileSystemInode inode = _clock.poll();
+				if (inode == null) {
+					break;
+				}
+				if (inode._cacheState == REMOVED) {
+					// already taken off the counts by removed()
+					_removed.decrementAndGet();
+					continue;
+				}
+				budget--;
+				if (inode._cacheReferenced) {
+					inode._cacheReferenced = false;
+					_clock.add(inode);
+					continue;
+				}
+				if (!STATE_UPDATER.compareAndSet(inode, CACHED, NOT_CACHED)) {
+					// deleted meanwhile
+					continue;
+				}
+				_size.decrementAndGet();
+				_weight.addAndGet(-inode._cacheWeight);
+				_evictions.incrementAndGet();
+			}
+		} finally {
+			_sweepLock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the deleted inodes from the clock, skipped if a sweep is running
+	 * as it drops those it passes.
+	 */
+	private void purge() {
+		if (!_sweepLock.tryLock()) {
+			return;
+		}
+		try {
+			for (Iterator<VirtualFileSystemInode> iter = _clock.iterator(); iter.hasNext();) {
+				if (iter.next()._cacheState == REMOVED) {
+					iter.remove();
+					_removed.decrementAndGet();
+				}
+			}
+		} finally {
+			_sweepLock.unlock();
+		}
+	}
+
+	/**
+	 * One per inode, plus one per 8 entries of a directory for its child map.
+	 */
+	private static int weigh(VirtualFileSystemInode inode) {
+		if (inode.isDirectory()) {
+			return 1 + ((VirtualFileSystemDirectory) inode).getChildCount() / 8;
+		}
+		return 1;
+	}
+
+	private static int depth(VirtualFileSystemInode inode) {
+		int depth = 0;
+		for (VirtualFileSystemInode walker = inode; walker != null && !(walker instanceof VirtualFileSystemRoot); walker = walker._parent) {
+			depth++;
+		}
+		return depth;
+	}
+
+	public long getCapacity() {
+		return _capacity;
+	}
+
+	public int getSize() {
+		return _size.get();
+	}
+
+	public long getWeight() {
+		return _weight.get();
+	}
+
+	/**
+	 * @return the number of inodes in the clock, deleted ones not purged yet included.
+	 */
+	protected int getClockLength() {
+		return _clock.size();
+	}
+
+	public int getPinnedCount() {
+		return _pinned.size();
+	}
+
+	public long getHits() {
+		long hits = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			hits += _hits.get(i * STRIPE_WIDTH);
+		}
+		return hits;
+	}
+
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	public long getEvictions() {
+		return _evictions.get();
+	}
+
+	public LatencyHistogram getLoadLatency() {
+		return _loadLatency;
+	}
+}
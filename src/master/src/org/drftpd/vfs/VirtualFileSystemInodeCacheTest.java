@@ -0,0 +1,180 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.vfs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class VirtualFileSystemInodeCacheTest extends TestCase {
+
+	private VirtualFileSystemRoot _root;
+
+	private VirtualFileSystemDirectory _section;
+
+	private VirtualFileSystemDirectory _dated;
+
+	public VirtualFileSystemInodeCacheTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_root = new VirtualFileSystemRoot("drftpd", "drftpd");
+		_section = createDirectory(_root, "MP3");
+		_dated = createDirectory(_section, "1018");
+	}
+
+	public void testCapacity() {
+		VirtualFileSystemInodeCache cache = new VirtualFileSystemInodeCache(10, 0);
+		for (VirtualFileSystemInode inode : createFiles(_dated, 25)) {
+			cache.touch(inode);
+		}
+		assertEquals(10, cache.getSize());
+		assertEquals(10, cache.getWeight());
+		assertEquals(15, cache.getEvictions());
+		assertEquals(0, cache.getPinnedCount());
+	}
+
+	public void testPinnedDirectories() {
+		VirtualFileSystemInodeCache cache = new VirtualFileSystemInodeCache(2, 2);
+		cache.touch(_section);
+		cache.touch(_dated);
+		VirtualFileSystemDirectory release = createDirectory(_dated, "Some.Release-GRP");
+		cache.touch(release);
+		for (VirtualFileSystemInode inode : createFiles(release, 10)) {
+			cache.touch(inode);
+		}
+		assertEquals(2, cache.getPinnedCount());
+		assertTrue(cache.contains(_section));
+		assertTrue(cache.contains(_dated));
+		assertFalse(cache.contains(release));
+		assertEquals(2, cache.getSize());
+
+		cache.removed(_dated);
+		assertFalse(cache.contains(_dated));
+		assertEquals(1, cache.getPinnedCount());
+	}
+
+	public void testRemovedNotCounted() {
+		VirtualFileSystemInodeCache cache = new VirtualFileSystemInodeCache(10, 0);
+		List<VirtualFileSystemInode> files = createFiles(_dated, 15);
+		for (int i = 0; i < 10; i++) {
+			cache.touch(files.get(i));
+		}
+		for (int i = 0; i < 5; i++) {
+			cache.removed(files.get(i));
+			assertFalse(cache.contains(files.get(i)));
+		}
+		assertEquals(5, cache.getSize());
+		assertEquals(5, cache.getWeight());
+
+		// the deleted inodes made room, nothing live is evicted
+		for (int i = 10; i < 15; i++) {
+			cache.touch(files.get(i));
+		}
+		assertEquals(10, cache.getSize());
+		assertEquals(0, cache.getEvictions());
+
+		// a sweep drops the deleted inodes without counting them again
+		cache.touch(createFiles(_dated, 1).get(0));
+		assertEquals(10, cache.getSize());
+		assertEquals(10, cache.getWeight());
+		assertEquals(1, cache.getEvictions());
+		assertFalse(cache.contains(files.get(5)));
+		assertTrue(cache.contains(files.get(6)));
+	}
+
+	public void testRemovedPurged() {
+		VirtualFileSystemInodeCache cache = new VirtualFileSystemInodeCache(1000000, 0);
+		List<VirtualFileSystemInode> files = createFiles(_dated, 5000);
+		for (VirtualFileSystemInode inode : files) {
+			cache.touch(inode);
+		}
+		assertEquals(5000, cache.getClockLength());
+		for (int i = 0; i < 4000; i++) {
+			cache.removed(files.get(i));
+		}
+		// far below the capacity, no sweep ran but the clock still let go of them
+		assertEquals(0, cache.getEvictions());
+		assertEquals(1000, cache.getSize());
+		assertTrue(cache.getClockLength() <= cache.getSize() + 1024);
+		assertTrue(cache.contains(files.get(4999)));
+	}
+
+	public void testSecondChance() {
+		VirtualFileSystemInodeCache cache = new VirtualFileSystemInodeCache(4, 0);
+		List<VirtualFileSystemInode> files = createFiles(_dated, 5);
+		for (int i = 0; i < 4; i++) {
+			cache.touch(files.get(i));
+		}
+		cache.hit(files.get(0));
+		cache.touch(files.get(4));
+		assertTrue(cache.contains(files.get(0)));
+		assertFalse(cache.contains(files.get(1)));
+		assertTrue(cache.contains(files.get(4)));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	public void testLoadedDirectoryNotPinned() throws Exception {
+		VirtualFileSystem vfs = VirtualFileSystem.getVirtualFileSystem();
+		VirtualFileSystemInodeCache cache = vfs.getInodeCache();
+		try {
+			vfs.getRoot().createDirectory("CacheTest", "drftpd", "drftpd");
+			VirtualFileSystemDirectory section = (VirtualFileSystemDirectory) vfs.getInodeByPath("/CacheTest");
+			section.createDirectory("1018", "drftpd", "drftpd");
+			VirtualFileSystemDirectory dated = (VirtualFileSystemDirectory) vfs.getInodeByPath("/CacheTest/1018");
+			dated.createDirectory("Some.Release-GRP", "drftpd", "drftpd");
+			VirtualFileSystemInode release = vfs.getInodeByPath("/CacheTest/1018/Some.Release-GRP");
+			release.writeToDisk();
+			assertFalse(cache.getPinnedCount() == 0);
+
+			// drop it from its directory so the next lookup reads it from the store
+			dated.setFiles(new String[] { "Some.Release-GRP" });
+			int pinned = cache.getPinnedCount();
+			long misses = cache.getMisses();
+			VirtualFileSystemInode loaded = vfs.getInodeByPath("/CacheTest/1018/Some.Release-GRP");
+			assertNotSame(release, loaded);
+			assertSame(dated, loaded.getParent());
+			assertEquals(misses + 1, cache.getMisses());
+			assertTrue(cache.contains(loaded));
+			// cached but evictable, a release is deeper than the pin depth
+			assertEquals(pinned, cache.getPinnedCount());
+		} finally {
+			vfs.getInodeByPath("/CacheTest").delete();
+		}
+	}
+
+	private static VirtualFileSystemDirectory createDirectory(VirtualFileSystemDirectory parent, String name) {
+		VirtualFileSystemDirectory dir = new VirtualFileSystemDirectory("drftpd", "drftpd");
+		dir.setName(name);
+		dir.setParent(parent);
+		return dir;
+	}
+
+	private static List<VirtualFileSystemInode> createFiles(VirtualFileSystemDirectory parent, int count) {
+		List<VirtualFileSystemInode> files = new ArrayList<VirtualFileSystemInode>();
+		for (int i = 0; i < count; i++) {
+			VirtualFileSystemFile file = new VirtualFileSystemFile("drftpd", "drftpd", 1000L, "slave");
+			file.setName("file" + i + ".rar");
+			file.setParent(parent);
+			files.add(file);
+		}
+		return files;
+	}
+}
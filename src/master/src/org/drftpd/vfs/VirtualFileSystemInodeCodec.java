@@ -0,0 +1,335 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.beans.DefaultPersistenceDelegate;
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.drftpd.dynamicdata.Key;
+import org.drftpd.dynamicdata.KeyedMap;
+import org.drftpd.util.CommonPluginUtils;
+
+/**
+ * Compact binary encoding of a {@link VirtualFileSystemInode}.<br>
+ * Core fields are written directly, plugin metadata values of primitive
+ * wrapper types are written natively and anything else is embedded as a
+ * small XMLEncoder document so that plugin beans keep working unchanged.
+ */
+public class VirtualFileSystemInodeCodec {
+
+	private static final Logger logger = Logger.getLogger(VirtualFileSystemInodeCodec.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte VERSION = 1;
+
+	private static final byte TYPE_ROOT = 0;
+	private static final byte TYPE_DIRECTORY = 1;
+	private static final byte TYPE_FILE = 2;
+	private static final byte TYPE_LINK = 3;
+
+	private static final byte VALUE_LONG = 1;
+	private static final byte VALUE_INTEGER = 2;
+	private static final byte VALUE_STRING = 3;
+	private static final byte VALUE_BOOLEAN = 4;
+	private static final byte VALUE_FLOAT = 5;
+	private static final byte VALUE_DOUBLE = 6;
+	private static final byte VALUE_XML = 9;
+
+	private ClassLoader _classLoader;
+
+	private HashMap<String, Class<?>> _classCache = new HashMap<String, Class<?>>();
+
+	public VirtualFileSystemInodeCodec() {
+		_classLoader = CommonPluginUtils.getClassLoaderForObject(this);
+	}
+
+	public byte[] encode(VirtualFileSystemInode inode) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(VERSION);
+		if (inode instanceof VirtualFileSystemRoot) {
+			out.writeByte(TYPE_ROOT);
+		} else if (inode.isDirectory()) {
+			out.writeByte(TYPE_DIRECTORY);
+		} else if (inode.isFile()) {
+			out.writeByte(TYPE_FILE);
+		} else if (inode.isLink()) {
+			out.writeByte(TYPE_LINK);
+		} else {
+			throw new IOException("Unknown inode type " + inode.getClass().getName());
+		}
+		writeString(out, inode.getUsername());
+		writeString(out, inode.getGroup());
+		out.writeLong(inode.getLastModified());
+		out.writeLong(inode.getCreationTime());
+		writeKeyedMap(out, inode.getKeyedMap());
+		writeKeyedMap(out, inode.getPluginMap());
+		Map<String, Object> untyped;
+		synchronized (inode) {
+			untyped = new TreeMap<String, Object>(inode.getUntypedPluginMap());
+		}
+		out.writeInt(untyped.size());
+		for (Map.Entry<String, Object> entry : untyped.entrySet()) {
+			writeString(out, entry.getKey());
+			writeValue(out, entry.getValue());
+		}
+		if (inode.isDirectory()) {
+			VirtualFileSystemDirectory dir = (VirtualFileSystemDirectory) inode;
+			out.writeLong(dir.getSize());
+			out.writeBoolean(dir.getPlaceHolderLastModified());
+			Map<String, AtomicInteger> refCounts = dir.getSlaveRefCounts();
+			out.writeInt(refCounts.size());
+			for (Map.Entry<String, AtomicInteger> entry : refCounts.entrySet()) {
+				writeString(out, entry.getKey());
+				out.writeInt(entry.getValue().get());
+			}
+		} else if (inode.isFile()) {
+			VirtualFileSystemFile file = (VirtualFileSystemFile) inode;
+			out.writeLong(file.getSize());
+			Set<String> slaves = file.getSlaves();
+			out.writeInt(slaves.size());
+			for (String slave : slaves) {
+				writeString(out, slave);
+			}
+		} else {
+			writeString(out, ((VirtualFileSystemLink) inode).getLinkPath());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public VirtualFileSystemInode decode(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported inode record version " + version);
+		}
+		byte type = in.readByte();
+		String username = readString(in);
+		String group = readString(in);
+		long lastModified = in.readLong();
+		long creationTime = in.readLong();
+		KeyedMap<Key<?>, Object> keyedMap = readKeyedMap(in);
+		KeyedMap<Key<?>, Object> pluginMap = readKeyedMap(in);
+		TreeMap<String, Object> untyped = new TreeMap<String, Object>();
+		int untypedSize = in.readInt();
+		for (int i = 0; i < untypedSize; i++) {
+			String key = readString(in);
+			Object value = readValue(in);
+			if (value != null) {
+				untyped.put(key, value);
+			}
+		}
+		VirtualFileSystemInode inode;
+		switch (type) {
+		case TYPE_ROOT:
+		case TYPE_DIRECTORY:
+			VirtualFileSystemDirectory dir = type == TYPE_ROOT ? new VirtualFileSystemRoot(username, group)
+					: new VirtualFileSystemDirectory(username, group);
+			dir.setSize(in.readLong());
+			dir.setPlaceHolderLastModified(in.readBoolean());
+			int refSize = in.readInt();
+			TreeMap<String, AtomicInteger> refCounts = new TreeMap<String, AtomicInteger>();
+			for (int i = 0; i < refSize; i++) {
+				String slave = readString(in);
+				refCounts.put(slave, new AtomicInteger(in.readInt()));
+			}
+			dir.setSlaveRefCounts(refCounts);
+			inode = dir;
+			break;
+		case TYPE_FILE:
+			long size = in.readLong();
+			int slaveSize = in.readInt();
+			HashSet<String> slaves = new HashSet<String>();
+			for (int i = 0; i < slaveSize; i++) {
+				slaves.add(readString(in));
+			}
+			inode = new VirtualFileSystemFile(username, group, size, slaves);
+			break;
+		case TYPE_LINK:
+			inode = new VirtualFileSystemLink(username, group, readString(in));
+			break;
+		default:
+			throw new IOException("Unknown inode type " + type);
+		}
+		inode.setKeyedMap(keyedMap);
+		inode.setPluginMap(pluginMap);
+		inode.setUntypedPluginMap(untyped);
+		inode.setCreationTime(creationTime);
+		inode.setLastModified(lastModified);
+		return inode;
+	}
+
+	private void writeKeyedMap(DataOutput out, KeyedMap<Key<?>, Object> map) throws IOException {
+		Map<Key<?>, Object> copy;
+		synchronized (map) {
+			copy = new HashMap<Key<?>, Object>(map);
+		}
+		out.writeInt(copy.size());
+		for (Map.Entry<Key<?>, Object> entry : copy.entrySet()) {
+			writeString(out, entry.getKey().getOwner().getName());
+			writeString(out, entry.getKey().getKey());
+			writeValue(out, entry.getValue());
+		}
+	}
+
+	private KeyedMap<Key<?>, Object> readKeyedMap(DataInput in) throws IOException {
+		KeyedMap<Key<?>, Object> map = new KeyedMap<Key<?>, Object>();
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			String owner = readString(in);
+			String key = readString(in);
+			Object value = readValue(in);
+			Class<?> ownerClass = loadClass(owner);
+			if (ownerClass == null || value == null) {
+				// plugin metadata which is no longer needed, same as the XML decoder does
+				continue;
+			}
+			map.put(new Key<Object>(ownerClass, key), value);
+		}
+		return map;
+	}
+
+	private Class<?> loadClass(String name) {
+		synchronized (_classCache) {
+			if (_classCache.containsKey(name)) {
+				return _classCache.get(name);
+			}
+			Class<?> clazz = null;
+			try {
+				clazz = Class.forName(name, false, _classLoader);
+			} catch (ClassNotFoundException e) {
+				logger.debug("Unable to load class " + name + " for inode metadata, ignoring");
+			}
+			_classCache.put(name, clazz);
+			return clazz;
+		}
+	}
+
+	private void writeValue(DataOutput out, Object value) throws IOException {
+		if (value instanceof Long) {
+			out.writeByte(VALUE_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(VALUE_INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof String) {
+			out.writeByte(VALUE_STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(VALUE_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Float) {
+			out.writeByte(VALUE_FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Double) {
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble((Double) value);
+		} else {
+			out.writeByte(VALUE_XML);
+			byte[] xml = encodeXML(value);
+			out.writeInt(xml.length);
+			out.write(xml);
+		}
+	}
+
+	private Object readValue(DataInput in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case VALUE_LONG:
+			return in.readLong();
+		case VALUE_INTEGER:
+			return in.readInt();
+		case VALUE_STRING:
+			return readString(in);
+		case VALUE_BOOLEAN:
+			return in.readBoolean();
+		case VALUE_FLOAT:
+			return in.readFloat();
+		case VALUE_DOUBLE:
+			return in.readDouble();
+		case VALUE_XML:
+			byte[] xml = new byte[in.readInt()];
+			in.readFully(xml);
+			return decodeXML(xml);
+		default:
+			throw new IOException("Unknown metadata value type " + type);
+		}
+	}
+
+	private byte[] encodeXML(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XMLEncoder enc = new XMLEncoder(bytes);
+		enc.setPersistenceDelegate(Key.class,
+				new DefaultPersistenceDelegate(new String[] { "owner", "key" }));
+		enc.setExceptionListener(new VFSExceptionListener(value.getClass().getName()));
+		enc.writeObject(value);
+		enc.close();
+		return bytes.toByteArray();
+	}
+
+	private Object decodeXML(byte[] xml) {
+		XMLDecoder dec = new XMLDecoder(new ByteArrayInputStream(xml), null,
+				new VFSExceptionListener("metadata"), _classLoader);
+		try {
+			return dec.readObject();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// the value class is gone, same as a missing plugin with the XML backend
+			return null;
+		} finally {
+			dec.close();
+		}
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
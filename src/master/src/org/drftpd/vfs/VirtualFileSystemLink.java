@@ -49,6 +49,7 @@ public class VirtualFileSystemLink extends VirtualFileSystemInode {
 
 	public void setLinkPath(String link) {
 		_link = link;
+		VirtualFileSystem.invalidateResolvedInodes();
 		commit();
 	}
 	
@@ -46,20 +46,6 @@ public class VirtualFileSystemRoot extends VirtualFileSystemDirectory {
 		return _name;
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.drftpd.vfs.VirtualFileSystemDirectory#addSize(long)
-	 */
-	@Override
-	protected void addSize(long l) {
-		if (l != 0L) {
-			_size = getSize() + l;
-			commit();
-			getVFS().notifySizeChanged(this,_size);
-		}
-	}
-
 	/**
 	 * @see org.drftpd.vfs.VirtualFileSystemInode#delete()
 	 * @throws UnsupportedOperationException everytime this method is called,
@@ -0,0 +1,79 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.drftpd.io.PermissionDeniedException;
+
+/**
+ * Persistence backend used by the {@link VirtualFileSystem} to store inodes.<br>
+ * All paths given to a store are full VFS paths, i.e, they start with "/".
+ * @see org.drftpd.vfs.XMLVirtualFileSystemStore
+ * @see org.drftpd.vfs.JournalVirtualFileSystemStore
+ */
+public interface VirtualFileSystemStore {
+
+	/**
+	 * Reads the stored inode, the returned object has neither its name nor
+	 * its parent set and has not been marked as loaded.
+	 * @throws FileNotFoundException if nothing is stored for this path.
+	 * @throws IOException if the stored data could not be read.
+	 */
+	public VirtualFileSystemInode readInode(String path) throws IOException;
+
+	/**
+	 * @return the names of the stored children of a directory, empty if there are none.
+	 */
+	public String[] getChildNames(String path);
+
+	/**
+	 * @return true if the path is known by the store as a directory, even if
+	 * the directory inode itself is missing.
+	 */
+	public boolean isDirectory(String path);
+
+	/**
+	 * Persists the inode under its current path.
+	 */
+	public void writeInode(VirtualFileSystemInode inode) throws IOException;
+
+	/**
+	 * Removes the inode and, if it is a directory, everything below it.
+	 */
+	public void deleteInode(String path);
+
+	/**
+	 * Removes only the stored data for this path, leaving any children in
+	 * place, this is used to get rid of unreadable inodes.
+	 * @return true if there was something stored for this path.
+	 */
+	public boolean discardInode(String path);
+
+	/**
+	 * Moves the inode and everything below it to a new path.
+	 */
+	public void renameInode(String source, String destination)
+			throws FileNotFoundException, PermissionDeniedException;
+
+	/**
+	 * Makes sure everything written so far is on disk and releases any resources held.
+	 */
+	public void close();
+}
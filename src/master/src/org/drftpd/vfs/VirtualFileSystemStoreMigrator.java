@@ -0,0 +1,125 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Copies a whole VFS tree from one store into a {@link JournalVirtualFileSystemStore}.<br>
+ * This is run once, the first time the master starts with the journal backend
+ * while an XML tree exists, the source tree is left untouched.<br>
+ * The journal is built in a temporary directory which is only moved into place
+ * once complete, so a master dying halfway migrates again on the next start.
+ */
+public class VirtualFileSystemStoreMigrator {
+
+	private static final Logger logger = Logger.getLogger(VirtualFileSystemStoreMigrator.class);
+
+	private VirtualFileSystemStore _source;
+
+	private JournalVirtualFileSystemStore _target;
+
+	private VirtualFileSystemInodeCodec _codec = new VirtualFileSystemInodeCodec();
+
+	private int _migrated;
+
+	private int _failed;
+
+	public VirtualFileSystemStoreMigrator(VirtualFileSystemStore source, JournalVirtualFileSystemStore target) {
+		_source = source;
+		_target = target;
+	}
+
+	/**
+	 * Migrates the source tree into a new journal store in the directory,
+	 * which must not hold a journal store yet.
+	 * @return the number of inodes migrated.
+	 */
+	public static int migrate(VirtualFileSystemStore source, String directory) throws IOException {
+		File target = new File(directory);
+		File tmp = new File(directory + ".migrating");
+		if (tmp.exists()) {
+			logger.warn("Discarding the interrupted VFS migration in " + tmp.getPath());
+			recursiveDelete(tmp);
+		}
+		JournalVirtualFileSystemStore store = new JournalVirtualFileSystemStore(tmp.getPath());
+		int migrated;
+		try {
+			migrated = new VirtualFileSystemStoreMigrator(source, store).migrate();
+		} finally {
+			store.close();
+		}
+		// an empty leftover directory would stop the move
+		recursiveDelete(target);
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		return migrated;
+	}
+
+	/**
+	 * Walks the source tree and writes every readable inode into the target,
+	 * then compacts the target so the result ends up in its snapshot.
+	 * @return the number of inodes migrated.
+	 */
+	public int migrate() throws IOException {
+		long start = System.currentTimeMillis();
+		logger.info("Migrating the VFS to the journal backend, this can take a while");
+		copy(VirtualFileSystem.separator);
+		_target.compact();
+		logger.info("Migrated " + _migrated + " inodes (" + _failed + " unreadable) in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return _migrated;
+	}
+
+	private void copy(String path) throws IOException {
+		boolean isDirectory = _source.isDirectory(path);
+		try {
+			_target.putInode(path, isDirectory, _codec.encode(_source.readInode(path)));
+			_migrated++;
+			if (_migrated % 100000 == 0) {
+				logger.info("Migrated " + _migrated + " inodes so far");
+			}
+		} catch (FileNotFoundException e) {
+			// directory without its inode, loadInode() recreates these
+		} catch (IOException e) {
+			_failed++;
+			logger.warn("Unable to migrate " + path + ", skipping it", e);
+		}
+		if (isDirectory) {
+			String prefix = path.equals(VirtualFileSystem.separator) ? path : path + VirtualFileSystem.separator;
+			for (String child : _source.getChildNames(path)) {
+				copy(prefix + child);
+			}
+		}
+	}
+
+	private static void recursiveDelete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				recursiveDelete(child);
+			}
+		}
+		file.delete();
+	}
+}
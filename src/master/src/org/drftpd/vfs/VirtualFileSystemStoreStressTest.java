@@ -0,0 +1,250 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.vfs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the XML and journal VFS stores and checks that the journal
+ * survives a reopen, renames, deletes and compaction.<br>
+ * The tree size can be changed by simple code changes, a few thousand
+ * inodes are enough to see the difference.
+ */
+public class VirtualFileSystemStoreStressTest extends TestCase {
+
+	private static final int DIRECTORIES = 20;
+
+	private static final int FILES = 100;
+
+	private File _tmp;
+
+	private VirtualFileSystemRoot _root;
+
+	private List<VirtualFileSystemInode> _inodes;
+
+	public VirtualFileSystemStoreStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_tmp = File.createTempFile("vfsstore", "");
+		_tmp.delete();
+		_tmp.mkdirs();
+		_inodes = new ArrayList<VirtualFileSystemInode>();
+		_root = new VirtualFileSystemRoot("drftpd", "drftpd");
+		_inodes.add(_root);
+		for (int x = 0; x < DIRECTORIES; x++) {
+			VirtualFileSystemDirectory dir = new VirtualFileSystemDirectory("user" + x, "group");
+			dir.setName("Release-" + x);
+			dir.setParent(_root);
+			dir.setSize(FILES * 1000L);
+			_inodes.add(dir);
+			for (int y = 0; y < FILES; y++) {
+				VirtualFileSystemFile file = new VirtualFileSystemFile("user" + x, "group", 1000L, "slave" + (y % 3));
+				file.setName("file" + y + ".rar");
+				file.setParent(dir);
+				file.getKeyedMap().setObject(VirtualFileSystemFile.CRC, (long) y);
+				file.getKeyedMap().setObject(VirtualFileSystemFile.XFERTIME, 500L);
+				if (y == 0) {
+					// bean metadata takes the slower embedded XML route
+					file.getUntypedPluginMap().put("genres", new ArrayList<String>(Arrays.asList("Rock", "Pop")));
+				}
+				_inodes.add(file);
+			}
+		}
+	}
+
+	protected void tearDown() {
+		recursiveDelete(_tmp);
+	}
+
+	public void testJournalRoundTrip() throws IOException {
+		String path = new File(_tmp, "journal").getPath();
+		JournalVirtualFileSystemStore store = new JournalVirtualFileSystemStore(path);
+		assertTrue(store.isNew());
+		for (VirtualFileSystemInode inode : _inodes) {
+			store.writeInode(inode);
+		}
+		store.close();
+
+		store = new JournalVirtualFileSystemStore(path);
+		assertFalse(store.isNew());
+		assertEquals(_inodes.size(), store.getInodeCount());
+		assertEquals(DIRECTORIES, store.getChildNames("/").length);
+		assertTrue(store.isDirectory("/Release-1"));
+		VirtualFileSystemFile file = (VirtualFileSystemFile) store.readInode("/Release-1/file0.rar");
+		assertEquals(1000L, file.getSize());
+		assertEquals(0L, file.getChecksum());
+		assertEquals("slave0", file.getSlaves().iterator().next());
+		assertEquals(Arrays.asList("Rock", "Pop"), file.getUntypedPluginMetaData("genres"));
+		VirtualFileSystemDirectory dir = (VirtualFileSystemDirectory) store.readInode("/Release-1");
+		assertEquals(FILES * 1000L, dir.getSize());
+
+		store.renameInode("/Release-1", "/Renamed");
+		store.deleteInode("/Release-2");
+		store.close();
+
+		store = new JournalVirtualFileSystemStore(path);
+		assertFalse(store.isDirectory("/Release-1"));
+		assertFalse(store.isDirectory("/Release-2"));
+		assertEquals(FILES, store.getChildNames("/Renamed").length);
+		assertEquals(7L, ((VirtualFileSystemFile) store.readInode("/Renamed/file7.rar")).getChecksum());
+		try {
+			store.readInode("/Release-2/file1.rar");
+			fail("Deleted inode was still readable");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+		store.compact();
+		store.close();
+
+		store = new JournalVirtualFileSystemStore(path);
+		assertEquals(_inodes.size() - FILES - 1, store.getInodeCount());
+		assertEquals(7L, ((VirtualFileSystemFile) store.readInode("/Renamed/file7.rar")).getChecksum());
+		store.close();
+	}
+
+	public void testInterruptedMigration() throws IOException {
+		// any store can be the source, the XML one is the usual
+		JournalVirtualFileSystemStore source = new JournalVirtualFileSystemStore(new File(_tmp, "source").getPath());
+		for (VirtualFileSystemInode inode : _inodes) {
+			source.writeInode(inode);
+		}
+		String path = new File(_tmp, "journal").getPath();
+		// a master which died halfway left a partial journal behind
+		JournalVirtualFileSystemStore partial = new JournalVirtualFileSystemStore(path + ".migrating");
+		partial.writeInode(_root);
+		partial.close();
+		assertFalse(JournalVirtualFileSystemStore.exists(path));
+
+		assertEquals(_inodes.size(), VirtualFileSystemStoreMigrator.migrate(source, path));
+		assertTrue(JournalVirtualFileSystemStore.exists(path));
+		assertFalse(new File(path + ".migrating").exists());
+		JournalVirtualFileSystemStore store = new JournalVirtualFileSystemStore(path);
+		assertEquals(_inodes.size(), store.getInodeCount());
+		assertEquals(7L, ((VirtualFileSystemFile) store.readInode("/Release-1/file7.rar")).getChecksum());
+		store.close();
+		source.close();
+	}
+
+	public void testCompactWhileWriting() throws Exception {
+		String path = new File(_tmp, "journal").getPath();
+		final JournalVirtualFileSystemStore store = new JournalVirtualFileSystemStore(path);
+		for (VirtualFileSystemInode inode : _inodes) {
+			store.writeInode(inode);
+		}
+		final Exception[] error = new Exception[1];
+		Thread compaction = new Thread() {
+			public void run() {
+				try {
+					store.compact();
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		compaction.start();
+		// these land before, during or after the rewrite depending on timing
+		store.renameInode("/Release-1", "/Renamed");
+		store.deleteInode("/Release-2");
+		for (VirtualFileSystemInode inode : _inodes) {
+			if (inode.getPath().equals("/Release-3/file5.rar")) {
+				inode.getKeyedMap().setObject(VirtualFileSystemFile.CRC, 99L);
+				store.writeInode(inode);
+			}
+		}
+		while (compaction.isAlive()) {
+			store.writeInode(_root);
+		}
+		assertNull(error[0]);
+		assertEquals(7L, ((VirtualFileSystemFile) store.readInode("/Renamed/file7.rar")).getChecksum());
+		store.compact();
+		store.writeInode(_root);
+		store.close();
+
+		JournalVirtualFileSystemStore reopened = new JournalVirtualFileSystemStore(path);
+		assertEquals(_inodes.size() - FILES - 1, reopened.getInodeCount());
+		assertFalse(reopened.isDirectory("/Release-2"));
+		assertEquals(FILES, reopened.getChildNames("/Renamed").length);
+		assertEquals(7L, ((VirtualFileSystemFile) reopened.readInode("/Renamed/file7.rar")).getChecksum());
+		assertEquals(99L, ((VirtualFileSystemFile) reopened.readInode("/Release-3/file5.rar")).getChecksum());
+		reopened.close();
+	}
+
+	public void testXMLThroughput() throws IOException {
+		benchmark("xml", new XMLVirtualFileSystemStore(new File(_tmp, "xml").getPath()), null);
+	}
+
+	public void testJournalThroughput() throws IOException {
+		String path = new File(_tmp, "journal").getPath();
+		benchmark("journal", new JournalVirtualFileSystemStore(path), path);
+	}
+
+	private void benchmark(String name, VirtualFileSystemStore store, String journalPath) throws IOException {
+		long start = System.nanoTime();
+		for (VirtualFileSystemInode inode : _inodes) {
+			store.writeInode(inode);
+		}
+		store.close();
+		long commit = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		if (journalPath != null) {
+			store = new JournalVirtualFileSystemStore(journalPath);
+		}
+		int loaded = load(store, "/");
+		store.close();
+		long load = System.nanoTime() - start;
+
+		assertEquals(_inodes.size(), loaded);
+		System.out.println(name + ": committed " + _inodes.size() + " inodes in " + (commit / 1000000) + "ms ("
+				+ rate(commit) + " inodes/s), loaded in " + (load / 1000000) + "ms (" + rate(load) + " inodes/s)");
+	}
+
+	private int load(VirtualFileSystemStore store, String path) throws IOException {
+		store.readInode(path);
+		int count = 1;
+		if (store.isDirectory(path)) {
+			String prefix = path.equals("/") ? path : path + "/";
+			for (String child : store.getChildNames(path)) {
+				count += load(store, prefix + child);
+			}
+		}
+		return count;
+	}
+
+	private long rate(long nanos) {
+		return _inodes.size() * 1000000000L / Math.max(nanos, 1);
+	}
+
+	private void recursiveDelete(File file) {
+		if (file.isDirectory()) {
+			for (File child : file.listFiles()) {
+				recursiveDelete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -49,6 +49,10 @@ public class ImmutableInodeHandle {
 	public long getLastModified() {
 		return _inode.getLastModified();
 	}
+
+	public long getCreationTime() {
+		return _inode.getCreationTime();
+	}
 	
 	public String getName() {
 		return _inode.getName();
@@ -24,8 +24,10 @@ import java.util.List;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
+import org.drftpd.permissions.CompiledPathPermissions;
 import org.drftpd.permissions.GlobPathPermission;
 import org.drftpd.permissions.PathPermission;
 import org.drftpd.usermanager.User;
@@ -47,6 +49,10 @@ public class VFSPermissions {
 	private HashMap<String, HashMap<String, LinkedList<PathPermission>>> _pathPerms;	
 	private HashMap<String, String> _directiveToType;
 	private HashMap<String, TreeMap<Integer, String>> _priorities;
+
+	// the rules of every type in execution order, built on first use
+	private ConcurrentHashMap<String, CompiledPathPermissions> _compiled =
+		new ConcurrentHashMap<String, CompiledPathPermissions>();
 	
 	public VFSPermissions() {
 		loadExtensions();
@@ -136,7 +142,7 @@ public class VFSPermissions {
 		pw.handle(directive, st);
 	}
 	
-	protected void addPermissionToMap(String directive, PathPermission pathPerm) {
+	protected synchronized void addPermissionToMap(String directive, PathPermission pathPerm) {
 		String type = _directiveToType.get(directive);
 		
 		HashMap<String, LinkedList<PathPermission>> map = _pathPerms.get(type);
@@ -155,6 +161,25 @@ public class VFSPermissions {
 		}
 		
 		list.add(pathPerm);
+		_compiled.remove(type);
+	}
+
+	private synchronized CompiledPathPermissions compile(String type, HashMap<String, LinkedList<PathPermission>> map,
+			TreeMap<Integer, String> order) {
+		CompiledPathPermissions compiled = _compiled.get(type);
+		if (compiled == null) {
+			LinkedList<PathPermission> rules = new LinkedList<PathPermission>();
+			for (String directive : order.values()) {
+				LinkedList<PathPermission> perms = map.get(directive);
+				if (perms != null) {
+					// 'directive' was found in perms.conf
+					rules.addAll(perms);
+				}
+			}
+			compiled = new CompiledPathPermissions(rules);
+			_compiled.put(type, compiled);
+		}
+		return compiled;
 	}
 	
 	public boolean checkPathPermission(String type, User user, InodeHandle inode) {
@@ -184,29 +209,44 @@ public class VFSPermissions {
 			throw npe;
 		}
 				
-		for (Entry<Integer, String> entry : order.entrySet()) {
-			String directive = entry.getValue();
-			
+		CompiledPathPermissions compiled = _compiled.get(type);
+		if (compiled == null) {
+			compiled = compile(type, map, order);
+		}
+
+		int rule = compiled.getMatchingRule(inode);
+		if (rule == -1) {
+			return defaults;
+		}
+		if (invertUserSemantic) {
+			return !compiled.check(rule, user);
+		}
+		return compiled.check(rule, user);
+	}
+
+	/**
+	 * Users with the same permission class get the same answer from
+	 * {@link #checkPathPermission(String, User, InodeHandle)} for this type on any path,
+	 * since only the first matching rule decides.
+	 * @return the outcome of every rule of this type for the user, ie. "0110".
+	 */
+	public String getPermissionClass(String type, User user) {
+		HashMap<String, LinkedList<PathPermission>> map = _pathPerms.get(type);
+		TreeMap<Integer, String> order = _priorities.get(type);
+		if (map == null || order == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String directive : order.values()) {
 			LinkedList<PathPermission> perms = map.get(directive);
-			
 			if (perms == null) {
-				// 'directive' was not found in perms.conf
 				continue;
 			}
-			
-			if (!perms.isEmpty()) {
-				for (PathPermission perm : perms) {
-					if (perm.checkPath(inode)) {
-						if (invertUserSemantic) {
-							return !perm.check(user);
-						}
-						return perm.check(user);
-					}
-				}
+			for (PathPermission perm : perms) {
+				sb.append(perm.check(user) ? '1' : '0');
 			}
 		}
-		
-		return defaults;
+		return sb.toString();
 	}
 
 	public String getPrivPathRegex() {
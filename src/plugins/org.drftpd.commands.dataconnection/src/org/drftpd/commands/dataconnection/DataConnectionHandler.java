@@ -27,6 +27,7 @@ import java.util.ResourceBundle;
 import java.util.StringTokenizer;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 
 import org.apache.log4j.Logger;
@@ -116,6 +117,26 @@ public class DataConnectionHandler extends CommandInterface {
 		//reply success
 		conn.printOutput(new FtpReply(234, request.getCommand()
 				+ " " + request.getArgument() + " successful").toString());
+		if (conn.getControlChannel() != null) {
+			// nio engine, the handshake is driven by the selector thread
+			try {
+				SSLEngine engine = ctx.createSSLEngine();
+				String[] cipherSuites = GlobalContext.getConfig().getCipherSuites();
+				if (cipherSuites != null && cipherSuites.length > 0) {
+					engine.setEnabledCipherSuites(cipherSuites);
+				}
+				String[] sslProtocols = GlobalContext.getConfig().getSSLProtocols();
+				if (sslProtocols != null && sslProtocols.length > 0) {
+					engine.setEnabledProtocols(sslProtocols);
+				}
+				conn.getControlChannel().startTLS(engine);
+				conn.authDone();
+			} catch (IOException e) {
+				logger.warn("", e);
+				conn.stop(e.getMessage());
+			}
+			return null;
+		}
 		SSLSocket s2 = null;
 		try {
 			s2 = (SSLSocket) ctx.getSocketFactory().createSocket(s,
@@ -486,7 +507,7 @@ public class DataConnectionHandler extends CommandInterface {
 			return new CommandResponse(500, "TLS not configured");
 		}
 
-		if (!(conn.getControlSocket() instanceof SSLSocket)) {
+		if (!conn.isSecure()) {
 			return new CommandResponse(500, "You are not on a secure channel");
 		}
 
@@ -512,7 +533,7 @@ public class DataConnectionHandler extends CommandInterface {
 			return new CommandResponse(500, "TLS not configured");
 		}
 
-		if (!(conn.getControlSocket() instanceof SSLSocket)) {
+		if (!conn.isSecure()) {
 			return new CommandResponse(500, "You are not on a secure channel");
 		}
 
@@ -964,7 +985,8 @@ public class DataConnectionHandler extends CommandInterface {
 					ts.sendFile(ts.getTransferFile().getPath(), ts.getType(),
 							ts.getResumePosition(), address,
 							request.getObjectLong(MIN_XFER_SPEED),
-							request.getObjectLong(MAX_XFER_SPEED));
+							request.getObjectLong(MAX_XFER_SPEED),
+							user.getName(), user.getGroup());
 
 					while (true) {
 						synchronized(ts) {
@@ -983,7 +1005,8 @@ public class DataConnectionHandler extends CommandInterface {
 					ts.receiveFile(ts.getTransferFile().getPath(), ts.getType(),
 							ts.getResumePosition(), address,
 							request.getObjectLong(MIN_XFER_SPEED),
-							request.getObjectLong(MAX_XFER_SPEED));
+							request.getObjectLong(MAX_XFER_SPEED),
+							user.getName(), user.getGroup());
 
 					while (true) {
 						synchronized(ts) {
@@ -28,7 +28,7 @@ import org.drftpd.vfs.event.VirtualFileSystemInodeCreatedEvent;
 
 import java.util.ArrayList;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * @author scitz0
@@ -47,7 +47,7 @@ public class IMDBConfig {
 	private boolean _bar_enabled, _bar_directory, _sRelease;
 
 	private IMDBThread _imdbThread = new IMDBThread();
-	private ConcurrentLinkedQueue<DirectoryHandle> _parseQueue = new ConcurrentLinkedQueue<DirectoryHandle>();
+	private LinkedBlockingQueue<DirectoryHandle> _parseQueue = new LinkedBlockingQueue<DirectoryHandle>();
 
 	public static IMDBConfig getInstance() {
 		if (ourInstance == null)
@@ -147,8 +147,8 @@ public class IMDBConfig {
 		return _imdbThread;
 	}
 
-	public DirectoryHandle getDirToProcess() {
-		return _parseQueue.poll();
+	public DirectoryHandle getDirToProcess() throws InterruptedException {
+		return _parseQueue.take();
 	}
 
 	public int getQueueSize() {
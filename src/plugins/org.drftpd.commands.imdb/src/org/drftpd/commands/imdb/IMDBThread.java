@@ -38,13 +38,10 @@ public class IMDBThread extends Thread {
 				if (Thread.interrupted()) {
 					throw new InterruptedException();
 				}
-				// Process one item in queue
+				// Wait for the next item in queue, requests are paced by the shared http client
 				DirectoryHandle dir = IMDBConfig.getInstance().getDirToProcess();
-				if (dir != null) {
-					logger.debug("Fetching IMDB data for " + dir.getPath());
-					IMDBUtils.getIMDBInfo(dir, true);
-				}
-				Thread.sleep(IMDBUtils.randomNumber());
+				logger.debug("Fetching IMDB data for " + dir.getPath());
+				IMDBUtils.getIMDBInfo(dir, true);
 			} catch (InterruptedException ie) {
 				logger.info("IMDBThread interrupted, thread closing");
 				break;
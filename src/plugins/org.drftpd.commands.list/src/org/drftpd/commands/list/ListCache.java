@@ -0,0 +1,335 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.list;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bushe.swing.event.annotation.AnnotationProcessor;
+import org.bushe.swing.event.annotation.EventSubscriber;
+import org.drftpd.GlobalContext;
+import org.drftpd.PropertyHelper;
+import org.drftpd.event.ReloadEvent;
+import org.drftpd.event.SlaveEvent;
+import org.drftpd.vfs.VirtualFileSystem;
+import org.drftpd.vfs.event.VirtualFileSystemEvent;
+import org.drftpd.vfs.event.VirtualFileSystemInodeDeletedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemRenameEvent;
+
+/**
+ * Keeps recently rendered listings, per directory, listing format and
+ * privpath class, so clients listing the same directories over and over
+ * don't have the directory walked, checked and rendered every time.<br>
+ * A directory's listings are dropped by the VFS events of its entries,
+ * everything is dropped when a slave comes or goes and on reload, and
+ * 'list.cache.ttl' bounds how long changes without an event can go unseen.
+ * @version $Id$
+ */
+public class ListCache {
+	private static final Logger logger = Logger.getLogger(ListCache.class);
+
+	private static ListCache _instance;
+
+	private ConcurrentSkipListMap<String, CachedDirectory> _directories =
+		new ConcurrentSkipListMap<String, CachedDirectory>();
+
+	private Object _evictLock = new Object();
+
+	/**
+	 * Characters held by all listings.
+	 */
+	private AtomicLong _size = new AtomicLong();
+
+	private volatile long _ttl;
+
+	private volatile long _maxSize;
+
+	private AtomicLong _hits = new AtomicLong();
+
+	private AtomicLong _misses = new AtomicLong();
+
+	private AtomicLong _invalidations = new AtomicLong();
+
+	private AtomicLong _evictions = new AtomicLong();
+
+	/**
+	 * @param ttl milliseconds a listing is kept for, 0 disables the cache.
+	 * @param maxSize characters kept for all listings together.
+	 */
+	protected ListCache(long ttl, long maxSize) {
+		_ttl = ttl;
+		_maxSize = maxSize;
+	}
+
+	/**
+	 * @return the unique ListCache instance, creating it if it does not exist yet.
+	 */
+	public static synchronized ListCache getListCache() {
+		if (_instance == null) {
+			_instance = new ListCache(0L, 0L);
+			_instance.configure(GlobalContext.getConfig().getMainProperties());
+			AnnotationProcessor.process(_instance);
+		}
+		return _instance;
+	}
+
+	private void configure(Properties cfg) {
+		long ttl = 10L;
+		long memory = 16L;
+		try {
+			ttl = Long.parseLong(PropertyHelper.getProperty(cfg, "list.cache.ttl", "10").trim());
+			memory = Long.parseLong(PropertyHelper.getProperty(cfg, "list.cache.memory", "16").trim());
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid list.cache.ttl or list.cache.memory, using " + ttl + " and " + memory);
+		}
+		_ttl = ttl * 1000L;
+		// chars are two bytes each
+		_maxSize = memory * 1024L * 1024L / 2L;
+	}
+
+	public boolean isEnabled() {
+		return _ttl > 0 && _maxSize > 0;
+	}
+
+	/**
+	 * @return the cache entry of the directory, listings missing from it are
+	 * rendered and handed to {@link CachedDirectory#put(String, String)}.
+	 */
+	public CachedDirectory getDirectory(String path) {
+		CachedDirectory dir = _directories.get(path);
+		if (dir == null) {
+			CachedDirectory created = new CachedDirectory(path);
+			dir = _directories.putIfAbsent(path, created);
+			if (dir == null) {
+				dir = created;
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * Drops the listings of the directory holding this path.
+	 */
+	public void invalidateParent(String path) {
+		if (!path.equals(VirtualFileSystem.separator)) {
+			invalidate(VirtualFileSystem.stripLast(path));
+		}
+	}
+
+	/**
+	 * Drops the listings of this directory and of every directory below it.
+	 */
+	public void invalidateTree(String path) {
+		invalidate(path);
+		String prefix = path.endsWith(VirtualFileSystem.separator) ? path : path + VirtualFileSystem.separator;
+		// '0' is the character after the separator
+		for (String child : _directories.subMap(prefix, prefix.substring(0, prefix.length() - 1) + "0").keySet()) {
+			invalidate(child);
+		}
+	}
+
+	public void clear() {
+		for (String path : _directories.keySet()) {
+			invalidate(path);
+		}
+	}
+
+	private void invalidate(String path) {
+		CachedDirectory dir = _directories.remove(path);
+		if (dir != null && dir.release()) {
+			_invalidations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Drops expired listings, and directories left without any.
+	 */
+	private void sweep() {
+		synchronized (_evictLock) {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String, CachedDirectory> entry : _directories.entrySet()) {
+				CachedDirectory dir = entry.getValue();
+				if (dir.expire(now) && _directories.remove(entry.getKey(), dir)) {
+					dir.release();
+				}
+			}
+		}
+	}
+
+	private void evict() {
+		synchronized (_evictLock) {
+			if (_size.get() <= _maxSize) {
+				return;
+			}
+			sweep();
+			// still too much, drop whole directories until a quarter is free again
+			for (Iterator<Map.Entry<String, CachedDirectory>> iter = _directories.entrySet().iterator();
+					iter.hasNext() && _size.get() > _maxSize * 3 / 4;) {
+				Map.Entry<String, CachedDirectory> entry = iter.next();
+				if (_directories.remove(entry.getKey(), entry.getValue()) && entry.getValue().release()) {
+					_evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	@EventSubscriber
+	public void onVirtualFileSystemEvent(VirtualFileSystemEvent event) {
+		String path = event.getImmutableInode().getPath();
+		invalidateParent(path);
+		if (event instanceof VirtualFileSystemRenameEvent) {
+			String source = ((VirtualFileSystemRenameEvent) event).getSource().getPath();
+			invalidateParent(source);
+			invalidateTree(source);
+		} else if (event instanceof VirtualFileSystemInodeDeletedEvent) {
+			invalidateTree(path);
+		}
+	}
+
+	@EventSubscriber
+	public void onSlaveEvent(SlaveEvent event) {
+		// files on the slave became available or unavailable
+		if (event.getCommand().equals("ADDSLAVE") || event.getCommand().equals("DELSLAVE")) {
+			clear();
+		}
+	}
+
+	@EventSubscriber
+	public void onReloadEvent(ReloadEvent event) {
+		configure(GlobalContext.getConfig().getMainProperties());
+		clear();
+	}
+
+	public long getHits() {
+		return _hits.get();
+	}
+
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	public long getInvalidations() {
+		return _invalidations.get();
+	}
+
+	public long getEvictions() {
+		return _evictions.get();
+	}
+
+	public int getDirectoryCount() {
+		return _directories.size();
+	}
+
+	/**
+	 * @return the approximate memory used by the cached listings, in bytes.
+	 */
+	public long getMemory() {
+		return _size.get() * 2L;
+	}
+
+	/**
+	 * The listings of one directory, once released by an invalidation
+	 * nothing rendered before it can be added anymore.
+	 */
+	public class CachedDirectory {
+		private ConcurrentHashMap<String, CachedListing> _listings = new ConcurrentHashMap<String, CachedListing>();
+
+		private boolean _released;
+
+		private String _path;
+
+		private CachedDirectory(String path) {
+			_path = path;
+		}
+
+		public String getPath() {
+			return _path;
+		}
+
+		/**
+		 * @return the listing for this format and permission class, null if it has to be rendered.
+		 */
+		public String get(String key) {
+			CachedListing listing = _listings.get(key);
+			if (listing != null && listing._expires > System.currentTimeMillis()) {
+				_hits.incrementAndGet();
+				return listing._text;
+			}
+			if (_misses.incrementAndGet() % 1000 == 0) {
+				sweep();
+			}
+			return null;
+		}
+
+		public void put(String key, String text) {
+			synchronized (this) {
+				if (_released) {
+					return;
+				}
+				CachedListing old = _listings.put(key, new CachedListing(text, System.currentTimeMillis() + _ttl));
+				_size.addAndGet(text.length() - (old == null ? 0 : old._text.length()));
+			}
+			if (_size.get() > _maxSize) {
+				evict();
+			}
+		}
+
+		/**
+		 * @return true if no listing is left.
+		 */
+		private synchronized boolean expire(long now) {
+			for (Iterator<CachedListing> iter = _listings.values().iterator(); iter.hasNext();) {
+				CachedListing listing = iter.next();
+				if (listing._expires <= now) {
+					iter.remove();
+					_size.addAndGet(-listing._text.length());
+				}
+			}
+			return _listings.isEmpty();
+		}
+
+		/**
+		 * @return true if this held any listings.
+		 */
+		private synchronized boolean release() {
+			_released = true;
+			long size = 0;
+			for (CachedListing listing : _listings.values()) {
+				size += listing._text.length();
+			}
+			_listings.clear();
+			_size.addAndGet(-size);
+			return size > 0;
+		}
+	}
+
+	private static class CachedListing {
+		private String _text;
+
+		private long _expires;
+
+		private CachedListing(String text, long expires) {
+			_text = text;
+			_expires = expires;
+		}
+	}
+}
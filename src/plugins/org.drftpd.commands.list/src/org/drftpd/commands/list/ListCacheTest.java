@@ -0,0 +1,92 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.list;
+
+import junit.framework.TestCase;
+
+import org.drftpd.commands.list.ListCache.CachedDirectory;
+
+/**
+ * @version $Id$
+ */
+public class ListCacheTest extends TestCase {
+
+	private ListCache _cache;
+
+	public ListCacheTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_cache = new ListCache(60000L, 1000L);
+	}
+
+	public void testHit() {
+		CachedDirectory dir = _cache.getDirectory("/dir");
+		assertNull(dir.get("list:1"));
+		dir.put("list:1", "listing");
+		assertEquals("listing", _cache.getDirectory("/dir").get("list:1"));
+		assertNull(_cache.getDirectory("/dir").get("list:0"));
+		assertEquals(1, _cache.getHits());
+		assertEquals(2, _cache.getMisses());
+	}
+
+	public void testInvalidateParent() {
+		_cache.getDirectory("/dir").put("list:", "dir");
+		_cache.getDirectory("/dir/sub").put("list:", "sub");
+		_cache.invalidateParent("/dir/file.rar");
+		assertNull(_cache.getDirectory("/dir").get("list:"));
+		assertEquals("sub", _cache.getDirectory("/dir/sub").get("list:"));
+		assertEquals(1, _cache.getInvalidations());
+	}
+
+	public void testInvalidateTree() {
+		_cache.getDirectory("/dir").put("list:", "dir");
+		_cache.getDirectory("/dir/sub").put("list:", "sub");
+		_cache.getDirectory("/dir/sub/cd1").put("list:", "cd1");
+		_cache.getDirectory("/dir2").put("list:", "dir2");
+		_cache.invalidateTree("/dir");
+		assertNull(_cache.getDirectory("/dir/sub").get("list:"));
+		assertNull(_cache.getDirectory("/dir/sub/cd1").get("list:"));
+		assertEquals("dir2", _cache.getDirectory("/dir2").get("list:"));
+		assertEquals(3, _cache.getInvalidations());
+	}
+
+	public void testReleasedDirectoryIgnoresPut() {
+		// rendered before the invalidation, stored after it
+		CachedDirectory dir = _cache.getDirectory("/dir");
+		_cache.invalidateTree("/dir");
+		dir.put("list:", "stale");
+		assertNull(_cache.getDirectory("/dir").get("list:"));
+		assertEquals(0, _cache.getMemory());
+	}
+
+	public void testEviction() {
+		for (int i = 0; i < 10; i++) {
+			_cache.getDirectory("/dir" + i).put("list:", new String(new char[200]));
+		}
+		assertTrue(_cache.getMemory() <= 1000L * 2L);
+		assertTrue(_cache.getEvictions() > 0);
+	}
+
+	public void testExpiry() throws InterruptedException {
+		_cache = new ListCache(1L, 1000L);
+		_cache.getDirectory("/dir").put("list:", "listing");
+		Thread.sleep(5L);
+		assertNull(_cache.getDirectory("/dir").get("list:"));
+	}
+}
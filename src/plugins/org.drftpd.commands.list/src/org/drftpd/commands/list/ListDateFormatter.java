@@ -0,0 +1,143 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.list;
+
+import java.util.TimeZone;
+
+/**
+ * Formats listing dates straight into a {@link StringBuilder}.<br>
+ * Unlike the shared SimpleDateFormat instances this replaces it keeps no
+ * state, so any number of listings can use it at once without locking, and
+ * it does not create a Date or Calendar per entry.
+ * @version $Id$
+ */
+public final class ListDateFormatter {
+
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May",
+		"Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	private static final long DAY = 24L * 60L * 60L * 1000L;
+
+	private static final long SIX_MONTHS = 183L * DAY;
+
+	private static final TimeZone LOCAL = TimeZone.getDefault();
+
+	private ListDateFormatter() {
+	}
+
+	/**
+	 * Appends the ls style date, ie. "Jan  5 12:34", "Jan  5  2009" for dates more than
+	 * six months away from <code>now</code> or "Jan  5 12:34:56 2009" if <code>fulldate</code>.
+	 */
+	public static void appendUnixDate(StringBuilder out, long date, boolean fulldate, long now) {
+		if (date < 0) {
+			out.append("------------");
+			return;
+		}
+		long local = date + LOCAL.getOffset(date);
+		long days = floorDiv(local, DAY);
+		int millisOfDay = (int) (local - days * DAY);
+		long civil = civil(days);
+		int year = (int) (civil >> 9);
+		int month = (int) ((civil >> 5) & 0xF);
+		int day = (int) (civil & 0x1F);
+
+		out.append(MONTHS[month - 1]).append(' ');
+		if (day < 10) {
+			out.append(' ');
+		}
+		out.append(day).append(' ');
+		if (fulldate) {
+			appendTime(out, millisOfDay, true);
+			out.append(' ');
+			appendPadded(out, year, 4);
+		} else if (Math.abs(now - date) > SIX_MONTHS) {
+			out.append(' ');
+			appendPadded(out, year, 4);
+		} else {
+			appendTime(out, millisOfDay, false);
+		}
+	}
+
+	/**
+	 * Appends the MLST timestamp in GMT, ie. "20090105123456.789".
+	 */
+	public static void appendMLSTTime(StringBuilder out, long date) {
+		long days = floorDiv(date, DAY);
+		int millisOfDay = (int) (date - days * DAY);
+		long civil = civil(days);
+		appendPadded(out, (int) (civil >> 9), 4);
+		appendPadded(out, (int) ((civil >> 5) & 0xF), 2);
+		appendPadded(out, (int) (civil & 0x1F), 2);
+		appendPadded(out, millisOfDay / 3600000, 2);
+		appendPadded(out, (millisOfDay / 60000) % 60, 2);
+		appendPadded(out, (millisOfDay / 1000) % 60, 2);
+		out.append('.');
+		appendPadded(out, millisOfDay % 1000, 3);
+	}
+
+	private static void appendTime(StringBuilder out, int millisOfDay, boolean seconds) {
+		appendPadded(out, millisOfDay / 3600000, 2);
+		out.append(':');
+		appendPadded(out, (millisOfDay / 60000) % 60, 2);
+		if (seconds) {
+			out.append(':');
+			appendPadded(out, (millisOfDay / 1000) % 60, 2);
+		}
+	}
+
+	private static void appendPadded(StringBuilder out, int value, int width) {
+		if (value < 0) {
+			out.append(value);
+			return;
+		}
+		for (int limit = 10; width > 1; width--, limit *= 10) {
+			if (value < limit) {
+				out.append('0');
+			}
+		}
+		out.append(value);
+	}
+
+	/**
+	 * Proleptic gregorian date of a day since the epoch, packed as
+	 * year &lt;&lt; 9 | month &lt;&lt; 5 | day so no array is needed.
+	 */
+	private static long civil(long days) {
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long year = yoe + era * 400;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		long day = doy - (153 * mp + 2) / 5 + 1;
+		long month = mp < 10 ? mp + 3 : mp - 9;
+		if (month <= 2) {
+			year++;
+		}
+		return (year << 9) | (month << 5) | day;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0)) {
+			q--;
+		}
+		return q;
+	}
+}
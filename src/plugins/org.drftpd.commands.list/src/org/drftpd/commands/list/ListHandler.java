@@ -20,21 +20,15 @@ package org.drftpd.commands.list;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.TimeZone;
 
 import org.apache.log4j.Logger;
 import org.bushe.swing.event.annotation.AnnotationProcessor;
@@ -76,20 +70,12 @@ public class ListHandler extends CommandInterface {
 
 	private static final Logger logger = Logger.getLogger(ListHandler.class);
 
-	private static final DateFormat AFTER_SIX = new SimpleDateFormat(" yyyy");
-
-	private static final DateFormat BEFORE_SIX = new SimpleDateFormat("HH:mm");
-
-	private static final DateFormat FULL = new SimpleDateFormat("HH:mm:ss yyyy");
-
-	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May",
-		"Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
-
-	private static final SimpleDateFormat MLSTTIME = new SimpleDateFormat("yyyyMMddHHmmss.SSS");
-
-	static {
-		MLSTTIME.setTimeZone(TimeZone.getTimeZone("GMT"));
-	}
+	private static final ThreadLocal<LineBuffer> LINE_BUFFER = new ThreadLocal<LineBuffer>() {
+		@Override
+		protected LineBuffer initialValue() {
+			return new LineBuffer();
+		}
+	};
 
 	private static final String NEWLINE = "\r\n";
 
@@ -247,33 +233,61 @@ public class ListHandler extends CommandInterface {
 				conn.printOutput(new FtpReply(StandardCommandManager.genericResponse("RESPONSE_150_OK")));
 
 				try {
-					os = new PrintWriter(new OutputStreamWriter(ts.getDataSocketForLIST().getOutputStream()));
+					os = new OutputStreamWriter(ts.getDataSocketForLIST().getOutputStream());
 				} catch (IOException ex) {
 					logger.warn(ex);
 					return new CommandResponse(425, ex.getMessage());
 				}
 			}
-			ListElementsContainer container = null;
-
-			try {
-				container = listElements(directoryFile, conn, request.getUser());
-			} catch (IOException e) {
-				logger.error(e);
-				return new CommandResponse(450, e.getMessage());
+			// MLST and MLSD with an argument only list the matching name
+			ListCache.CachedDirectory cached = null;
+			String cacheKey = null;
+			String listing = null;
+			if ((isStat || isList || (isMlsd && !request.hasArgument())) && ListCache.getListCache().isEnabled()) {
+				cached = ListCache.getListCache().getDirectory(directoryFile.getPath());
+				cacheKey = (isMlsd ? "mlsd:" : fulldate ? "full:" : "list:")
+					+ GlobalContext.getConfig().getVFSPermissions().getPermissionClass("privpath", user);
+				listing = cached.get(cacheKey);
 			}
 
-			// execute list addons.
-			for (AddListElementsInterface listAddon : _listAddons) {
-				container = listAddon.addElements(directoryFile,container);
+			ListElementsContainer container = null;
+
+			if (listing == null) {
+				try {
+					container = listElements(directoryFile, conn, request.getUser());
+				} catch (IOException e) {
+					logger.error(e);
+					return new CommandResponse(450, e.getMessage());
+				}
+			} else {
+				// the directory entries come from the cache, only the addons are left to run
+				container = new ListElementsContainer(conn, request.getUser(), _cManager);
 			}
 
 			try {
+				// offline file names are made for the user, keep those listings out of the cache
+				if (listing == null && cached != null && container.getNumOnline() == container.getNumTotal()) {
+					StringWriter out = new StringWriter();
+					writeElements(out, container.getElements(), isStat || isList, fulldate, request.getArgument());
+					listing = out.toString();
+					cached.put(cacheKey, listing);
+				}
+				int addonStart = listing != null ? container.getElements().size() : 0;
+
+				// execute list addons, their entries are made for the user so they are never cached.
+				for (AddListElementsInterface listAddon : _listAddons) {
+					container = listAddon.addElements(directoryFile,container);
+				}
+
 				if (isStat || isList) {
 					os.write("total 0" + NEWLINE);
-					os.write(toList(container.getElements(), fulldate));
-				} else {
-					os.write(toMLST(container.getElements(),request.getArgument()));
 				}
+				if (listing != null) {
+					os.write(listing);
+				}
+				List<InodeHandleInterface> elements = container.getElements();
+				writeElements(os, elements.subList(addonStart, elements.size()), isStat || isList, fulldate,
+						request.getArgument());
 				if (isStat || isMlst)
 					return response;
 				os.close();
@@ -342,82 +356,103 @@ public class ListHandler extends CommandInterface {
 		return container;
 	}
 
-	private String toMLST(Collection<InodeHandleInterface> listElements, String filename) {
-		StringBuilder output = new StringBuilder();
+	private void writeElements(Writer out, Collection<InodeHandleInterface> elements, boolean isList, boolean fulldate,
+			String filename) throws IOException {
+		if (isList) {
+			writeList(out, elements, fulldate);
+		} else {
+			writeMLST(out, elements, filename);
+		}
+	}
+
+	/**
+	 * Writes the MLST lines one entry at a time, the listing is never built as a whole.
+	 */
+	protected void writeMLST(Writer out, Collection<InodeHandleInterface> listElements, String filename)
+			throws IOException {
+		LineBuffer buffer = LINE_BUFFER.get();
+		StringBuilder line = buffer.getLine();
 
 		for (InodeHandleInterface inode : listElements) {
-			if (filename.isEmpty() || inode.getName().equals(filename)) {
+			if (!filename.isEmpty() && !inode.getName().equals(filename)) {
+				continue;
+			}
+			line.setLength(0);
+			try {
+				if (inode.isLink()) {
+					line.append("type=OS.unix=slink:").append(((LinkHandle) inode).getTargetString()).append(';');
+				} else if (inode.isFile()) {
+					line.append("type=file;");
+				} else if (inode.isDirectory()) {
+					line.append("type=dir;");
+				} else {
+					throw new RuntimeException("type");
+				}
+
+				FileHandle file = null;
+				boolean isFileHandle = false;
+				if (inode.isFile() && inode instanceof FileHandle) {
+					file = (FileHandle) inode;
+					isFileHandle = true;
+				}
+
 				try {
-					StringBuilder line = new StringBuilder();
-					if (inode.isLink()) {
-						line.append("type=OS.unix=slink:" + ((LinkHandle) inode).getTargetString() + ";");
-					} else if (inode.isFile()) {
-						line.append("type=file;");
-					} else if (inode.isDirectory()) {
-						line.append("type=dir;");
-					} else {
-						throw new RuntimeException("type");
-					}
-	
-					FileHandle file = null;
-					boolean isFileHandle = false;
-					if (inode.isFile() && inode instanceof FileHandle) {
-						file = (FileHandle) inode;
-						isFileHandle = true;
-					}
-	
-					try {
-						if (isFileHandle && file.getCheckSum() != 0) {
-							line.append("x.crc32=" + Checksum.formatChecksum(file.getCheckSum())+ ";");
-						}
-					} catch (NoAvailableSlaveException e) {
-						logger.debug("Unable to fetch checksum for: "+inode.getPath());
-					}
-	
-					line.append("size=" + inode.getSize() + ";");
-					synchronized(MLSTTIME) {
-						line.append("modify=" + MLSTTIME.format(new Date(inode.lastModified())) +";");
+					if (isFileHandle && file.getCheckSum() != 0) {
+						line.append("x.crc32=").append(Checksum.formatChecksum(file.getCheckSum())).append(';');
 					}
-	
-					line.append("unix.owner=" + inode.getUsername() + ";");
-					line.append("unix.group=" + inode.getGroup() + ";");
-	
-					if (isFileHandle) {
-						Iterator<RemoteSlave> iter = file.getSlaves().iterator();
-						line.append("x.slaves=");
-	
-						if (iter.hasNext()) {
-							line.append(iter.next().getName());
-	
-							while (iter.hasNext()) {
-								line.append("," + iter.next().getName());
-							}
+				} catch (NoAvailableSlaveException e) {
+					logger.debug("Unable to fetch checksum for: "+inode.getPath());
+				}
+
+				line.append("size=").append(inode.getSize()).append(';');
+				line.append("modify=");
+				ListDateFormatter.appendMLSTTime(line, inode.lastModified());
+				line.append(';');
+
+				line.append("unix.owner=").append(inode.getUsername()).append(';');
+				line.append("unix.group=").append(inode.getGroup()).append(';');
+
+				if (isFileHandle) {
+					Iterator<RemoteSlave> iter = file.getSlaves().iterator();
+					line.append("x.slaves=");
+
+					if (iter.hasNext()) {
+						line.append(iter.next().getName());
+
+						while (iter.hasNext()) {
+							line.append(',').append(iter.next().getName());
 						}
-	
-						line.append(";");
 					}
-	
-					if (isFileHandle && file.getXfertime() != 0) {
-						line.append("x.xfertime=" + file.getXfertime() + ";");
-					}
-	
-					line.append(" " + inode.getName());
-					line.append(NEWLINE);
-					output.append(line.toString());
-				} catch (FileNotFoundException e) {
-					// entry was deleted whilst listing the dir, it will simply be omitted
+
+					line.append(';');
+				}
+
+				if (isFileHandle && file.getXfertime() != 0) {
+					line.append("x.xfertime=").append(file.getXfertime()).append(';');
 				}
+
+				line.append(' ').append(inode.getName());
+				line.append(NEWLINE);
+			} catch (FileNotFoundException e) {
+				// entry was deleted whilst listing the dir, it will simply be omitted
+				continue;
 			}
+			buffer.writeTo(out);
 		}
-		return output.toString();
 	}
 
-	private String toList(Collection<InodeHandleInterface> listElements, boolean fulldate) {
-		StringBuilder output = new StringBuilder();
+	/**
+	 * Writes the LIST lines one entry at a time, the listing is never built as a whole.
+	 */
+	protected void writeList(Writer out, Collection<InodeHandleInterface> listElements, boolean fulldate)
+			throws IOException {
+		LineBuffer buffer = LINE_BUFFER.get();
+		StringBuilder line = buffer.getLine();
+		long now = System.currentTimeMillis();
 
 		for (InodeHandleInterface inode : listElements) {
+			line.setLength(0);
 			try {
-				StringBuilder line = new StringBuilder();
 				if (inode instanceof FileHandle
 						&& !((FileHandle) inode).isAvailable()) {
 					line.append("----------");
@@ -426,27 +461,27 @@ public class ListHandler extends CommandInterface {
 				}
 
 				line.append(DELIM);
-				line.append((inode.isDirectory() ? "3" : "1"));
+				line.append(inode.isDirectory() ? '3' : '1');
 				line.append(DELIM);
-				line.append(padToLength(inode.getUsername(), 8));
+				appendPadded(line, inode.getUsername(), 8);
 				line.append(DELIM);
-				line.append(padToLength(inode.getGroup(), 8));
+				appendPadded(line, inode.getGroup(), 8);
 				line.append(DELIM);
 				line.append(inode.getSize());
 				line.append(DELIM);
-				line.append(getUnixDate(inode.lastModified(), fulldate));
+				ListDateFormatter.appendUnixDate(line, inode.lastModified(), fulldate, now);
 				line.append(DELIM);
 				line.append(inode.getName());
 				if (inode.isLink()) {
-					line.append(DELIM + "->" + DELIM + ((LinkHandle)inode).getTargetString());
+					line.append(DELIM).append("->").append(DELIM).append(((LinkHandle) inode).getTargetString());
 				}
 				line.append(NEWLINE);
-				output.append(line.toString());
 			} catch (FileNotFoundException e) {
 				// entry was deleted whilst listing the dir, it will simply be omitted
+				continue;
 			}
+			buffer.writeTo(out);
 		}
-		return output.toString();
 	}
 
 	protected void addPermission(InodeHandleInterface inode, StringBuilder output) throws FileNotFoundException {
@@ -468,41 +503,9 @@ public class ListHandler extends CommandInterface {
 	}
 
 	protected String getUnixDate(long date, boolean fulldate) {
-		Date date1 = new Date(date);
-		long dateTime = date1.getTime();
-
-		if (dateTime < 0) {
-			return "------------";
-		}
-
-		Calendar cal = new GregorianCalendar();
-		cal.setTime(date1);
-
-		String firstPart = MONTHS[cal.get(Calendar.MONTH)] + ' ';
-
-		String dateStr = String.valueOf(cal.get(Calendar.DATE));
-
-		if (dateStr.length() == 1) {
-			dateStr = ' ' + dateStr;
-		}
-
-		firstPart += (dateStr + ' ');
-
-		long nowTime = System.currentTimeMillis();
-
-		if (fulldate) {
-			synchronized(FULL) {
-				return firstPart + FULL.format(date1);
-			}
-		} else if (Math.abs(nowTime - dateTime) > (183L * 24L * 60L * 60L * 1000L)) {
-			synchronized(AFTER_SIX) {
-				return firstPart + AFTER_SIX.format(date1);
-			}
-		} else {
-			synchronized(BEFORE_SIX) {
-				return firstPart + BEFORE_SIX.format(date1);
-			}
-		}
+		StringBuilder output = new StringBuilder(24);
+		ListDateFormatter.appendUnixDate(output, date, fulldate, System.currentTimeMillis());
+		return output.toString();
 	}
 
 	protected String padToLength(String value, int length) {
@@ -517,6 +520,13 @@ public class ListHandler extends CommandInterface {
 		return PADDING.substring(0, length - value.length()) + value;
 	}
 
+	private static void appendPadded(StringBuilder output, String value, int length) {
+		for (int i = value.length(); i < length; i++) {
+			output.append(' ');
+		}
+		output.append(value);
+	}
+
 	@EventSubscriber @Override
 	public synchronized void onUnloadPluginEvent(UnloadPluginEvent event) {
 		super.onUnloadPluginEvent(event);
@@ -566,4 +576,27 @@ public class ListHandler extends CommandInterface {
 	public ArrayList<AddListElementsInterface> getAddons() {
 		return new ArrayList<AddListElementsInterface>(_listAddons);
 	}
+
+	/**
+	 * Per thread line and copy buffer, so writing a line to the data
+	 * connection doesn't create a String for it.
+	 */
+	private static class LineBuffer {
+		private StringBuilder _line = new StringBuilder(256);
+
+		private char[] _chars = new char[256];
+
+		private StringBuilder getLine() {
+			return _line;
+		}
+
+		private void writeTo(Writer out) throws IOException {
+			int length = _line.length();
+			if (_chars.length < length) {
+				_chars = new char[Math.max(length, _chars.length * 2)];
+			}
+			_line.getChars(0, length, _chars, 0);
+			out.write(_chars, 0, length);
+		}
+	}
 }
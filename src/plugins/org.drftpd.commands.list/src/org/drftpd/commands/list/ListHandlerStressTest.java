@@ -0,0 +1,248 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.list;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.drftpd.slave.LightRemoteInode;
+import org.drftpd.vfs.InodeHandleInterface;
+
+/**
+ * Checks the listing date formatting against SimpleDateFormat and compares
+ * rendering a 10k entry directory the old way, the whole listing built in a
+ * StringBuilder with shared SimpleDateFormat instances, against writing it
+ * line by line, from a few threads at once.<br>
+ * The directory size and number of listings can be changed by simple code changes.
+ */
+public class ListHandlerStressTest extends TestCase {
+
+	private static final int ENTRIES = 10000;
+
+	private static final int THREADS = 4;
+
+	private static final int LISTINGS = 25;
+
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May",
+		"Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	private static final DateFormat AFTER_SIX = new SimpleDateFormat(" yyyy");
+
+	private static final DateFormat BEFORE_SIX = new SimpleDateFormat("HH:mm");
+
+	private static final DateFormat FULL = new SimpleDateFormat("HH:mm:ss yyyy");
+
+	private ListHandler _handler;
+
+	private List<InodeHandleInterface> _entries;
+
+	public ListHandlerStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_handler = new ListHandler();
+		_entries = new ArrayList<InodeHandleInterface>();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < ENTRIES; i++) {
+			// half of them older than six months
+			long lastModified = now - i * 3600000L;
+			_entries.add(new LightRemoteInode("Some.Release." + i + "-GRP", "user" + (i % 50), "group" + (i % 5),
+					i % 10 == 0, lastModified, i * 15000000L));
+		}
+	}
+
+	public void testDateFormat() {
+		SimpleDateFormat mlst = new SimpleDateFormat("yyyyMMddHHmmss.SSS");
+		mlst.setTimeZone(TimeZone.getTimeZone("GMT"));
+		Random random = new Random(42);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 100000; i++) {
+			// anything between 1970 and 2040
+			long date = (random.nextLong() & Long.MAX_VALUE) % 2208988800000L;
+			if (i % 2 == 0) {
+				date = now - (date % (400L * 24 * 3600000L));
+			}
+			for (boolean fulldate : new boolean[] { false, true }) {
+				StringBuilder out = new StringBuilder();
+				ListDateFormatter.appendUnixDate(out, date, fulldate, now);
+				assertEquals(oldUnixDate(date, fulldate, now), out.toString());
+			}
+			StringBuilder out = new StringBuilder();
+			ListDateFormatter.appendMLSTTime(out, date);
+			assertEquals(mlst.format(new Date(date)), out.toString());
+		}
+		StringBuilder out = new StringBuilder();
+		ListDateFormatter.appendUnixDate(out, -1L, false, now);
+		assertEquals("------------", out.toString());
+	}
+
+	public void testListOutput() throws IOException {
+		StringWriter out = new StringWriter();
+		_handler.writeList(out, _entries, false);
+		assertEquals(oldList(_entries, false), out.toString());
+		out = new StringWriter();
+		_handler.writeList(out, _entries, true);
+		assertEquals(oldList(_entries, true), out.toString());
+	}
+
+	public void testListThroughput() throws Exception {
+		long old = run(true);
+		long streamed = run(false);
+		System.out.println("list " + ENTRIES + " entries x " + THREADS * LISTINGS + ": built " + (old / 1000000)
+				+ "ms (" + rate(old) + " lines/s), streamed " + (streamed / 1000000) + "ms (" + rate(streamed)
+				+ " lines/s)");
+	}
+
+	private long run(final boolean old) throws IOException, InterruptedException {
+		// warm up
+		render(old);
+		Thread[] threads = new Thread[THREADS];
+		final Throwable[] failure = new Throwable[1];
+		for (int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < LISTINGS; j++) {
+							render(old);
+						}
+					} catch (Throwable t) {
+						failure[0] = t;
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long time = System.nanoTime() - start;
+		if (failure[0] != null) {
+			throw new AssertionError(failure[0]);
+		}
+		return time;
+	}
+
+	private void render(boolean old) throws IOException {
+		Writer out = new OutputStreamWriter(new NullOutputStream());
+		out.write("total 0\r\n");
+		if (old) {
+			out.write(oldList(_entries, false));
+		} else {
+			_handler.writeList(out, _entries, false);
+		}
+		out.close();
+	}
+
+	private long rate(long nanos) {
+		return (long) ENTRIES * THREADS * LISTINGS * 1000000000L / Math.max(nanos, 1);
+	}
+
+	/**
+	 * The rendering ListHandler used before it wrote line by line.
+	 */
+	private String oldList(Collection<InodeHandleInterface> listElements, boolean fulldate) {
+		StringBuilder output = new StringBuilder();
+
+		for (InodeHandleInterface inode : listElements) {
+			try {
+				StringBuilder line = new StringBuilder();
+				_handler.addPermission(inode, line);
+				line.append(" ");
+				line.append((inode.isDirectory() ? "3" : "1"));
+				line.append(" ");
+				line.append(_handler.padToLength(inode.getUsername(), 8));
+				line.append(" ");
+				line.append(_handler.padToLength(inode.getGroup(), 8));
+				line.append(" ");
+				line.append(inode.getSize());
+				line.append(" ");
+				line.append(oldUnixDate(inode.lastModified(), fulldate, System.currentTimeMillis()));
+				line.append(" ");
+				line.append(inode.getName());
+				line.append("\r\n");
+				output.append(line.toString());
+			} catch (FileNotFoundException e) {
+				// not with LightRemoteInode
+			}
+		}
+		return output.toString();
+	}
+
+	private String oldUnixDate(long date, boolean fulldate, long nowTime) {
+		Date date1 = new Date(date);
+		long dateTime = date1.getTime();
+
+		if (dateTime < 0) {
+			return "------------";
+		}
+
+		Calendar cal = new GregorianCalendar();
+		cal.setTime(date1);
+
+		String firstPart = MONTHS[cal.get(Calendar.MONTH)] + ' ';
+
+		String dateStr = String.valueOf(cal.get(Calendar.DATE));
+
+		if (dateStr.length() == 1) {
+			dateStr = ' ' + dateStr;
+		}
+
+		firstPart += (dateStr + ' ');
+
+		if (fulldate) {
+			synchronized(FULL) {
+				return firstPart + FULL.format(date1);
+			}
+		} else if (Math.abs(nowTime - dateTime) > (183L * 24L * 60L * 60L * 1000L)) {
+			synchronized(AFTER_SIX) {
+				return firstPart + AFTER_SIX.format(date1);
+			}
+		} else {
+			synchronized(BEFORE_SIX) {
+				return firstPart + BEFORE_SIX.format(date1);
+			}
+		}
+	}
+
+	private static class NullOutputStream extends OutputStream {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
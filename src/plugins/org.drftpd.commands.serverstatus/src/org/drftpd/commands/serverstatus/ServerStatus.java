@@ -35,11 +35,19 @@ import org.drftpd.commandmanager.CommandRequest;
 import org.drftpd.commandmanager.CommandResponse;
 import org.drftpd.commandmanager.ImproperUsageException;
 import org.drftpd.commandmanager.StandardCommandManager;
+import org.drftpd.commands.list.ListCache;
 import org.drftpd.dynamicdata.Key;
+import org.drftpd.event.AsyncThreadSafeEventService;
+import org.drftpd.event.AsyncThreadSafeEventService.SubscriberStats;
 import org.drftpd.exceptions.ObjectNotFoundException;
+import org.drftpd.master.CommitManager;
 import org.drftpd.master.RemoteSlave;
 import org.drftpd.master.Session;
 import org.drftpd.util.ExtendedPropertyResourceBundle;
+import org.drftpd.util.LatencyHistogram;
+import org.drftpd.vfs.VirtualFileSystem;
+import org.drftpd.vfs.VirtualFileSystemInodeCache;
+import org.java.plugin.PluginManager;
 import org.tanesha.replacer.ReplacerEnvironment;
 
 /**
@@ -48,6 +56,8 @@ import org.tanesha.replacer.ReplacerEnvironment;
  */
 public class ServerStatus extends CommandInterface {
 	protected static final Key<Long> CONNECTTIME = new Key<Long>(ServerStatus.class, "connecttime");
+
+	private static final String LIST_PLUGIN = "org.drftpd.commands.list";
 	
 	private ExtendedPropertyResourceBundle _bundle;
 	private String _keyPrefix;
@@ -205,6 +215,81 @@ public class ServerStatus extends CommandInterface {
 
 				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.gcinfo"));
 			}
+
+			if (arg.equals("commit") || isAll) {
+				CommitManager cm = CommitManager.getCommitManager();
+				env.add("commit.queued", cm.getQueueSize());
+				env.add("commit.oldest", Time.formatTime(cm.getOldestDirtyAge()));
+				env.add("commit.written", cm.getWrittenCount());
+				env.add("commit.failed", cm.getFailedCount());
+				env.add("commit.writers", cm.getWriterCount());
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.commit"));
+
+				LatencyHistogram write = cm.getWriteLatency();
+				env.add("write.avg", LatencyHistogram.formatMicros(write.getAverageMicros()));
+				env.add("write.p99", LatencyHistogram.formatMicros(write.getPercentileMicros(99)));
+				env.add("write.max", LatencyHistogram.formatMicros(write.getMaxMicros()));
+				LatencyHistogram batch = cm.getBatchLatency();
+				env.add("batch.count", batch.getCount());
+				env.add("batch.avg", LatencyHistogram.formatMicros(batch.getAverageMicros()));
+				env.add("batch.p99", LatencyHistogram.formatMicros(batch.getPercentileMicros(99)));
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.commit.latency"));
+			}
+
+			if (arg.equals("vfs") || isAll) {
+				VirtualFileSystemInodeCache cache = VirtualFileSystem.getVirtualFileSystem().getInodeCache();
+				long hits = cache.getHits();
+				long misses = cache.getMisses();
+				env.add("vfs.cache.inodes", cache.getSize());
+				env.add("vfs.cache.weight", cache.getWeight());
+				env.add("vfs.cache.capacity", cache.getCapacity());
+				env.add("vfs.cache.pinned", cache.getPinnedCount());
+				env.add("vfs.cache.hits", hits);
+				env.add("vfs.cache.misses", misses);
+				env.add("vfs.cache.ratio", hits + misses == 0 ? "0.0" : String.format("%.1f", hits * 100D / (hits + misses)));
+				env.add("vfs.cache.evictions", cache.getEvictions());
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.vfs"));
+
+				LatencyHistogram load = cache.getLoadLatency();
+				env.add("load.avg", LatencyHistogram.formatMicros(load.getAverageMicros()));
+				env.add("load.p99", LatencyHistogram.formatMicros(load.getPercentileMicros(99)));
+				env.add("load.max", LatencyHistogram.formatMicros(load.getMaxMicros()));
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.vfs.latency"));
+			}
+
+			if (arg.equals("events") || isAll) {
+				AsyncThreadSafeEventService events = GlobalContext.getEventService();
+				env.add("events.queued", events.getQueueSize());
+				env.add("events.active", events.getActiveThreadCount());
+				env.add("events.threads", events.getThreadCount());
+				response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.events"));
+
+				for (SubscriberStats stats : events.getSubscriberStats()) {
+					String name = stats.getName();
+					env.add("subscriber", name.substring(name.lastIndexOf('.') + 1));
+					env.add("subscriber.policy", stats.getPolicy().name().toLowerCase());
+					env.add("subscriber.queued", stats.getDepth());
+					env.add("subscriber.maxqueued", stats.getMaxDepth());
+					env.add("subscriber.delivered", stats.getDeliveredCount());
+					env.add("subscriber.coalesced", stats.getCoalescedCount());
+					env.add("subscriber.dropped", stats.getDroppedCount());
+					env.add("subscriber.overflowed", stats.getOverflowedCount());
+					env.add("wait.p99", LatencyHistogram.formatMicros(stats.getWaitLatency().getPercentileMicros(99)));
+					env.add("deliver.avg", LatencyHistogram.formatMicros(stats.getDeliverLatency().getAverageMicros()));
+					env.add("deliver.p99", LatencyHistogram.formatMicros(stats.getDeliverLatency().getPercentileMicros(99)));
+					response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.events.subscriber"));
+				}
+			}
+
+			if (arg.equals("list") || isAll) {
+				// the list plugin is an optional import, its classes are only there when it is installed
+				if (PluginManager.lookup(this).getRegistry().isPluginDescriptorAvailable(LIST_PLUGIN)) {
+					ListCacheStatus.addStatus(env);
+					response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.list"));
+				} else if (!isAll) {
+					response.addComment(session.jprintf(_bundle, env, _keyPrefix+"status.list.unavailable"));
+				}
+			}
 			
 			if (isAll) {
 				// no need to output repeated 
@@ -214,5 +299,23 @@ public class ServerStatus extends CommandInterface {
 		
 		return response;
 	}
-} 
 
+	/**
+	 * Keeps every reference to {@link ListCache} out of ServerStatus itself,
+	 * it is only loaded once the list plugin is known to be installed.
+	 */
+	private static class ListCacheStatus {
+		private static void addStatus(ReplacerEnvironment env) {
+			ListCache cache = ListCache.getListCache();
+			long hits = cache.getHits();
+			long misses = cache.getMisses();
+			env.add("list.cache.directories", cache.getDirectoryCount());
+			env.add("list.cache.memory", Bytes.formatBytes(cache.getMemory()));
+			env.add("list.cache.hits", hits);
+			env.add("list.cache.misses", misses);
+			env.add("list.cache.ratio", hits + misses == 0 ? "0.0" : String.format("%.1f", hits * 100D / (hits + misses)));
+			env.add("list.cache.invalidations", cache.getInvalidations());
+			env.add("list.cache.evictions", cache.getEvictions());
+		}
+	}
+}
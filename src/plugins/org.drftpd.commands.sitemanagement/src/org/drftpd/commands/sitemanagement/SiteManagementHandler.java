@@ -222,6 +222,15 @@ public class SiteManagementHandler extends CommandInterface {
 
 	public CommandResponse doSITE_RELOAD(CommandRequest request) {
 
+		// Clear the bundles before announcing the reload so anything reloading
+		// on the event, like the cached message formats, sees the new ones
+		PluginManager manager = PluginManager.lookup(this);
+		for (PluginDescriptor descr : manager.getRegistry().getPluginDescriptors()) {
+			ResourceBundle.clearCache(manager.getPluginClassLoader(descr));
+		}
+		// Clear base system classloader also
+		ResourceBundle.clearCache(ClassLoader.getSystemClassLoader());
+
 		try {
 			GlobalContext.getGlobalContext().getSectionManager().reload();
 			GlobalContext.getGlobalContext().reloadFtpConfig();
@@ -236,13 +245,6 @@ public class SiteManagementHandler extends CommandInterface {
 			return new CommandResponse(200, e.getMessage());
 		}
 
-		PluginManager manager = PluginManager.lookup(this);
-		for (PluginDescriptor descr : manager.getRegistry().getPluginDescriptors()) {
-			ResourceBundle.clearCache(manager.getPluginClassLoader(descr));
-		}
-		// Clear base system classloader also
-		ResourceBundle.clearCache(ClassLoader.getSystemClassLoader());
-
 		try {
 			OptionConverter.selectAndConfigure(
 					new URL(PropertyHelper.getProperty(System.getProperties(),
@@ -41,6 +41,7 @@ import org.drftpd.master.CommitManager;
 import org.drftpd.master.RemoteSlave;
 import org.drftpd.master.Session;
 import org.drftpd.master.SlaveManager;
+import org.drftpd.slave.DiskStatus;
 import org.drftpd.slave.RemoteIOException;
 import org.drftpd.slave.SlaveStatus;
 import org.drftpd.slave.Transfer;
@@ -239,6 +240,13 @@ public class SlaveManagement extends CommandInterface {
 					fillEnvWithSlaveStatus(env, status);
 					env.add("status", rslave.isRemerging() ? "REMERGING" : "ONLINE");
 					response.addComment(session.jprintf(_bundle, _keyPrefix+"slave.online", env, request.getUser()));
+					DiskStatus disk = status.getDiskStatus();
+					if (showMore && disk.getRootIndexSize() > 0) {
+						env.add("rootindexsize", disk.getRootIndexSize());
+						env.add("rootindexhits", disk.getRootIndexHits());
+						env.add("rootindexmisses", disk.getRootIndexMisses());
+						response.addComment(session.jprintf(_bundle, _keyPrefix+"slave.rootindex", env, request.getUser()));
+					}
 				} catch (SlaveUnavailableException e) {
 					// should never happen since we tested slave status w/ isOnline and isAvaiable.
 					throw new RuntimeException("There's a bug somewhere in the code, the slave was available now it isn't.", e);
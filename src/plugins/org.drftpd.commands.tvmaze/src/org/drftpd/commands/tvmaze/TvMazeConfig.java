@@ -29,7 +29,7 @@ import org.joda.time.DateTimeZone;
 
 import java.util.ArrayList;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * @author scitz0
@@ -49,7 +49,7 @@ public class TvMazeConfig {
 	private boolean _bar_enabled, _bar_directory, _sRelease;
 
 	private TvMazeThread _tvmazeThread = new TvMazeThread();
-	private ConcurrentLinkedQueue<DirectoryHandle> _parseQueue = new ConcurrentLinkedQueue<DirectoryHandle>();
+	private LinkedBlockingQueue<DirectoryHandle> _parseQueue = new LinkedBlockingQueue<DirectoryHandle>();
 
 	public static TvMazeConfig getInstance() {
 		if (ourInstance == null)
@@ -162,8 +162,8 @@ public class TvMazeConfig {
 		return _tvmazeThread;
 	}
 
-	public DirectoryHandle getDirToProcess() {
-		return _parseQueue.poll();
+	public DirectoryHandle getDirToProcess() throws InterruptedException {
+		return _parseQueue.take();
 	}
 
 	public int getQueueSize() {
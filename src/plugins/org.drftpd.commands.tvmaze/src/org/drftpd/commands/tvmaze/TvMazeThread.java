@@ -38,13 +38,10 @@ public class TvMazeThread extends Thread {
 				if (Thread.interrupted()) {
 					throw new InterruptedException();
 				}
-				// Process one item in queue
+				// Wait for the next item in queue, requests are paced by the shared http client
 				DirectoryHandle dir = TvMazeConfig.getInstance().getDirToProcess();
-				if (dir != null) {
-					logger.debug("Fetching TvMaze data for " + dir.getPath());
-					TvMazeUtils.getTvMazeInfo(dir);
-				}
-				Thread.sleep(TvMazeUtils.randomNumber());
+				logger.debug("Fetching TvMaze data for " + dir.getPath());
+				TvMazeUtils.getTvMazeInfo(dir);
 			} catch (InterruptedException ie) {
 				logger.info("TvMazeThread interrupted, thread closing");
 				break;
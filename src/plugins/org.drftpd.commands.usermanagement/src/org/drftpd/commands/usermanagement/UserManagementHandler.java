@@ -55,6 +55,7 @@ import org.drftpd.usermanager.NoSuchUserException;
 import org.drftpd.usermanager.User;
 import org.drftpd.usermanager.UserExistsException;
 import org.drftpd.usermanager.UserFileException;
+import org.drftpd.util.ReplacerUtils;
 import org.tanesha.replacer.FormatterException;
 import org.tanesha.replacer.ReplacerEnvironment;
 import org.tanesha.replacer.SimplePrintf;
@@ -1195,9 +1196,8 @@ public class UserManagementHandler extends CommandInterface {
 		env.add("sp", " ");
 
 		// add header
-		String head = _bundle.getString(_keyPrefix+"ginfo.head");
 		try {
-			response.addComment(SimplePrintf.jprintf(head, env));
+			response.addComment(SimplePrintf.jprintf(ReplacerUtils.finalFormat(_bundle, _keyPrefix+"ginfo.head"), env));
 		} catch (MissingResourceException e) {
 			logger.warn("", e);
 			response.addComment(e.getMessage());
@@ -1231,7 +1231,6 @@ public class UserManagementHandler extends CommandInterface {
 			}
 
 			try {
-				String body = _bundle.getString(_keyPrefix+"ginfo.user");
 				env.add("user", status + user.getName());
 				env.add("fup", "" + user.getUploadedFiles());
 				env.add("mbup", Bytes.formatBytes(user.getUploadedBytes()));
@@ -1242,7 +1241,7 @@ public class UserManagementHandler extends CommandInterface {
 								UserManagement.RATIO));
 				env.add("wkly", Bytes.formatBytes(user.getKeyedMap()
 						.getObjectLong(UserManagement.WKLY_ALLOTMENT)));
-				response.addComment(SimplePrintf.jprintf(body, env));
+				response.addComment(SimplePrintf.jprintf(ReplacerUtils.finalFormat(_bundle, _keyPrefix+"ginfo.user"), env));
 			} catch (MissingResourceException e) {
 				response.addComment(e.getMessage());
 			} catch (FormatterException e1) {
@@ -1268,9 +1267,8 @@ public class UserManagementHandler extends CommandInterface {
 		env.add("numusers", "" + numUsers);
 		env.add("numleech", "" + numLeechUsers);
 
-		String tail = _bundle.getString(_keyPrefix+"ginfo.tail");
 		try {
-			response.addComment(SimplePrintf.jprintf(tail, env));
+			response.addComment(SimplePrintf.jprintf(ReplacerUtils.finalFormat(_bundle, _keyPrefix+"ginfo.tail"), env));
 		} catch (MissingResourceException e) {
 			logger.warn("", e);
 			response.addComment(e.getMessage());
@@ -49,6 +49,7 @@ import org.drftpd.usermanager.NoSuchUserException;
 import org.drftpd.usermanager.User;
 import org.drftpd.usermanager.UserFileException;
 import org.drftpd.util.GroupPosition;
+import org.drftpd.util.ReplacerUtils;
 import org.drftpd.util.UploaderPosition;
 import org.drftpd.util.Base64;
 import org.drftpd.vfs.DirectoryHandle;
@@ -273,9 +274,6 @@ public class ZipscriptZipPostHook extends ZipTools implements PostHookInterface
 					"bytes", "high");
 			Collection<GroupPosition> groups = RankUtils.topFileGroup(getZipFiles(dir));
 
-			String racerline = _bundle.getString(_keyPrefix+"cwd.racers.body");
-			String groupline = _bundle.getString(_keyPrefix+"cwd.groups.body");
-
 			ReplacerEnvironment env = request.getSession().getReplacerEnvironment(null,
 					request.getSession().getUserNull(request.getUser()));
 
@@ -318,7 +316,7 @@ public class ZipscriptZipPostHook extends ZipTools implements PostHookInterface
 								(stat.getFiles() * 100) / dizInfo.getTotal()) + "%");
 
 				try {
-					raceTextBuilder.append(SimplePrintf.jprintf(racerline,raceenv));
+					raceTextBuilder.append(SimplePrintf.jprintf(ReplacerUtils.finalFormat(_bundle, _keyPrefix+"cwd.racers.body"),raceenv));
 					raceTextBuilder.append('\n');
 					position++;
 				} catch (FormatterException e) {
@@ -348,7 +346,7 @@ public class ZipscriptZipPostHook extends ZipTools implements PostHookInterface
 						Bytes.formatBytes(stat.getXferspeed()) + "/s");
 
 				try {
-					raceTextBuilder.append(SimplePrintf.jprintf(groupline,raceenv));
+					raceTextBuilder.append(SimplePrintf.jprintf(ReplacerUtils.finalFormat(_bundle, _keyPrefix+"cwd.groups.body"),raceenv));
 					raceTextBuilder.append('\n');
 					position++;
 				} catch (FormatterException e) {
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import org.drftpd.commands.zipscript.vfs.RaceState;
 import org.drftpd.commands.zipscript.vfs.ZipscriptVFSDataSFV;
 import org.drftpd.exceptions.NoAvailableSlaveException;
 import org.drftpd.exceptions.SlaveUnavailableException;
@@ -53,44 +54,31 @@ public class SFVTools {
 
 	public static long getSFVTotalBytes(DirectoryHandle dir, ZipscriptVFSDataSFV sfvData) 
 	throws IOException, FileNotFoundException, NoAvailableSlaveException, SlaveUnavailableException {
-		long totalBytes = 0;
-
-		for (FileHandle file : getSFVFiles(dir, sfvData)) {
-			totalBytes += file.getSize();
-		}
-		return totalBytes;
+		return sfvData.getRaceState().getTotalBytes();
 	}
 
 	public static long getSFVLargestFileBytes(DirectoryHandle dir, ZipscriptVFSDataSFV sfvData) 
 	throws IOException, FileNotFoundException, NoAvailableSlaveException, SlaveUnavailableException {
-		long largestFileBytes = 0;
-
-		for (FileHandle file : getSFVFiles(dir, sfvData)) {
-			if (file.getSize() > largestFileBytes) {
-				largestFileBytes = file.getSize();
-			}
-		}
-		return largestFileBytes;
+		return sfvData.getRaceState().getLargestFileBytes();
 	}
 
 	public static long getSFVTotalXfertime(DirectoryHandle dir, ZipscriptVFSDataSFV sfvData)
 	throws IOException, FileNotFoundException, NoAvailableSlaveException, SlaveUnavailableException {
-		long totalXfertime = 0;
-
-		for (FileHandle file : getSFVFiles(dir, sfvData)) {
-			totalXfertime += file.getXfertime();
-		}
-		return totalXfertime;
+		return sfvData.getRaceState().getTotalXfertime();
 	}
 
 	public static long getXferspeed(DirectoryHandle dir, ZipscriptVFSDataSFV sfvData)
 	throws IOException, FileNotFoundException, NoAvailableSlaveException, SlaveUnavailableException {
-		long totalXfertime = getSFVTotalXfertime(dir, sfvData);
+		return getXferspeed(sfvData.getRaceState());
+	}
+
+	public static long getXferspeed(RaceState raceState) {
+		long totalXfertime = raceState.getTotalXfertime();
 		if (totalXfertime / 1000 == 0) {
 			return 0;
 		}
 
-		return getSFVTotalBytes(dir, sfvData) / (totalXfertime / 1000);
+		return raceState.getTotalBytes() / (totalXfertime / 1000);
 	}
 
 	public static SFVStatus getSFVStatus(SFVInfo sfvInfo, DirectoryHandle dir)
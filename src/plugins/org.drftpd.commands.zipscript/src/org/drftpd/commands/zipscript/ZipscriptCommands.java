@@ -36,6 +36,7 @@ import org.drftpd.commandmanager.CommandRequest;
 import org.drftpd.commandmanager.CommandResponse;
 import org.drftpd.commandmanager.ImproperUsageException;
 import org.drftpd.commandmanager.StandardCommandManager;
+import org.drftpd.commands.zipscript.vfs.RaceState;
 import org.drftpd.commands.zipscript.vfs.ZipscriptVFSDataSFV;
 import org.drftpd.event.LoadPluginEvent;
 import org.drftpd.event.UnloadPluginEvent;
@@ -170,6 +171,12 @@ public class ZipscriptCommands extends CommandInterface {
 			}
 			session.printOutput(200,"Rescanning: "+workingDir.getPath());
 			if (sfvFound) {
+				try {
+					// rebuilt from the directory contents the next time it is needed
+					workingDir.removePluginMetaData(RaceState.RACESTATE);
+				} catch (FileNotFoundException e2) {
+					// directory is gone, nothing to reset
+				}
 				for (Entry<String,Long> sfvEntry : workingSfv.getEntries().entrySet()) {
 					if (session.isAborted()) {
 						break;
@@ -28,7 +28,6 @@ import org.apache.log4j.Logger;
 import org.drftpd.Bytes;
 import org.drftpd.Checksum;
 import org.drftpd.GlobalContext;
-import org.drftpd.RankUtils;
 import org.drftpd.commandmanager.CommandRequest;
 import org.drftpd.commandmanager.CommandResponse;
 import org.drftpd.commandmanager.PostHookInterface;
@@ -37,6 +36,8 @@ import org.drftpd.commands.dataconnection.DataConnectionHandler;
 import org.drftpd.commands.dir.Dir;
 import org.drftpd.commands.zipscript.SFVTools;
 import org.drftpd.commands.zipscript.event.SFVMemberTransferEvent;
+import org.drftpd.commands.zipscript.vfs.RaceState;
+import org.drftpd.commands.zipscript.vfs.RaceStateSubscriber;
 import org.drftpd.commands.zipscript.vfs.ZipscriptVFSDataSFV;
 import org.drftpd.dynamicdata.KeyNotFoundException;
 import org.drftpd.exceptions.NoAvailableSlaveException;
@@ -49,6 +50,7 @@ import org.drftpd.usermanager.NoSuchUserException;
 import org.drftpd.usermanager.User;
 import org.drftpd.usermanager.UserFileException;
 import org.drftpd.util.GroupPosition;
+import org.drftpd.util.ReplacerUtils;
 import org.drftpd.util.UploaderPosition;
 import org.drftpd.vfs.DirectoryHandle;
 import org.drftpd.vfs.FileHandle;
@@ -72,6 +74,7 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 	public void initialize(StandardCommandManager cManager) {
 		_bundle = cManager.getResourceBundle();
     	_keyPrefix = this.getClass().getName()+".";
+		RaceStateSubscriber.checkSubscription();
 	}
 
 	public void doZipscriptRETRPostCheck(CommandRequest request, CommandResponse response) {
@@ -163,6 +166,9 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 				 * 0byte file (bug!) or checksummed transfers are disabled(size is different
 				 * from 0bytes though).                 
 				 */
+				if (sfvChecksum != null) {
+					sfvData.updateRaceState(transferFile);
+				}
 				if (sfvChecksum == null) {
 					// No entry in the sfv for this file, just return and allow
 					response.addComment("zipscript - no entry in sfv for file");
@@ -192,6 +198,7 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 						// then it should be deleted.
 						response.addComment("0Byte File, Deleting...");
 						transferFile.deleteUnchecked();
+						sfvData.updateRaceState(transferFile);
 					} else
 						// The file has checksum = 0, although the size is != 0,
 						// meaning that we are not using checked transfers.
@@ -203,6 +210,7 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 					response.addComment(" deleting file");
 					response.setMessage("Checksum mismatch, deleting file");
 					transferFile.deleteUnchecked();
+					sfvData.updateRaceState(transferFile);
 				}
 			} catch (NoAvailableSlaveException e) {
 				response.addComment(
@@ -261,6 +269,7 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 		if (deleFileName.toLowerCase().endsWith(".sfv")) {
 			try {
 				request.getCurrentDirectory().removePluginMetaData(SFVInfo.SFVINFO);
+				request.getCurrentDirectory().removePluginMetaData(RaceState.RACESTATE);
 			} catch(FileNotFoundException e) {
 				// No inode to remove sfvinfo from
 			}
@@ -273,12 +282,9 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 			ZipscriptVFSDataSFV sfvData = new ZipscriptVFSDataSFV(dir);
 			SFVInfo sfvInfo = sfvData.getSFVInfo();
 			SFVStatus sfvStatus = sfvData.getSFVStatus();
-			Collection<UploaderPosition> racers = RankUtils.userSort(getSFVFiles(dir, sfvData),
-					"bytes", "high");
-			Collection<GroupPosition> groups = RankUtils.topFileGroup(getSFVFiles(dir, sfvData));
-
-			String racerline = _bundle.getString(_keyPrefix+"cwd.racers.body");
-			String groupline = _bundle.getString(_keyPrefix+"cwd.groups.body");
+			RaceState raceState = sfvData.getRaceState();
+			Collection<UploaderPosition> racers = raceState.getUploaders("bytes", "high");
+			Collection<GroupPosition> groups = raceState.getGroups();
 
 			ReplacerEnvironment env = request.getSession().getReplacerEnvironment(null,
 					request.getSession().getUserNull(request.getUser()));
@@ -322,7 +328,7 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 								(stat.getFiles() * 100) / sfvInfo.getSize()) + "%");
 
 				try {
-					raceTextBuilder.append(SimplePrintf.jprintf(racerline,raceenv));
+					raceTextBuilder.append(SimplePrintf.jprintf(ReplacerUtils.finalFormat(_bundle, _keyPrefix+"cwd.racers.body"),raceenv));
 					raceTextBuilder.append('\n');
 					position++;
 				} catch (FormatterException e) {
@@ -352,7 +358,7 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 						Bytes.formatBytes(stat.getXferspeed()) + "/s");
 
 				try {
-					raceTextBuilder.append(SimplePrintf.jprintf(groupline,raceenv));
+					raceTextBuilder.append(SimplePrintf.jprintf(ReplacerUtils.finalFormat(_bundle, _keyPrefix+"cwd.groups.body"),raceenv));
 					raceTextBuilder.append('\n');
 					position++;
 				} catch (FormatterException e) {
@@ -364,9 +370,9 @@ public class ZipscriptPostHook extends SFVTools implements PostHookInterface {
 			raceTextBuilder.append('\n');
 
 			env.add("completefiles", Integer.toString(sfvStatus.getPresent()) + "/" + Integer.toString(sfvInfo.getSize()));
-			env.add("totalbytes", Bytes.formatBytes(getSFVTotalBytes(dir, sfvData)));
+			env.add("totalbytes", Bytes.formatBytes(raceState.getTotalBytes()));
 			env.add("totalspeed",
-					Bytes.formatBytes(getXferspeed(dir, sfvData)) + "/s");
+					Bytes.formatBytes(getXferspeed(raceState)) + "/s");
 			env.add("totalpercent",
 					Integer.toString(
 							(sfvStatus.getPresent() * 100) / sfvInfo.getSize()) +
@@ -32,6 +32,7 @@ import org.drftpd.GlobalContext;
 import org.drftpd.commands.list.AddListElementsInterface;
 import org.drftpd.commands.list.ListElementsContainer;
 import org.drftpd.commands.zipscript.SFVTools;
+import org.drftpd.commands.zipscript.vfs.RaceState;
 import org.drftpd.commands.zipscript.vfs.ZipscriptVFSDataSFV;
 import org.drftpd.event.LoadPluginEvent;
 import org.drftpd.event.UnloadPluginEvent;
@@ -111,7 +112,11 @@ public class ZipscriptList extends SFVTools implements AddListElementsInterface
 					}
 				}
 				if (missingFilesEnabled && sfvfile.getSize() != 0) {
+					RaceState raceState = sfvData.getRaceState();
 					for (String fileName : sfvfile.getEntries().keySet()) {
+						if (raceState.hasFile(fileName)) {
+							continue;
+						}
 						FileHandle file = new FileHandle(dir.getPath()+VirtualFileSystem.separator+fileName);
 						if (!file.exists()) {
 							env.add("mfilename",fileName);
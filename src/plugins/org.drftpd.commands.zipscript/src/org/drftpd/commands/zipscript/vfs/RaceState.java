@@ -0,0 +1,301 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.zipscript.vfs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.drftpd.RankUtils;
+import org.drftpd.dynamicdata.Key;
+import org.drftpd.protocol.zipscript.common.SFVStatus;
+import org.drftpd.util.GroupPosition;
+import org.drftpd.util.UploaderPosition;
+import org.drftpd.vfs.CaseInsensitiveTreeMap;
+
+/**
+ * The completed sfv members of a release and the per user and per group
+ * tallies of them.<br>
+ * It is kept as plugin metadata of the release directory and updated one
+ * file at a time, so the race status doesn't need every file of the release
+ * to be looked up after each upload.
+ * @version $Id$
+ */
+public class RaceState {
+
+	public static final Key<RaceState> RACESTATE = new Key<RaceState>(RaceState.class, "race");
+
+	private long _sfvChecksum;
+
+	private CaseInsensitiveTreeMap<String, RaceFile> _files = new CaseInsensitiveTreeMap<String, RaceFile>();
+
+	// everything below is rebuilt from _files
+
+	private long _totalBytes;
+
+	private long _totalXfertime;
+
+	private HashMap<String, UploaderPosition> _uploaders = new HashMap<String, UploaderPosition>();
+
+	private HashMap<String, GroupPosition> _groups = new HashMap<String, GroupPosition>();
+
+	public RaceState() {
+	}
+
+	/**
+	 * @return the checksum of the sfv file these files were checked against.
+	 */
+	public synchronized long getSFVChecksum() {
+		return _sfvChecksum;
+	}
+
+	public synchronized void setSFVChecksum(long checksum) {
+		_sfvChecksum = checksum;
+	}
+
+	public synchronized CaseInsensitiveTreeMap<String, RaceFile> getFiles() {
+		CaseInsensitiveTreeMap<String, RaceFile> files = new CaseInsensitiveTreeMap<String, RaceFile>();
+		files.putAll(_files);
+		return files;
+	}
+
+	public synchronized void setFiles(CaseInsensitiveTreeMap<String, RaceFile> files) {
+		_files = new CaseInsensitiveTreeMap<String, RaceFile>();
+		_totalBytes = 0;
+		_totalXfertime = 0;
+		_uploaders.clear();
+		_groups.clear();
+		for (Map.Entry<String, RaceFile> entry : files.entrySet()) {
+			setFile(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Adds, replaces or, with a null file, removes a member of the release.
+	 * @return false if the member was already like this.
+	 */
+	public synchronized boolean setFile(String name, RaceFile file) {
+		RaceFile old = file == null ? _files.remove(name) : _files.put(name, file);
+		if (old == null ? file == null : old.equals(file)) {
+			return false;
+		}
+		if (old != null) {
+			tally(old, -1);
+		}
+		if (file != null) {
+			tally(file, 1);
+		}
+		return true;
+	}
+
+	public synchronized boolean hasFile(String name) {
+		return _files.containsKey(name);
+	}
+
+	private void tally(RaceFile file, int sign) {
+		if (!file.isCounted()) {
+			return;
+		}
+		long bytes = sign * file.getSize();
+		long xfertime = sign * file.getXfertime();
+		_totalBytes += bytes;
+		_totalXfertime += xfertime;
+
+		UploaderPosition uploader = _uploaders.get(file.getUsername());
+		if (uploader == null) {
+			_uploaders.put(file.getUsername(), new UploaderPosition(file.getUsername(), bytes, sign, xfertime));
+		} else {
+			uploader.updateBytes(bytes);
+			uploader.updateFiles(sign);
+			uploader.updateXfertime(xfertime);
+			if (uploader.getFiles() == 0) {
+				_uploaders.remove(file.getUsername());
+			}
+		}
+
+		GroupPosition group = _groups.get(file.getGroup());
+		if (group == null) {
+			_groups.put(file.getGroup(), new GroupPosition(file.getGroup(), bytes, sign, xfertime));
+		} else {
+			group.updateBytes(bytes);
+			group.updateFiles(sign);
+			group.updateXfertime(xfertime);
+			if (group.getFiles() == 0) {
+				_groups.remove(file.getGroup());
+			}
+		}
+	}
+
+	/**
+	 * @param total number of files in the sfv.
+	 * @param availableSlaves names of the slaves currently online.
+	 */
+	public synchronized SFVStatus getSFVStatus(int total, Set<String> availableSlaves) {
+		int offline = 0;
+		for (RaceFile file : _files.values()) {
+			if (Collections.disjoint(file.getSlaves(), availableSlaves)) {
+				offline++;
+			}
+		}
+		return new SFVStatus(total, offline, _files.size());
+	}
+
+	public synchronized long getTotalBytes() {
+		return _totalBytes;
+	}
+
+	public synchronized long getTotalXfertime() {
+		return _totalXfertime;
+	}
+
+	public synchronized long getLargestFileBytes() {
+		long largest = 0;
+		for (RaceFile file : _files.values()) {
+			if (file.isCounted() && file.getSize() > largest) {
+				largest = file.getSize();
+			}
+		}
+		return largest;
+	}
+
+	/**
+	 * @return a copy of the tally of this user, null if there is none.
+	 */
+	public synchronized UploaderPosition getUploader(String username) {
+		UploaderPosition uploader = _uploaders.get(username);
+		return uploader == null ? null : new UploaderPosition(uploader.getUsername(),
+				uploader.getBytes(), uploader.getFiles(), uploader.getXfertime());
+	}
+
+	/**
+	 * @return a copy of the tallies of every user, sorted as {@link RankUtils#userSort(Collection, String, String)} does.
+	 */
+	public Collection<UploaderPosition> getUploaders(String type, String sort) {
+		ArrayList<UploaderPosition> uploaders;
+		synchronized (this) {
+			uploaders = new ArrayList<UploaderPosition>(_uploaders.size());
+			for (UploaderPosition uploader : _uploaders.values()) {
+				uploaders.add(new UploaderPosition(uploader.getUsername(),
+						uploader.getBytes(), uploader.getFiles(), uploader.getXfertime()));
+			}
+		}
+		return RankUtils.sortUploaders(uploaders, type, sort);
+	}
+
+	/**
+	 * @return a copy of the tallies of every group, biggest first.
+	 */
+	public synchronized Collection<GroupPosition> getGroups() {
+		ArrayList<GroupPosition> groups = new ArrayList<GroupPosition>(_groups.size());
+		for (GroupPosition group : _groups.values()) {
+			groups.add(new GroupPosition(group.getGroupname(),
+					group.getBytes(), group.getFiles(), group.getXfertime()));
+		}
+		Collections.sort(groups);
+		return groups;
+	}
+
+	/**
+	 * A completed member of the release, as it was after its last change.
+	 */
+	public static class RaceFile {
+		private String _username;
+
+		private String _group;
+
+		private long _size;
+
+		private long _xfertime;
+
+		private HashSet<String> _slaves = new HashSet<String>();
+
+		public RaceFile() {
+		}
+
+		public RaceFile(String username, String group, long size, long xfertime, Set<String> slaves) {
+			_username = username;
+			_group = group;
+			_size = size;
+			_xfertime = xfertime;
+			_slaves = new HashSet<String>(slaves);
+		}
+
+		public String getUsername() {
+			return _username;
+		}
+
+		public void setUsername(String username) {
+			_username = username;
+		}
+
+		public String getGroup() {
+			return _group;
+		}
+
+		public void setGroup(String group) {
+			_group = group;
+		}
+
+		public long getSize() {
+			return _size;
+		}
+
+		public void setSize(long size) {
+			_size = size;
+		}
+
+		public long getXfertime() {
+			return _xfertime;
+		}
+
+		public void setXfertime(long xfertime) {
+			_xfertime = xfertime;
+		}
+
+		public HashSet<String> getSlaves() {
+			return _slaves;
+		}
+
+		public void setSlaves(HashSet<String> slaves) {
+			_slaves = slaves;
+		}
+
+		/**
+		 * @return false for a file without a transfer time, it isn't part of the race tallies.
+		 */
+		public boolean isCounted() {
+			return _xfertime != -1;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof RaceFile)) {
+				return false;
+			}
+			RaceFile file = (RaceFile) obj;
+			return _size == file._size && _xfertime == file._xfertime && _username.equals(file._username)
+					&& _group.equals(file._group) && _slaves.equals(file._slaves);
+		}
+
+		public int hashCode() {
+			return _username.hashCode() ^ (int) _size;
+		}
+	}
+}
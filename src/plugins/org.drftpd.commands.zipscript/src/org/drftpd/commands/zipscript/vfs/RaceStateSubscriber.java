@@ -0,0 +1,111 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.zipscript.vfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.bushe.swing.event.annotation.AnnotationProcessor;
+import org.bushe.swing.event.annotation.EventSubscriber;
+import org.drftpd.dynamicdata.KeyNotFoundException;
+import org.drftpd.event.UnloadPluginEvent;
+import org.drftpd.exceptions.NoAvailableSlaveException;
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.util.CommonPluginUtils;
+import org.drftpd.vfs.DirectoryHandle;
+import org.drftpd.vfs.FileHandle;
+import org.drftpd.vfs.VirtualFileSystem;
+import org.drftpd.vfs.event.VirtualFileSystemEvent;
+import org.drftpd.vfs.event.VirtualFileSystemLastModifiedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemRenameEvent;
+
+/**
+ * Keeps race states up to date with the changes that don't go through the
+ * zipscript hooks, deletes, renames, ownership changes and files lost or
+ * found on slaves.
+ * @version $Id$
+ */
+public class RaceStateSubscriber {
+	private static RaceStateSubscriber _subscriber = null;
+
+	/**
+	 * Checks if this subscriber is already listening to events, otherwise, initialize it.
+	 */
+	public static synchronized void checkSubscription() {
+		if (_subscriber == null) {
+			_subscriber = new RaceStateSubscriber();
+		}
+	}
+
+	/**
+	 * Remove the reference to the current subscriber so that it can be GC'ed.
+	 */
+	private static synchronized void nullify() {
+		_subscriber = null;
+	}
+
+	private RaceStateSubscriber() {
+		// Subscribe to events
+		AnnotationProcessor.process(this);
+	}
+
+	@EventSubscriber
+	public void onVirtualFileSystemEvent(VirtualFileSystemEvent event) {
+		if (!event.getImmutableInode().isFile() || event instanceof VirtualFileSystemLastModifiedEvent) {
+			// the race doesn't look at modification times
+			return;
+		}
+		if (event instanceof VirtualFileSystemRenameEvent) {
+			// it left its old directory
+			refresh(((VirtualFileSystemRenameEvent) event).getSource().getPath());
+		}
+		refresh(event.getImmutableInode().getPath());
+	}
+
+	private void refresh(String path) {
+		DirectoryHandle dir = new DirectoryHandle(VirtualFileSystem.stripLast(path));
+		try {
+			// only directories where a race was looked at have a state to keep up to date
+			dir.getPluginMetaData(RaceState.RACESTATE);
+			new ZipscriptVFSDataSFV(dir).updateRaceState(new FileHandle(path));
+		} catch (KeyNotFoundException e) {
+			// no race here
+		} catch (FileNotFoundException e) {
+			// directory or sfv gone
+		} catch (IOException e) {
+			// sfv unreadable, the state is checked again when it is back
+		} catch (NoAvailableSlaveException e) {
+			// same as above
+		} catch (SlaveUnavailableException e) {
+			// same as above
+		}
+	}
+
+	@EventSubscriber
+	public void onUnloadPluginEvent(UnloadPluginEvent event) {
+		String currentPlugin = CommonPluginUtils.getPluginIdForObject(this);
+		for (String pluginExtension : event.getParentPlugins()) {
+			int pointIndex = pluginExtension.lastIndexOf("@");
+			String pluginName = pluginExtension.substring(0, pointIndex);
+			if (pluginName.equals(currentPlugin)) {
+				AnnotationProcessor.unprocess(this);
+				nullify();
+				return;
+			}
+		}
+	}
+}
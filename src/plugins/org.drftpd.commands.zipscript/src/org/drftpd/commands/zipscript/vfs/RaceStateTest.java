@@ -0,0 +1,126 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.commands.zipscript.vfs;
+
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.drftpd.commands.zipscript.vfs.RaceState.RaceFile;
+import org.drftpd.protocol.zipscript.common.SFVStatus;
+import org.drftpd.util.GroupPosition;
+import org.drftpd.util.UploaderPosition;
+
+/**
+ * @version $Id$
+ */
+public class RaceStateTest extends TestCase {
+
+	private RaceState _state;
+
+	public RaceStateTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_state = new RaceState();
+		_state.setSFVChecksum(0xCAFEL);
+		_state.setFile("a.r00", file("alice", "grp1", 100L, 1000L, "slave1"));
+		_state.setFile("a.r01", file("alice", "grp1", 100L, 1000L, "slave2"));
+		_state.setFile("a.r02", file("bob", "grp2", 50L, 1000L, "slave1"));
+		// no transfer time, present but not part of the tallies
+		_state.setFile("a.r03", file("carol", "grp2", 100L, -1L, "slave1"));
+	}
+
+	private static RaceFile file(String username, String group, long size, long xfertime, String slave) {
+		return new RaceFile(username, group, size, xfertime, Collections.singleton(slave));
+	}
+
+	public void testTallies() {
+		assertEquals(250L, _state.getTotalBytes());
+		assertEquals(3000L, _state.getTotalXfertime());
+		assertEquals(100L, _state.getLargestFileBytes());
+		assertNull(_state.getUploader("carol"));
+
+		Collection<UploaderPosition> racers = _state.getUploaders("bytes", "high");
+		assertEquals(2, racers.size());
+		UploaderPosition leader = racers.iterator().next();
+		assertEquals("alice", leader.getUsername());
+		assertEquals(2, leader.getFiles());
+		assertEquals(200L, leader.getBytes());
+
+		Iterator<GroupPosition> groups = _state.getGroups().iterator();
+		assertEquals("grp1", groups.next().getGroupname());
+		assertEquals("grp2", groups.next().getGroupname());
+		assertFalse(groups.hasNext());
+	}
+
+	public void testReplaceAndRemove() {
+		_state.setFile("A.R00", file("bob", "grp2", 100L, 1000L, "slave1"));
+		assertEquals(1, _state.getUploader("alice").getFiles());
+		assertEquals(2, _state.getUploader("bob").getFiles());
+
+		_state.setFile("a.r01", null);
+		_state.setFile("missing.r99", null);
+		assertNull(_state.getUploader("alice"));
+		assertFalse(_state.hasFile("a.r01"));
+		assertEquals(150L, _state.getTotalBytes());
+		assertEquals(1, _state.getGroups().size());
+	}
+
+	public void testUnchangedFile() {
+		assertFalse(_state.setFile("a.r00", file("alice", "grp1", 100L, 1000L, "slave1")));
+		assertFalse(_state.setFile("missing.r99", null));
+		assertTrue(_state.setFile("a.r00", file("alice", "grp1", 100L, 1000L, "slave2")));
+		assertTrue(_state.setFile("a.r04", file("bob", "grp2", 10L, 1000L, "slave1")));
+		assertTrue(_state.setFile("a.r04", null));
+		assertEquals(2, _state.getUploader("alice").getFiles());
+		assertEquals(250L, _state.getTotalBytes());
+	}
+
+	public void testStatus() {
+		SFVStatus status = _state.getSFVStatus(5, new HashSet<String>(Arrays.asList("slave1")));
+		assertEquals(4, status.getPresent());
+		assertEquals(1, status.getOffline());
+		assertEquals(1, status.getMissing());
+		assertEquals(0, _state.getSFVStatus(5, Collections.<String>emptySet()).getAvailable());
+	}
+
+	public void testXMLRoundTrip() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XMLEncoder enc = new XMLEncoder(bytes);
+		enc.writeObject(_state);
+		enc.close();
+		XMLDecoder dec = new XMLDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+		RaceState state = (RaceState) dec.readObject();
+		dec.close();
+
+		assertEquals(0xCAFEL, state.getSFVChecksum());
+		assertTrue(state.hasFile("A.R03"));
+		assertEquals(250L, state.getTotalBytes());
+		assertEquals(2, state.getUploader("alice").getFiles());
+		assertEquals(Collections.singleton("slave2"), state.getFiles().get("a.r01").getSlaves());
+	}
+}
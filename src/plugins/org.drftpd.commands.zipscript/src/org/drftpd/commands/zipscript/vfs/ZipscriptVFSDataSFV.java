@@ -19,9 +19,10 @@ package org.drftpd.commands.zipscript.vfs;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashSet;
 
 import org.drftpd.GlobalContext;
-import org.drftpd.commands.zipscript.SFVTools;
+import org.drftpd.commands.zipscript.vfs.RaceState.RaceFile;
 import org.drftpd.dynamicdata.KeyNotFoundException;
 import org.drftpd.exceptions.NoAvailableSlaveException;
 import org.drftpd.exceptions.SlaveUnavailableException;
@@ -95,7 +96,89 @@ public class ZipscriptVFSDataSFV {
 	}
 	
 	public SFVStatus getSFVStatus() throws IOException, FileNotFoundException, NoAvailableSlaveException, SlaveUnavailableException {
-		return SFVTools.getSFVStatus(getSFVInfo(), _dir);
+		SFVInfo sfvInfo = getSFVInfo();
+		HashSet<String> availableSlaves = new HashSet<String>();
+		for (RemoteSlave rslave : GlobalContext.getGlobalContext().getSlaveManager().getSlaves()) {
+			if (rslave.isAvailable()) {
+				availableSlaves.add(rslave.getName());
+			}
+		}
+		return getRaceState(sfvInfo).getSFVStatus(sfvInfo.getSize(), availableSlaves);
+	}
+
+	/**
+	 * @return the race state of the directory, it is built from the directory
+	 * contents the first time and whenever the sfv file changed.
+	 */
+	public RaceState getRaceState() throws IOException, FileNotFoundException, NoAvailableSlaveException, SlaveUnavailableException {
+		return getRaceState(getSFVInfo());
+	}
+
+	private RaceState getRaceState(SFVInfo sfvInfo) throws FileNotFoundException {
+		RaceState raceState = getRaceStateFromInode(sfvInfo);
+		if (raceState != null) {
+			return raceState;
+		}
+		synchronized (RaceState.class) {
+			// somebody else might have just built it
+			raceState = getRaceStateFromInode(sfvInfo);
+			if (raceState == null) {
+				raceState = new RaceState();
+				raceState.setSFVChecksum(sfvInfo.getChecksum());
+				for (FileHandle file : _dir.getFilesUnchecked()) {
+					if (sfvInfo.getEntries().containsKey(file.getName())) {
+						raceState.setFile(file.getName(), getRaceFile(file));
+					}
+				}
+				_dir.addPluginMetaData(RaceState.RACESTATE, raceState);
+			}
+			return raceState;
+		}
+	}
+
+	private RaceState getRaceStateFromInode(SFVInfo sfvInfo) throws FileNotFoundException {
+		try {
+			RaceState raceState = _dir.getPluginMetaData(RaceState.RACESTATE);
+			if (raceState.getSFVChecksum() == sfvInfo.getChecksum()) {
+				return raceState;
+			}
+		} catch (KeyNotFoundException e) {
+			// not built yet
+		}
+		return null;
+	}
+
+	/**
+	 * Brings the race state up to date with this file of the directory,
+	 * files which are not in the sfv are ignored. The directory is only
+	 * committed when the state changed.
+	 */
+	public void updateRaceState(FileHandle file) throws IOException, FileNotFoundException,
+			NoAvailableSlaveException, SlaveUnavailableException {
+		SFVInfo sfvInfo = getSFVInfo();
+		if (!sfvInfo.getEntries().containsKey(file.getName())) {
+			return;
+		}
+		RaceState raceState = getRaceState(sfvInfo);
+		if (raceState.setFile(file.getName(), getRaceFile(file))) {
+			// stores the change
+			_dir.addPluginMetaData(RaceState.RACESTATE, raceState);
+		}
+	}
+
+	/**
+	 * @return the file as the race sees it, null if it doesn't count (yet).
+	 */
+	private static RaceFile getRaceFile(FileHandle file) {
+		try {
+			if (file.isUploading()) {
+				return null;
+			}
+			return new RaceFile(file.getUsername(), file.getGroup(), file.getSize(),
+					file.getXfertime(), file.getSlaveNames());
+		} catch (FileNotFoundException e) {
+			return null;
+		}
 	}
 	
 	private SFVInfo getSFVInfoFromInode(DirectoryHandle vfsDirHandle) throws FileNotFoundException, KeyNotFoundException {
@@ -17,10 +17,8 @@
 package org.drftpd.plugins.dupecheck;
 
 import java.io.FileNotFoundException;
-import java.util.Map;
 import java.util.StringTokenizer;
 
-import org.drftpd.GlobalContext;
 import org.drftpd.commandmanager.CommandInterface;
 import org.drftpd.commandmanager.CommandRequest;
 import org.drftpd.commandmanager.CommandResponse;
@@ -29,16 +27,13 @@ import org.drftpd.plugins.dupecheck.metadata.DupeCheckFileData;
 import org.drftpd.vfs.DirectoryHandle;
 import org.drftpd.vfs.FileHandle;
 import org.drftpd.vfs.InodeHandle;
-import org.drftpd.vfs.index.AdvancedSearchParams;
-import org.drftpd.vfs.index.IndexEngineInterface;
-import org.drftpd.vfs.index.IndexException;
 
 public class DupeCheckCommands extends CommandInterface {
 	
 	/*
 	 * Site UNDUPE command to un-dupe specific files/folders
 	 * 
-	 * This uses lucene's search to figure out if the file exist, 
+	 * This uses the dupe index to figure out if the file exist, 
 	 * and then adds metadata to it so site knows its unduped.
 	 */
     public CommandResponse doSITE_UNDUPE(CommandRequest request) throws ImproperUsageException {
@@ -59,27 +54,14 @@ public class DupeCheckCommands extends CommandInterface {
         
         CommandResponse response = new CommandResponse(200, "Un-Dupe Complete");
         
-		AdvancedSearchParams params = new AdvancedSearchParams();
-		params.setExact(arg);
-
-		try {
-			IndexEngineInterface ie = GlobalContext.getGlobalContext().getIndexEngine();
-			Map<String,String> inodes = ie.advancedFind(GlobalContext.getGlobalContext().getRoot(), params);
-			
-			if (!inodes.isEmpty()) {
-				for (Map.Entry<String,String> item : inodes.entrySet()) {        
-					InodeHandle inode = item.getValue().equals("d") ? new DirectoryHandle(item.getKey()) : new FileHandle(item.getKey());
-					try {
-						inode.addPluginMetaData(DupeCheckFileData.DUPE, false);
-						response.addComment("Unduped: " + inode.getPath());
-					} catch (FileNotFoundException e) {
-						// File Not Found - Deleted?? Probably not a good thing
-					}
-				}
+		for (DupeIndex.DupeEntry item : DupeIndex.getDupeIndex().find(arg)) {
+			InodeHandle inode = item.isDirectory() ? new DirectoryHandle(item.getPath()) : new FileHandle(item.getPath());
+			try {
+				inode.addPluginMetaData(DupeCheckFileData.DUPE, false);
+				response.addComment("Unduped: " + inode.getPath());
+			} catch (FileNotFoundException e) {
+				// File Not Found - Deleted?? Probably not a good thing
 			}
-		} catch (IndexException e) {
-			//Index Exception while searching
-			response.addComment(e);
 		}
         
         return response;
@@ -17,7 +17,6 @@
 package org.drftpd.plugins.dupecheck;
 
 import java.io.FileNotFoundException;
-import java.util.Map;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -39,9 +38,6 @@ import org.drftpd.vfs.DirectoryHandle;
 import org.drftpd.vfs.FileHandle;
 import org.drftpd.vfs.InodeHandle;
 import org.drftpd.vfs.VirtualFileSystem;
-import org.drftpd.vfs.index.AdvancedSearchParams;
-import org.drftpd.vfs.index.IndexEngineInterface;
-import org.drftpd.vfs.index.IndexException;
 
 /**
  * @author CyBeR
@@ -80,6 +76,10 @@ public class DupeCheckHooks implements PreHookInterface {
         if (type != null) {
         	_type = Integer.parseInt(type.trim());
         }        
+
+        if (DupeIndex.getDupeIndex().setFilter(_type, _exempt)) {
+        	DupeIndex.getDupeIndex().rebuild();
+        }
     	
 	}
 
@@ -128,50 +128,35 @@ public class DupeCheckHooks implements PreHookInterface {
 	 */
 	private CommandRequestInterface doDupeCheck(CommandRequest request, String realname) {
 
-		try {
-			User user = request.getSession().getUserNull(request.getUser());
+		User user = request.getSession().getUserNull(request.getUser());
+		DupeIndex index = DupeIndex.getDupeIndex();
 
-			AdvancedSearchParams params = new AdvancedSearchParams();
-			params.setExact(realname);
-			
-			IndexEngineInterface ie = GlobalContext.getGlobalContext().getIndexEngine();
-			Map<String,String> inodes = ie.advancedFind(GlobalContext.getGlobalContext().getRoot(), params);
-			
-			if (!inodes.isEmpty()) {
-				for (Map.Entry<String,String> item : inodes.entrySet()) {
-					boolean isDupe = false;
+		for (DupeIndex.DupeEntry item : index.find(realname)) {
+			boolean isDupe = false;
 
-					InodeHandle inode = item.getValue().equals("d") ? new DirectoryHandle(item.getKey()) : new FileHandle(item.getKey());					
-					
-					try {
-						if (inode.getPluginMetaData(DupeCheckFileData.DUPE)) {
-							isDupe = true;
-						}
-					} catch (KeyNotFoundException e) {
-						// This is fine, means file/dir has not been un-duped
-						isDupe = true;
-					} catch (FileNotFoundException e) {
-						// File not found, not good, index refers to file that does not exist
-						logger.warn("Index Contained an unexistent inode: " + item.getKey());
-					}
-					
-					if (isDupe) {
-				        ConfigInterface config = GlobalContext.getConfig();
-						if (config.checkPathPermission("dupecheck", user, request.getCurrentDirectory())) {
-							request.setDeniedResponse(new CommandResponse(400,"DUPE: " + inode.getPath()));
-							request.setAllowed(false);
-							return request;
-						}							
-					}
+			InodeHandle inode = item.isDirectory() ? new DirectoryHandle(item.getPath()) : new FileHandle(item.getPath());
+
+			try {
+				if (inode.getPluginMetaData(DupeCheckFileData.DUPE)) {
+					isDupe = true;
 				}
-			}				
-			
-		} catch (IndexException e) {
-			//Index Exception while searching
-			logger.error(e.getMessage());
-		} catch (IllegalArgumentException e) {
-			//Invalid Arguement while searching
-			logger.info(e.getMessage());
+			} catch (KeyNotFoundException e) {
+				// This is fine, means file/dir has not been un-duped
+				isDupe = true;
+			} catch (FileNotFoundException e) {
+				// Missed the delete, ie. the master crashed before saving the index
+				logger.debug("Dupe index contained an unexistent inode: " + item.getPath());
+				index.remove(item.getPath());
+			}
+
+			if (isDupe) {
+				ConfigInterface config = GlobalContext.getConfig();
+				if (config.checkPathPermission("dupecheck", user, request.getCurrentDirectory())) {
+					request.setDeniedResponse(new CommandResponse(400,"DUPE: " + inode.getPath()));
+					request.setAllowed(false);
+					return request;
+				}
+			}
 		}
 		return request;
 	}
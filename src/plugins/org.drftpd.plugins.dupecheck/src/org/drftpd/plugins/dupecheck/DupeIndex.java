@@ -0,0 +1,487 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.plugins.dupecheck;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.bushe.swing.event.annotation.AnnotationProcessor;
+import org.bushe.swing.event.annotation.EventSubscriber;
+import org.drftpd.GlobalContext;
+import org.drftpd.util.LatencyHistogram;
+import org.drftpd.vfs.DirectoryHandle;
+import org.drftpd.vfs.InodeHandle;
+import org.drftpd.vfs.VirtualFileSystem;
+import org.drftpd.vfs.event.ImmutableInodeHandle;
+import org.drftpd.vfs.event.VirtualFileSystemInodeCreatedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemInodeDeletedEvent;
+import org.drftpd.vfs.event.VirtualFileSystemRenameEvent;
+
+/**
+ * In memory index of file and directory names for the dupecheck.<br>
+ * Names are kept lower case, each one maps to the paths using it. The index
+ * follows the VFS events and is saved to a snapshot every few minutes and on
+ * shutdown. If the master did not shut down cleanly the snapshot is still
+ * used, and the VFS is walked in the background to add what it missed.
+ * The same happens when the snapshot was written with another filter, and
+ * changing the filter at runtime empties the index and builds it again.
+ * Paths which no longer exist are dropped when a lookup finds them.
+ * @version $Id$
+ */
+public class DupeIndex {
+	private static final Logger logger = Logger.getLogger(DupeIndex.class);
+
+	private static final int VERSION = 2;
+
+	private static final DupeEntry[] EMPTY = new DupeEntry[0];
+
+	private static DupeIndex _instance;
+
+	private final ConcurrentHashMap<String, DupeEntry[]> _byName = new ConcurrentHashMap<String, DupeEntry[]>();
+
+	private final ConcurrentSkipListMap<String, DupeEntry> _byPath = new ConcurrentSkipListMap<String, DupeEntry>();
+
+	private File _file;
+
+	private volatile int _type = 3;
+
+	private volatile boolean _indexFiles = true;
+
+	private volatile boolean _indexDirectories = true;
+
+	private volatile Pattern _exempt;
+
+	private volatile boolean _rebuilding;
+
+	private volatile boolean _rebuildAgain;
+
+	private volatile boolean _dirty;
+
+	private TimerTask _snapshotTask;
+
+	private final LatencyHistogram _lookupLatency = new LatencyHistogram();
+
+	/**
+	 * Index without a snapshot or event subscriptions.
+	 */
+	protected DupeIndex() {
+	}
+
+	/**
+	 * @return the unique DupeIndex instance, loading it the first time.
+	 */
+	public static synchronized DupeIndex getDupeIndex() {
+		if (_instance == null) {
+			DupeIndex index = new DupeIndex();
+			index.start();
+			_instance = index;
+		}
+		return _instance;
+	}
+
+	private void start() {
+		Properties cfg = GlobalContext.getGlobalContext().getPluginsConfig()
+				.getPropertiesForPlugin("dupecheck.conf");
+		String exempt = cfg.getProperty("exempt");
+		setFilter(Integer.parseInt(cfg.getProperty("type", "3").trim()),
+				exempt == null ? null : Pattern.compile(exempt.trim()));
+		_file = new File(cfg.getProperty("index_file", "dupeindex.dat").trim());
+		long interval = Long.parseLong(cfg.getProperty("snapshot_interval", "10").trim()) * 60000L;
+
+		boolean clean = open();
+		AnnotationProcessor.process(this);
+		if (!clean) {
+			rebuild();
+		}
+
+		_snapshotTask = new TimerTask() {
+			public void run() {
+				if (_dirty && !_rebuilding) {
+					save(false);
+				}
+			}
+		};
+		GlobalContext.getGlobalContext().getTimer().schedule(_snapshotTask, interval, interval);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				save(true);
+			}
+		}, "DupeIndexSaverThread"));
+	}
+
+	/**
+	 * Sets what gets indexed, a different filter than the current one empties the index.
+	 * @param type 1 files, 2 directories, 3 both, 0 nothing.
+	 * @return true if the filter changed, the index has to be rebuilt.
+	 */
+	public synchronized boolean setFilter(int type, Pattern exempt) {
+		if (isFilter(type, exempt == null ? "" : exempt.pattern())) {
+			return false;
+		}
+		_type = type;
+		_indexFiles = type == 1 || type == 3;
+		_indexDirectories = type == 2 || type == 3;
+		_exempt = exempt;
+		_byName.clear();
+		_byPath.clear();
+		_dirty = true;
+		return true;
+	}
+
+	private boolean isFilter(int type, String exempt) {
+		Pattern current = _exempt;
+		return type == _type && exempt.equals(current == null ? "" : current.pattern());
+	}
+
+	/**
+	 * @return the paths using this name, case insensitive, sorted by path.
+	 */
+	public List<DupeEntry> find(String name) {
+		long start = System.nanoTime();
+		DupeEntry[] entries = _byName.get(normalize(name));
+		_lookupLatency.recordNanos(System.nanoTime() - start);
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList(entries);
+	}
+
+	public int size() {
+		return _byPath.size();
+	}
+
+	public boolean isRebuilding() {
+		return _rebuilding;
+	}
+
+	public LatencyHistogram getLookupLatency() {
+		return _lookupLatency;
+	}
+
+	protected synchronized void add(String path, boolean directory, long created) {
+		String name = normalize(getName(path));
+		if (!accepts(name, directory)) {
+			return;
+		}
+		DupeEntry entry = new DupeEntry(path, directory, created);
+		DupeEntry old = _byPath.put(path, entry);
+		if (old != null) {
+			removeName(old);
+		}
+		DupeEntry[] entries = _byName.get(name);
+		if (entries == null) {
+			entries = EMPTY;
+		}
+		DupeEntry[] added = Arrays.copyOf(entries, entries.length + 1);
+		added[entries.length] = entry;
+		Arrays.sort(added);
+		_byName.put(name, added);
+		_dirty = true;
+	}
+
+	/**
+	 * Removes the path, and everything below it if it is a directory.
+	 */
+	protected synchronized void remove(String path) {
+		DupeEntry entry = _byPath.remove(path);
+		if (entry != null) {
+			removeName(entry);
+		}
+		for (DupeEntry child : children(path).values().toArray(EMPTY)) {
+			_byPath.remove(child.getPath());
+			removeName(child);
+		}
+		_dirty = true;
+	}
+
+	protected synchronized void rename(String from, String to) {
+		DupeEntry entry = _byPath.get(from);
+		List<DupeEntry> moved = new ArrayList<DupeEntry>(children(from).values());
+		remove(from);
+		if (entry != null) {
+			add(to, entry.isDirectory(), entry.getCreated());
+		}
+		for (DupeEntry child : moved) {
+			add(to + child.getPath().substring(from.length()), child.isDirectory(), child.getCreated());
+		}
+	}
+
+	private Map<String, DupeEntry> children(String path) {
+		String prefix = path.endsWith(VirtualFileSystem.separator) ? path : path + VirtualFileSystem.separator;
+		// '0' is the character after the separator
+		return _byPath.subMap(prefix, prefix.substring(0, prefix.length() - 1) + "0");
+	}
+
+	private void removeName(DupeEntry entry) {
+		String name = normalize(getName(entry.getPath()));
+		DupeEntry[] entries = _byName.get(name);
+		if (entries == null) {
+			return;
+		}
+		int index = Arrays.asList(entries).indexOf(entry);
+		if (index < 0) {
+			return;
+		}
+		if (entries.length == 1) {
+			_byName.remove(name);
+			return;
+		}
+		DupeEntry[] removed = new DupeEntry[entries.length - 1];
+		System.arraycopy(entries, 0, removed, 0, index);
+		System.arraycopy(entries, index + 1, removed, index, entries.length - index - 1);
+		_byName.put(name, removed);
+	}
+
+	private boolean accepts(String name, boolean directory) {
+		if (directory ? !_indexDirectories : !_indexFiles) {
+			return false;
+		}
+		Pattern exempt = _exempt;
+		return exempt == null || !exempt.matcher(name).find();
+	}
+
+	@EventSubscriber
+	public void inodeCreated(VirtualFileSystemInodeCreatedEvent event) {
+		ImmutableInodeHandle inode = event.getImmutableInode();
+		if (!inode.isLink()) {
+			add(inode.getPath(), inode.isDirectory(), inode.getCreationTime());
+		}
+	}
+
+	@EventSubscriber
+	public void inodeDeleted(VirtualFileSystemInodeDeletedEvent event) {
+		remove(event.getImmutableInode().getPath());
+	}
+
+	@EventSubscriber
+	public void inodeRenamed(VirtualFileSystemRenameEvent event) {
+		rename(event.getSource().getPath(), event.getImmutableInode().getPath());
+	}
+
+	/**
+	 * Walks the VFS in the background and adds every file and directory to the
+	 * index, a walk already running is started over once done.
+	 */
+	public void rebuild() {
+		synchronized (this) {
+			if (_rebuilding) {
+				_rebuildAgain = true;
+				return;
+			}
+			_rebuilding = true;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					do {
+						// the filter changed during the walk and emptied the index
+						_rebuildAgain = false;
+						walk(GlobalContext.getGlobalContext().getRoot());
+					} while (_rebuildAgain);
+					logger.info("Dupe index built, " + size() + " entries in "
+							+ (System.currentTimeMillis() - start) + "ms");
+				} finally {
+					_rebuilding = false;
+				}
+				save(false);
+			}
+		}, "DupeIndexRebuildThread");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void walk(DirectoryHandle dir) {
+		try {
+			for (InodeHandle inode : dir.getInodeHandlesUnchecked()) {
+				try {
+					if (inode.isDirectory()) {
+						add(inode.getPath(), true, inode.creationTime());
+						walk((DirectoryHandle) inode);
+					} else if (inode.isFile()) {
+						add(inode.getPath(), false, inode.creationTime());
+					}
+				} catch (FileNotFoundException e) {
+					// deleted while walking
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// deleted while walking
+		}
+	}
+
+	/**
+	 * Loads the snapshot and, if it was clean, marks it unclean right away so
+	 * a crash before the next snapshot doesn't leave one claiming to be complete.
+	 * @return true if the snapshot was clean, the index doesn't need a rebuild.
+	 */
+	protected boolean open() {
+		boolean clean = false;
+		try {
+			clean = load(_file);
+		} catch (FileNotFoundException e) {
+			logger.info("No dupe index found at " + _file.getPath() + ", building it from the VFS");
+		} catch (IOException e) {
+			logger.warn("Unable to read the dupe index from " + _file.getPath() + ", building it from the VFS", e);
+		}
+		if (clean && !save(false) && !_file.delete()) {
+			logger.warn("Unable to mark the dupe index " + _file.getPath() + " unclean, building it from the VFS");
+			return false;
+		}
+		return clean;
+	}
+
+	/**
+	 * Entries the current filter doesn't want are skipped.
+	 * @return true if the snapshot was written by a clean shutdown with the current filter.
+	 */
+	protected boolean load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != VERSION) {
+				throw new IOException("Unsupported dupe index version");
+			}
+			boolean clean = in.readBoolean();
+			if (!isFilter(in.readInt(), in.readUTF())) {
+				logger.info("Dupe index " + file.getPath() + " was saved with another filter, it has to be rebuilt");
+				clean = false;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				boolean directory = in.readBoolean();
+				add(path, directory, in.readLong());
+			}
+			_dirty = false;
+			logger.info("Loaded " + count + " dupe index entries from " + file.getPath());
+			return clean;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file first, so a crash leaves the previous one.
+	 * @param clean true on shutdown, once no more events will be missed.
+	 * @return false if it couldn't be written.
+	 */
+	protected synchronized boolean save(boolean clean) {
+		if (_file == null) {
+			return false;
+		}
+		File tmp = new File(_file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(VERSION);
+				out.writeBoolean(clean && !_rebuilding);
+				out.writeInt(_type);
+				out.writeUTF(_exempt == null ? "" : _exempt.pattern());
+				out.writeInt(_byPath.size());
+				for (DupeEntry entry : _byPath.values()) {
+					out.writeUTF(entry.getPath());
+					out.writeBoolean(entry.isDirectory());
+					out.writeLong(entry.getCreated());
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(_file)) {
+				_file.delete();
+				if (!tmp.renameTo(_file)) {
+					throw new IOException("Unable to rename " + tmp.getPath() + " to " + _file.getPath());
+				}
+			}
+			_dirty = false;
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to save the dupe index to " + _file.getPath(), e);
+			return false;
+		}
+	}
+
+	protected void setFile(File file) {
+		_file = file;
+	}
+
+	private static String getName(String path) {
+		return path.substring(path.lastIndexOf(VirtualFileSystem.separator) + 1);
+	}
+
+	private static String normalize(String name) {
+		return name.toLowerCase();
+	}
+
+	/**
+	 * A file or directory using an indexed name.
+	 */
+	public static class DupeEntry implements Comparable<DupeEntry> {
+		private final String _path;
+
+		private final boolean _directory;
+
+		private final long _created;
+
+		public DupeEntry(String path, boolean directory, long created) {
+			_path = path;
+			_directory = directory;
+			_created = created;
+		}
+
+		public String getPath() {
+			return _path;
+		}
+
+		public boolean isDirectory() {
+			return _directory;
+		}
+
+		public long getCreated() {
+			return _created;
+		}
+
+		public int compareTo(DupeEntry o) {
+			return _path.compareTo(o._path);
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof DupeEntry && ((DupeEntry) o)._path.equals(_path);
+		}
+
+		public int hashCode() {
+			return _path.hashCode();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.plugins.dupecheck;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.drftpd.plugins.dupecheck.DupeIndex.DupeEntry;
+
+/**
+ * @version $Id$
+ */
+public class DupeIndexTest extends TestCase {
+
+	private DupeIndex _index;
+
+	public DupeIndexTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_index = new DupeIndex();
+		_index.setFilter(3, Pattern.compile("^(sample|subs)$"));
+		_index.add("/MP3/Some.Release-GRP", true, 1L);
+		_index.add("/MP3/Some.Release-GRP/01-track.mp3", false, 2L);
+		_index.add("/MP3/Some.Release-GRP/Sample", true, 3L);
+		_index.add("/ARCHIVE/some.release-grp", true, 4L);
+	}
+
+	public void testFind() {
+		List<DupeEntry> entries = _index.find("SOME.RELEASE-GRP");
+		assertEquals(2, entries.size());
+		assertEquals("/ARCHIVE/some.release-grp", entries.get(0).getPath());
+		assertEquals("/MP3/Some.Release-GRP", entries.get(1).getPath());
+		assertTrue(entries.get(1).isDirectory());
+		assertEquals(1, _index.find("01-track.mp3").size());
+		assertTrue(_index.find("sample").isEmpty());
+		assertTrue(_index.find("missing").isEmpty());
+	}
+
+	public void testRemove() {
+		_index.remove("/MP3/Some.Release-GRP");
+		assertEquals(1, _index.find("some.release-grp").size());
+		assertTrue(_index.find("01-track.mp3").isEmpty());
+		assertEquals(1, _index.size());
+	}
+
+	public void testRename() {
+		_index.rename("/MP3/Some.Release-GRP", "/MP3/Other.Release-GRP");
+		assertEquals(1, _index.find("some.release-grp").size());
+		assertEquals("/MP3/Other.Release-GRP", _index.find("other.release-grp").get(0).getPath());
+		DupeEntry track = _index.find("01-track.mp3").get(0);
+		assertEquals("/MP3/Other.Release-GRP/01-track.mp3", track.getPath());
+		assertEquals(2L, track.getCreated());
+	}
+
+	public void testSnapshot() throws IOException {
+		File file = File.createTempFile("dupeindex", ".dat");
+		try {
+			_index.setFile(file);
+			_index.save(true);
+			DupeIndex loaded = new DupeIndex();
+			loaded.setFilter(3, Pattern.compile("^(sample|subs)$"));
+			assertTrue(loaded.load(file));
+			assertEquals(_index.size(), loaded.size());
+			assertEquals(2, loaded.find("some.release-grp").size());
+			_index.save(false);
+			loaded = new DupeIndex();
+			loaded.setFilter(3, Pattern.compile("^(sample|subs)$"));
+			assertFalse(loaded.load(file));
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testOpenMarksUnclean() throws IOException {
+		File file = File.createTempFile("dupeindex", ".dat");
+		try {
+			_index.setFile(file);
+			_index.save(true);
+			DupeIndex opened = new DupeIndex();
+			opened.setFilter(3, Pattern.compile("^(sample|subs)$"));
+			opened.setFile(file);
+			assertTrue(opened.open());
+			assertEquals(_index.size(), opened.size());
+
+			// the master crashes before its next snapshot
+			DupeIndex restarted = new DupeIndex();
+			restarted.setFilter(3, Pattern.compile("^(sample|subs)$"));
+			restarted.setFile(file);
+			assertFalse(restarted.open());
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testSnapshotOtherFilter() throws IOException {
+		File file = File.createTempFile("dupeindex", ".dat");
+		try {
+			_index.setFile(file);
+			_index.save(true);
+
+			// a wider filter has to rebuild to find what was skipped
+			DupeIndex wider = new DupeIndex();
+			wider.setFilter(3, null);
+			assertFalse(wider.load(file));
+
+			// a narrower one drops what it doesn't want
+			DupeIndex narrower = new DupeIndex();
+			narrower.setFilter(2, Pattern.compile("^(sample|subs)$"));
+			assertFalse(narrower.load(file));
+			assertEquals(2, narrower.size());
+			assertTrue(narrower.find("01-track.mp3").isEmpty());
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testSetFilter() {
+		assertFalse(_index.setFilter(3, Pattern.compile("^(sample|subs)$")));
+		assertEquals(3, _index.size());
+
+		// narrowing empties the index too, the rebuild only adds what is still wanted
+		assertTrue(_index.setFilter(2, Pattern.compile("^(sample|subs)$")));
+		assertEquals(0, _index.size());
+		_index.add("/MP3/Some.Release-GRP", true, 1L);
+		_index.add("/MP3/Some.Release-GRP/01-track.mp3", false, 2L);
+		assertEquals(1, _index.size());
+		assertTrue(_index.find("01-track.mp3").isEmpty());
+
+		assertTrue(_index.setFilter(2, null));
+		assertTrue(_index.setFilter(2, Pattern.compile("^sample$")));
+	}
+}
@@ -22,7 +22,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
-
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.drftpd.GlobalContext;
@@ -41,7 +42,7 @@ import org.drftpd.vfs.FileHandle;
  * @version $Id$
  */
 public class Job {
-	private static long jobIndexCount = 0;
+	private static final AtomicLong jobIndexCount = new AtomicLong();
 
 	private static final Logger logger = Logger.getLogger(Job.class);
 
@@ -69,6 +70,8 @@ public class Job {
 	 * 	A flag declaring whether the delete operation at the end of the Job transfer has been done or not
 	 */
 	private boolean _deleteDone;
+
+	private final AtomicBoolean _claimed = new AtomicBoolean();
 	
 	public Job(FileHandle file, int priority, int transferNum, Collection<RemoteSlave> destSlaves) {
 		this(file, priority, transferNum);
@@ -90,7 +93,7 @@ public class Job {
 	 * @param transfernum
 	 */
 	private Job(FileHandle file, int priority, int transferNum) {
-		_index = jobIndexCount++;
+		_index = jobIndexCount.getAndIncrement();
 		_timeCreated = System.currentTimeMillis();
 		_timeSpent = 0;
 		_slaveTransfer = null;
@@ -217,6 +220,13 @@ public class Job {
 		return Collections.unmodifiableSet(_destSlaves);
 	}
 
+	/**
+	 * @return every destination of the job, online or not.
+	 */
+	Set<String> getAllDestinationSlaves() {
+		return Collections.unmodifiableSet(_destSlaves);
+	}
+
 	public void abort() {
 		_deleteDone = true;
 		_transferNum = 0;
@@ -285,6 +295,18 @@ public class Job {
 		return _slaveTransfer != null;
 	}
 
+	/**
+	 * Makes the calling worker the only one handling this job until {@link #unclaim()}.
+	 * @return false if another worker already has it.
+	 */
+	boolean claim() {
+		return _claimed.compareAndSet(false, true);
+	}
+
+	void unclaim() {
+		_claimed.set(false);
+	}
+
 	private String outputDestinationSlaves() {
 		StringBuilder slaveBuilder = new StringBuilder();
 
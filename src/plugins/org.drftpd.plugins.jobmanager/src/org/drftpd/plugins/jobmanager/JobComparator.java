@@ -51,7 +51,11 @@ public class JobComparator implements Comparator<Job>, Serializable {
 			return -1;
 		}
 
-		// if (job1.getIndex() > job2.getIndex()) { //younger
-		return 1;
+		if (job1.getIndex() > job2.getIndex()) { // younger
+			return 1;
+		}
+
+		// same job, sorted sets need this to find it again
+		return 0;
 	}
 }
@@ -25,7 +25,7 @@ import java.util.Iterator;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimerTask;
-import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.bushe.swing.event.annotation.AnnotationProcessor;
@@ -34,20 +34,33 @@ import org.drftpd.GlobalContext;
 import org.drftpd.PluginInterface;
 import org.drftpd.PropertyHelper;
 import org.drftpd.event.ReloadEvent;
+import org.drftpd.event.SlaveEvent;
 import org.drftpd.exceptions.NoAvailableSlaveException;
 import org.drftpd.exceptions.ObjectNotFoundException;
 import org.drftpd.master.RemoteSlave;
 
 /**
+ * Keeps the queued jobs and runs them on up to maxTransfers
+ * {@link JobTransferThread} workers.<br>
+ * A worker picks its next job from the {@link JobQueue} indexes of the
+ * available slaves as soon as its transfer is done, the timer only wakes
+ * workers up for jobs which couldn't be sent earlier. Jobs whose destinations
+ * are all offline are parked until a slave comes back online.
  * @author zubov
  * @version $Id$
  */
 public class JobManager implements PluginInterface {
 	private static final Logger logger = Logger.getLogger(JobManager.class);
 
-	private boolean _isStopped = false;
+	/**
+	 * Sendable jobs tried per source slave in one pass, so slaves refusing
+	 * transfers don't make every worker walk a huge queue.
+	 */
+	private static final int SCAN_LIMIT = 100;
+
+	private volatile boolean _isStopped = false;
 
-	private Set<Job> _queuedJobSet;
+	private JobQueue _queue;
 
 	private boolean _useCRC;
 	
@@ -55,6 +68,10 @@ public class JobManager implements PluginInterface {
 
 	private long _sleepSeconds;
 
+	private volatile int _maxTransfers;
+
+	private AtomicInteger _workers = new AtomicInteger();
+
 	private TimerTask _runJob = null;
 
 	/**
@@ -64,7 +81,7 @@ public class JobManager implements PluginInterface {
 
 	}
 
-	public synchronized void addJobsToQueue(Collection<Job> jobs) {
+	public void addJobsToQueue(Collection<Job> jobs) {
 		ArrayList<Job> jobs2 = new ArrayList<Job>(jobs);
 		for (Iterator<Job> jobiter = jobs2.iterator(); jobiter.hasNext();) {
 			Job job = jobiter.next();
@@ -95,173 +112,186 @@ public class JobManager implements PluginInterface {
 				jobiter.remove();
 			}
 		}
-		_queuedJobSet.addAll(jobs2);
+		for (Job job : jobs2) {
+			try {
+				_queue.add(job, job.getFile().getSlaveNames());
+			} catch (FileNotFoundException e) {
+				job.abort();
+			}
+		}
+		startWorkers();
 	}
 
-	public synchronized void addJobToQueue(Job job) {
+	public void addJobToQueue(Job job) {
 		addJobsToQueue(Collections.singletonList(job));
 	}
 
 	/**
 	 * Gets all jobs.
 	 */
-	public synchronized Set<Job> getAllJobsFromQueue() {
-		return Collections.unmodifiableSet(_queuedJobSet);
+	public Set<Job> getAllJobsFromQueue() {
+		return _queue.getJobs();
 	}
 
-	public synchronized Job getNextJob(Set<RemoteSlave> busySlaves, Set<Job> skipJobs) {
-		for (Iterator<Job> iter = _queuedJobSet.iterator(); iter.hasNext();) {
-			Job tempJob = iter.next();
-
-			if (tempJob.isDone()) {
-				iter.remove();
-
-				continue;
-			}
-
-			if (tempJob.isTransferring()) {
-				continue;
-			}
-
-			if (skipJobs.contains(tempJob)) {
-				continue;
-			}
-
-			Collection<RemoteSlave> availableSlaves = null;
+	public boolean isStopped() {
+		return _isStopped;
+	}
 
-			try {
-				availableSlaves = tempJob.getFile().getAvailableSlaves();
-			} catch (NoAvailableSlaveException e) {
-				continue; // can't transfer what isn't online
-			} catch (FileNotFoundException e) {
-				tempJob.abort();
-				iter.remove();
-				continue;
+	/**
+	 * Starts workers until maxTransfers are running or there is one per queued job.
+	 */
+	private void startWorkers() {
+		if (_isStopped) {
+			return;
+		}
+		while (true) {
+			int running = _workers.get();
+			if (running >= _maxTransfers || running >= _queue.size()) {
+				return;
 			}
-
-			if (!busySlaves.containsAll(availableSlaves)) {
-				return tempJob;
+			if (_workers.compareAndSet(running, running + 1)) {
+				new JobTransferThread(this).start();
 			}
 		}
-
-		return null;
 	}
 
-	public boolean isStopped() {
-		return _isStopped;
+	void workerDone() {
+		_workers.decrementAndGet();
 	}
 
-	public void processJob() {
-		Job job = null;
-		RemoteSlave sourceSlave = null;
-		RemoteSlave destSlave = null;
-
+	/**
+	 * Picks the most important job which can be sent right now and sends it.
+	 * @return false if there was nothing to send.
+	 */
+	public boolean processJob() {
+		if (_isStopped) {
+			return false;
+		}
 		Collection<RemoteSlave> availableSlaves;
 		try {
 			availableSlaves = getGlobalContext().getSlaveManager().getAvailableSlaves();
 		} catch (NoAvailableSlaveException e1) {
-			return; // can't transfer with no slaves
+			return false; // can't transfer with no slaves
+		}
+		HashSet<String> availableNames = new HashSet<String>();
+		for (RemoteSlave rslave : availableSlaves) {
+			availableNames.add(rslave.getName());
 		}
 
-		Set<RemoteSlave> busySlavesDown = new HashSet<RemoteSlave>();
-		Set<Job> skipJobs = new HashSet<Job>();
-
-		synchronized (this) {
-			/*
-			 * this loops through and makes sure that the file is on every available
-			 * slave.  However this isn't the case for all archive types, so we
-			 * will do a check later on to see if the job is fully archived
-			 * with the .conf specificiations.
-			 */
-			while (!busySlavesDown.containsAll(availableSlaves)) {
-				job = getNextJob(busySlavesDown, skipJobs);
-				if (job == null) {
-					return;
-				}
-				Collection<RemoteSlave> destinationSlaveObjects = null;
-				try {
-					destinationSlaveObjects = job.getSlaveObjects(job.getDestinationSlaves());
-				} catch (ObjectNotFoundException e2) {
-					logger.debug("Slave no longer exists!", e2);
-					job.abort();
+		for (String source : _queue.getSourcesByPriority(availableNames)) {
+			for (Job job : _queue.getSendableJobsFrom(source, availableNames, SCAN_LIMIT)) {
+				if (!job.claim()) {
 					continue;
 				}
-
-				/*
-				 * Lets check and see if the file is already archived with the right number of slaves
-				 * And if it is, lets not re-archive the thing if not needed.
-				 * 
-				 * Cleanup is used to remove other files from old - not needed slaves
-				 * Removejob is to remove it from this queue, and return the process 
-				 */
-				if (job.checkIfArchived()) {
-					job.cleanup();
-					removeJobFromQueue(job);
-					return;
-				}
-				
 				try {
-					sourceSlave = getGlobalContext().getSlaveSelectionManager().getASlaveForJobDownload(job.getFile(),job.getSlaveObjects(job.getSlavesToTransferTo()));
-				} catch (NoAvailableSlaveException e) {
-					try {
-						busySlavesDown.addAll(job.getFile().getSlaves());
-					} catch (FileNotFoundException e1) {
-						// can't transfer
-						return;
+					if (tryTransfer(job)) {
+						return true;
 					}
-					continue;
-				} catch (FileNotFoundException e) {
-					job.abort();
-					// can't transfer
-					return;
-				} catch (ObjectNotFoundException e) {
-					job.abort();
-					// can't transfer
-					return;
+				} finally {
+					job.unclaim();
 				}
+			}
+		}
+		return false;
+	}
 
-				if (sourceSlave == null) {
-					logger.debug("Unable to find a suitable job for transfer");
-					return;
-				}
-				try {
-					availableSlaves.removeAll(job.getFile().getSlaves());
-					destSlave = getGlobalContext().getSlaveSelectionManager().getASlaveForJobUpload(job.getFile(),destinationSlaveObjects, sourceSlave);
-					
-					break; // we have a source slave and a destination
-					// slave,
-
-					// transfer!
-				} catch (NoAvailableSlaveException e) {
-					// job was ready to be sent, but it had no slave that was
-					// ready to accept it
-					skipJobs.add(job);
+	/**
+	 * Sends the job if it has a source and a destination slave with a free
+	 * transfer slot between them, the caller holds the claim of the job.
+	 * @return true if the job was sent or finished without sending.
+	 */
+	private boolean tryTransfer(Job job) {
+		if (job.isDone()) {
+			_queue.remove(job);
+			return false;
+		}
+		Collection<RemoteSlave> destinationSlaveObjects;
+		try {
+			destinationSlaveObjects = job.getSlaveObjects(job.getDestinationSlaves());
+		} catch (ObjectNotFoundException e2) {
+			logger.debug("Slave no longer exists!", e2);
+			job.abort();
+			_queue.remove(job);
+			return false;
+		}
 
-					continue;
-				} catch (FileNotFoundException e) {
-					// can't transfer
-					return;
+		/*
+		 * Lets check and see if the file is already archived with the right number of slaves
+		 * And if it is, lets not re-archive the thing if not needed.
+		 * 
+		 * Cleanup is used to remove other files from old - not needed slaves
+		 * Removejob is to remove it from this queue
+		 */
+		if (job.checkIfArchived()) {
+			job.cleanup();
+			_queue.remove(job);
+			return true;
+		}
+
+		RemoteSlave sourceSlave;
+		RemoteSlave destSlave;
+		try {
+			sourceSlave = getGlobalContext().getSlaveSelectionManager().getASlaveForJobDownload(job.getFile(),
+					job.getSlaveObjects(job.getSlavesToTransferTo()));
+			if (sourceSlave == null) {
+				logger.debug("Unable to find a suitable job for transfer");
+				return false;
+			}
+			ArrayList<RemoteSlave> destinations = new ArrayList<RemoteSlave>();
+			for (RemoteSlave rslave : destinationSlaveObjects) {
+				if (_queue.hasPairCapacity(sourceSlave.getName(), rslave.getName())) {
+					destinations.add(rslave);
 				}
 			}
-			// sourceSlave will always be null if destSlave is null
-			if (destSlave == null /* || sourceSlave == null */) {
-				// all slaves are offline or busy
-				return;
+			if (destinations.isEmpty()) {
+				return false;
 			}
+			destSlave = getGlobalContext().getSlaveSelectionManager().getASlaveForJobUpload(job.getFile(),
+					destinations, sourceSlave);
+		} catch (NoAvailableSlaveException e) {
+			// the slaves holding the file may have changed since it was indexed
+			reindex(job);
+			return false;
+		} catch (FileNotFoundException e) {
+			// can't transfer
+			job.abort();
+			_queue.remove(job);
+			return false;
+		} catch (ObjectNotFoundException e) {
+			// can't transfer
+			job.abort();
+			_queue.remove(job);
+			return false;
 		}
 
-		// file is not deleted and is available, we are ready to process
-
+		if (!_queue.acquirePair(sourceSlave.getName(), destSlave.getName())) {
+			return false;
+		}
 		try {
+			// file is not deleted and is available, we are ready to process
 			job.transfer(useCRC(), useSecureTransfers(), sourceSlave, destSlave);
 		} catch (FileNotFoundException e) {
 			job.abort();
 			// file is deleted, hah! stupid race conditions
-			return;
+		} finally {
+			_queue.releasePair(sourceSlave.getName(), destSlave.getName());
 		}
 		if (job.isDone()) {
 			logger.debug("Job is finished, removing job " + job.getFile());
-			removeJobFromQueue(job);
+			_queue.remove(job);
+		} else {
+			// the destination is a new source for the next copies
+			reindex(job);
+		}
+		return true;
+	}
+
+	private void reindex(Job job) {
+		try {
+			_queue.reindex(job, job.getFile().getSlaveNames());
+		} catch (FileNotFoundException e) {
+			job.abort();
+			_queue.remove(job);
 		}
 	}
 
@@ -276,6 +306,8 @@ public class JobManager implements PluginInterface {
 		_useSSL = p.getProperty("useSSLTransfers", "true").equals("true"); 
 		_sleepSeconds = 1000 * Long.parseLong(PropertyHelper.getProperty(p,
 				"sleepSeconds", "30"));
+		_maxTransfers = Math.max(1, Integer.parseInt(p.getProperty("maxTransfers", "4").trim()));
+		_queue.setMaxPairTransfers(Integer.parseInt(p.getProperty("maxTransfers.pair", "1").trim()));
 		if (_runJob != null) {
 			_runJob.cancel();
 			getGlobalContext().getTimer().purge();
@@ -285,10 +317,7 @@ public class JobManager implements PluginInterface {
 		}
 		_runJob = new TimerTask() {
 			public void run() {
-				if (_isStopped) {
-					return;
-				}
-				new JobTransferThread(getJobManager()).start();
+				startWorkers();
 			}
 		};
 		try {
@@ -298,16 +327,13 @@ public class JobManager implements PluginInterface {
 		}
 	}
 
-	public synchronized void removeJobFromQueue(Job job) {
-		_queuedJobSet.remove(job);
+	public void removeJobFromQueue(Job job) {
+		_queue.remove(job);
 	}
 
 	public void startJobs() {
 		_isStopped = false;
-	}
-
-	private JobManager getJobManager() {
-		return this;
+		startWorkers();
 	}
 
 	public void stopJob(Job job) {
@@ -331,7 +357,7 @@ public class JobManager implements PluginInterface {
 		// Subscribe to events
 		AnnotationProcessor.process(this);
 		logger.info("JobManager plugin loaded successfully");
-		_queuedJobSet = new TreeSet<Job>(new JobComparator());
+		_queue = new JobQueue();
 		reload();
 	}
 
@@ -340,13 +366,12 @@ public class JobManager implements PluginInterface {
 			_runJob.cancel();
 			getGlobalContext().getTimer().purge();
 		}
-		if (_queuedJobSet != null) {
-			synchronized (this) {
-				for (Job job : _queuedJobSet) {
-					job.abort();
-				}
-				_queuedJobSet.clear();
+		_isStopped = true;
+		if (_queue != null) {
+			for (Job job : _queue.getJobs()) {
+				job.abort();
 			}
+			_queue.clear();
 		}
 		AnnotationProcessor.unprocess(this);
 		logger.info("JobManager plugin unloaded successfully");
@@ -356,4 +381,15 @@ public class JobManager implements PluginInterface {
 	public void onReloadEvent(ReloadEvent event) {
 		reload();
 	}
+
+	@EventSubscriber
+	public void onSlaveEvent(SlaveEvent event) {
+		if (event.getCommand().equals("ADDSLAVE") && _queue != null) {
+			// parked jobs may have a destination again
+			for (Job job : _queue.unpark()) {
+				reindex(job);
+			}
+			startWorkers();
+		}
+	}
 }
@@ -0,0 +1,419 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.plugins.jobmanager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queued jobs, indexed by the slaves holding their file so a worker looking
+ * for work from a source slave only looks at jobs it can send, and by the
+ * source and destination slave pairs they are waiting on, so a pair running
+ * all the transfers it is allowed is skipped without looking at its jobs.<br>
+ * Every index is ordered by priority then age, all of them are concurrent
+ * sets and a job is owned by one worker at a time through
+ * {@link Job#claim()}, so workers never wait on each other to pick a job.
+ * Running transfers are counted per source and destination slave pair.<br>
+ * Jobs are parked out of the pairs whose destination is offline, and out of
+ * every index once none of their destinations is online, until a slave comes
+ * back online.
+ * @version $Id$
+ */
+public class JobQueue {
+
+	private static final JobComparator COMPARATOR = new JobComparator();
+
+	private static final int SENDABLE = 0;
+
+	private static final int WAITING = 1;
+
+	private static final int OFFLINE = 2;
+
+	private final ConcurrentSkipListSet<Job> _jobs = new ConcurrentSkipListSet<Job>(COMPARATOR);
+
+	private final ConcurrentHashMap<String, ConcurrentSkipListSet<Job>> _jobsBySource =
+		new ConcurrentHashMap<String, ConcurrentSkipListSet<Job>>();
+
+	// destinations of the jobs each source slave can send, jobs with nothing
+	// left to send from a slave are under the slave itself
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentSkipListSet<Job>>> _jobsByPair =
+		new ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentSkipListSet<Job>>>();
+
+	private final ConcurrentHashMap<Job, Collection<String>> _sources = new ConcurrentHashMap<Job, Collection<String>>();
+
+	private final Set<Job> _parked = Collections.newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
+
+	private final ConcurrentHashMap<String, AtomicInteger> _pairTransfers = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private volatile int _maxPairTransfers = 1;
+
+	/**
+	 * @param sourceSlaves names of the slaves holding the file of the job.
+	 */
+	public void add(Job job, Collection<String> sourceSlaves) {
+		_jobs.add(job);
+		index(job, sourceSlaves);
+	}
+
+	public void remove(Job job) {
+		_jobs.remove(job);
+		_parked.remove(job);
+		unindex(job);
+	}
+
+	/**
+	 * Moves the job to the indexes of the slaves now holding its file, ie.
+	 * after a transfer added a copy. Does nothing if the job was removed.
+	 */
+	public void reindex(Job job, Collection<String> sourceSlaves) {
+		unindex(job);
+		_parked.remove(job);
+		if (_jobs.contains(job)) {
+			index(job, sourceSlaves);
+		}
+	}
+
+	/**
+	 * Takes the job out of the source indexes until {@link #unpark()}, it
+	 * stays queued. Does nothing if the job was removed.
+	 */
+	public void park(Job job) {
+		unindex(job);
+		_parked.add(job);
+		if (!_jobs.contains(job)) {
+			_parked.remove(job);
+		}
+	}
+
+	/**
+	 * @return the parked jobs, which are no longer parked and have to be
+	 * {@link #reindex(Job, Collection)}ed by the caller.
+	 */
+	public Collection<Job> unpark() {
+		ArrayList<Job> jobs = new ArrayList<Job>(_parked);
+		_parked.removeAll(jobs);
+		return jobs;
+	}
+
+	public int getParkedCount() {
+		return _parked.size();
+	}
+
+	private void index(Job job, Collection<String> sourceSlaves) {
+		_sources.put(job, new ArrayList<String>(sourceSlaves));
+		for (String slave : sourceSlaves) {
+			getIndex(_jobsBySource, slave).add(job);
+			ConcurrentHashMap<String, ConcurrentSkipListSet<Job>> pairs = _jobsByPair.get(slave);
+			if (pairs == null) {
+				pairs = new ConcurrentHashMap<String, ConcurrentSkipListSet<Job>>();
+				ConcurrentHashMap<String, ConcurrentSkipListSet<Job>> existing = _jobsByPair.putIfAbsent(slave, pairs);
+				if (existing != null) {
+					pairs = existing;
+				}
+			}
+			boolean pending = false;
+			for (String destSlave : job.getAllDestinationSlaves()) {
+				if (!sourceSlaves.contains(destSlave)) {
+					getIndex(pairs, destSlave).add(job);
+					pending = true;
+				}
+			}
+			if (!pending) {
+				getIndex(pairs, slave).add(job);
+			}
+		}
+	}
+
+	private void unindex(Job job) {
+		Collection<String> sourceSlaves = _sources.remove(job);
+		if (sourceSlaves == null) {
+			return;
+		}
+		for (String slave : sourceSlaves) {
+			ConcurrentSkipListSet<Job> jobs = _jobsBySource.get(slave);
+			if (jobs != null) {
+				jobs.remove(job);
+			}
+			ConcurrentHashMap<String, ConcurrentSkipListSet<Job>> pairs = _jobsByPair.get(slave);
+			if (pairs == null) {
+				continue;
+			}
+			removeFrom(pairs.get(slave), job);
+			for (String destSlave : job.getAllDestinationSlaves()) {
+				removeFrom(pairs.get(destSlave), job);
+			}
+		}
+	}
+
+	private static void removeFrom(ConcurrentSkipListSet<Job> jobs, Job job) {
+		if (jobs != null) {
+			jobs.remove(job);
+		}
+	}
+
+	private static ConcurrentSkipListSet<Job> getIndex(ConcurrentHashMap<String, ConcurrentSkipListSet<Job>> indexes, String slave) {
+		ConcurrentSkipListSet<Job> jobs = indexes.get(slave);
+		if (jobs == null) {
+			jobs = new ConcurrentSkipListSet<Job>(COMPARATOR);
+			ConcurrentSkipListSet<Job> existing = indexes.putIfAbsent(slave, jobs);
+			if (existing != null) {
+				jobs = existing;
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return a live, unmodifiable view of the queued jobs in priority order.
+	 */
+	public Set<Job> getJobs() {
+		return Collections.unmodifiableSet(_jobs);
+	}
+
+	public int size() {
+		return _jobs.size();
+	}
+
+	public boolean isEmpty() {
+		return _jobs.isEmpty();
+	}
+
+	/**
+	 * @return the jobs whose file is on the slave, in priority order.
+	 */
+	public Iterator<Job> getJobsFrom(String sourceSlave) {
+		ConcurrentSkipListSet<Job> jobs = _jobsBySource.get(sourceSlave);
+		if (jobs == null) {
+			return Collections.<Job>emptyList().iterator();
+		}
+		return jobs.iterator();
+	}
+
+	/**
+	 * Walks the jobs of the source slave in priority order and returns up to
+	 * limit of them which have an available destination, not yet holding the
+	 * file, with a free transfer slot from the source. Only the pairs with a
+	 * free slot are walked, a full pair costs the same whatever the number of
+	 * jobs waiting on it. Jobs are parked out of the pairs whose destination
+	 * is unavailable, and out of every index when no destination is left.
+	 * @param availableSlaves names of the slaves which are online.
+	 */
+	public List<Job> getSendableJobsFrom(String sourceSlave, Collection<String> availableSlaves, int limit) {
+		ArrayList<Job> sendable = new ArrayList<Job>();
+		ConcurrentHashMap<String, ConcurrentSkipListSet<Job>> pairs = _jobsByPair.get(sourceSlave);
+		if (pairs == null) {
+			return sendable;
+		}
+		ArrayList<Iterator<Job>> freePairs = new ArrayList<Iterator<Job>>();
+		for (Map.Entry<String, ConcurrentSkipListSet<Job>> entry : pairs.entrySet()) {
+			String destSlave = entry.getKey();
+			if (destSlave.equals(sourceSlave)) {
+				freePairs.add(entry.getValue().iterator());
+			} else if (!availableSlaves.contains(destSlave)) {
+				parkPair(sourceSlave, entry.getValue(), availableSlaves);
+			} else if (hasPairCapacity(sourceSlave, destSlave)) {
+				freePairs.add(entry.getValue().iterator());
+			}
+		}
+
+		// merge the free pairs back in priority order, a job waiting on
+		// several of them is seen once
+		Job[] heads = new Job[freePairs.size()];
+		for (int i = 0; i < heads.length; i++) {
+			heads[i] = next(freePairs.get(i));
+		}
+		HashSet<Job> seen = new HashSet<Job>();
+		while (sendable.size() < limit) {
+			int first = -1;
+			for (int i = 0; i < heads.length; i++) {
+				if (heads[i] != null && (first == -1 || COMPARATOR.compare(heads[i], heads[first]) < 0)) {
+					first = i;
+				}
+			}
+			if (first == -1) {
+				break;
+			}
+			Job job = heads[first];
+			heads[first] = next(freePairs.get(first));
+			if (!seen.add(job)) {
+				continue;
+			}
+			int state = getSendState(job, sourceSlave, availableSlaves);
+			if (state == SENDABLE) {
+				sendable.add(job);
+			} else if (state == OFFLINE && job.claim()) {
+				try {
+					park(job);
+				} finally {
+					job.unclaim();
+				}
+			}
+		}
+		return sendable;
+	}
+
+	private static Job next(Iterator<Job> iter) {
+		return iter.hasNext() ? iter.next() : null;
+	}
+
+	/**
+	 * Takes the jobs out of a pair whose destination is offline, they are
+	 * reindexed with the parked jobs. A job left with no online destination
+	 * at all is parked out of every index.
+	 */
+	private void parkPair(String sourceSlave, ConcurrentSkipListSet<Job> jobs, Collection<String> availableSlaves) {
+		for (Job job : jobs) {
+			if (!job.claim()) {
+				continue;
+			}
+			try {
+				jobs.remove(job);
+				_parked.add(job);
+				if (getSendState(job, sourceSlave, availableSlaves) == OFFLINE) {
+					unindex(job);
+				}
+				if (!_jobs.contains(job)) {
+					_parked.remove(job);
+				}
+			} finally {
+				job.unclaim();
+			}
+		}
+	}
+
+	/**
+	 * @return SENDABLE if the job has an available destination with a free
+	 * slot from the source, or nothing left to send. WAITING if it only has
+	 * full pairs, OFFLINE if none of its destinations is available.
+	 */
+	private int getSendState(Job job, String sourceSlave, Collection<String> availableSlaves) {
+		Collection<String> sources = _sources.get(job);
+		boolean pending = false;
+		boolean online = false;
+		for (String destSlave : job.getDestinationSlaves()) {
+			if ((sources != null && sources.contains(destSlave)) || destSlave.equals(sourceSlave)) {
+				continue;
+			}
+			pending = true;
+			if (!availableSlaves.contains(destSlave)) {
+				continue;
+			}
+			online = true;
+			if (hasPairCapacity(sourceSlave, destSlave)) {
+				return SENDABLE;
+			}
+		}
+		// a job with nothing left to send is handed out to be finished
+		if (!pending) {
+			return SENDABLE;
+		}
+		return online ? WAITING : OFFLINE;
+	}
+
+	/**
+	 * Orders the source slaves by the most important job each one can send,
+	 * slaves without jobs are left out.
+	 */
+	public List<String> getSourcesByPriority(Collection<String> sourceSlaves) {
+		final HashMap<String, Job> heads = new HashMap<String, Job>();
+		for (String slave : sourceSlaves) {
+			Iterator<Job> jobs = getJobsFrom(slave);
+			if (jobs.hasNext()) {
+				heads.put(slave, jobs.next());
+			}
+		}
+		List<String> sources = new ArrayList<String>(heads.keySet());
+		Collections.sort(sources, new Comparator<String>() {
+			public int compare(String slave1, String slave2) {
+				return COMPARATOR.compare(heads.get(slave1), heads.get(slave2));
+			}
+		});
+		return sources;
+	}
+
+	public void setMaxPairTransfers(int maxPairTransfers) {
+		_maxPairTransfers = Math.max(1, maxPairTransfers);
+	}
+
+	/**
+	 * @return true if another transfer between the two slaves is allowed.
+	 */
+	public boolean hasPairCapacity(String sourceSlave, String destSlave) {
+		AtomicInteger transfers = _pairTransfers.get(pair(sourceSlave, destSlave));
+		return transfers == null || transfers.get() < _maxPairTransfers;
+	}
+
+	/**
+	 * Takes a transfer slot between the two slaves.
+	 * @return false if the pair already runs as many transfers as allowed.
+	 */
+	public boolean acquirePair(String sourceSlave, String destSlave) {
+		String pair = pair(sourceSlave, destSlave);
+		AtomicInteger transfers = _pairTransfers.get(pair);
+		if (transfers == null) {
+			transfers = new AtomicInteger();
+			AtomicInteger existing = _pairTransfers.putIfAbsent(pair, transfers);
+			if (existing != null) {
+				transfers = existing;
+			}
+		}
+		while (true) {
+			int running = transfers.get();
+			if (running >= _maxPairTransfers) {
+				return false;
+			}
+			if (transfers.compareAndSet(running, running + 1)) {
+				return true;
+			}
+		}
+	}
+
+	public void releasePair(String sourceSlave, String destSlave) {
+		AtomicInteger transfers = _pairTransfers.get(pair(sourceSlave, destSlave));
+		if (transfers != null) {
+			transfers.decrementAndGet();
+		}
+	}
+
+	public int getPairTransfers(String sourceSlave, String destSlave) {
+		AtomicInteger transfers = _pairTransfers.get(pair(sourceSlave, destSlave));
+		return transfers == null ? 0 : transfers.get();
+	}
+
+	public void clear() {
+		_jobs.clear();
+		_parked.clear();
+		_jobsBySource.clear();
+		_jobsByPair.clear();
+		_sources.clear();
+	}
+
+	private static String pair(String sourceSlave, String destSlave) {
+		return sourceSlave + '>' + destSlave;
+	}
+}
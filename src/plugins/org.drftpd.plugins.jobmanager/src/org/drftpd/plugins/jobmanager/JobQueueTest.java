@@ -0,0 +1,186 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DrFTPD; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.drftpd.plugins.jobmanager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id$
+ */
+public class JobQueueTest extends TestCase {
+	public JobQueueTest(String arg0) {
+		super(arg0);
+	}
+
+	private Job newJob(int priority) {
+		return newJob(priority, "dest");
+	}
+
+	private Job newJob(int priority, String destSlave) {
+		return new Job(null, Collections.singleton(destSlave), priority, 1);
+	}
+
+	public void testIndexBySource() {
+		JobQueue queue = new JobQueue();
+		Job low = newJob(1);
+		Job high = newJob(5);
+		Job other = newJob(3);
+		queue.add(low, Arrays.asList("slave1"));
+		queue.add(high, Arrays.asList("slave1", "slave2"));
+		queue.add(other, Arrays.asList("slave3"));
+		assertEquals(3, queue.size());
+
+		Iterator<Job> iter = queue.getJobsFrom("slave1");
+		assertSame(high, iter.next());
+		assertSame(low, iter.next());
+		assertFalse(iter.hasNext());
+		assertFalse(queue.getJobsFrom("slave4").hasNext());
+
+		// slave1 and slave2 both start with the high priority job
+		List<String> sources = queue.getSourcesByPriority(Arrays.asList("slave3", "slave2", "slave1", "slave4"));
+		assertEquals(3, sources.size());
+		assertEquals("slave3", sources.get(2));
+
+		queue.remove(high);
+		assertEquals(2, queue.size());
+		assertEquals(Arrays.asList("slave3", "slave1"),
+				queue.getSourcesByPriority(Arrays.asList("slave1", "slave2", "slave3")));
+
+		queue.reindex(low, Arrays.asList("slave2"));
+		assertFalse(queue.getJobsFrom("slave1").hasNext());
+		assertSame(low, queue.getJobsFrom("slave2").next());
+
+		// removed jobs are not put back by a late reindex
+		queue.reindex(high, Arrays.asList("slave1"));
+		assertFalse(queue.getJobsFrom("slave1").hasNext());
+	}
+
+	public void testPairLimit() {
+		JobQueue queue = new JobQueue();
+		queue.setMaxPairTransfers(2);
+		assertTrue(queue.acquirePair("src", "dest"));
+		assertTrue(queue.acquirePair("src", "dest"));
+		assertFalse(queue.hasPairCapacity("src", "dest"));
+		assertFalse(queue.acquirePair("src", "dest"));
+		assertTrue(queue.acquirePair("dest", "src"));
+		queue.releasePair("src", "dest");
+		assertEquals(1, queue.getPairTransfers("src", "dest"));
+		assertTrue(queue.hasPairCapacity("src", "dest"));
+	}
+
+	public void testOfflineDestinationDoesNotStarve() {
+		JobQueue queue = new JobQueue();
+		List<String> online = Arrays.asList("src", "online");
+		for (int i = 0; i < 500; i++) {
+			queue.add(newJob(0, "offline"), Arrays.asList("src"));
+		}
+		Job newer = newJob(0, "online");
+		queue.add(newer, Arrays.asList("src"));
+
+		// the old jobs are parked instead of filling the scan window
+		assertEquals(Arrays.asList(newer), queue.getSendableJobsFrom("src", online, 100));
+		assertEquals(500, queue.getParkedCount());
+		assertEquals(501, queue.size());
+		assertSame(newer, queue.getJobsFrom("src").next());
+
+		// they are sendable again once reindexed after the slave came online
+		for (Job job : queue.unpark()) {
+			queue.reindex(job, Arrays.asList("src"));
+		}
+		assertEquals(0, queue.getParkedCount());
+		assertEquals(100, queue.getSendableJobsFrom("src", Arrays.asList("src", "online", "offline"), 100).size());
+	}
+
+	public void testFullPairDoesNotStarve() {
+		JobQueue queue = new JobQueue();
+		List<String> online = Arrays.asList("src", "busy", "idle", "holder");
+		for (int i = 0; i < 500; i++) {
+			queue.add(newJob(0, "busy"), Arrays.asList("src"));
+		}
+		// a job whose destinations all hold the file is handed out to be finished
+		Job done = newJob(0, "holder");
+		queue.add(done, Arrays.asList("src", "holder"));
+		Job newer = newJob(0, "idle");
+		queue.add(newer, Arrays.asList("src"));
+		assertTrue(queue.acquirePair("src", "busy"));
+
+		assertEquals(Arrays.asList(done, newer), queue.getSendableJobsFrom("src", online, 100));
+		// waiting on a full pair is not a reason to park
+		assertEquals(0, queue.getParkedCount());
+
+		queue.releasePair("src", "busy");
+		assertEquals(100, queue.getSendableJobsFrom("src", online, 100).size());
+	}
+
+	public void testFullPairNotWalked() {
+		JobQueue queue = new JobQueue();
+		List<String> online = Arrays.asList("src", "busy", "idle");
+		final AtomicInteger looked = new AtomicInteger();
+		for (int i = 0; i < 10000; i++) {
+			queue.add(new Job(null, Collections.singleton("busy"), 0, 1) {
+				public Set<String> getDestinationSlaves() {
+					looked.incrementAndGet();
+					return super.getDestinationSlaves();
+				}
+			}, Arrays.asList("src"));
+		}
+		Job newer = newJob(0, "idle");
+		queue.add(newer, Arrays.asList("src"));
+		assertTrue(queue.acquirePair("src", "busy"));
+
+		// the jobs behind the full pair are not looked at
+		assertEquals(Arrays.asList(newer), queue.getSendableJobsFrom("src", online, 100));
+		assertEquals(0, looked.get());
+
+		queue.releasePair("src", "busy");
+		assertEquals(100, queue.getSendableJobsFrom("src", online, 100).size());
+		assertEquals(100, looked.get());
+	}
+
+	public void testParkedJobRemoved() {
+		JobQueue queue = new JobQueue();
+		Job job = newJob(0, "offline");
+		queue.add(job, Arrays.asList("src"));
+		assertTrue(queue.getSendableJobsFrom("src", Arrays.asList("src"), 100).isEmpty());
+		assertEquals(1, queue.getParkedCount());
+		queue.remove(job);
+		assertEquals(0, queue.getParkedCount());
+		assertTrue(queue.unpark().isEmpty());
+		// a parked job claimed elsewhere isn't parked twice
+		queue.add(job, Arrays.asList("src"));
+		assertTrue(job.claim());
+		assertTrue(queue.getSendableJobsFrom("src", Arrays.asList("src"), 100).isEmpty());
+		assertEquals(0, queue.getParkedCount());
+		job.unclaim();
+	}
+
+	public void testClaim() {
+		Job job = newJob(0);
+		assertTrue(job.claim());
+		assertFalse(job.claim());
+		job.unclaim();
+		assertTrue(job.claim());
+	}
+}
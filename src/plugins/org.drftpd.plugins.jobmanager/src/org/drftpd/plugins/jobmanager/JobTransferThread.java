@@ -32,7 +32,7 @@ public class JobTransferThread extends Thread {
 	private static int count = 1;
 
 	/**
-	 * This class sends a JobTransfer if it is available
+	 * This class sends jobs back to back until there is nothing left it can send
 	 */
 	public JobTransferThread(JobManager jm) {
 		super("JobTransferThread - " + count++);
@@ -41,9 +41,13 @@ public class JobTransferThread extends Thread {
 
 	public void run() {
 		try {
-			_jm.processJob();
+			while (_jm.processJob()) {
+				// next job
+			}
 		} catch (Exception e) {
 			logger.debug("", e);
+		} finally {
+			_jm.workerDone();
 		}
 	}
 }
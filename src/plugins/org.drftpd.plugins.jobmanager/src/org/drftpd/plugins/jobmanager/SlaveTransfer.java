@@ -158,7 +158,12 @@ public class SlaveTransfer {
 			}
 
 			try {
-				Thread.sleep(100);
+				// woken up as soon as the slave reports the transfer finished
+				if (!srcIsDone) {
+					_srcTransfer.waitForFinish(1000);
+				} else if (!destIsDone) {
+					_destTransfer.waitForFinish(1000);
+				}
 			} catch (InterruptedException e5) {
 			}
 		}
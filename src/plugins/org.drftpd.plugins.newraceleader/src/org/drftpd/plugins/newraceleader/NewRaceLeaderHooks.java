@@ -20,13 +20,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
 
-import org.drftpd.RankUtils;
 import org.drftpd.commandmanager.CommandRequest;
 import org.drftpd.commandmanager.CommandResponse;
 import org.drftpd.commandmanager.PostHookInterface;
 import org.drftpd.commandmanager.StandardCommandManager;
 import org.drftpd.commands.dataconnection.DataConnectionHandler;
-import org.drftpd.commands.zipscript.SFVTools;
 import org.drftpd.commands.zipscript.vfs.ZipscriptVFSDataSFV;
 import org.drftpd.dynamicdata.KeyNotFoundException;
 import org.drftpd.exceptions.NoAvailableSlaveException;
@@ -73,7 +71,7 @@ public class NewRaceLeaderHooks implements PostHookInterface {
 			// Make sure release is > 5 files (No point in spaming a small release
 			if (sfvinfo.getSize() > 5) {
 				SFVStatus sfvstatus = sfvData.getSFVStatus();
-				Collection<UploaderPosition> racers = RankUtils.userSort(SFVTools.getSFVFiles(transferFile.getParent(), sfvData),"bytes", "high");
+				Collection<UploaderPosition> racers = sfvData.getRaceState().getUploaders("bytes", "high");
 
 				// Check if file uploaded is in SFV
 				if (sfvinfo.getEntries().get(transferFile.getName()) == null) {
@@ -17,7 +17,9 @@
 package org.drftpd.plugins.trafficmanager;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
@@ -28,6 +30,10 @@ import org.drftpd.PluginInterface;
 import org.drftpd.PropertyHelper;
 import org.drftpd.commands.dataconnection.event.SlowTransferEvent;
 import org.drftpd.event.ReloadEvent;
+import org.drftpd.event.SlaveEvent;
+import org.drftpd.exceptions.SlaveUnavailableException;
+import org.drftpd.master.RemoteSlave;
+import org.drftpd.master.SlaveManager;
 import org.drftpd.misc.CaseInsensitiveHashMap;
 import org.drftpd.util.CommonPluginUtils;
 import org.drftpd.util.PluginObjectContainer;
@@ -43,6 +49,10 @@ public class TrafficManager implements PluginInterface {
 	private CaseInsensitiveHashMap<String, Class<TrafficType>> _typesMap;
 	
 	private ArrayList<TrafficType> _traffictypes;
+
+	private HashMap<String, Long> _shaping = new HashMap<String, Long>();
+
+	private HashMap<String, Long> _slaveShaping = new HashMap<String, Long>();
 	
 	@Override
 	public void startPlugin() {
@@ -124,7 +134,68 @@ public class TrafficManager implements PluginInterface {
 			}
 			count++;					
 		} 
+		loadShaping(_props);
+		for (RemoteSlave rslave : GlobalContext.getGlobalContext().getSlaveManager().getSlaves()) {
+			sendShaping(rslave);
+		}
     }
+
+	/*
+	 * Reads the shaping.* rates, in KB/s like the speeds of the traffic types
+	 */
+	private void loadShaping(Properties props) {
+		HashMap<String, Long> shaping = new HashMap<String, Long>();
+		HashMap<String, Long> slaveShaping = new HashMap<String, Long>();
+		for (String key : props.stringPropertyNames()) {
+			if (!key.startsWith("shaping.")) {
+				continue;
+			}
+			String name = key.substring("shaping.".length());
+			long rate;
+			try {
+				rate = Long.parseLong(props.getProperty(key).trim()) * 1000;
+			} catch (NumberFormatException e) {
+				logger.error("Invalid rate for " + key + " - Skipping it");
+				continue;
+			}
+			if (name.startsWith("slave.")) {
+				slaveShaping.put(name.substring("slave.".length()), rate);
+			} else if (name.equals("slave") || name.equals("group") || name.equals("user")
+					|| name.startsWith("group.") || name.startsWith("user.")) {
+				shaping.put(name, rate);
+			} else {
+				logger.error("Unknown shaping setting " + key + " - Skipping it");
+			}
+		}
+		_shaping = shaping;
+		_slaveShaping = slaveShaping;
+	}
+
+	/*
+	 * Sends the shaping rates to the slave, an empty set of rates removes all limits
+	 */
+	private void sendShaping(RemoteSlave rslave) {
+		if (!rslave.isOnline()) {
+			return;
+		}
+		Map<String, Long> rates = new HashMap<String, Long>(_shaping);
+		Long slaveRate = _slaveShaping.get(rslave.getName());
+		if (slaveRate != null) {
+			rates.put("slave", slaveRate);
+		}
+		try {
+			SlaveManager.getBasicIssuer().issueShapingToSlave(rslave, rates);
+		} catch (SlaveUnavailableException e) {
+			// it will get the rates when it comes back online
+		}
+	}
+
+	@EventSubscriber
+	public void onSlaveEvent(SlaveEvent event) {
+		if (event.getCommand().equals("ADDSLAVE")) {
+			sendShaping(event.getRSlave());
+		}
+	}
 	
     /*
      * Returns a copy of the current traffic types
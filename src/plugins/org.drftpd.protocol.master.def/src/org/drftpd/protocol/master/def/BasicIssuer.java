@@ -16,6 +16,8 @@
  */
 package org.drftpd.protocol.master.def;
 
+import java.util.Map;
+
 import org.drftpd.exceptions.SSLUnavailableException;
 import org.drftpd.exceptions.SlaveUnavailableException;
 import org.drftpd.master.RemoteSlave;
@@ -94,11 +96,13 @@ public class BasicIssuer extends AbstractBasicIssuer {
 	}
 
 	public String issueReceiveToSlave(RemoteSlave rslave, String name, char c, long position,
-			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException {
+			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed,
+			String user, String group) throws SlaveUnavailableException {
 		String index = rslave.fetchIndex();
 		rslave.sendCommand(new AsyncCommandArgument(index, "receive", 
 				new String[]{String.valueOf(c), String.valueOf(position),
-				tindex.toString(), inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed)}));
+				tindex.toString(), inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed),
+				user, group}));
 
 		return index;
 	}
@@ -134,20 +138,28 @@ public class BasicIssuer extends AbstractBasicIssuer {
 
 
 	public String issueSendToSlave(RemoteSlave rslave, String name, char c, long position,
-			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed) throws SlaveUnavailableException {
+			String inetAddress, TransferIndex tindex, long minSpeed, long maxSpeed,
+			String user, String group) throws SlaveUnavailableException {
 		String index = rslave.fetchIndex();
 		rslave.sendCommand(new AsyncCommandArgument(index, "send",
 				new String[]{String.valueOf(c), String.valueOf(position), tindex.toString(),
-				inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed)}));
+				inetAddress, name, String.valueOf(minSpeed), String.valueOf(maxSpeed),
+				user, group}));
 
 		return index;
 	}
 
 	public String issueRemergeToSlave(RemoteSlave rslave, String path, boolean partialRemerge, long skipAgeCutoff, long masterTime, boolean instantOnline)
 		throws SlaveUnavailableException {
+		return issueRemergeToSlave(rslave, path, partialRemerge, skipAgeCutoff, masterTime, instantOnline, 0L, 0L);
+	}
+
+	public String issueRemergeToSlave(RemoteSlave rslave, String path, boolean partialRemerge, long skipAgeCutoff, long masterTime, boolean instantOnline,
+			long manifestAcknowledged, long manifestGeneration) throws SlaveUnavailableException {
 		String index = rslave.fetchIndex();
 		rslave.sendCommand(new AsyncCommandArgument(index, "remerge", new String[]{path, 
-				Boolean.toString(partialRemerge), Long.toString(skipAgeCutoff), Long.toString(masterTime), Boolean.toString(instantOnline)}));
+				Boolean.toString(partialRemerge), Long.toString(skipAgeCutoff), Long.toString(masterTime), Boolean.toString(instantOnline),
+				Long.toString(manifestAcknowledged), Long.toString(manifestGeneration)}));
 		return index;
 	}
 
@@ -170,4 +182,13 @@ public class BasicIssuer extends AbstractBasicIssuer {
 		
 		return index;
 	}
+
+	public void issueShapingToSlave(RemoteSlave rslave, Map<String, Long> rates) throws SlaveUnavailableException {
+		String[] args = new String[rates.size()];
+		int i = 0;
+		for (Map.Entry<String, Long> entry : rates.entrySet()) {
+			args[i++] = entry.getKey() + "=" + entry.getValue();
+		}
+		rslave.sendCommand(new AsyncCommandArgument("shaping", "shaping", args));
+	}
 }
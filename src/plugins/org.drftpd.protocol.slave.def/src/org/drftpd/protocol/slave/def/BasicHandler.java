@@ -25,10 +25,16 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.drftpd.ActiveConnection;
@@ -41,6 +47,7 @@ import org.drftpd.protocol.slave.AbstractHandler;
 import org.drftpd.protocol.slave.SlaveProtocolCentral;
 import org.drftpd.slave.ConnectInfo;
 import org.drftpd.slave.LightRemoteInode;
+import org.drftpd.slave.RemergeManifest;
 import org.drftpd.slave.RootCollection;
 import org.drftpd.slave.RootPathContents;
 import org.drftpd.slave.Slave;
@@ -76,13 +83,8 @@ public class BasicHandler extends AbstractHandler {
 	private static AtomicBoolean remergePaused = new AtomicBoolean();
 	private static Object remergeWaitObj = new Object();
 
-	// Vars for threaded remerge
-	private static final int maxMergeThreads = 10;
-	private HandleRemergeRecursiveThread[] mergeThreads;
-	private AtomicInteger threadMergeCount = new AtomicInteger(0);
-	private static Object threadMergeWaitObj = new Object();
-	private ArrayList<String> threadMergeDepth = new ArrayList<String>();
-	private static Object threadMergeDepthWaitObj = new Object();
+	// Set while a threaded remerge is walking the roots
+	private AtomicBoolean threadedRemergeRunning = new AtomicBoolean();
 
 	private int remergeDepth=0;
     private int remergeConcurrentDepth=0;
@@ -128,7 +130,8 @@ public class BasicHandler extends AbstractHandler {
 
 		int port = Integer.parseInt(data[1]);
 		Transfer t = new Transfer(new ActiveConnection(encrypted ? getSlaveObject().getSSLContext() : null,
-				new InetSocketAddress(address, port), useSSLClientHandshake,getSlaveObject().getBindIP()),
+				new InetSocketAddress(address, port), useSSLClientHandshake,getSlaveObject().getBindIP(),
+				getSlaveObject().getZeroCopy()),
 				getSlaveObject(), new TransferIndex());
 		
 		getSlaveObject().addTransfer(t);
@@ -166,7 +169,8 @@ public class BasicHandler extends AbstractHandler {
 
 		try {
 			c = new PassiveConnection(encrypted ? getSlaveObject().getSSLContext() : null,
-					getSlaveObject().getPortRange(), useSSLClientMode,getSlaveObject().getBindIP());
+					getSlaveObject().getPortRange(), useSSLClientMode,getSlaveObject().getBindIP(),
+					getSlaveObject().getZeroCopy());
 			
 		} catch (IOException e) {
 			return new AsyncResponseException(ac.getIndex(), e);
@@ -200,6 +204,7 @@ public class BasicHandler extends AbstractHandler {
 		Transfer t = getSlaveObject().getTransfer(transferIndex);
 		t.setMinSpeed(minSpeed);
 		t.setMaxSpeed(maxSpeed);
+		setShapingClass(t, ac.getArgsArray());
 		getSlaveObject().sendResponse(new AsyncResponse(ac.getIndex())); // return calling thread
 		// on master
 		try {
@@ -214,6 +219,29 @@ public class BasicHandler extends AbstractHandler {
 		}
 	}
 
+	/**
+	 * User and group were added after the speed limits, older masters don't send them.
+	 */
+	private void setShapingClass(Transfer t, String[] args) {
+		if (args.length > 8) {
+			t.setShapingClass(args[7], args[8]);
+		}
+	}
+
+	public AsyncResponse handleShaping(AsyncCommandArgument ac) {
+		HashMap<String, Long> rates = new HashMap<String, Long>();
+		for (String arg : ac.getArgsArray()) {
+			int eq = arg.indexOf('=');
+			try {
+				rates.put(arg.substring(0, eq), Long.parseLong(arg.substring(eq + 1)));
+			} catch (RuntimeException e) {
+				logger.warn("Ignoring invalid shaping rate: " + arg);
+			}
+		}
+		getSlaveObject().getBandwidthShaper().configure(rates);
+		return null;
+	}
+
 	public AsyncResponse handleRemergePause(AsyncCommandArgument ac) {
 		remergePaused.set(true);
 		return new AsyncResponse(ac.getIndex());
@@ -251,47 +279,28 @@ public class BasicHandler extends AbstractHandler {
 			}
 
 			if (getSlaveObject().threadedRemerge()) {
-				if (threadMergeCount.get() == 0) {
-					// Create worker threads
-					mergeThreads = new HandleRemergeRecursiveThread[maxMergeThreads];
-					for (int i = 0; i < maxMergeThreads; i++) {
-						mergeThreads[i] = new HandleRemergeRecursiveThread(getSlaveObject().getRoots(), partialRemerge, skipAgeCutoff, i + 1);
-						mergeThreads[i].start();
+				if (threadedRemergeRunning.compareAndSet(false, true)) {
+					try {
+						// Only the remerge that won the flag owns the manifest file
+						RemergeManifest manifest = loadRemergeManifest(argsArray);
+						handleRemergeThreaded(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff, manifest);
+						saveRemergeManifest(manifest);
+					} finally {
+						threadedRemergeRunning.set(false);
 					}
-					sendResponse(new AsyncResponseSiteBotMessage("Starting to merge with threads"));
-					HandleRemergeRecursiveThread thread = getRemergeThread();
-					thread.setPathAndRun(argsArray[0]);
 				} else {
 					sendResponse(new AsyncResponseSiteBotMessage("Merge already running, wait for it to finish"));
 				}
 			} else if (getSlaveObject().concurrentRootIteration()) {
+				RemergeManifest manifest = loadRemergeManifest(argsArray);
 				sendResponse(new AsyncResponseSiteBotMessage("Starting to merge with roots concurrently"));
-				handleRemergeRecursiveConcurrent(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff);
+				handleRemergeRecursiveConcurrent(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff, manifest);
+				saveRemergeManifest(manifest);
 			} else {
+				RemergeManifest manifest = loadRemergeManifest(argsArray);
 				sendResponse(new AsyncResponseSiteBotMessage("Starting to merge"));
-				handleRemergeRecursive2(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff);
-			}
-
-			// Make sure we dont make the slave avalible online until the whole filesystem is sent
-			if (getSlaveObject().threadedRemerge()) {
-				while (threadMergeCount.get() != 0) {
-					synchronized(threadMergeWaitObj) {
-						try {
-							threadMergeWaitObj.wait(5000);
-						} catch (InterruptedException e) {
-							// Either we have been woken properly in which case we will exit the
-							// loop or we have not in which case we will wait again.
-						}
-					}
-
-					if (threadMergeCount.get() == 0) {
-						// Tell all worker threads to exit, where done with the merge.
-						for (int i = 0; i < maxMergeThreads; i++) {
-							mergeThreads[i].exit();
-						}
-						break;
-					}
-				}
+				handleRemergeRecursive2(getSlaveObject().getRoots(), argsArray[0], partialRemerge, skipAgeCutoff, manifest);
+				saveRemergeManifest(manifest);
 			}
 
 			return new AsyncResponse(ac.getIndex());
@@ -303,287 +312,223 @@ public class BasicHandler extends AbstractHandler {
 		}
 	}
 
-	private class HandleRemergeRecursiveThread extends Thread {
-		private RootCollection rootCollection = null;
-		private String path = null;
-		private boolean partialRemerge = false;
-		private boolean localRun = false;
-		private long skipAgeCutoff = 0L;
-		private volatile boolean available = true;
-		private volatile boolean exit = false;
-		private Object localWaitObj = new Object();
-
-		public HandleRemergeRecursiveThread(RootCollection rootCollection, boolean partialRemerge, long skipAgeCutoff, int threadNumber) {
-			super("RemergeThread-" + threadNumber);
-			this.rootCollection = rootCollection;
-			this.partialRemerge = partialRemerge;
-			this.skipAgeCutoff = skipAgeCutoff;
+	/**
+	 * The master sends the manifest generation it last merged and the one
+	 * to save this remerge as, only remerges of the whole slave use them.
+	 */
+	private RemergeManifest loadRemergeManifest(String[] argsArray) {
+		File file = getSlaveObject().getRemergeManifestFile();
+		if (file == null || argsArray.length < 7 || !argsArray[0].equals("/")) {
+			return null;
+		}
+		long acknowledged = Long.parseLong(argsArray[5]);
+		long generation = Long.parseLong(argsArray[6]);
+		if (generation == 0L) {
+			return null;
 		}
+		if (getSlaveObject().ignorePartialRemerge()) {
+			acknowledged = 0L;
+		}
+		RemergeManifest manifest = RemergeManifest.load(file, acknowledged, generation);
+		if (manifest.getPreviousSize() > 0) {
+			sendResponse(new AsyncResponseSiteBotMessage("Remerge manifest found, only sending changed directories"));
+		}
+		return manifest;
+	}
 
-		public void run() {
-			while (true) {
-				while (remergePaused.get()) {
-					synchronized(remergeWaitObj) {
-						try {
-							remergeWaitObj.wait();
-						} catch (InterruptedException e) {
-							// Either we have been woken properly in which case we will exit the
-							// loop or we have not in which case we will wait again.
-						}
-					}
-				}
+	private void saveRemergeManifest(RemergeManifest manifest) {
+		if (manifest != null) {
+			manifest.save();
+		}
+	}
 
-				while (path == null) {
-					if (exit) {
-						return;
-					}
-					synchronized(localWaitObj) {
-						try {
-							localWaitObj.wait(2000);
-						} catch (InterruptedException e) {
-							// Either we have been woken properly in which case we will exit the
-							// loop or we have not in which case we will wait again.
-						}
-					}
+	/**
+	 * @param manifest the manifest of the remerge, null when it isn't a full remerge of the slave.
+	 * @return true if the listing of path has to be sent to the master.
+	 */
+	private boolean shouldSendRemerge(String path, List<LightRemoteInode> fileList, long pathLastModified,
+			boolean partialRemerge, boolean inodesModified, RemergeManifest manifest) {
+		boolean send = !partialRemerge || inodesModified;
+		if (manifest != null) {
+			send = manifest.update(path, fileList, pathLastModified, send);
+		}
+		return send;
+	}
+
+	/**
+	 * Blocks while the master has paused the remerge, it does so when
+	 * its queue of directories to merge gets too long.
+	 */
+	private void waitWhileRemergePaused() {
+		while (remergePaused.get()) {
+			synchronized(remergeWaitObj) {
+				try {
+					remergeWaitObj.wait();
+				} catch (InterruptedException e) {
+					// Either we have been woken properly in which case we will exit the
+					// loop or we have not in which case we will wait again.
 				}
+			}
+		}
+	}
 
-				TreeSet<String> inodes = rootCollection.getLocalInodes(path);
-				ArrayList<LightRemoteInode> fileList = new ArrayList<LightRemoteInode>();
-				ArrayList<String> dirList = new ArrayList<String>();
+	/**
+	 * Walks the roots with a fork/join pool, each directory is a task and idle
+	 * threads steal the subdirectories queued by busy ones. A directory is only
+	 * sent once all its subdirectories have been, like the recursive remerge.
+	 */
+	private void handleRemergeThreaded(RootCollection rootCollection, String path,
+			boolean partialRemerge, long skipAgeCutoff, RemergeManifest manifest) {
+		Slave slave = getSlaveObject();
+		sendResponse(new AsyncResponseSiteBotMessage("Starting to merge with " + slave.getRemergeThreads() + " threads"));
+		Semaphore[] rootPermits = new Semaphore[rootCollection.getRootList().size()];
+		for (int i = 0; i < rootPermits.length; i++) {
+			rootPermits[i] = new Semaphore(slave.getRemergeThreadsPerRoot());
+		}
+		RemergeProgress progress = new RemergeProgress(slave.getRemergeProgressInterval());
+		ForkJoinPool pool = new ForkJoinPool(slave.getRemergeThreads(), new RemergeThreadFactory(), null, false);
+		try {
+			pool.invoke(new RemergeTask(rootCollection, rootPermits, progress, path, partialRemerge, skipAgeCutoff, manifest));
+		} finally {
+			pool.shutdown();
+		}
+		logger.info("Merge done, " + progress);
+		sendResponse(new AsyncResponseSiteBotMessage("Merge done, " + progress));
+	}
 
-				boolean inodesModified = false;
-				long pathLastModified = rootCollection.getLastModifiedForPath(path);
-				// Need to check the last modified of the parent itself to detect where
-				// files have been deleted but none changed or added
-				if (partialRemerge &&  pathLastModified > skipAgeCutoff) {
-					inodesModified = true;
-				}
+	private class RemergeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 
+		private RootCollection rootCollection;
+		private Semaphore[] rootPermits;
+		private RemergeProgress progress;
+		private String path;
+		private boolean partialRemerge;
+		private long skipAgeCutoff;
+		private RemergeManifest manifest;
 
-				for (String inode : inodes) {
-					String fullPath = path + "/" + inode;
-					PhysicalFile file;
-					try {
-						file = rootCollection.getFile(fullPath);
-					} catch (FileNotFoundException e) {
-						// something is screwy, we just found the file, it has to exist
-						// race condition i guess, stop deleting files outside drftpd!
-						logger.error("Error getting file " + fullPath
-								+ " even though we just listed it, check permissions",
-								e);
-						sendResponse(new AsyncResponseSiteBotMessage("Error getting file " + fullPath + " check permissions"));
-						continue;
-					}
-					try {
+		public RemergeTask(RootCollection rootCollection, Semaphore[] rootPermits, RemergeProgress progress,
+				String path, boolean partialRemerge, long skipAgeCutoff, RemergeManifest manifest) {
+			this.rootCollection = rootCollection;
+			this.rootPermits = rootPermits;
+			this.progress = progress;
+			this.path = path;
+			this.partialRemerge = partialRemerge;
+			this.skipAgeCutoff = skipAgeCutoff;
+			this.manifest = manifest;
+		}
+
+		protected void compute() {
+			waitWhileRemergePaused();
+			RootPathContents rootContents = rootCollection.getLocalInodes(path, rootPermits);
+			ArrayList<LightRemoteInode> fileList = new ArrayList<LightRemoteInode>();
+			ArrayList<RemergeTask> dirTasks = new ArrayList<RemergeTask>();
+
+			boolean inodesModified = false;
+			long pathLastModified = rootContents.getLastModified();
+			// Need to check the last modified of the parent itself to detect where
+			// files have been deleted but none changed or added
+			if (partialRemerge && pathLastModified > skipAgeCutoff) {
+				inodesModified = true;
+			}
+			int files = 0;
+			for (Map.Entry<String, File> entry : rootContents.getInodes().entrySet()) {
+				PhysicalFile file = new PhysicalFile(entry.getValue());
+				String fullPath = path + "/" + entry.getKey();
+				try {
 					if (file.isSymbolicLink()) {
-							// ignore it, but log an error
-							logger.warn("You have a symbolic link " + fullPath
-									+ " -- these are ignored by drftpd");
-							sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link " + fullPath + " -- these are ignored by drftpd"));
-							continue;
-						}
-					} catch (IOException e) {
-						logger
-								.warn("You have a symbolic link that couldn't be read at "
-										+ fullPath + " -- these are ignored by drftpd");
-							sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link that couldn't be read at " + fullPath + " -- these are ignored by drftpd"));
-						continue;
-					}
-					if (partialRemerge && file.lastModified() > skipAgeCutoff) {
-						inodesModified = true;
-					}
-					if (file.isDirectory()) {
-						dirList.add(fullPath + "/");
-
-						HandleRemergeRecursiveThread thread = null;
-						if(!inode.equalsIgnoreCase("sample") && !inode.equalsIgnoreCase("subs")) {
-							thread = getRemergeThread();
-							if (thread != null) {
-								thread.setPathAndRun(fullPath);
-							}
-						}
-
-						if (thread == null) {
-							// Local run, either there where no threads available or it matched sample or subs
-							// This emulates the recursive behavior of the "normal" remerge process
-							// See handleRemergeRecursive2
-							boolean restoreRun = localRun;
-							String oldPath = path;
-							path = fullPath;
-							if (localRun == false) {
-								localRun = true;
-							}
-							run();
-							path = oldPath;
-							localRun = restoreRun;
-						}
-					}
-					// this collects files and sends it to master
-					//TODO check if file is in getMultipleRoots.
-					// if true, diff checksum
-					// if differ, throw MSGSLAVE with info and continue remerge
-					/**
-					try {
-						logger.error("MULTIROOTS going to try to get roots for file " + file.toString());
-						rootCollection.getMultipleRootsForFile(file.toString());
-						logger.error("MULTIROOTS done");
-						List<Root> roots = rootCollection.getRootList();
-						logger.error("MULTIROOTS root size for file " + file.toString() + " " + roots.size());
-						Iterator<Root> it = roots.iterator();
-						long lastCrc=0;
-						while(it.hasNext()) {
-							Root root=it.next();
-							logger.error("MULTIROOTS checking root " + root.getPath());
-							long crc=0;
-							try {
-								crc = getSlaveObject().checkSum(root.getFile().getPath());
-								logger.error("MULTIROOTS checking file with crc " + crc);
-							} catch (IOException e) {
-								logger.error("MULTIROOTS: IOException when checking crc for file in multiple roots");
-							}
-							if(crc!=lastCrc) {
-								logger.error("MULTIROOTS mismatch crc " + crc + ":" + lastCrc);
-							}
-							lastCrc=crc;
-						}
-					} catch (FileNotFoundException e) {
-						// This is good, means that file only exists in one root
-						logger.error("MULTIROOTS FIOLE NOT FOUND " + e);
-						fileList.add(new LightRemoteInode(file));
+						// ignore it, but log an error
+						logger.warn("You have a symbolic link " + fullPath + " -- these are ignored by drftpd");
+						sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link " + fullPath + " -- these are ignored by drftpd"));
 						continue;
 					}
-					*/
-					fileList.add(new LightRemoteInode(file));
+				} catch (IOException e) {
+					logger.warn("You have a symbolic link that couldn't be read at " + fullPath + " -- these are ignored by drftpd");
+					sendResponse(new AsyncResponseSiteBotMessage("You have a symbolic link that couldn't be read at " + fullPath + " -- these are ignored by drftpd"));
+					continue;
 				}
-
-				if (!partialRemerge || inodesModified) {
-					for (String dir : dirList) {
-						waitForDepth(dir);
-					}
-					sendResponse(new AsyncResponseRemerge(path, fileList, pathLastModified));
-					logger.debug("Sending " + path + " to the master");
-				} else {
-					logger.debug("Skipping send of " + path + " as no files changed since last merge");
+				LightRemoteInode inode = new LightRemoteInode(file);
+				if (partialRemerge && inode.lastModified() > skipAgeCutoff) {
+					inodesModified = true;
 				}
-				updateDepth(path + "/");
-
-				if (localRun == false) {
-					available();
+				if (inode.isDirectory()) {
+					dirTasks.add(new RemergeTask(rootCollection, rootPermits, progress, fullPath, partialRemerge, skipAgeCutoff, manifest));
 				} else {
-					return;
-				}
-
-				if (threadMergeCount.get() == 0) {
-					sendResponse(new AsyncResponseSiteBotMessage("Merge done"));
-					synchronized(threadMergeWaitObj) {
-						threadMergeWaitObj.notifyAll();
-					}
-					threadMergeDepth.clear();
+					files++;
 				}
+				fileList.add(inode);
 			}
-		}
-
-		public boolean isAvailable() {
-			return available;
-		}
-
-		private void available() {
-			path = null;
-			threadMergeCount.decrementAndGet();
-			available = true;
-		}
+			invokeAll(dirTasks);
 
-		public void unavailable() {
-			available = false;
-			threadMergeCount.incrementAndGet();
-		}
-
-		public void setPathAndRun(String path) {
-			this.path = path;
-			synchronized(localWaitObj) {
-				localWaitObj.notify();
-			}
-		}
-
-		public void exit() {
-			exit = true;
-			synchronized(localWaitObj) {
-				localWaitObj.notify();
+			waitWhileRemergePaused();
+			boolean send = shouldSendRemerge(path, fileList, pathLastModified, partialRemerge, inodesModified, manifest);
+			if (send) {
+				sendResponse(new AsyncResponseRemerge(path, fileList, pathLastModified));
+				logger.debug("Sending " + path + " to the master");
+			} else {
+				logger.debug("Skipping send of " + path + " as nothing changed since last merge");
 			}
+			progress.directoryDone(files, send);
 		}
 	}
 
-	private HandleRemergeRecursiveThread getRemergeThread() {
-		synchronized(mergeThreads) {
-			for (int i = 0; i < maxMergeThreads; i++) {
-				if (mergeThreads[i].isAvailable()) {
-					mergeThreads[i].unavailable();
-					return mergeThreads[i];
-				}
-			}
+	/**
+	 * Counts what a threaded remerge went through and reports it to the master
+	 * every so often, while the remerge is running.
+	 */
+	private class RemergeProgress {
+		private long interval;
+		private long start = System.currentTimeMillis();
+		private AtomicLong nextReport;
+		private AtomicLong dirs = new AtomicLong();
+		private AtomicLong files = new AtomicLong();
+		private AtomicLong sent = new AtomicLong();
+
+		public RemergeProgress(long interval) {
+			this.interval = interval;
+			nextReport = new AtomicLong(start + interval);
 		}
-		return null;
-	}
-
-	private void updateDepth(String path) {
-		boolean add = true;
-		synchronized(threadMergeDepth) {
-			for (String dir : threadMergeDepth) {
-				if (path.startsWith(dir)) {
-					dir = path;
-					add = false;
-					break;
-				}
 
-				if (dir.startsWith(path)) {
-					add = false;
-					break;
-				}
+		public void directoryDone(int fileCount, boolean wasSent) {
+			dirs.incrementAndGet();
+			files.addAndGet(fileCount);
+			if (wasSent) {
+				sent.incrementAndGet();
 			}
-
-			if (add == true) {
-				threadMergeDepth.add(path);
+			if (interval <= 0) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long next = nextReport.get();
+			if (now >= next && nextReport.compareAndSet(next, now + interval)) {
+				ForkJoinPool pool = ForkJoinTask.getPool();
+				String message = "Remerge progress: " + this + ", "
+						+ (pool == null ? 0 : pool.getQueuedTaskCount()) + " directories queued";
+				logger.info(message);
+				sendResponse(new AsyncResponseSiteBotMessage(message));
 			}
 		}
 
-		synchronized(threadMergeDepthWaitObj) {
-			threadMergeDepthWaitObj.notifyAll();
+		public String toString() {
+			long seconds = Math.max(1L, (System.currentTimeMillis() - start) / 1000L);
+			return dirs.get() + " directories (" + (dirs.get() / seconds) + "/s), "
+					+ files.get() + " files (" + (files.get() / seconds) + "/s), "
+					+ sent.get() + " directories sent";
 		}
 	}
 
-	private void waitForDepth(String path) {
-		while(true) {
-			synchronized(threadMergeDepth) {
-				for (String dir : threadMergeDepth) {
-					if (dir.startsWith(path)) {
-						return;
-					}
-				}
-			}
-
-			synchronized(threadMergeDepthWaitObj) {
-				try {
-					threadMergeDepthWaitObj.wait(2000);
-				} catch (InterruptedException e) {
-					// We have been woken up, check if the path is there now.
-				}
-			}
+	static class RemergeThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			t.setName("RemergeThread-" + (t.getPoolIndex() + 1));
+			return t;
 		}
 	}
 
 	private void handleRemergeRecursive2(RootCollection rootCollection,
-			String path, boolean partialRemerge, long skipAgeCutoff) {
+			String path, boolean partialRemerge, long skipAgeCutoff, RemergeManifest manifest) {
 		remergeDepth++;
-		while (remergePaused.get()) {
-			synchronized(remergeWaitObj) {
-				try {
-					remergeWaitObj.wait();
-				} catch (InterruptedException e) {
-					// Either we have been woken properly in which case we will exit the
-					// loop or we have not in which case we will wait again.
-				}
-			}
-		}
+		waitWhileRemergePaused();
 		TreeSet<String> inodes = rootCollection.getLocalInodes(path);
 		ArrayList<LightRemoteInode> fileList = new ArrayList<LightRemoteInode>();
 
@@ -624,15 +569,15 @@ public class BasicHandler extends AbstractHandler {
 				inodesModified = true;
 			}
 			if (file.isDirectory()) {
-				handleRemergeRecursive2(rootCollection, fullPath, partialRemerge, skipAgeCutoff);
+				handleRemergeRecursive2(rootCollection, fullPath, partialRemerge, skipAgeCutoff, manifest);
 			}
 			fileList.add(new LightRemoteInode(file));
 		}
-		if (!partialRemerge || inodesModified) {
+		if (shouldSendRemerge(path, fileList, pathLastModified, partialRemerge, inodesModified, manifest)) {
 			sendResponse(new AsyncResponseRemerge(path, fileList, pathLastModified));
 			logger.debug("Sending " + path + " to the master");
 		} else {
-			logger.debug("Skipping send of " + path + " as no files changed since last merge");
+			logger.debug("Skipping send of " + path + " as nothing changed since last merge");
 		}
 
 		if(--remergeDepth==0) {
@@ -641,18 +586,9 @@ public class BasicHandler extends AbstractHandler {
 	}
 
 	private void handleRemergeRecursiveConcurrent(RootCollection rootCollection,
-			String path, boolean partialRemerge, long skipAgeCutoff) {
+			String path, boolean partialRemerge, long skipAgeCutoff, RemergeManifest manifest) {
 		remergeConcurrentDepth++;
-		while (remergePaused.get()) {
-			synchronized(remergeWaitObj) {
-				try {
-					remergeWaitObj.wait();
-				} catch (InterruptedException e) {
-					// Either we have been woken properly in which case we will exit the
-					// loop or we have not in which case we will wait again.
-				}
-			}
-		}
+		waitWhileRemergePaused();
 
 		RootPathContents rootContents = rootCollection.getLocalInodesConcurrent(path);
 		ArrayList<LightRemoteInode> fileList = new ArrayList<LightRemoteInode>();
@@ -683,15 +619,15 @@ public class BasicHandler extends AbstractHandler {
 				inodesModified = true;
 			}
 			if (file.isDirectory()) {
-				handleRemergeRecursiveConcurrent(rootCollection, fullPath, partialRemerge, skipAgeCutoff);
+				handleRemergeRecursiveConcurrent(rootCollection, fullPath, partialRemerge, skipAgeCutoff, manifest);
 			}
 			fileList.add(new LightRemoteInode(file));
 		}
-		if (!partialRemerge || inodesModified) {
+		if (shouldSendRemerge(path, fileList, pathLastModified, partialRemerge, inodesModified, manifest)) {
 			sendResponse(new AsyncResponseRemerge(path, fileList, pathLastModified));
 			logger.debug("Sending " + path + " to the master");
 		} else {
-			logger.debug("Skipping send of " + path + " as no files changed since last merge");
+			logger.debug("Skipping send of " + path + " as nothing changed since last merge");
 		}
 
 		if(--remergeConcurrentDepth==0) {
@@ -740,6 +676,7 @@ public class BasicHandler extends AbstractHandler {
 		Transfer t = getSlaveObject().getTransfer(transferIndex);
 		t.setMinSpeed(minSpeed);
 		t.setMaxSpeed(maxSpeed);
+		setShapingClass(t, ac.getArgsArray());
 		sendResponse(new AsyncResponse(ac.getIndex()));
 
 		// calling thread on master
@@ -32,10 +32,12 @@ import java.util.Random;
 import java.util.Set;
 import java.util.LinkedHashMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
@@ -54,6 +56,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.regex.RegexQuery;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
@@ -69,9 +72,11 @@ import org.bushe.swing.event.annotation.AnnotationProcessor;
 import org.bushe.swing.event.annotation.EventSubscriber;
 import org.drftpd.Bytes;
 import org.drftpd.GlobalContext;
+import org.drftpd.Time;
 import org.drftpd.event.LoadPluginEvent;
 import org.drftpd.io.PhysicalFile;
 import org.drftpd.util.CommonPluginUtils;
+import org.drftpd.util.LatencyHistogram;
 import org.drftpd.util.MasterPluginUtils;
 import org.drftpd.vfs.DirectoryHandle;
 import org.drftpd.vfs.InodeHandle;
@@ -90,9 +95,8 @@ import org.drftpd.vfs.index.lucene.extensions.QueryTermExtensionInterface;
 /**
  * Implementation of an Index engine based on <a href="http://lucene.apache.org">Apache Lucene</a>
  * 
- * This engine reuses {@link Field}s and {@link Document} instances as suggested by
- * <a href="http://wiki.apache.org/lucene-java/ImproveIndexingSpeed">this article</a>
- * in order to have better Indexing performance.
+ * Changes to the index go through a {@link LuceneIndexQueue} which coalesces
+ * them per path and writes them in batches.
  * 
  * @author fr0w
  * @version $Id$
@@ -105,39 +109,25 @@ public class LuceneEngine implements IndexEngineInterface {
 	protected static final Analyzer ANALYZER = new AlphanumericalAnalyzer();
 	protected static final String INDEX_DIR = "index";
 
+	/**
+	 * Holds the fields of the data extensions, which set their values on
+	 * shared field instances. Their values are copied into each document.
+	 */
 	private static final Document INDEX_DOCUMENT = new Document();
 
-	private static final Field FIELD_NAME = new Field("name", "", Field.Store.YES, Field.Index.ANALYZED);
-	private static final Field FIELD_FULL_NAME = new Field("fullName", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_FULL_NAME_REVERSE = new Field("fullNameReverse", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_PARENT_PATH = new Field("parentPath", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_FULL_PATH = new Field("fullPath", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_OWNER = new Field("owner", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_GROUP = new Field("group", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_TYPE = new Field("type", "", Field.Store.YES, Field.Index.NOT_ANALYZED);
-	private static final Field FIELD_SLAVES = new Field("slaves", "", Field.Store.YES, Field.Index.ANALYZED);
-	private static final NumericField FIELD_SLAVES_NBR = new NumericField("nbrOfSlaves", Field.Store.YES, Boolean.TRUE);
-	private static final NumericField FIELD_LASTMODIFIED = new NumericField("lastModified", Field.Store.YES, Boolean.TRUE);
-	private static final NumericField FIELD_SIZE = new NumericField("size", Field.Store.YES, Boolean.TRUE);
-
-	private static final Field[] FIELDS = new Field[] {
-		FIELD_NAME, FIELD_FULL_NAME, FIELD_FULL_NAME_REVERSE, FIELD_PARENT_PATH, FIELD_FULL_PATH, FIELD_OWNER, FIELD_GROUP, FIELD_TYPE, FIELD_SLAVES
-	};
-	private static final NumericField[] NUMERICFIELDS = new NumericField[] {
-		FIELD_SLAVES_NBR, FIELD_LASTMODIFIED, FIELD_SIZE
-	};
-
-	static {
-		for (Field field : FIELDS) {
-			INDEX_DOCUMENT.add(field);
-		}
-		for (NumericField field : NUMERICFIELDS) {
-			INDEX_DOCUMENT.add(field);
-		}
-	}
+	private static final String FIELD_FULL_PATH = "fullPath";
+	private static final String FIELD_PARENT_PATH = "parentPath";
 
 	private Directory _storage;
 	private IndexWriter _iWriter;
+	private SearcherManager _searcherManager;
+
+	private long _refreshInterval = 1000L;
+	private int _refreshWrites = 1000;
+	private volatile long _lastRefresh;
+	private AtomicLong _writesSinceRefresh = new AtomicLong();
+	private AtomicLong _searcherRefreshes = new AtomicLong();
+	private LatencyHistogram _searchLatency = new LatencyHistogram();
 
 	private static final TermQuery QUERY_DIRECTORY = new TermQuery(new Term("type", "d"));
 	private static final TermQuery QUERY_FILE = new TermQuery(new Term("type", "f"));
@@ -154,11 +144,9 @@ public class LuceneEngine implements IndexEngineInterface {
 	private static final SimpleSearchFieldSelector SIMPLE_FIELD_SELECTOR = new SimpleSearchFieldSelector();
 	private static final AdvancedSearchFieldSelector ADVANCED_FIELD_SELECTOR = new AdvancedSearchFieldSelector();
 
-	private Sort SORT = new Sort();
-
-	private int _maxHitsNumber;
-	private int _maxDocsBuffer;
-	private int _maxRAMBufferSize;
+	private int _maxHitsNumber = 50;
+	private int _maxDocsBuffer = -1;
+	private int _maxRAMBufferSize = 16;
 
 	private boolean _nativeLocking;
 
@@ -166,6 +154,10 @@ public class LuceneEngine implements IndexEngineInterface {
 	private LuceneBackupThread _backupThread;
 
 	private IndexingVirtualFileSystemListener _listener;
+	private LuceneIndexQueue _queue;
+	private long _batchInterval;
+	private int _batchSize;
+	private int _buildThreads;
 	private boolean _rebuilding;
 	
 	private List<IndexDataExtensionInterface> _dataExtensions = new ArrayList<IndexDataExtensionInterface>();
@@ -220,6 +212,9 @@ public class LuceneEngine implements IndexEngineInterface {
 
 		openStreams();
 
+		_queue = new LuceneIndexQueue(this, _batchInterval, _batchSize, _buildThreads);
+		_queue.start();
+
 		Runtime.getRuntime().addShutdownHook(new Thread(new IndexShutdownHookRunnable(), "IndexSaverThread"));
 		_maintenanceThread.start();
 		if (_backupThread._maxNumberBackup > 0) {
@@ -243,16 +238,10 @@ public class LuceneEngine implements IndexEngineInterface {
 	private void openStreams() throws IndexException {
 		try {
 			if (_nativeLocking) {
-				_storage = FSDirectory.open(new File(INDEX_DIR), new NativeFSLockFactory(INDEX_DIR));
+				openStreams(FSDirectory.open(new File(INDEX_DIR), new NativeFSLockFactory(INDEX_DIR)));
 			} else {
-				_storage = FSDirectory.open(new File(INDEX_DIR));
+				openStreams(FSDirectory.open(new File(INDEX_DIR)));
 			}
-
-			IndexWriterConfig conf = new IndexWriterConfig(Version.LUCENE_32 ,ANALYZER);
-			conf.setMaxBufferedDocs(_maxDocsBuffer);
-			conf.setRAMBufferSizeMB(_maxRAMBufferSize);
-
-			_iWriter = new IndexWriter(_storage, conf);
 		} catch (IOException e) {
 			closeAll();
 
@@ -260,6 +249,71 @@ public class LuceneEngine implements IndexEngineInterface {
 		}
 	}
 
+	/**
+	 * Opens the writer on the given storage.
+	 */
+	protected void openStreams(Directory storage) throws IOException {
+		_storage = storage;
+		IndexWriterConfig conf = new IndexWriterConfig(Version.LUCENE_32 ,ANALYZER);
+		conf.setMaxBufferedDocs(_maxDocsBuffer);
+		conf.setRAMBufferSizeMB(_maxRAMBufferSize);
+
+		_iWriter = new IndexWriter(_storage, conf);
+		_searcherManager = new SearcherManager(_iWriter, true, null);
+		_lastRefresh = System.currentTimeMillis();
+		_writesSinceRefresh.set(0);
+	}
+
+	/**
+	 * @return the shared searcher, reopened first if it is older than
+	 * 'searcher_refresh_interval' or 'searcher_refresh_writes' changes were written since.
+	 * It must be given back with {@link #releaseSearcher(IndexSearcher)}.
+	 */
+	protected IndexSearcher acquireSearcher() throws IOException {
+		long writes = _writesSinceRefresh.get();
+		if (writes >= _refreshWrites
+				|| (writes > 0 && System.currentTimeMillis() - _lastRefresh >= _refreshInterval)) {
+			refreshSearcher(false);
+		}
+		return _searcherManager.acquire();
+	}
+
+	protected void releaseSearcher(IndexSearcher iSearcher) {
+		if (iSearcher == null) {
+			return;
+		}
+		try {
+			_searcherManager.release(iSearcher);
+		} catch (IOException e) {
+			logger.error("IOException releasing IndexSearcher", e);
+		}
+	}
+
+	/**
+	 * Reopens the shared searcher, only the changed segments are read again.
+	 * @param wait if true and another thread is already reopening it, reopens
+	 * it again once that is done, so the searcher sees every change written so far.
+	 */
+	private void refreshSearcher(boolean wait) throws IOException {
+		long writes = _writesSinceRefresh.get();
+		while (!_searcherManager.maybeRefresh()) {
+			if (!wait) {
+				return;
+			}
+			Thread.yield();
+		}
+		_writesSinceRefresh.addAndGet(-writes);
+		_lastRefresh = System.currentTimeMillis();
+		_searcherRefreshes.incrementAndGet();
+	}
+
+	/**
+	 * Called by the {@link LuceneIndexQueue} once a batch is in the writer.
+	 */
+	protected void changesWritten(int count) {
+		_writesSinceRefresh.addAndGet(count);
+	}
+
 	/**
 	 * Reads all tweak settings from <i>conf/plugins/lucene.conf</i> if found,
 	 * otherwise use default values.
@@ -270,6 +324,11 @@ public class LuceneEngine implements IndexEngineInterface {
 		_maxDocsBuffer = Integer.parseInt(cfg.getProperty("maxdocs_buffer", "-1"));
 		_maxRAMBufferSize = Integer.parseInt(cfg.getProperty("max_rambuffer", "16"));
 		_nativeLocking = cfg.getProperty("native_locking", "true").equals("true");
+		_batchInterval = Long.parseLong(cfg.getProperty("batch_interval", "1000"));
+		_batchSize = Integer.parseInt(cfg.getProperty("batch_size", "1000"));
+		_buildThreads = Integer.parseInt(cfg.getProperty("build_threads", "2"));
+		_refreshInterval = Long.parseLong(cfg.getProperty("searcher_refresh_interval", "1000"));
+		_refreshWrites = Integer.parseInt(cfg.getProperty("searcher_refresh_writes", "1000"));
 
 		// in minutes, convert'em!
 		int optimizeInterval = Integer.parseInt(cfg.getProperty("optimize_interval", "15")) * 60 * 1000;
@@ -289,6 +348,8 @@ public class LuceneEngine implements IndexEngineInterface {
 	 */
 	private void closeAll() {
 		try {
+			if (_searcherManager != null)
+				_searcherManager.close();
 			if (_iWriter != null)
 				_iWriter.close();
 			if (_storage != null)
@@ -297,6 +358,7 @@ public class LuceneEngine implements IndexEngineInterface {
 			logger.error(e, e);
 		}
 
+		_searcherManager = null;
 		_iWriter = null;
 		_storage = null;
 	}
@@ -321,48 +383,99 @@ public class LuceneEngine implements IndexEngineInterface {
 	 * @param inode
 	 * @throws FileNotFoundException
 	 */
-	private Document makeDocumentFromInode(ImmutableInodeHandle inode) throws FileNotFoundException {
+	protected Document makeDocumentFromInode(ImmutableInodeHandle inode) throws FileNotFoundException {
 		InodeType inodeType = inode.isDirectory() ? InodeType.DIRECTORY : InodeType.FILE;
+		Document doc = new Document();
 
-		FIELD_NAME.setValue(inode.getName());
-		FIELD_FULL_NAME.setValue(inode.getName());
-		FIELD_FULL_NAME_REVERSE.setValue(new StringBuilder(inode.getName()).reverse().toString());
+		doc.add(new Field("name", inode.getName(), Field.Store.YES, Field.Index.ANALYZED));
+		doc.add(new Field("fullName", inode.getName(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+		doc.add(new Field("fullNameReverse", new StringBuilder(inode.getName()).reverse().toString(),
+				Field.Store.YES, Field.Index.NOT_ANALYZED));
 		if (inode.getPath().equals(VirtualFileSystem.separator)) {
-			FIELD_PARENT_PATH.setValue("");
+			doc.add(new Field(FIELD_PARENT_PATH, "", Field.Store.YES, Field.Index.NOT_ANALYZED));
 		} else {
-			FIELD_PARENT_PATH.setValue(inode.getParent().getPath() + VirtualFileSystem.separator);
+			doc.add(new Field(FIELD_PARENT_PATH, inode.getParent().getPath() + VirtualFileSystem.separator,
+					Field.Store.YES, Field.Index.NOT_ANALYZED));
 		}
-		if (inode.isDirectory())
-			FIELD_FULL_PATH.setValue(inode.getPath() + VirtualFileSystem.separator);
-		else
-			FIELD_FULL_PATH.setValue(inode.getPath());
-		FIELD_OWNER.setValue(inode.getUsername());
-		FIELD_GROUP.setValue(inode.getGroup());
-		FIELD_TYPE.setValue(inodeType.toString().toLowerCase().substring(0, 1));
+		doc.add(new Field(FIELD_FULL_PATH, makeFullPath(inode), Field.Store.YES, Field.Index.NOT_ANALYZED));
+		doc.add(new Field("owner", inode.getUsername(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+		doc.add(new Field("group", inode.getGroup(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+		doc.add(new Field("type", inodeType.toString().toLowerCase().substring(0, 1), Field.Store.YES, Field.Index.NOT_ANALYZED));
 
+		NumericField slavesNbr = new NumericField("nbrOfSlaves", Field.Store.YES, true);
 		if (inodeType == InodeType.FILE) {
+			Set<String> slaveNames = inode.getSlaveNames();
 			StringBuilder sb = new StringBuilder();
-			for (String slaveName : inode.getSlaveNames()) {
+			for (String slaveName : slaveNames) {
 				sb.append(slaveName).append(",");
 			}
-			FIELD_SLAVES_NBR.setIntValue(inode.getSlaveNames().size());
-			FIELD_SLAVES.setValue(sb.toString());
+			doc.add(slavesNbr.setIntValue(slaveNames.size()));
+			doc.add(new Field("slaves", sb.toString(), Field.Store.YES, Field.Index.ANALYZED));
 		} else {
-			FIELD_SLAVES_NBR.setIntValue(0);
-			FIELD_SLAVES.setValue("");
+			doc.add(slavesNbr.setIntValue(0));
+			doc.add(new Field("slaves", "", Field.Store.YES, Field.Index.ANALYZED));
 		}
 
-		FIELD_LASTMODIFIED.setLongValue(inode.lastModified());
-		FIELD_SIZE.setLongValue(inode.getSize());
-		
-		// Add data from any extensions
-		for (IndexDataExtensionInterface dataExtension: _dataExtensions) {
-			dataExtension.addData(INDEX_DOCUMENT, inode);
+		doc.add(new NumericField("lastModified", Field.Store.YES, true).setLongValue(inode.lastModified()));
+		doc.add(new NumericField("size", Field.Store.YES, true).setLongValue(inode.getSize()));
+
+		// Add data from any extensions, they share their field instances
+		List<IndexDataExtensionInterface> dataExtensions = _dataExtensions;
+		if (!dataExtensions.isEmpty()) {
+			synchronized (INDEX_DOCUMENT) {
+				for (IndexDataExtensionInterface dataExtension : dataExtensions) {
+					dataExtension.addData(INDEX_DOCUMENT, inode);
+				}
+				for (Fieldable field : INDEX_DOCUMENT.getFields()) {
+					Fieldable copy = copyField(field);
+					if (copy != null) {
+						doc.add(copy);
+					}
+				}
+			}
 		}
 
-		return INDEX_DOCUMENT;
+		return doc;
 	}
-	
+
+	private static Fieldable copyField(Fieldable field) {
+		Field.Store store = field.isStored() ? Field.Store.YES : Field.Store.NO;
+		if (field instanceof NumericField) {
+			NumericField numeric = (NumericField) field;
+			Number value = numeric.getNumericValue();
+			NumericField copy = new NumericField(numeric.name(), numeric.getPrecisionStep(), store, numeric.isIndexed());
+			if (value instanceof Long) {
+				return copy.setLongValue(value.longValue());
+			} else if (value instanceof Integer) {
+				return copy.setIntValue(value.intValue());
+			} else if (value instanceof Float) {
+				return copy.setFloatValue(value.floatValue());
+			} else if (value instanceof Double) {
+				return copy.setDoubleValue(value.doubleValue());
+			}
+			return null;
+		}
+		if (field.stringValue() == null) {
+			return null;
+		}
+		return new Field(field.name(), field.stringValue(), store,
+				Field.Index.toIndex(field.isIndexed(), field.isTokenized(), field.getOmitNorms()));
+	}
+
+	/**
+	 * @return the value of the fullPath field of the inode, directories end with a separator.
+	 */
+	protected static String makeFullPath(ImmutableInodeHandle inode) {
+		if (inode.isDirectory()) {
+			return inode.getPath() + VirtualFileSystem.separator;
+		}
+		return inode.getPath();
+	}
+
+	protected static Term makeFullPathTerm(String fullPath) {
+		return TERM_FULL.createTerm(fullPath);
+	}
+
 	private Term makeFullPathTermFromInode(ImmutableInodeHandle inode) {
 		if (inode.isDirectory()) {
 			return TERM_FULL.createTerm(inode.getPath() + VirtualFileSystem.separator);
@@ -404,17 +517,17 @@ public class LuceneEngine implements IndexEngineInterface {
 		return new TermQuery(TERM_GROUP.createTerm(group));
 	}
 
-	private void setSortField(boolean order) {
-		SORT.setSort(new SortField("fullPath", SortField.STRING, order));
+	private Sort makeSort(boolean order) {
+		return new Sort(new SortField("fullPath", SortField.STRING, order));
 	}
 
-	private void setSortField(String field, int type, boolean order) {
-		SORT.setSort(new SortField(field, type, order),
+	private Sort makeSort(String field, int type, boolean order) {
+		return new Sort(new SortField(field, type, order),
 				new SortField("fullPath", SortField.STRING, order));
 	}
 
-	private void setSortFieldRandom() {
-		SORT.setSort(new SortField(
+	private Sort makeSortRandom() {
+		return new Sort(new SortField(
 				"",
 				new FieldComparatorSource() {
 					@Override
@@ -427,62 +540,34 @@ public class LuceneEngine implements IndexEngineInterface {
 
 	/* {@inheritDoc} */
 	public void addInode(ImmutableInodeHandle inode) throws IndexException {
-		try {
-			synchronized (INDEX_DOCUMENT) {
-				Document doc = makeDocumentFromInode(inode);
-				_iWriter.addDocument(doc);
-			}
-		} catch (FileNotFoundException e) {
-			logger.error("Unable to add " + inode.getPath() + " to the index", e);
-		} catch (CorruptIndexException e) {
-			throw new IndexException("Unable to add " + inode.getPath() + " to the index", e);
-		} catch (IOException e) {
-			throw new IndexException("Unable to add " + inode.getPath() + " to the index", e);
-		}
+		_queue.update(inode);
 	}
 
 	/* {@inheritDoc} */
 	public void deleteInode(ImmutableInodeHandle inode) throws IndexException {
-		try {
-			_iWriter.deleteDocuments(makeFullPathTermFromInode(inode));
-		} catch (CorruptIndexException e) {
-			throw new IndexException("Unable to delete " + inode.getPath() + " from the index", e);
-		} catch (IOException e) {
-			throw new IndexException("Unable to delete " + inode.getPath() + " from the index", e);
-		}
+		_queue.delete(inode);
 	}
 
 	/* {@inheritDoc} */
 	public void updateInode(ImmutableInodeHandle inode) throws IndexException {
-		try {
-			synchronized (INDEX_DOCUMENT) {
-				_iWriter.updateDocument(makeFullPathTermFromInode(inode), makeDocumentFromInode(inode));
-			}
-		} catch (FileNotFoundException e) {
-			logger.error("The inode was here but now it isn't!", e);
-		} catch (CorruptIndexException e) {
-			throw new IndexException("Unable to update " + inode.getPath() + " in the index", e);
-		} catch (IOException e) {
-			throw new IndexException("Unable to update " + inode.getPath() + " in the index", e);
-		}
+		_queue.update(inode);
 	}
 
 	/* {@inheritDoc} */
 	public void renameInode(ImmutableInodeHandle fromInode, ImmutableInodeHandle toInode) throws IndexException {
 		IndexSearcher iSearcher = null;
-		IndexReader iReader = null;
 		try {
+			// the prefix search below has to see everything queued so far
+			_queue.flush();
 			Term fromInodeTerm = makeFullPathTermFromInode(fromInode);
-			synchronized (INDEX_DOCUMENT) {
-				_iWriter.updateDocument(fromInodeTerm, makeDocumentFromInode(toInode));
-			}
+			_iWriter.updateDocument(fromInodeTerm, makeDocumentFromInode(toInode));
 			if (toInode.isDirectory()) {
 				PrefixQuery prefixQuery = new PrefixQuery(fromInodeTerm);
 
-				iReader = IndexReader.open(_iWriter, true);
-				iSearcher = new IndexSearcher(iReader);
+				refreshSearcher(true);
+				iSearcher = _searcherManager.acquire();
 
-				final BitSet bits = new BitSet(iReader.maxDoc());
+				final BitSet bits = new BitSet(iSearcher.maxDoc());
 				iSearcher.search(prefixQuery, new Collector() {
 					private int docBase;
 
@@ -507,24 +592,19 @@ public class LuceneEngine implements IndexEngineInterface {
 				for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i+1)) {
 					Document doc = iSearcher.doc(i, SIMPLE_FIELD_SELECTOR);
 
-					String oldPath = doc.getFieldable(FIELD_FULL_PATH.name()).stringValue();
+					String oldPath = doc.getFieldable(FIELD_FULL_PATH).stringValue();
 					String newPath = toInode.getPath() + oldPath.substring(fromInode.getPath().length());
-					doc.removeField(FIELD_FULL_PATH.name());
-					doc.removeField(FIELD_PARENT_PATH.name());
-
-					synchronized (INDEX_DOCUMENT) {
-						FIELD_FULL_PATH.setValue(newPath);
-						if (newPath.equals(VirtualFileSystem.separator)) {
-							FIELD_PARENT_PATH.setValue("");
-						} else {
-							FIELD_PARENT_PATH.setValue(VirtualFileSystem.stripLast(newPath) + VirtualFileSystem.separator);
-						}
-						doc.add(FIELD_FULL_PATH);
-						doc.add(FIELD_PARENT_PATH);
-						_iWriter.updateDocument(makeFullPathTermFromString(oldPath), doc);
-					}
+					doc.removeField(FIELD_FULL_PATH);
+					doc.removeField(FIELD_PARENT_PATH);
+
+					String parentPath = newPath.equals(VirtualFileSystem.separator) ? ""
+							: VirtualFileSystem.stripLast(newPath) + VirtualFileSystem.separator;
+					doc.add(new Field(FIELD_FULL_PATH, newPath, Field.Store.YES, Field.Index.NOT_ANALYZED));
+					doc.add(new Field(FIELD_PARENT_PATH, parentPath, Field.Store.YES, Field.Index.NOT_ANALYZED));
+					_iWriter.updateDocument(makeFullPathTermFromString(oldPath), doc);
 				}
 			}
+			_writesSinceRefresh.incrementAndGet();
 		} catch (CorruptIndexException e) {
 			throw new IndexException("Unable to rename " + fromInode.getPath() + " to " +
 					toInode.getPath() + " in the index", e);
@@ -532,28 +612,16 @@ public class LuceneEngine implements IndexEngineInterface {
 			throw new IndexException("Unable to rename " + fromInode.getPath() + " to " +
 					toInode.getPath() + " in the index", e);
 		} finally {
-			if (iSearcher != null) {
-				try {
-					iSearcher.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexSearcher", e);
-				}
-			}
-			if (iReader != null) {
-				try {
-					iReader.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexReader obtained from the IndexWriter", e);
-				}
-			}
+			releaseSearcher(iSearcher);
 		}
 	}
 
 	/**
 	 * {@inheritDoc}
-	 * Forces the Index to be saved. Simply calls {@link IndexWriter}.commit();
+	 * Forces the Index to be saved, writes the pending changes and calls {@link IndexWriter}.commit();
 	 */
 	public void commit() throws IndexException {
+		_queue.flush();
 		try {
 			_iWriter.commit();
 		} catch (CorruptIndexException e) {
@@ -570,6 +638,7 @@ public class LuceneEngine implements IndexEngineInterface {
 		}
 		_rebuilding = true;
 
+		_queue.clear();
 		closeAll();
 
 		PhysicalFile f = new PhysicalFile(INDEX_DIR);
@@ -640,7 +709,7 @@ public class LuceneEngine implements IndexEngineInterface {
 	public Map<String,String> advancedFind(DirectoryHandle startNode, AdvancedSearchParams params)
 	throws IndexException, IllegalArgumentException {
 		IndexSearcher iSearcher = null;
-		IndexReader iReader = null;
+		long start = System.nanoTime();
 		try {
 			Map<String,String> inodes = new LinkedHashMap<String,String>();
 
@@ -719,24 +788,25 @@ public class LuceneEngine implements IndexEngineInterface {
 				query.add(makeFullNameReversePrefixQueryFromString(params.getEndsWith()), Occur.MUST);
 			}
 
+			Sort sort;
 			if (params.getSortField() != null && params.getSortOrder() != null) {
 				if (params.getSortField().equalsIgnoreCase("lastModified") ||
 						params.getSortField().equalsIgnoreCase("size")) {
-					setSortField(params.getSortField(), SortField.LONG, params.getSortOrder());
+					sort = makeSort(params.getSortField(), SortField.LONG, params.getSortOrder());
 				} else if (params.getSortField().equalsIgnoreCase("nbrOfSlaves")) {
-					setSortField(params.getSortField(), SortField.INT, params.getSortOrder());
+					sort = makeSort(params.getSortField(), SortField.INT, params.getSortOrder());
 				} else if (params.getSortField().equalsIgnoreCase("parentPath") ||
 						params.getSortField().equalsIgnoreCase("owner") ||
 						params.getSortField().equalsIgnoreCase("group") ||
 						params.getSortField().equalsIgnoreCase("type")) {
-					setSortField(params.getSortField(), SortField.STRING, params.getSortOrder());
+					sort = makeSort(params.getSortField(), SortField.STRING, params.getSortOrder());
 				} else {
-					setSortField(params.getSortOrder());
+					sort = makeSort(params.getSortOrder());
 				}
 			} else if (params.getSortOrder() == null) {
-				setSortFieldRandom();
+				sort = makeSortRandom();
 			} else {
-				setSortField(params.getSortOrder());
+				sort = makeSort(params.getSortOrder());
 			}
 
 			int limit = _maxHitsNumber;
@@ -752,8 +822,7 @@ public class LuceneEngine implements IndexEngineInterface {
 
 			logger.debug("Query: " + query);
 
-			iReader = IndexReader.open(_iWriter, true);
-			iSearcher = new IndexSearcher(iReader);
+			iSearcher = acquireSearcher();
 			if (limit == 0) {
 				TotalHitCountCollector totalHitCountCollector = new TotalHitCountCollector();
 				iSearcher.search(query, totalHitCountCollector);
@@ -763,7 +832,7 @@ public class LuceneEngine implements IndexEngineInterface {
 				}
 				logger.debug("Found " + limit + " inode match(es) in the index, using this as limit.");
 			}
-			TopFieldCollector topFieldCollector = TopFieldCollector.create(SORT, limit, true, false, false, false);
+			TopFieldCollector topFieldCollector = TopFieldCollector.create(sort, limit, true, false, false, false);
 			iSearcher.search(query, topFieldCollector);
 
 			for (ScoreDoc scoreDoc : topFieldCollector.topDocs().scoreDocs) {
@@ -771,6 +840,7 @@ public class LuceneEngine implements IndexEngineInterface {
 				inodes.put(doc.getFieldable("fullPath").stringValue(), doc.getFieldable("type").stringValue());
 			}
 
+			_searchLatency.recordNanos(System.nanoTime() - start);
 			return inodes;
 		} catch (CorruptIndexException e) {
 			logger.error(EXCEPTION_OCCURED_WHILE_SEARCHING, e);
@@ -779,20 +849,7 @@ public class LuceneEngine implements IndexEngineInterface {
 			logger.error(EXCEPTION_OCCURED_WHILE_SEARCHING, e);
 			throw new IndexException("Unable to search the index", e);
 		} finally {
-			if (iSearcher != null) {
-				try {
-					iSearcher.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexSearcher", e);
-				}
-			}
-			if (iReader != null) {
-				try {
-					iReader.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexReader obtained from the IndexWriter", e);
-				}
-			}
+			releaseSearcher(iSearcher);
 		}
 	}
 
@@ -806,7 +863,7 @@ public class LuceneEngine implements IndexEngineInterface {
 	 */
 	public Set<String> findInode(DirectoryHandle startNode, String text, InodeType inodeType) throws IndexException {
 		IndexSearcher iSearcher = null;
-		IndexReader iReader = null;
+		long start = System.nanoTime();
 		try {
 			Set<String> inodes = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
 
@@ -834,8 +891,7 @@ public class LuceneEngine implements IndexEngineInterface {
 				query.add(QUERY_FILE, Occur.MUST);
 			}
 
-			iReader = IndexReader.open(_iWriter, true);
-			iSearcher = new IndexSearcher(iReader);
+			iSearcher = acquireSearcher();
 			TopScoreDocCollector topScoreDocsCollector = TopScoreDocCollector.create(_maxHitsNumber, false);
 			iSearcher.search(query, topScoreDocsCollector);
 			logger.debug("Query: " + query);
@@ -845,6 +901,7 @@ public class LuceneEngine implements IndexEngineInterface {
 				inodes.add(doc.getFieldable("fullPath").stringValue());
 			}
 
+			_searchLatency.recordNanos(System.nanoTime() - start);
 			return inodes;
 		} catch (CorruptIndexException e) {
 			logger.error(EXCEPTION_OCCURED_WHILE_SEARCHING, e);
@@ -853,20 +910,7 @@ public class LuceneEngine implements IndexEngineInterface {
 			logger.error(EXCEPTION_OCCURED_WHILE_SEARCHING, e);
 			throw new IndexException("Unable to search the index", e);
 		} finally {
-			if (iSearcher != null) {
-				try {
-					iSearcher.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexSearcher", e);
-				}
-			}
-			if (iReader != null) {
-				try {
-					iReader.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexReader obtained from the IndexWriter", e);
-				}
-			}
+			releaseSearcher(iSearcher);
 		}
 	}
 
@@ -899,25 +943,26 @@ public class LuceneEngine implements IndexEngineInterface {
 			logger.error("IOException getting IndexWriter", e);
 		}
 
-		IndexReader iReader = null;
+		IndexSearcher iSearcher = null;
 		try {
-			iReader = IndexReader.open(_iWriter, true);
-			status.put("deleted inodes", String.valueOf(iReader.numDeletedDocs()));
-		} catch (CorruptIndexException e) {
-			logger.error(EXCEPTION_OCCURED_WHILE_SEARCHING, e);
+			iSearcher = acquireSearcher();
+			status.put("deleted inodes", String.valueOf(iSearcher.getIndexReader().numDeletedDocs()));
 		} catch (IOException e) {
 			logger.error(EXCEPTION_OCCURED_WHILE_SEARCHING, e);
 		} finally {
-			if (iReader != null) {
-				try {
-					iReader.close();
-				} catch (IOException e) {
-					logger.error("IOException closing IndexReader obtained from the IndexWriter", e);
-				}
-			}
+			releaseSearcher(iSearcher);
 		}
 		
 		status.put("cached inodes", String.valueOf(_iWriter.numRamDocs()));
+		status.put("pending changes", String.valueOf(_queue.getPendingCount()));
+		status.put("indexing lag", Time.formatTime(_queue.getCurrentLag()));
+		LatencyHistogram lag = _queue.getLag();
+		status.put("indexing lag p99", LatencyHistogram.formatMicros(lag.getPercentileMicros(99)));
+		status.put("batches", _queue.getBatchCount() + " (" + _queue.getAppliedCount() + " changes)");
+		status.put("search latency", "avg " + LatencyHistogram.formatMicros(_searchLatency.getAverageMicros())
+				+ " / p99 " + LatencyHistogram.formatMicros(_searchLatency.getPercentileMicros(99))
+				+ " / max " + LatencyHistogram.formatMicros(_searchLatency.getMaxMicros()));
+		status.put("searcher refreshes", String.valueOf(_searcherRefreshes.get()));
 		status.put("max hits", String.valueOf(_maxHitsNumber));
 		status.put("last optimization", lastOp);
 		status.put("last backup", lastBackup);
@@ -1013,6 +1058,9 @@ public class LuceneEngine implements IndexEngineInterface {
 				}
 			}
 
+			logger.debug("Writing pending index changes...");
+			_queue.stopQueue();
+
 			logger.debug("Saving index...");
 			closeAll();
 		}
@@ -0,0 +1,351 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.drftpd.util.CommonPluginUtils;
+import org.drftpd.util.LatencyHistogram;
+import org.drftpd.vfs.event.ImmutableInodeHandle;
+import org.drftpd.vfs.index.IndexException;
+
+/**
+ * Coalesces index changes per path and applies them in batches.<br>
+ * An upload changes the size of every parent directory, so the same
+ * directories are updated over and over. Changes are kept here for up to
+ * 'batch_interval' milliseconds, only the last one of each path is applied.
+ * Documents of a batch are built by a small pool of threads, then written by
+ * the queue thread alone.
+ * @version $Id$
+ */
+public class LuceneIndexQueue extends Thread {
+	private static final Logger logger = Logger.getLogger(LuceneIndexQueue.class);
+
+	private LuceneEngine _engine;
+
+	private long _interval;
+
+	private int _batchSize;
+
+	private ExecutorService _builders;
+
+	private LinkedHashMap<String, PendingChange> _pending = new LinkedHashMap<String, PendingChange>();
+
+	private long _oldestPending;
+
+	/**
+	 * Held while a batch is written, so a flush returns only once everything
+	 * queued before it is in the writer.
+	 */
+	private final ReentrantLock _flushLock = new ReentrantLock();
+
+	private volatile boolean _stop;
+
+	private AtomicLong _applied = new AtomicLong();
+
+	private AtomicLong _batches = new AtomicLong();
+
+	private LatencyHistogram _lag = new LatencyHistogram();
+
+	/**
+	 * @param interval how long, in milliseconds, a change may wait to be
+	 * coalesced with later ones, 0 applies every change straight away.
+	 * @param batchSize number of pending paths which triggers a batch before the interval is over.
+	 * @param threads number of threads building documents.
+	 */
+	public LuceneIndexQueue(LuceneEngine engine, long interval, int batchSize, int threads) {
+		setName("IndexQueueThread");
+		_engine = engine;
+		_interval = interval;
+		_batchSize = Math.max(1, batchSize);
+		if (threads > 1) {
+			_builders = Executors.newFixedThreadPool(threads, new IndexBuilderThreadFactory());
+		}
+	}
+
+	/**
+	 * Queues the inode to be added to, or updated in the index.
+	 */
+	public void update(ImmutableInodeHandle inode) throws IndexException {
+		queue(inode, false);
+	}
+
+	/**
+	 * Queues the inode to be removed from the index.
+	 */
+	public void delete(ImmutableInodeHandle inode) throws IndexException {
+		queue(inode, true);
+	}
+
+	private void queue(ImmutableInodeHandle inode, boolean delete) throws IndexException {
+		String path = LuceneEngine.makeFullPath(inode);
+		synchronized (this) {
+			PendingChange change = _pending.get(path);
+			if (change == null) {
+				if (_pending.isEmpty()) {
+					_oldestPending = System.currentTimeMillis();
+					notifyAll();
+				}
+				_pending.put(path, new PendingChange(inode, delete));
+				if (_pending.size() == _batchSize) {
+					notifyAll();
+				}
+			} else {
+				change._inode = inode;
+				change._delete = delete;
+			}
+		}
+		if (_interval <= 0) {
+			flush();
+		}
+	}
+
+	/**
+	 * Drops every pending change, used when the index is about to be rebuilt.
+	 */
+	public void clear() {
+		_flushLock.lock();
+		try {
+			synchronized (this) {
+				_pending = new LinkedHashMap<String, PendingChange>();
+				_oldestPending = 0;
+			}
+		} finally {
+			_flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes every pending change to the index before returning.
+	 */
+	public void flush() throws IndexException {
+		_flushLock.lock();
+		try {
+			Map<String, PendingChange> batch;
+			synchronized (this) {
+				if (_pending.isEmpty()) {
+					return;
+				}
+				batch = _pending;
+				_pending = new LinkedHashMap<String, PendingChange>();
+				_oldestPending = 0;
+			}
+			apply(batch);
+		} finally {
+			_flushLock.unlock();
+		}
+	}
+
+	private void apply(Map<String, PendingChange> batch) throws IndexException {
+		List<Term> deletes = new ArrayList<Term>();
+		List<String> paths = new ArrayList<String>();
+		List<Callable<Document>> builds = new ArrayList<Callable<Document>>();
+		for (Map.Entry<String, PendingChange> entry : batch.entrySet()) {
+			final PendingChange change = entry.getValue();
+			if (change._delete) {
+				deletes.add(LuceneEngine.makeFullPathTerm(entry.getKey()));
+			} else {
+				paths.add(entry.getKey());
+				builds.add(new Callable<Document>() {
+					public Document call() throws FileNotFoundException {
+						return _engine.makeDocumentFromInode(change._inode);
+					}
+				});
+			}
+		}
+
+		List<Document> docs = buildDocuments(builds);
+		IndexWriter writer = _engine.getWriter();
+		try {
+			if (!deletes.isEmpty()) {
+				writer.deleteDocuments(deletes.toArray(new Term[deletes.size()]));
+			}
+			for (int i = 0; i < docs.size(); i++) {
+				if (docs.get(i) != null) {
+					writer.updateDocument(LuceneEngine.makeFullPathTerm(paths.get(i)), docs.get(i));
+				}
+			}
+		} catch (IOException e) {
+			throw new IndexException("Unable to write " + batch.size() + " changes to the index", e);
+		}
+		_engine.changesWritten(batch.size());
+
+		long now = System.currentTimeMillis();
+		for (PendingChange change : batch.values()) {
+			_lag.recordMillis(now - change._queued);
+		}
+		_applied.addAndGet(batch.size());
+		_batches.incrementAndGet();
+	}
+
+	/**
+	 * @return the documents in the same order as the builds, null for inodes which are gone.
+	 */
+	private List<Document> buildDocuments(List<Callable<Document>> builds) throws IndexException {
+		List<Document> docs = new ArrayList<Document>(builds.size());
+		if (_builders == null || builds.size() == 1) {
+			for (Callable<Document> build : builds) {
+				try {
+					docs.add(build.call());
+				} catch (FileNotFoundException e) {
+					docs.add(null);
+				} catch (Exception e) {
+					throw new IndexException("Unable to build an index document", e);
+				}
+			}
+			return docs;
+		}
+		try {
+			for (Future<Document> future : _builders.invokeAll(builds)) {
+				try {
+					docs.add(future.get());
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof FileNotFoundException)) {
+						throw new IndexException("Unable to build an index document", e.getCause());
+					}
+					docs.add(null);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IndexException("Interrupted while building index documents", e);
+		}
+		return docs;
+	}
+
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				try {
+					while (!_stop) {
+						if (_pending.isEmpty()) {
+							wait();
+							continue;
+						}
+						long wait = _oldestPending + _interval - System.currentTimeMillis();
+						if (wait <= 0 || _pending.size() >= _batchSize) {
+							break;
+						}
+						wait(wait);
+					}
+				} catch (InterruptedException e) {
+				}
+				if (_stop) {
+					break;
+				}
+			}
+			try {
+				flush();
+			} catch (IndexException e) {
+				logger.error("An exception occured while indexing, check stack trace", e);
+			} catch (RuntimeException e) {
+				logger.error("An exception occured while indexing, check stack trace", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the queue thread and writes whatever is still pending.
+	 */
+	public void stopQueue() {
+		synchronized (this) {
+			_stop = true;
+			notifyAll();
+		}
+		try {
+			join();
+		} catch (InterruptedException e) {
+		}
+		try {
+			flush();
+		} catch (IndexException e) {
+			logger.error("Unable to write the pending index changes", e);
+		}
+		if (_builders != null) {
+			_builders.shutdown();
+		}
+	}
+
+	public synchronized int getPendingCount() {
+		return _pending.size();
+	}
+
+	/**
+	 * @return how long, in milliseconds, the oldest pending change has been waiting.
+	 */
+	public synchronized long getCurrentLag() {
+		return _pending.isEmpty() ? 0 : System.currentTimeMillis() - _oldestPending;
+	}
+
+	public long getAppliedCount() {
+		return _applied.get();
+	}
+
+	public long getBatchCount() {
+		return _batches.get();
+	}
+
+	/**
+	 * @return the time from a change being queued to it being in the writer.
+	 */
+	public LatencyHistogram getLag() {
+		return _lag;
+	}
+
+	private static class PendingChange {
+		private ImmutableInodeHandle _inode;
+
+		private boolean _delete;
+
+		private long _queued = System.currentTimeMillis();
+
+		private PendingChange(ImmutableInodeHandle inode, boolean delete) {
+			_inode = inode;
+			_delete = delete;
+		}
+	}
+
+	private class IndexBuilderThreadFactory implements ThreadFactory {
+		private AtomicInteger _count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("IndexBuilder-" + _count.incrementAndGet());
+			t.setDaemon(true);
+			t.setContextClassLoader(CommonPluginUtils.getClassLoaderForObject(_engine));
+			return t;
+		}
+	}
+}
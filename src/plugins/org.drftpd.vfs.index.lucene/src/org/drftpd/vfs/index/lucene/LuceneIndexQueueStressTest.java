@@ -0,0 +1,141 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.store.RAMDirectory;
+import org.drftpd.vfs.VirtualFileSystemDirectory;
+import org.drftpd.vfs.VirtualFileSystemFile;
+import org.drftpd.vfs.VirtualFileSystemInode;
+import org.drftpd.vfs.event.ImmutableInodeHandle;
+import org.drftpd.vfs.index.IndexException;
+
+/**
+ * Replays the index events of a burst of uploads, every file upload updates
+ * the file a few times and each of its parent directories after every
+ * update, and compares writing each event against the batching queue.<br>
+ * The event stream is generated from a fixed seed so runs can be compared,
+ * its size can be changed by simple code changes.
+ */
+public class LuceneIndexQueueStressTest extends TestCase {
+
+	private static final long SEED = 1018L;
+
+	private static final int SECTIONS = 4;
+
+	private static final int RELEASES = 50;
+
+	private static final int FILES = 20;
+
+	private static final int UPDATES_PER_FILE = 3;
+
+	private List<ImmutableInodeHandle> _events;
+
+	private Set<String> _paths;
+
+	public LuceneIndexQueueStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() {
+		_events = new ArrayList<ImmutableInodeHandle>();
+		_paths = new HashSet<String>();
+		Random random = new Random(SEED);
+		List<ImmutableInodeHandle> sections = new ArrayList<ImmutableInodeHandle>();
+		for (int s = 0; s < SECTIONS; s++) {
+			sections.add(directory("/SECTION" + s));
+		}
+		for (int r = 0; r < RELEASES; r++) {
+			ImmutableInodeHandle section = sections.get(random.nextInt(SECTIONS));
+			ImmutableInodeHandle release = directory(section.getPath() + "/Release." + r + "-GRP");
+			add(release);
+			for (int f = 0; f < FILES; f++) {
+				ImmutableInodeHandle file = file(release.getPath() + "/grp-release" + r + ".r" + f,
+						"slave" + random.nextInt(5), 1000L + random.nextInt(1000000));
+				for (int u = 0; u < UPDATES_PER_FILE; u++) {
+					add(file);
+					add(release);
+					add(section);
+				}
+			}
+		}
+	}
+
+	public void testUnbatched() throws IOException, IndexException {
+		replay("unbatched", 0, 1, 1);
+	}
+
+	public void testBatched() throws IOException, IndexException {
+		replay("batched", 60000, 1000, 2);
+	}
+
+	private void replay(String name, long interval, int batchSize, int threads) throws IOException, IndexException {
+		LuceneEngine engine = new LuceneEngine();
+		engine.openStreams(new RAMDirectory());
+		LuceneIndexQueue queue = new LuceneIndexQueue(engine, interval, batchSize, threads);
+		queue.start();
+
+		long start = System.nanoTime();
+		for (ImmutableInodeHandle event : _events) {
+			queue.update(event);
+		}
+		queue.stopQueue();
+		engine.getWriter().commit();
+		long elapsed = System.nanoTime() - start;
+
+		assertEquals(0, queue.getPendingCount());
+		assertEquals(_paths.size(), engine.getWriter().numDocs());
+		System.out.println(name + ": " + _events.size() + " events, " + queue.getAppliedCount() + " writes in "
+				+ queue.getBatchCount() + " batches, " + (elapsed / 1000000) + "ms ("
+				+ (_events.size() * 1000000000L / Math.max(elapsed, 1)) + " events/s), lag " + queue.getLag());
+		engine.getWriter().close();
+	}
+
+	private void add(ImmutableInodeHandle inode) {
+		_events.add(inode);
+		_paths.add(inode.getPath());
+	}
+
+	private static ImmutableInodeHandle directory(String path) {
+		return new TestInodeHandle(new VirtualFileSystemDirectory("drftpd", "drftpd"), path);
+	}
+
+	private static ImmutableInodeHandle file(String path, String slave, long size) {
+		return new TestInodeHandle(new VirtualFileSystemFile("drftpd", "drftpd", size, slave), path);
+	}
+
+	/**
+	 * The inodes are not in a VFS, their names come from the path.
+	 */
+	private static class TestInodeHandle extends ImmutableInodeHandle {
+		private TestInodeHandle(VirtualFileSystemInode inode, String path) {
+			super(inode, path);
+		}
+
+		public String getName() {
+			return getPath().substring(getPath().lastIndexOf('/') + 1);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.vfs.index.lucene;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.drftpd.vfs.DirectoryHandle;
+import org.drftpd.vfs.VirtualFileSystemDirectory;
+import org.drftpd.vfs.event.ImmutableInodeHandle;
+import org.drftpd.vfs.index.AdvancedSearchParams.InodeType;
+import org.drftpd.vfs.index.IndexException;
+
+/**
+ * Runs a dupecheck like load, a directory is created then searched for, and
+ * compares opening a reader for every search against the shared searcher.<br>
+ * The index size and number of searches can be changed by simple code changes.
+ */
+public class LuceneSearcherStressTest extends TestCase {
+
+	private static final int RELEASES = 5000;
+
+	private static final int SEARCHES = 1000;
+
+	private LuceneEngine _engine;
+
+	private LuceneIndexQueue _queue;
+
+	public LuceneSearcherStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException, IndexException {
+		_engine = new LuceneEngine();
+		_engine.openStreams(new RAMDirectory());
+		_queue = new LuceneIndexQueue(_engine, 0, 1000, 1);
+		for (int i = 0; i < RELEASES; i++) {
+			_queue.update(directory("/MP3/Some.Release." + i + "-GRP"));
+		}
+	}
+
+	protected void tearDown() throws IOException {
+		_engine.getWriter().close();
+	}
+
+	public void testReaderPerSearch() throws IOException, IndexException {
+		long start = System.nanoTime();
+		for (int i = 0; i < SEARCHES; i++) {
+			_queue.update(directory("/MP3/New.Release." + i + "-GRP"));
+			IndexReader iReader = IndexReader.open(_engine.getWriter(), true);
+			IndexSearcher iSearcher = new IndexSearcher(iReader);
+			try {
+				TopDocs docs = iSearcher.search(
+						LuceneUtils.analyze("name", new Term("name", ""), "Some Release " + i), 50);
+				assertEquals(1, docs.totalHits);
+			} finally {
+				iSearcher.close();
+				iReader.close();
+			}
+		}
+		print("reader per search", System.nanoTime() - start);
+	}
+
+	public void testSharedSearcher() throws IOException, IndexException, InterruptedException {
+		DirectoryHandle root = new DirectoryHandle("/");
+		long start = System.nanoTime();
+		for (int i = 0; i < SEARCHES; i++) {
+			_queue.update(directory("/MP3/New.Release." + i + "-GRP"));
+			assertEquals(1, _engine.findInode(root, "Some Release " + i, InodeType.DIRECTORY).size());
+		}
+		print("shared searcher", System.nanoTime() - start);
+
+		// the last directories show up once the searcher is refreshed
+		Thread.sleep(1100);
+		assertEquals(1, _engine.findInode(root, "New Release " + (SEARCHES - 1), InodeType.DIRECTORY).size());
+		assertEquals(1, _engine.findInode(root, "Some Release 42", InodeType.DIRECTORY).size());
+	}
+
+	private static void print(String name, long nanos) {
+		System.out.println(name + ": " + SEARCHES + " creates and searches in " + (nanos / 1000000) + "ms ("
+				+ (SEARCHES * 1000000000L / Math.max(nanos, 1)) + " searches/s)");
+	}
+
+	private static ImmutableInodeHandle directory(final String path) {
+		return new ImmutableInodeHandle(new VirtualFileSystemDirectory("drftpd", "drftpd"), path) {
+			public String getName() {
+				return path.substring(path.lastIndexOf('/') + 1);
+			}
+		};
+	}
+}
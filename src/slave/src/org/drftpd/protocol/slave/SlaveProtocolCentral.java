@@ -17,6 +17,8 @@
 package org.drftpd.protocol.slave;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -26,6 +28,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
+import org.drftpd.protocol.CompactObjectInputStream;
+import org.drftpd.protocol.CompactObjectOutputStream;
 import org.drftpd.protocol.HandshakeWrapper;
 import org.drftpd.protocol.ProtocolException;
 import org.drftpd.slave.Slave;
@@ -102,10 +106,30 @@ public class SlaveProtocolCentral {
 			hw.setPluginStatus(false);
 		}
 		
+		ObjectOutputStream out = getSlaveObject().getOutputStream();
+		ObjectInputStream in = getSlaveObject().getInputStream();
+		boolean compact = hw.pluginStatus() && getSlaveObject().getProtocolMode().equals(HandshakeWrapper.PROTOCOL_COMPACT)
+				&& out instanceof CompactObjectOutputStream && in instanceof CompactObjectInputStream;
+		if (compact) {
+			hw.setProtocolMode(HandshakeWrapper.PROTOCOL_COMPACT);
+		}
 		try {
-			getSlaveObject().getOutputStream().writeObject(hw);
+			out.writeObject(hw);
+			if (compact) {
+				out.flush();
+				out.reset();
+				// the master answers with the mode it accepted
+				String mode = (String) in.readObject();
+				if (mode.equals(HandshakeWrapper.PROTOCOL_COMPACT)) {
+					((CompactObjectInputStream) in).setCompact(true);
+					((CompactObjectOutputStream) out).setCompact(true);
+				}
+				logger.info("Using the " + mode + " protocol with the master");
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
 		}
 	}
 	
@@ -0,0 +1,150 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.protocol.slave;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import org.drftpd.protocol.CompactObjectInputStream;
+import org.drftpd.protocol.CompactObjectOutputStream;
+import org.drftpd.slave.async.AsyncCommandArgument;
+import org.drftpd.slave.async.AsyncResponse;
+import org.drftpd.slave.async.AsyncResponseException;
+
+/**
+ * Compares the plain and compact master/slave protocols.<br>
+ * The throughput test pipelines commands over a loopback socket to an echo
+ * "slave" which answers every command like a ping, the same way the master does.
+ */
+public class SlaveProtocolStressTest extends TestCase {
+
+	private static final int COMMANDS = 20000;
+
+	public SlaveProtocolStressTest(String fName) {
+		super(fName);
+	}
+
+	public void testCompactRoundTrip() throws Exception {
+		ByteArrayOutputStream plainBytes = new ByteArrayOutputStream();
+		ObjectOutputStream plain = new ObjectOutputStream(plainBytes);
+		ByteArrayOutputStream compactBytes = new ByteArrayOutputStream();
+		CompactObjectOutputStream compact = new CompactObjectOutputStream(compactBytes);
+		compact.writeObject("handshake");
+		compact.reset();
+		compact.setCompact(true);
+		plain.writeObject("handshake");
+		plain.reset();
+		for (int i = 0; i < 100; i++) {
+			Object o = i % 10 == 9 ? new AsyncResponseException(Integer.toString(i), new IOException("failed " + i))
+					: new AsyncCommandArgument(Integer.toString(i), "checksum", new String[] { "/path/" + i, "x" });
+			plain.writeObject(o);
+			plain.reset();
+			compact.writeObject(o);
+			compact.reset();
+		}
+		plain.close();
+		compact.close();
+
+		CompactObjectInputStream in = new CompactObjectInputStream(new ByteArrayInputStream(compactBytes.toByteArray()));
+		assertEquals("handshake", in.readObject());
+		in.setCompact(true);
+		for (int i = 0; i < 100; i++) {
+			Object o = in.readObject();
+			if (i % 10 == 9) {
+				assertEquals("failed " + i, ((AsyncResponseException) o).getThrowable().getMessage());
+			} else {
+				assertEquals("/path/" + i, ((AsyncCommandArgument) o).getArgsArray()[0]);
+			}
+		}
+		System.out.println("100 commands: object " + plainBytes.size() + " bytes, compact " + compactBytes.size() + " bytes");
+		assertTrue(compactBytes.size() < plainBytes.size());
+	}
+
+	public void testThroughput() throws Exception {
+		long object = throughput(false);
+		long compact = throughput(true);
+		System.out.println("object protocol: " + object + " commands/s, compact protocol: " + compact + " commands/s");
+	}
+
+	private long throughput(final boolean compactMode) throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		Thread slave = new Thread("Echo slave") {
+			public void run() {
+				try {
+					Socket s = server.accept();
+					CompactObjectOutputStream out = new CompactObjectOutputStream(new BufferedOutputStream(s.getOutputStream()));
+					out.flush();
+					CompactObjectInputStream in = new CompactObjectInputStream(new BufferedInputStream(s.getInputStream()));
+					out.setCompact(compactMode);
+					in.setCompact(compactMode);
+					for (int i = 0; i < COMMANDS; i++) {
+						AsyncCommandArgument ac = (AsyncCommandArgument) in.readObject();
+						out.writeObject(new AsyncResponse(ac.getIndex()));
+						out.flush();
+						out.reset();
+					}
+					s.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		slave.start();
+		final Socket s = new Socket(server.getInetAddress(), server.getLocalPort());
+		final CompactObjectOutputStream out = new CompactObjectOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		out.flush();
+		CompactObjectInputStream in = new CompactObjectInputStream(new BufferedInputStream(s.getInputStream()));
+		out.setCompact(compactMode);
+		in.setCompact(compactMode);
+
+		long start = System.nanoTime();
+		Thread sender = new Thread("Command sender") {
+			public void run() {
+				try {
+					for (int i = 0; i < COMMANDS; i++) {
+						out.writeObject(new AsyncCommandArgument(Integer.toHexString(i & 0xff), "ping",
+								new String[] { "/some/section/Some.Release-GROUP/file.rar" }));
+						out.flush();
+						out.reset();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		sender.start();
+		for (int i = 0; i < COMMANDS; i++) {
+			assertEquals(Integer.toHexString(i & 0xff), ((AsyncResponse) in.readObject()).getIndex());
+		}
+		long elapsed = System.nanoTime() - start;
+		sender.join();
+		slave.join();
+		s.close();
+		server.close();
+		return COMMANDS * 1000000000L / Math.max(elapsed, 1);
+	}
+}
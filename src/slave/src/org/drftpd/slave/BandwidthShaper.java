@@ -0,0 +1,195 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hierarchical bandwidth shaper shared by all transfers on the slave.<br>
+ * Every transfer draws from a chain of token buckets: the whole slave, the
+ * group and the user of the transfer, then the transfer itself. Each group and
+ * user gets its own bucket, either with a specific rate or with the default one,
+ * a bucket is dropped once the last transfer using it has ended.
+ * Rates are sent by the master through the 'shaping' command.
+ * @version $Id$
+ */
+public class BandwidthShaper {
+	private static final Logger logger = Logger.getLogger(BandwidthShaper.class);
+
+	/**
+	 * Longest time a transfer is parked at once, so that aborts are noticed quickly.
+	 */
+	private static final long MAX_PARK = 100000000L;
+
+	private TokenBucket _slaveBucket = new TokenBucket(0);
+
+	private volatile Map<String, Long> _rates = Collections.emptyMap();
+
+	private HashMap<String, SharedBucket> _buckets = new HashMap<String, SharedBucket>();
+
+	/**
+	 * Replaces the current configuration, the keys are 'slave', 'group', 'group.&lt;name&gt;',
+	 * 'user' and 'user.&lt;name&gt;', the values rates in bytes per second, 0 means unlimited.
+	 */
+	public synchronized void configure(Map<String, Long> rates) {
+		_rates = rates;
+		_slaveBucket.setRate(getRate("slave", null));
+		for (Map.Entry<String, SharedBucket> entry : _buckets.entrySet()) {
+			String key = entry.getKey();
+			int dot = key.indexOf('.');
+			entry.getValue()._bucket.setRate(getRate(key.substring(0, dot), key.substring(dot + 1)));
+		}
+		logger.info("Bandwidth shaping configured: " + rates);
+	}
+
+	private long getRate(String type, String name) {
+		Map<String, Long> rates = _rates;
+		Long rate = name == null ? null : rates.get(type + "." + name);
+		if (rate == null) {
+			rate = rates.get(type);
+		}
+		return rate == null ? 0L : rate;
+	}
+
+	/**
+	 * Must be called with the lock held.
+	 */
+	private TokenBucket acquireBucket(String type, String name) {
+		String key = type + "." + name;
+		SharedBucket shared = _buckets.get(key);
+		if (shared == null) {
+			shared = new SharedBucket(new TokenBucket(getRate(type, name)));
+			_buckets.put(key, shared);
+		}
+		shared._transfers++;
+		return shared._bucket;
+	}
+
+	/**
+	 * Must be called with the lock held.
+	 */
+	private void releaseBucket(String type, String name) {
+		String key = type + "." + name;
+		SharedBucket shared = _buckets.get(key);
+		if (shared != null && --shared._transfers <= 0) {
+			_buckets.remove(key);
+		}
+	}
+
+	/**
+	 * Every call has to be matched by a call to {@link #transferEnded(String, String)}
+	 * with the same user and group once the transfer is over.
+	 * @param transferRate the speed limit of the transfer itself, 0 for none.
+	 * @return the limited buckets the transfer has to draw from, an empty list means unlimited.
+	 */
+	public synchronized List<TokenBucket> getChain(String user, String group, long transferRate) {
+		ArrayList<TokenBucket> chain = new ArrayList<TokenBucket>(4);
+		addIfLimited(chain, _slaveBucket);
+		if (group != null) {
+			addIfLimited(chain, acquireBucket("group", group));
+		}
+		if (user != null) {
+			addIfLimited(chain, acquireBucket("user", user));
+		}
+		if (transferRate > 0) {
+			chain.add(new TokenBucket(transferRate));
+		}
+		return chain;
+	}
+
+	/**
+	 * Drops the group and user buckets no other transfer is using.
+	 */
+	public synchronized void transferEnded(String user, String group) {
+		if (group != null) {
+			releaseBucket("group", group);
+		}
+		if (user != null) {
+			releaseBucket("user", user);
+		}
+	}
+
+	/**
+	 * @return the number of group and user buckets in use.
+	 */
+	public synchronized int getBucketCount() {
+		return _buckets.size();
+	}
+
+	private void addIfLimited(List<TokenBucket> chain, TokenBucket bucket) {
+		// buckets are kept even when unlimited so that a later configure() applies to them,
+		// a transfer which started unlimited stays so until it ends
+		if (!bucket.isUnlimited()) {
+			chain.add(bucket);
+		}
+	}
+
+	/**
+	 * Takes up to wanted tokens from every bucket in the chain.<br>
+	 * When a bucket is empty the calling thread is parked until it has refilled
+	 * a bit, or at most 100ms, and 0 is returned so that the caller can check for
+	 * aborts before asking again.
+	 * @return the number of bytes which may be transferred.
+	 */
+	public static long acquire(List<TokenBucket> chain, long wanted) {
+		long granted = wanted;
+		for (int i = 0; i < chain.size(); i++) {
+			TokenBucket bucket = chain.get(i);
+			long taken = bucket.take(granted);
+			if (taken < granted) {
+				for (int j = 0; j < i; j++) {
+					chain.get(j).giveBack(granted - taken);
+				}
+				granted = taken;
+			}
+			if (granted == 0) {
+				LockSupport.parkNanos(Math.max(1L, Math.min(MAX_PARK, bucket.nanosUntil(wanted))));
+				return 0;
+			}
+		}
+		return granted;
+	}
+
+	/**
+	 * Gives back tokens which were acquired but not transferred.
+	 */
+	public static void release(List<TokenBucket> chain, long unused) {
+		if (unused <= 0) {
+			return;
+		}
+		for (TokenBucket bucket : chain) {
+			bucket.giveBack(unused);
+		}
+	}
+
+	private static class SharedBucket {
+		private TokenBucket _bucket;
+
+		private int _transfers;
+
+		private SharedBucket(TokenBucket bucket) {
+			_bucket = bucket;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that transfers drawing from the same buckets share their rate.
+ */
+public class BandwidthShaperTest extends TestCase {
+
+	private static final long RATE = 4L * 1024 * 1024;
+
+	public BandwidthShaperTest(String fName) {
+		super(fName);
+	}
+
+	public void testUnlimited() {
+		BandwidthShaper shaper = new BandwidthShaper();
+		List<TokenBucket> chain = shaper.getChain("user", "group", 0);
+		assertTrue(chain.isEmpty());
+		assertEquals(65536L, BandwidthShaper.acquire(chain, 65536));
+	}
+
+	public void testChain() {
+		BandwidthShaper shaper = new BandwidthShaper();
+		HashMap<String, Long> rates = new HashMap<String, Long>();
+		rates.put("slave", RATE);
+		rates.put("user", RATE / 2);
+		rates.put("user.unlimited", 0L);
+		shaper.configure(rates);
+		assertEquals(2, shaper.getChain("user", "group", 0).size());
+		assertEquals(1, shaper.getChain("unlimited", "group", 0).size());
+		assertEquals(3, shaper.getChain("user", "group", 1000).size());
+		// every transfer of a user shares the same bucket
+		assertSame(shaper.getChain("user", "group", 0).get(1), shaper.getChain("user", "other", 0).get(1));
+	}
+
+	public void testIdleBucketsDropped() {
+		BandwidthShaper shaper = new BandwidthShaper();
+		HashMap<String, Long> rates = new HashMap<String, Long>();
+		rates.put("user", RATE);
+		shaper.configure(rates);
+		TokenBucket bucket = shaper.getChain("user", "group", 0).get(0);
+		assertSame(bucket, shaper.getChain("user", "group", 0).get(0));
+		assertEquals(2, shaper.getBucketCount());
+		shaper.transferEnded("user", "group");
+		assertEquals(2, shaper.getBucketCount());
+		shaper.transferEnded("user", "group");
+		assertEquals(0, shaper.getBucketCount());
+		assertNotSame(bucket, shaper.getChain("user", "group", 0).get(0));
+	}
+
+	public void testSharedRate() throws InterruptedException {
+		BandwidthShaper shaper = new BandwidthShaper();
+		HashMap<String, Long> rates = new HashMap<String, Long>();
+		rates.put("slave", RATE);
+		shaper.configure(rates);
+		final List<TokenBucket> first = shaper.getChain("a", "group", 0);
+		final List<TokenBucket> second = shaper.getChain("b", "group", 0);
+		final long[] transfered = new long[2];
+		final long end = System.currentTimeMillis() + 1000;
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int x = i;
+			threads[i] = new Thread() {
+				public void run() {
+					while (System.currentTimeMillis() < end) {
+						transfered[x] += BandwidthShaper.acquire(x == 0 ? first : second, 65536);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long total = transfered[0] + transfered[1];
+		// one second at the rate plus the initial burst of a quarter second
+		assertTrue("Transfered " + total, total <= RATE + RATE / 4 + 65536);
+		assertTrue("Transfered " + total, total >= RATE * 3 / 4);
+		assertTrue(transfered[0] > 0 && transfered[1] > 0);
+	}
+}
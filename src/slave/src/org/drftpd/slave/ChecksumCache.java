@@ -0,0 +1,206 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers checksums by path, a cached checksum is only used while the size and
+ * last modified time of the file are unchanged.<br>
+ * Entries are appended to a journal file as they are computed so that the cache
+ * survives restarts, the journal is rewritten on load once most of it is stale.
+ * @version $Id$
+ */
+public class ChecksumCache {
+	private static final Logger logger = Logger.getLogger(ChecksumCache.class);
+
+	private File _file;
+
+	private int _maxEntries;
+
+	private LinkedHashMap<String, CachedChecksum> _entries;
+
+	private DataOutputStream _journal;
+
+	/**
+	 * @param file journal file, null keeps the cache in memory only.
+	 * @param maxEntries least recently used entries are dropped past this size.
+	 */
+	public ChecksumCache(File file, int maxEntries) {
+		_file = file;
+		_maxEntries = maxEntries;
+		_entries = new LinkedHashMap<String, CachedChecksum>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, CachedChecksum> eldest) {
+				return size() > _maxEntries;
+			}
+		};
+		if (_file != null) {
+			load();
+		}
+	}
+
+	/**
+	 * @return the cached checksum, or null if unknown or the file changed since.
+	 */
+	public synchronized Long get(String path, long size, long lastModified) {
+		CachedChecksum entry = _entries.get(path);
+		if (entry == null || entry._size != size || entry._lastModified != lastModified) {
+			return null;
+		}
+		return entry._checksum;
+	}
+
+	public synchronized void put(String path, long size, long lastModified, long checksum) {
+		CachedChecksum entry = new CachedChecksum(size, lastModified, checksum);
+		CachedChecksum old = _entries.put(path, entry);
+		if (entry.equals(old) || _journal == null) {
+			return;
+		}
+		try {
+			write(_journal, path, entry);
+			_journal.flush();
+		} catch (IOException e) {
+			logger.warn("Unable to write to the checksum cache " + _file + ", keeping it in memory only", e);
+			closeJournal();
+		}
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	public synchronized void close() {
+		closeJournal();
+	}
+
+	private void load() {
+		int records = 0;
+		boolean truncated = false;
+		if (_file.exists()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+				while (true) {
+					// only an end of file between records is a clean end
+					in.mark(1);
+					if (in.read() < 0) {
+						break;
+					}
+					in.reset();
+					String path = in.readUTF();
+					_entries.put(path, new CachedChecksum(in.readLong(), in.readLong(), in.readLong()));
+					records++;
+				}
+			} catch (IOException e) {
+				// a record cut short by a crash, everything before it is fine but
+				// new records must not be appended after the broken one
+				truncated = true;
+				logger.warn("Checksum cache " + _file + " is truncated after " + records + " records");
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+		logger.info("Loaded " + _entries.size() + " cached checksums from " + _file);
+		try {
+			if (truncated || records > _entries.size() * 2 || records == 0) {
+				rewrite();
+			}
+			_journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_file, true)));
+		} catch (IOException e) {
+			logger.warn("Unable to open the checksum cache " + _file + ", keeping it in memory only", e);
+		}
+	}
+
+	private void rewrite() throws IOException {
+		File tmp = new File(_file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			for (Map.Entry<String, CachedChecksum> entry : _entries.entrySet()) {
+				write(out, entry.getKey(), entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(_file)) {
+			_file.delete();
+			if (!tmp.renameTo(_file)) {
+				throw new IOException("Unable to rename " + tmp + " to " + _file);
+			}
+		}
+	}
+
+	private void write(DataOutputStream out, String path, CachedChecksum entry) throws IOException {
+		out.writeUTF(path);
+		out.writeLong(entry._size);
+		out.writeLong(entry._lastModified);
+		out.writeLong(entry._checksum);
+	}
+
+	private void closeJournal() {
+		if (_journal != null) {
+			try {
+				_journal.close();
+			} catch (IOException e) {
+			}
+			_journal = null;
+		}
+	}
+
+	private static class CachedChecksum {
+		private long _size;
+
+		private long _lastModified;
+
+		private long _checksum;
+
+		private CachedChecksum(long size, long lastModified, long checksum) {
+			_size = size;
+			_lastModified = lastModified;
+			_checksum = checksum;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CachedChecksum)) {
+				return false;
+			}
+			CachedChecksum entry = (CachedChecksum) obj;
+			return _size == entry._size && _lastModified == entry._lastModified && _checksum == entry._checksum;
+		}
+
+		public int hashCode() {
+			return (int) (_size ^ _lastModified ^ _checksum);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that cached checksums survive a reopen and are dropped once the file changed.
+ */
+public class ChecksumCacheTest extends TestCase {
+
+	private File _file;
+
+	public ChecksumCacheTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_file = File.createTempFile("checksums", ".dat");
+		_file.delete();
+	}
+
+	protected void tearDown() {
+		_file.delete();
+	}
+
+	public void testReopen() {
+		ChecksumCache cache = new ChecksumCache(_file, 100);
+		cache.put("/dir/file1", 100L, 1000L, 1234L);
+		cache.put("/dir/file2", 200L, 2000L, 5678L);
+		cache.put("/dir/file1", 150L, 1500L, 4321L);
+		cache.close();
+
+		cache = new ChecksumCache(_file, 100);
+		assertEquals(2, cache.size());
+		assertEquals(Long.valueOf(4321L), cache.get("/dir/file1", 150L, 1500L));
+		assertEquals(Long.valueOf(5678L), cache.get("/dir/file2", 200L, 2000L));
+		cache.close();
+	}
+
+	public void testTruncatedRecord() throws IOException {
+		ChecksumCache cache = new ChecksumCache(_file, 100);
+		cache.put("/dir/file1", 100L, 1000L, 1234L);
+		cache.put("/dir/file2", 200L, 2000L, 5678L);
+		cache.close();
+
+		// cut the second record in half as a crash during the write would
+		RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+		try {
+			raf.setLength(raf.length() - 10);
+		} finally {
+			raf.close();
+		}
+
+		cache = new ChecksumCache(_file, 100);
+		assertEquals(1, cache.size());
+		cache.put("/dir/file3", 300L, 3000L, 9012L);
+		cache.close();
+
+		cache = new ChecksumCache(_file, 100);
+		assertEquals(2, cache.size());
+		assertEquals(Long.valueOf(1234L), cache.get("/dir/file1", 100L, 1000L));
+		assertEquals(Long.valueOf(9012L), cache.get("/dir/file3", 300L, 3000L));
+		cache.close();
+	}
+
+	public void testChangedFile() {
+		ChecksumCache cache = new ChecksumCache(null, 100);
+		cache.put("/file", 100L, 1000L, 1234L);
+		assertNull(cache.get("/file", 101L, 1000L));
+		assertNull(cache.get("/file", 100L, 1001L));
+		assertNull(cache.get("/other", 100L, 1000L));
+	}
+
+	public void testMaxEntries() {
+		ChecksumCache cache = new ChecksumCache(null, 10);
+		for (int i = 0; i < 20; i++) {
+			cache.put("/file" + i, i, i, i);
+		}
+		assertEquals(10, cache.size());
+		assertNull(cache.get("/file0", 0, 0));
+		assertEquals(Long.valueOf(19L), cache.get("/file19", 19, 19));
+	}
+}
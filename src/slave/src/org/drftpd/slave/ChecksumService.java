@@ -0,0 +1,199 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Computes CRC32 checksums of files on the slave.<br>
+ * Every root gets its own small pool of threads so that a busy disk doesn't hold
+ * back checksums on the other ones, files are read with large buffers and results
+ * are kept in a {@link ChecksumCache}. Simultaneous requests for the same file
+ * share one computation.
+ * @version $Id$
+ */
+public class ChecksumService {
+	private static final Logger logger = Logger.getLogger(ChecksumService.class);
+
+	private RootCollection _roots;
+
+	private ChecksumCache _cache;
+
+	private int _threadsPerRoot;
+
+	private int _bufferSize;
+
+	private ConcurrentHashMap<String, ExecutorService> _pools = new ConcurrentHashMap<String, ExecutorService>();
+
+	private ConcurrentHashMap<String, Future<Long>> _running = new ConcurrentHashMap<String, Future<Long>>();
+
+	private ThreadLocal<byte[]> _buffers = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[_bufferSize];
+		}
+	};
+
+	public ChecksumService(RootCollection roots, Properties p) {
+		_roots = roots;
+		_threadsPerRoot = Math.max(1, Integer.parseInt(p.getProperty("checksum.threads.per.root", "2").trim()));
+		_bufferSize = Math.max(4096, Integer.parseInt(p.getProperty("checksum.buffer", "1048576").trim()));
+		String cacheFile = p.getProperty("checksum.cache.file", "checksums.dat").trim();
+		int cacheSize = Integer.parseInt(p.getProperty("checksum.cache.size", "500000").trim());
+		_cache = new ChecksumCache(cacheFile.length() == 0 ? null : new File(cacheFile), cacheSize);
+	}
+
+	/**
+	 * @return the CRC32 of the file, from the cache if the file didn't change since it was computed.
+	 */
+	public long checksum(String path) throws IOException {
+		Root root = _roots.getRootForFile(path);
+		File file = root.getFile(path);
+		final long size = file.length();
+		final long lastModified = file.lastModified();
+		Long cached = _cache.get(path, size, lastModified);
+		if (cached != null) {
+			return cached;
+		}
+
+		FutureTask<Long> task = new FutureTask<Long>(new ChecksumTask(path, file, size, lastModified));
+		Future<Long> future = _running.putIfAbsent(path, task);
+		if (future == null) {
+			future = task;
+			try {
+				getPool(root).execute(task);
+			} catch (RuntimeException e) {
+				_running.remove(path, task);
+				throw e;
+			}
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while checksumming " + path);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Unable to checksum " + path, e.getCause());
+		}
+	}
+
+	/**
+	 * Caches a checksum computed while the file was transferred.
+	 */
+	public void cacheChecksum(String path, long checksum) {
+		try {
+			File file = _roots.getFile(path);
+			_cache.put(path, file.length(), file.lastModified(), checksum);
+		} catch (FileNotFoundException e) {
+			// deleted in the meantime
+		}
+	}
+
+	public ChecksumCache getCache() {
+		return _cache;
+	}
+
+	private ExecutorService getPool(Root root) {
+		ExecutorService pool = _pools.get(root.getPath());
+		if (pool == null) {
+			ExecutorService created = Executors.newFixedThreadPool(_threadsPerRoot, new ChecksumThreadFactory(root));
+			pool = _pools.putIfAbsent(root.getPath(), created);
+			if (pool == null) {
+				pool = created;
+			} else {
+				created.shutdown();
+			}
+		}
+		return pool;
+	}
+
+	private class ChecksumTask implements Callable<Long> {
+		private String _path;
+
+		private File _file;
+
+		private long _size;
+
+		private long _lastModified;
+
+		public ChecksumTask(String path, File file, long size, long lastModified) {
+			_path = path;
+			_file = file;
+			_size = size;
+			_lastModified = lastModified;
+		}
+
+		public Long call() throws IOException {
+			try {
+				logger.debug("Checksumming: " + _path);
+				CRC32 crc32 = new CRC32();
+				byte[] buf = _buffers.get();
+				FileInputStream in = new FileInputStream(_file);
+				try {
+					int count;
+					while ((count = in.read(buf)) != -1) {
+						crc32.update(buf, 0, count);
+					}
+				} finally {
+					in.close();
+				}
+				long checksum = crc32.getValue();
+				if (_file.length() == _size && _file.lastModified() == _lastModified) {
+					// not cached if the file was written to while it was read
+					_cache.put(_path, _size, _lastModified, checksum);
+				}
+				return checksum;
+			} finally {
+				_running.remove(_path);
+			}
+		}
+	}
+
+	private static class ChecksumThreadFactory implements ThreadFactory {
+		private String _root;
+
+		private AtomicInteger _count = new AtomicInteger();
+
+		public ChecksumThreadFactory(Root root) {
+			_root = root.getPath();
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("Checksum " + _root + " - " + _count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -32,11 +32,24 @@ public class DiskStatus implements Serializable {
 
 	private long _total;
 
+	private int _rootIndexSize;
+
+	private long _rootIndexHits;
+
+	private long _rootIndexMisses;
+
 	public DiskStatus(long free, long total) {
 		_free = free;
 		_total = total;
 	}
 
+	public DiskStatus(long free, long total, int rootIndexSize, long rootIndexHits, long rootIndexMisses) {
+		this(free, total);
+		_rootIndexSize = rootIndexSize;
+		_rootIndexHits = rootIndexHits;
+		_rootIndexMisses = rootIndexMisses;
+	}
+
 	public long getBytesAvailable() {
 		return _free;
 	}
@@ -45,9 +58,26 @@ public class DiskStatus implements Serializable {
 		return _total;
 	}
 
+	/**
+	 * @return the number of paths in the root index of the slave, 0 if it has none.
+	 */
+	public int getRootIndexSize() {
+		return _rootIndexSize;
+	}
+
+	public long getRootIndexHits() {
+		return _rootIndexHits;
+	}
+
+	public long getRootIndexMisses() {
+		return _rootIndexMisses;
+	}
+
 	public String toString() {
 		return getClass().getName() + "[free="
 				+ Bytes.formatBytes(getBytesAvailable()) + ",total="
-				+ Bytes.formatBytes(getBytesCapacity()) + "]";
+				+ Bytes.formatBytes(getBytesCapacity()) + ",rootIndex="
+				+ getRootIndexSize() + ",hits=" + getRootIndexHits()
+				+ ",misses=" + getRootIndexMisses() + "]";
 	}
 }
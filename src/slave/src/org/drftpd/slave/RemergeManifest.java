@@ -0,0 +1,182 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hashes of the directory listings sent during the last full remerge.<br>
+ * The master remembers the generation of the last manifest whose remerge it
+ * finished processing. When it asks for the same generation again, directories
+ * whose listing still has the same hash don't have to be sent. A new manifest is
+ * built during every remerge of the whole tree and saved once it is done.
+ * @version $Id$
+ */
+public class RemergeManifest {
+	private static final Logger logger = Logger.getLogger(RemergeManifest.class);
+
+	private static final int VERSION = 1;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private File _file;
+
+	private long _generation;
+
+	private Map<String, Long> _previous;
+
+	private ConcurrentHashMap<String, Long> _current = new ConcurrentHashMap<String, Long>();
+
+	private RemergeManifest(File file, long generation, Map<String, Long> previous) {
+		_file = file;
+		_generation = generation;
+		_previous = previous;
+	}
+
+	/**
+	 * Loads the saved manifest if it is the one the master acknowledged.
+	 * @param acknowledged generation acknowledged by the master, 0 for none.
+	 * @param generation generation the new manifest will be saved as.
+	 */
+	public static RemergeManifest load(File file, long acknowledged, long generation) {
+		Map<String, Long> previous = new ConcurrentHashMap<String, Long>();
+		if (acknowledged != 0L && file.exists()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				if (in.readInt() != VERSION) {
+					throw new IOException("Unknown manifest version");
+				}
+				long saved = in.readLong();
+				if (saved == acknowledged) {
+					int size = in.readInt();
+					for (int i = 0; i < size; i++) {
+						previous.put(in.readUTF(), in.readLong());
+					}
+					logger.info("Loaded remerge manifest " + saved + " with " + size + " directories");
+				} else {
+					logger.info("Remerge manifest " + saved + " isn't the one known by the master ("
+							+ acknowledged + "), sending every directory");
+				}
+			} catch (IOException e) {
+				logger.warn("Unable to read the remerge manifest " + file + ", sending every directory", e);
+				previous.clear();
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+		return new RemergeManifest(file, generation, previous);
+	}
+
+	/**
+	 * Records the listing of a directory in the new manifest.<br>
+	 * A listing that isn't going to be sent is only recorded when the master
+	 * already has it, so the manifest never claims more than the master knows.
+	 * @param send whether the listing would be sent without the manifest.
+	 * @return true if the listing has to be sent to the master.
+	 */
+	public boolean update(String path, List<LightRemoteInode> files, long lastModified, boolean send) {
+		long hash = hash(files, lastModified);
+		Long previous = _previous.get(path);
+		boolean unchanged = previous != null && previous == hash;
+		if (send || unchanged) {
+			_current.put(path, hash);
+		}
+		return send && !unchanged;
+	}
+
+	/**
+	 * Writes the new manifest, replacing the previous one.
+	 */
+	public void save() {
+		if (_generation == 0L) {
+			return;
+		}
+		File tmp = new File(_file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(VERSION);
+				out.writeLong(_generation);
+				out.writeInt(_current.size());
+				for (Map.Entry<String, Long> entry : _current.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeLong(entry.getValue());
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(_file)) {
+				_file.delete();
+				if (!tmp.renameTo(_file)) {
+					throw new IOException("Unable to rename " + tmp + " to " + _file);
+				}
+			}
+			logger.info("Saved remerge manifest " + _generation + " with " + _current.size() + " directories");
+		} catch (IOException e) {
+			logger.warn("Unable to save the remerge manifest " + _file, e);
+			_file.delete();
+		}
+	}
+
+	public int getPreviousSize() {
+		return _previous.size();
+	}
+
+	/**
+	 * FNV-1a over the names, types, sizes and dates of the listing.
+	 */
+	protected static long hash(List<LightRemoteInode> files, long lastModified) {
+		long hash = mix(FNV_OFFSET, lastModified);
+		for (LightRemoteInode file : files) {
+			String name = file.getName();
+			for (int i = 0; i < name.length(); i++) {
+				hash = (hash ^ name.charAt(i)) * FNV_PRIME;
+			}
+			hash = (hash ^ (file.isDirectory() ? 1 : 2)) * FNV_PRIME;
+			hash = mix(hash, file.length());
+			hash = mix(hash, file.lastModified());
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, long value) {
+		for (int i = 0; i < 8; i++) {
+			hash = (hash ^ ((value >>> (i * 8)) & 0xff)) * FNV_PRIME;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that unchanged directories are only skipped against the acknowledged manifest.
+ */
+public class RemergeManifestTest extends TestCase {
+
+	private File _file;
+
+	public RemergeManifestTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_file = File.createTempFile("remerge", ".manifest");
+		_file.delete();
+	}
+
+	protected void tearDown() {
+		_file.delete();
+	}
+
+	private List<LightRemoteInode> listing(long size) {
+		List<LightRemoteInode> files = new ArrayList<LightRemoteInode>();
+		files.add(new LightRemoteInode("file1", 1000L, size));
+		files.add(new LightRemoteInode("file2", 2000L, 200L));
+		return files;
+	}
+
+	public void testIncremental() {
+		RemergeManifest manifest = RemergeManifest.load(_file, 0L, 10L);
+		assertTrue(manifest.update("//dir1", listing(100L), 500L, true));
+		assertTrue(manifest.update("//dir2", listing(100L), 500L, true));
+		manifest.save();
+
+		manifest = RemergeManifest.load(_file, 10L, 11L);
+		assertEquals(2, manifest.getPreviousSize());
+		assertFalse(manifest.update("//dir1", listing(100L), 500L, true));
+		assertTrue(manifest.update("//dir2", listing(150L), 500L, true));
+		assertTrue(manifest.update("//dir3", listing(100L), 500L, true));
+		manifest.save();
+
+		// the master never merged generation 11
+		manifest = RemergeManifest.load(_file, 10L, 12L);
+		assertEquals(0, manifest.getPreviousSize());
+		assertTrue(manifest.update("//dir1", listing(100L), 500L, true));
+	}
+
+	public void testPartialSkipIsNotRecorded() {
+		RemergeManifest manifest = RemergeManifest.load(_file, 0L, 10L);
+		assertFalse(manifest.update("//dir1", listing(100L), 500L, false));
+		manifest.save();
+
+		manifest = RemergeManifest.load(_file, 10L, 11L);
+		assertEquals(0, manifest.getPreviousSize());
+		assertTrue(manifest.update("//dir1", listing(100L), 500L, true));
+	}
+}
@@ -25,14 +25,18 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -50,12 +54,23 @@ public class RootCollection {
 	private ArrayList<Root> _roots = null;
 	private Slave _slave = null;
 	private ThreadPoolExecutor _pool;
+	private RootIndex _index = null;
+	private boolean _verifyIndex = true;
 
 	public RootCollection(Slave slave, Collection<Root> roots) throws IOException {
+		this(slave, roots, new Properties());
+	}
+
+	public RootCollection(Slave slave, Collection<Root> roots, Properties cfg) throws IOException {
 		/** sanity checks * */
 		validateRoots(roots);
 		_roots = new ArrayList<Root>(roots);
 		_slave = slave;
+		// with a single root a lookup is a single stat anyway
+		if (_roots.size() > 1 && cfg.getProperty("root.index", "true").trim().equalsIgnoreCase("true")) {
+			_index = new RootIndex(Integer.parseInt(cfg.getProperty("root.index.size", "1000000").trim()));
+			_verifyIndex = cfg.getProperty("root.index.verify", "true").trim().equalsIgnoreCase("true");
+		}
 		if (_slave.concurrentRootIteration()) {
 			int numThreads = Math.min(_roots.size(), Runtime.getRuntime().availableProcessors());
 			_pool = new ThreadPoolExecutor(numThreads, numThreads, 300, TimeUnit.SECONDS, 
@@ -72,14 +87,42 @@ public class RootCollection {
 	 */
 	public TreeSet<String> getLocalInodes(String path) {
 		TreeSet<String> files = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
-		for (Root root : _roots) {
-			String[] fileArray = root.getFile(path).list();
+		String[][] rootFiles = new String[_roots.size()][];
+		for (int i = 0; i < _roots.size(); i++) {
+			String[] fileArray = _roots.get(i).getFile(path).list();
 			if (fileArray == null) continue;
 			files.addAll(Arrays.asList(fileArray));
+			rootFiles[i] = fileArray;
 		}
+		indexListing(path, rootFiles);
 		return files;
 	}
 
+	/**
+	 * Every root has been listed, so the roots found for each name are all of them.
+	 */
+	private void indexListing(String path, String[][] rootFiles) {
+		if (_index == null) {
+			return;
+		}
+		HashMap<String, ArrayList<Root>> found = new HashMap<String, ArrayList<Root>>();
+		for (int i = 0; i < rootFiles.length; i++) {
+			if (rootFiles[i] == null) continue;
+			for (String name : rootFiles[i]) {
+				ArrayList<Root> roots = found.get(name);
+				if (roots == null) {
+					roots = new ArrayList<Root>(1);
+					found.put(name, roots);
+				}
+				roots.add(_roots.get(i));
+			}
+		}
+		for (Map.Entry<String, ArrayList<Root>> entry : found.entrySet()) {
+			ArrayList<Root> roots = entry.getValue();
+			_index.put(path + "/" + entry.getKey(), roots.toArray(new Root[roots.size()]));
+		}
+	}
+
 	/**
 	 * Returns a sorted (alphabetical) list of inodes in the path given along with
 	 * a file object pointing to the file and the most recent last modified for the
@@ -103,6 +146,17 @@ public class RootCollection {
 				// Loop around and wait again
 			}
 		}
+		if (_index != null) {
+			String[][] rootNames = new String[_roots.size()][];
+			for (int i = 0; i < _roots.size(); i++) {
+				if (rootFiles[i] == null) continue;
+				rootNames[i] = new String[rootFiles[i].length];
+				for (int j = 0; j < rootFiles[i].length; j++) {
+					rootNames[i][j] = rootFiles[i][j].getName();
+				}
+			}
+			indexListing(path, rootNames);
+		}
 		long lastModified = Long.MIN_VALUE;
 		for (int i = 0; i < _roots.size(); i++) {
 			if (rootFiles[i] != null) {
@@ -121,6 +175,46 @@ public class RootCollection {
 		return new RootPathContents(lastModified, files);
 	}
 
+	/**
+	 * Same as {@link #getLocalInodesConcurrent(String)} but lists the roots in
+	 * the calling thread, holding the permit of each root while it is listed.
+	 * This keeps the number of threads reading a root bounded when many
+	 * directories are listed at once.
+	 * @param rootPermits one semaphore per root, in the order of {@link #getRootList()}
+	 */
+	public RootPathContents getLocalInodes(String path, Semaphore[] rootPermits) {
+		File[][] rootFiles = new File[_roots.size()][];
+		long lastModified = Long.MIN_VALUE;
+		for (int i = 0; i < _roots.size(); i++) {
+			rootPermits[i].acquireUninterruptibly();
+			try {
+				PhysicalFile dir = _roots.get(i).getFile(path);
+				rootFiles[i] = dir.listFiles();
+				long rootLastModified = dir.lastModified();
+				if (rootLastModified > lastModified) {
+					lastModified = rootLastModified;
+				}
+			} finally {
+				rootPermits[i].release();
+			}
+		}
+		TreeMap<String,File> files = new TreeMap<String,File>(String.CASE_INSENSITIVE_ORDER);
+		String[][] rootNames = new String[_roots.size()][];
+		for (int i = 0; i < _roots.size(); i++) {
+			if (rootFiles[i] == null) continue;
+			rootNames[i] = new String[rootFiles[i].length];
+			for (int j = 0; j < rootFiles[i].length; j++) {
+				String name = rootFiles[i][j].getName();
+				rootNames[i][j] = name;
+				if (!files.containsKey(name)) {
+					files.put(name, rootFiles[i][j]);
+				}
+			}
+		}
+		indexListing(path, rootNames);
+		return new RootPathContents(lastModified, files);
+	}
+
 	public long getLastModifiedForPath(String path) {
 		long lastModified = Long.MIN_VALUE;
 		for (Root root : _roots) {
@@ -161,6 +255,14 @@ public class RootCollection {
 	 * @throws IOException
 	 */
 	public File getARootFileDir(String dir) throws IOException {
+		return getARootForDir(dir).getFile(dir);
+	}
+
+	/**
+	 * @see #getARootFileDir(String)
+	 * @return the root the directory was created in.
+	 */
+	public Root getARootForDir(String dir) throws IOException {
 		Root bestRoot = _slave.getDiskSelection().getBestRoot(dir);
 
 		// to avoid this error SlaveSelectionManager MUST work
@@ -172,8 +274,11 @@ public class RootCollection {
 
 		PhysicalFile file = bestRoot.getFile(dir);
 		file.mkdirs2();
+		if (_index != null) {
+			_index.add(dir, bestRoot, this, false);
+		}
 
-		return file;
+		return bestRoot;
 	}
 
 	// Get root which has most of the tree structure that we have.
@@ -193,37 +298,89 @@ public class RootCollection {
 
 	public List<Root> getMultipleRootsForFile(String path)
 			throws FileNotFoundException {
-		ArrayList<Root> roots = new ArrayList<Root>();
+		if (_index != null) {
+			Root[] indexed = _index.get(path);
+			if (indexed != null) {
+				boolean valid = true;
+				if (_verifyIndex) {
+					for (Root root : indexed) {
+						if (!root.getFile(path).exists()) {
+							valid = false;
+							break;
+						}
+					}
+				}
+				if (valid) {
+					return new ArrayList<Root>(Arrays.asList(indexed));
+				}
+			}
+		}
+		return scanRoots(path);
+	}
 
-		
-		for (Root r : _roots) {
-			if (r.getFile(path).exists()) {
-				roots.add(r);
+	public Root getRootForFile(String path) throws FileNotFoundException {
+		if (_index != null) {
+			Root[] indexed = _index.get(path);
+			if (indexed != null && (!_verifyIndex || indexed[0].getFile(path).exists())) {
+				return indexed[0];
 			}
 		}
-		for (Root root : _roots) {
+		return scanRoots(path).get(0);
+	}
 
+	/**
+	 * Looks for the path on every root and updates the index with the result.
+	 */
+	private List<Root> scanRoots(String path) throws FileNotFoundException {
+		ArrayList<Root> roots = new ArrayList<Root>();
+		for (Root root : _roots) {
 			if (root.getFile(path).exists()) {
 				roots.add(root);
 			}
 		}
 
 		if (roots.size() == 0) {
-			throw new FileNotFoundException("Unable to find suitable root: "
-					+ path);
+			if (_index != null) {
+				_index.invalidate(path);
+			}
+			throw new FileNotFoundException(path + " wasn't found in any root");
+		}
+		if (_index != null) {
+			_index.put(path, roots.toArray(new Root[roots.size()]));
 		}
 
 		return roots;
 	}
 
-	public Root getRootForFile(String path) throws FileNotFoundException {
-		for (Root root : _roots) {
-			File file = new File(root.getPath() + PhysicalFile.separatorChar + path);
-			if (file.exists()) {
-				return root;
-			}
+	/**
+	 * Records a file which was just created on the given root.
+	 */
+	public void indexCreated(String path, Root root) {
+		if (_index != null) {
+			_index.add(path, root, this, true);
+		}
+	}
+
+	/**
+	 * Drops a deleted path and everything below it from the index.
+	 */
+	public void indexDeleted(String path) {
+		if (_index != null) {
+			_index.remove(path);
+		}
+	}
+
+	public void indexRenamed(String from, String to) {
+		if (_index != null) {
+			_index.rename(from, to);
 		}
-		throw new FileNotFoundException(path + " wasn't found in any root");
+	}
+
+	/**
+	 * @return the path index, null if disabled.
+	 */
+	public RootIndex getIndex() {
+		return _index;
 	}
 
 	public long getTotalDiskSpaceAvailable() {
@@ -0,0 +1,158 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares root lookups with and without the path index on a slave with many roots
+ * and checks that the index follows creates, deletes and renames.<br>
+ * The number of roots and files can be changed by simple code changes.
+ */
+public class RootCollectionStressTest extends TestCase {
+
+	private static final int ROOTS = 24;
+
+	private static final int FILES = 2000;
+
+	private static final int LOOKUPS = 100000;
+
+	private File _tmp;
+
+	private List<Root> _roots;
+
+	public RootCollectionStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_tmp = File.createTempFile("roots", "");
+		_tmp.delete();
+		_roots = new ArrayList<Root>();
+		for (int i = 0; i < ROOTS; i++) {
+			File root = new File(_tmp, "root" + i);
+			new File(root, "dir").mkdirs();
+			_roots.add(new Root(root.getPath()));
+		}
+		for (int i = 0; i < FILES; i++) {
+			// files end up on the last roots, the worst case for the linear scan
+			new File(_roots.get(ROOTS - 1 - (i % 4)).getFile("/dir"), "file" + i).createNewFile();
+		}
+	}
+
+	protected void tearDown() {
+		recursiveDelete(_tmp);
+	}
+
+	private RootCollection createCollection(boolean index, boolean verify) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("root.index", String.valueOf(index));
+		p.setProperty("root.index.verify", String.valueOf(verify));
+		return new RootCollection(new Slave(), _roots, p);
+	}
+
+	public void testIndexMaintenance() throws IOException {
+		RootCollection roots = createCollection(true, false);
+		assertEquals(FILES, roots.getLocalInodes("/dir").size());
+		assertEquals(FILES, roots.getIndex().size());
+		assertSame(_roots.get(ROOTS - 1), roots.getRootForFile("/dir/file0"));
+		assertEquals(ROOTS, roots.getMultipleRootsForFile("/dir").size());
+
+		// deleted files are forgotten and looked up on disk again
+		new File(_roots.get(ROOTS - 1).getFile("/dir"), "file0").delete();
+		roots.indexDeleted("/dir/file0");
+		try {
+			roots.getRootForFile("/dir/file0");
+			fail("Deleted file was still found");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+
+		// renamed paths keep their roots
+		File from = _roots.get(ROOTS - 2).getFile("/dir/file1");
+		assertTrue(from.renameTo(_roots.get(ROOTS - 2).getFile("/dir/renamed")));
+		roots.indexRenamed("/dir/file1", "/dir/renamed");
+		assertSame(_roots.get(ROOTS - 2), roots.getRootForFile("/dir/renamed"));
+
+		// a new file is indexed on its root only
+		new File(_roots.get(0).getFile("/dir"), "new").createNewFile();
+		roots.indexCreated("/dir/new", _roots.get(0));
+		assertEquals(1, roots.getMultipleRootsForFile("/dir/new").size());
+	}
+
+	public void testStaleEntry() throws IOException {
+		RootCollection roots = createCollection(true, true);
+		roots.getLocalInodes("/dir");
+		// deleted behind the slave's back, verification notices it
+		new File(_roots.get(ROOTS - 1).getFile("/dir"), "file0").delete();
+		try {
+			roots.getRootForFile("/dir/file0");
+			fail("Deleted file was still found");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+	}
+
+	public void testPermitListing() throws IOException {
+		RootCollection roots = createCollection(true, false);
+		Semaphore[] permits = new Semaphore[ROOTS];
+		for (int i = 0; i < ROOTS; i++) {
+			permits[i] = new Semaphore(1);
+		}
+		RootPathContents contents = roots.getLocalInodes("/dir", permits);
+		assertEquals(FILES, contents.getInodes().size());
+		assertEquals(roots.getLastModifiedForPath("/dir"), contents.getLastModified());
+		assertEquals(FILES, roots.getIndex().size());
+		for (Semaphore permit : permits) {
+			assertEquals(1, permit.availablePermits());
+		}
+	}
+
+	public void testLookupThroughput() throws IOException {
+		benchmark("scan", createCollection(false, true));
+		benchmark("index+verify", createCollection(true, true));
+		benchmark("index", createCollection(true, false));
+	}
+
+	private void benchmark(String name, RootCollection roots) throws FileNotFoundException {
+		roots.getLocalInodes("/dir");
+		long start = System.nanoTime();
+		for (int i = 0; i < LOOKUPS; i++) {
+			assertNotNull(roots.getRootForFile("/dir/file" + (i % FILES)));
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(name + ": " + (LOOKUPS * 1000000000L / Math.max(elapsed, 1)) + " lookups/s over "
+				+ ROOTS + " roots");
+	}
+
+	private void recursiveDelete(File file) {
+		if (file.isDirectory()) {
+			for (File child : file.listFiles()) {
+				recursiveDelete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which roots hold a path so that lookups don't have to stat every root.<br>
+ * Entries are added when directories are listed during remerge and when files are
+ * created, they are dropped on delete and moved on rename. Paths which are not in
+ * the index are looked up on disk as before. The index stops growing once it
+ * holds maxEntries paths.
+ * @version $Id$
+ */
+public class RootIndex {
+
+	private ConcurrentSkipListMap<String, Root[]> _index = new ConcurrentSkipListMap<String, Root[]>();
+
+	private int _maxEntries;
+
+	private AtomicLong _hits = new AtomicLong();
+
+	private AtomicLong _misses = new AtomicLong();
+
+	public RootIndex(int maxEntries) {
+		_maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return the roots holding the path, in root order, or null if the path isn't indexed.
+	 */
+	public Root[] get(String path) {
+		Root[] roots = _index.get(normalize(path));
+		if (roots == null) {
+			_misses.incrementAndGet();
+		} else {
+			_hits.incrementAndGet();
+		}
+		return roots;
+	}
+
+	public void put(String path, Root[] roots) {
+		path = normalize(path);
+		if (_index.size() < _maxEntries || _index.containsKey(path)) {
+			_index.put(path, roots);
+		}
+	}
+
+	/**
+	 * Records that the path and its parent directories exist on the given root.<br>
+	 * Paths which are not indexed yet are only added if isNew is set, the path might
+	 * exist on other roots as well otherwise.
+	 */
+	public void add(String path, Root root, RootCollection order, boolean isNew) {
+		path = normalize(path);
+		merge(path, root, order, isNew);
+		int slash = path.lastIndexOf('/');
+		while (slash > 0) {
+			path = path.substring(0, slash);
+			merge(path, root, order, false);
+			slash = path.lastIndexOf('/');
+		}
+	}
+
+	private void merge(String path, Root root, RootCollection order, boolean isNew) {
+		while (true) {
+			Root[] roots = _index.get(path);
+			if (roots == null) {
+				if (!isNew) {
+					return;
+				}
+				put(path, new Root[] { root });
+				return;
+			}
+			if (contains(roots, root)) {
+				return;
+			}
+			ArrayList<Root> merged = new ArrayList<Root>(roots.length + 1);
+			for (Root r : order.getRootList()) {
+				if (r == root || contains(roots, r)) {
+					merged.add(r);
+				}
+			}
+			if (_index.replace(path, roots, merged.toArray(new Root[merged.size()]))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Drops only the entry of the path, used when the entry turned out to be wrong.
+	 */
+	public void invalidate(String path) {
+		_index.remove(normalize(path));
+	}
+
+	/**
+	 * Drops the path, everything below it and its parent directories.
+	 */
+	public void remove(String path) {
+		path = normalize(path);
+		_index.remove(path);
+		getChildren(path).clear();
+		removeParents(path);
+	}
+
+	/**
+	 * Moves the entries of the path and everything below it to the new path.
+	 */
+	public void rename(String from, String to) {
+		from = normalize(from);
+		to = normalize(to);
+		Root[] roots = _index.remove(from);
+		if (roots != null) {
+			put(to, roots);
+		}
+		ConcurrentNavigableMap<String, Root[]> children = getChildren(from);
+		for (Map.Entry<String, Root[]> entry : children.entrySet()) {
+			put(to + entry.getKey().substring(from.length()), entry.getValue());
+		}
+		children.clear();
+		removeParents(from);
+		removeParents(to);
+	}
+
+	public void clear() {
+		_index.clear();
+	}
+
+	public int size() {
+		return _index.size();
+	}
+
+	public long getHits() {
+		return _hits.get();
+	}
+
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	/**
+	 * Remerge builds paths like //dir/file, transfers use /dir/file.
+	 */
+	private static String normalize(String path) {
+		if (path.indexOf("//") == -1 && !(path.length() > 1 && path.endsWith("/"))) {
+			return path;
+		}
+		StringBuilder normalized = new StringBuilder(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c != '/' || normalized.length() == 0 || normalized.charAt(normalized.length() - 1) != '/') {
+				normalized.append(c);
+			}
+		}
+		if (normalized.length() > 1 && normalized.charAt(normalized.length() - 1) == '/') {
+			normalized.setLength(normalized.length() - 1);
+		}
+		return normalized.toString();
+	}
+
+	private ConcurrentNavigableMap<String, Root[]> getChildren(String path) {
+		// '0' is the character right after '/', so this is every key starting with path + "/"
+		return _index.subMap(path + "/", true, path + "0", false);
+	}
+
+	private void removeParents(String path) {
+		int slash = path.lastIndexOf('/');
+		while (slash > 0) {
+			path = path.substring(0, slash);
+			_index.remove(path);
+			slash = path.lastIndexOf('/');
+		}
+	}
+
+	private static boolean contains(Root[] roots, Root root) {
+		for (Root r : roots) {
+			if (r == root) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -36,8 +36,13 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.Set;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
@@ -51,6 +56,9 @@ import org.drftpd.exceptions.SSLUnavailableException;
 import org.drftpd.io.PermissionDeniedException;
 import org.drftpd.io.PhysicalFile;
 import org.drftpd.master.QueuedOperation;
+import org.drftpd.protocol.CompactObjectInputStream;
+import org.drftpd.protocol.CompactObjectOutputStream;
+import org.drftpd.protocol.HandshakeWrapper;
 import org.drftpd.protocol.slave.SlaveProtocolCentral;
 import org.drftpd.slave.async.AsyncCommandArgument;
 import org.drftpd.slave.async.AsyncResponse;
@@ -100,6 +108,12 @@ public class Slave {
 
 	private boolean _uploadChecksums;
 
+	private boolean _zeroCopy;
+
+	private BandwidthShaper _bandwidthShaper = new BandwidthShaper();
+
+	private ChecksumService _checksumService;
+
 	private PortRange _portRange;
 
 	private Set<QueuedOperation> _renameQueue = null;
@@ -116,10 +130,22 @@ public class Slave {
 
 	private boolean _threadedRemerge;
 
+	private File _remergeManifestFile;
+
+	private int _remergeThreads;
+
+	private int _remergeThreadsPerRoot;
+
+	private long _remergeProgressInterval;
+
 	private boolean _concurrentRootIteration;
 	
 	private String _bindIP = null;
 
+	private String _protocolMode;
+
+	private ThreadPoolExecutor _commandPool;
+
 	protected Slave() {
 	}
 
@@ -219,9 +245,14 @@ public class Slave {
 				throw new SSLUnavailableException("Handshake failure, maybe master isn't SSL ready or SSL is disabled.", e);
 			}
 		}
-		_sout = new ObjectOutputStream(new BufferedOutputStream(_s.getOutputStream()));
+		_sout = new CompactObjectOutputStream(new BufferedOutputStream(_s.getOutputStream()));
 		_sout.flush();
-		_sin = new ObjectInputStream(new BufferedInputStream(_s.getInputStream()));
+		_sin = new CompactObjectInputStream(new BufferedInputStream(_s.getInputStream()));
+		_protocolMode = p.getProperty("slave.protocol", HandshakeWrapper.PROTOCOL_COMPACT).trim();
+		_commandPool = new ThreadPoolExecutor(
+				Integer.parseInt(p.getProperty("slave.command.threads.min", "8")),
+				Integer.parseInt(p.getProperty("slave.command.threads.max", "1024")),
+				60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new CommandThreadFactory());
 
 		_central = new SlaveProtocolCentral(this);
 		
@@ -231,10 +262,12 @@ public class Slave {
 
 		_uploadChecksums = p.getProperty("enableuploadchecksums", "true").equals("true");
 		_downloadChecksums = p.getProperty("enabledownloadchecksums", "true").equals("true");
+		_zeroCopy = p.getProperty("transfer.zerocopy", "true").equals("true");
 		_bufferSize = Integer.parseInt(p.getProperty("bufferSize", "0"));
 
 		_concurrentRootIteration = p.getProperty("concurrent.root.iteration", "false").equalsIgnoreCase("true");
 		_roots = getDefaultRootBasket(p);
+		_checksumService = new ChecksumService(_roots, p);
 		loadDiskSelection(p);
 
 		_transfers = new HashMap<TransferIndex, Transfer>();
@@ -249,6 +282,11 @@ public class Slave {
 
 		_ignorePartialRemerge = p.getProperty("ignore.partialremerge", "false").equalsIgnoreCase("true");
 		_threadedRemerge = p.getProperty("threadedremerge", "false").equalsIgnoreCase("true");
+		String manifest = p.getProperty("remerge.manifest.file", "remerge.manifest").trim();
+		_remergeManifestFile = manifest.length() == 0 ? null : new File(manifest);
+		_remergeThreads = Math.max(1, Integer.parseInt(p.getProperty("remerge.threads", "10").trim()));
+		_remergeThreadsPerRoot = Math.max(1, Integer.parseInt(p.getProperty("remerge.threads.per.root", "4").trim()));
+		_remergeProgressInterval = Long.parseLong(p.getProperty("remerge.progress.interval", "60").trim()) * 1000L;
 	}
 	
 	private void loadDiskSelection(Properties cfg) {
@@ -279,7 +317,7 @@ public class Slave {
 			roots.add(new Root(rootString));
 		}
 
-		return new RootCollection(this, roots);
+		return new RootCollection(this, roots, cfg);
 	}
 
 	public static void boot() throws Exception {
@@ -376,26 +414,11 @@ public class Slave {
 	}
 
 	public long checkSum(String path) throws IOException {
-		logger.debug("Checksumming: " + path);
-
-		CheckedInputStream in = null;
-
-		try {
-			CRC32 crc32 = new CRC32();
-			in = new CheckedInputStream(new FileInputStream(_roots
-					.getFile(path)), crc32);
-
-			byte[] buf = new byte[4096];
-
-			while (in.read(buf) != -1) {
-			}
+		return _checksumService.checksum(path);
+	}
 
-			return crc32.getValue();
-		} finally {
-			if (in != null) {
-				in.close();
-			}
-		}
+	public ChecksumService getChecksumService() {
+		return _checksumService;
 	}
 
 	public void delete(String path) throws IOException {
@@ -450,12 +473,27 @@ public class Slave {
 				}
 			}
 		}
+		_roots.indexDeleted(path);
 	}
 
 	public int getBufferSize() {
 		return _bufferSize;
 	}
 
+	/**
+	 * @return true if plain transfers should use channels, see {@link Transfer}
+	 */
+	public boolean getZeroCopy() {
+		return _zeroCopy;
+	}
+
+	/**
+	 * @return the shaper all transfers draw their bandwidth from, configured by the master.
+	 */
+	public BandwidthShaper getBandwidthShaper() {
+		return _bandwidthShaper;
+	}
+
 	public boolean getDownloadChecksums() {
 		return _downloadChecksums;
 	}
@@ -465,7 +503,12 @@ public class Slave {
 	}
 
 	public DiskStatus getDiskStatus() {
-		return new DiskStatus(_roots.getTotalDiskSpaceAvailable(), _roots.getTotalDiskSpaceCapacity());
+		RootIndex index = _roots.getIndex();
+		if (index == null) {
+			return new DiskStatus(_roots.getTotalDiskSpaceAvailable(), _roots.getTotalDiskSpaceCapacity());
+		}
+		return new DiskStatus(_roots.getTotalDiskSpaceAvailable(), _roots.getTotalDiskSpaceCapacity(),
+				index.size(), index.getHits(), index.getMisses());
 	}
 
 	public Transfer getTransfer(TransferIndex index) {
@@ -519,16 +562,37 @@ public class Slave {
 				}
 
 				public void run() {
+					String name = Thread.currentThread().getName();
+					Thread.currentThread().setName(name + " - " + _command.getClass());
 					try {
 						sendResponse(handleCommand(_command));
 					} catch (Throwable e) {
 						sendResponse(new AsyncResponseException(_command.getIndex(), e));
+					} finally {
+						Thread.currentThread().setName(name);
 					}
 				}
 			}
-			Thread t = new Thread(new AsyncCommandHandler(ac));
-			t.setName("AsyncCommandHandler - " + ac.getClass());
-			t.start();
+			try {
+				_commandPool.execute(new AsyncCommandHandler(ac));
+			} catch (RejectedExecutionException e) {
+				logger.error("All " + _commandPool.getMaximumPoolSize() + " command threads are busy, rejecting " + ac);
+				sendResponse(new AsyncResponseException(ac.getIndex(), e));
+			}
+		}
+	}
+
+	/**
+	 * Command handler threads are reused, long running commands like transfers
+	 * keep theirs until they are done.
+	 */
+	private static class CommandThreadFactory implements ThreadFactory {
+		private AtomicInteger _count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("AsyncCommandHandler-" + _count.incrementAndGet());
+			return t;
 		}
 	}
 
@@ -585,6 +649,7 @@ public class Slave {
 				throw new PermissionDeniedException("renameTo(" + fromfile + ", " + tofile + ") failed");
 			}
 		}
+		_roots.indexRenamed(from, toDirPath + "/" + toName);
 	}
 
 	public synchronized void sendResponse(AsyncResponse response) {
@@ -665,6 +730,13 @@ public class Slave {
 		return _sout;
 	}
 	
+	/**
+	 * @return the protocol mode requested during the handshake, see {@link HandshakeWrapper}.
+	 */
+	public String getProtocolMode() {
+		return _protocolMode;
+	}
+
 	public SlaveProtocolCentral getProtocolCentral() {
 		return _central;
 	}
@@ -677,6 +749,28 @@ public class Slave {
 		return _threadedRemerge;
 	}
 
+	/**
+	 * @return the file holding the manifest of the last full remerge, null if disabled.
+	 */
+	public File getRemergeManifestFile() {
+		return _remergeManifestFile;
+	}
+
+	public int getRemergeThreads() {
+		return _remergeThreads;
+	}
+
+	public int getRemergeThreadsPerRoot() {
+		return _remergeThreadsPerRoot;
+	}
+
+	/**
+	 * @return milliseconds between remerge progress reports, 0 or less to disable them.
+	 */
+	public long getRemergeProgressInterval() {
+		return _remergeProgressInterval;
+	}
+
 	public boolean concurrentRootIteration() {
 		return _concurrentRootIteration;
 	}
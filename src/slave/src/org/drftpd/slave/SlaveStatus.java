@@ -88,6 +88,10 @@ public class SlaveStatus {
 		return _diskStatus.getBytesCapacity();
 	}
 
+	public DiskStatus getDiskStatus() {
+		return _diskStatus;
+	}
+
 	public long getDiskSpaceUsed() {
 		return getDiskSpaceCapacity() - getDiskSpaceAvailable();
 	}
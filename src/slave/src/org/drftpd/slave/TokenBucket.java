@@ -0,0 +1,116 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+/**
+ * Token bucket refilled at a fixed rate in bytes per second.<br>
+ * Tokens are only computed when a transfer asks for them, there is no timer
+ * behind it. A rate of 0 means unlimited.
+ * @version $Id$
+ */
+public class TokenBucket {
+
+	/**
+	 * Smallest burst, so that slow buckets still hand out reasonably sized reads.
+	 */
+	private static final long MIN_BURST = 16 * 1024;
+
+	private long _rate;
+
+	private long _burst;
+
+	private long _tokens;
+
+	private long _lastRefill;
+
+	public TokenBucket(long rate) {
+		_lastRefill = System.nanoTime();
+		setRate(rate);
+		_tokens = _burst;
+	}
+
+	/**
+	 * Changes the rate, the burst is a quarter of a second worth of tokens.
+	 */
+	public synchronized void setRate(long rate) {
+		refill();
+		_rate = Math.max(rate, 0);
+		_burst = Math.max(_rate / 4, MIN_BURST);
+		_tokens = Math.min(_tokens, _burst);
+	}
+
+	public synchronized long getRate() {
+		return _rate;
+	}
+
+	public synchronized boolean isUnlimited() {
+		return _rate == 0;
+	}
+
+	/**
+	 * @return the number of tokens taken, between 0 and wanted.
+	 */
+	protected synchronized long take(long wanted) {
+		if (_rate == 0) {
+			return wanted;
+		}
+		refill();
+		long taken = Math.min(wanted, _tokens);
+		_tokens -= taken;
+		return taken;
+	}
+
+	/**
+	 * Returns tokens which were taken but not used.
+	 */
+	protected synchronized void giveBack(long tokens) {
+		_tokens = Math.min(_burst, _tokens + tokens);
+	}
+
+	/**
+	 * @return nanoseconds until the given amount of tokens (capped to the burst) is available.
+	 */
+	protected synchronized long nanosUntil(long amount) {
+		if (_rate == 0) {
+			return 0;
+		}
+		refill();
+		amount = Math.min(amount, _burst);
+		if (_tokens >= amount) {
+			return 0;
+		}
+		return (long) ((amount - _tokens) * 1000000000D / _rate);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		if (_rate == 0) {
+			_lastRefill = now;
+			return;
+		}
+		long added = (long) ((now - _lastRefill) / 1000000000D * _rate);
+		if (added > 0) {
+			// keep the remainder for the next refill unless the bucket is full anyway
+			_tokens = Math.min(_burst, _tokens + added);
+			_lastRefill = now;
+		}
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "[rate=" + getRate() + "]";
+	}
+}
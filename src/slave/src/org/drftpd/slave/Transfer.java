@@ -17,6 +17,7 @@
  */
 package org.drftpd.slave;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -26,6 +27,13 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
@@ -56,8 +64,6 @@ public class Transfer {
 
 	private long _finished = 0;
 
-	private ThrottledInputStream _int;
-
 	private InputStream _in;
 
 	private char _mode = 'I';
@@ -88,6 +94,27 @@ public class Transfer {
 
 	private long _maxSpeed = 0L;
 
+	private static final long CHANNEL_CHUNK = 1024 * 1024;
+
+	private static final int CHECKSUM_CHUNK = 64 * 1024;
+
+	private FileChannel _fileChannel;
+
+	/**
+	 * Set while an upload waits on the socket, so that abort() can wake it up.
+	 */
+	private volatile Selector _selector;
+
+	private long _lastStatusSent = 0;
+
+	private long _lastSpeedCheck = 0;
+
+	private String _user = null;
+
+	private String _group = null;
+
+	private List<TokenBucket> _shaping;
+
 	/**
 	 * Start undefined transfer.
 	 */
@@ -119,11 +146,11 @@ public class Transfer {
 	public synchronized void abort(String reason) {
 		try {
 			_abortReason = reason;
-			if (_int != null) {
-				_int.wake();
-			}
-
 		} finally {
+			Selector selector = _selector;
+			if (selector != null) {
+				selector.wakeup();
+			}
 			if (_conn != null) {
 				_conn.abort();
 			}
@@ -239,6 +266,14 @@ public class Transfer {
 		_maxSpeed = maxSpeed;
 	}
 
+	/**
+	 * Sets the user and group whose bandwidth buckets the transfer draws from.
+	 */
+	public void setShapingClass(String user, String group) {
+		_user = user;
+		_group = group;
+	}
+
 	public boolean isReceivingUploading() {
 		return _direction == Transfer.TRANSFER_RECEIVING_UPLOAD;
 	}
@@ -256,11 +291,14 @@ public class Transfer {
 					+ separator + filename + " exists");
 		} catch (FileNotFoundException ex) {
 		}
-		String root = _slave.getRoots().getARootFileDir(dirname).getPath();
+		Root root = _slave.getRoots().getARootForDir(dirname);
 
 		try {
-			_out = new FileOutputStream(new File(root + separator
+			FileOutputStream fos = new FileOutputStream(new File(root.getFile(dirname).getPath() + separator
 					+ filename));
+			_slave.getRoots().indexCreated(_pathForUpload, root);
+			_fileChannel = fos.getChannel();
+			_out = fos;
 
 			if (_slave.getUploadChecksums()) {
 				_checksum = new CRC32();
@@ -279,6 +317,11 @@ public class Transfer {
 
 			System.out.println(dirname + "/" + filename);
 			transfer(null);
+			if (_checksum != null) {
+				// closed here so that the cached checksum matches the final modification time
+				_out.close();
+				_slave.getChecksumService().cacheChecksum(_pathForUpload, _checksum.getValue());
+			}
 			_slave.sendResponse(new AsyncResponseDiskStatus(_slave
 					.getDiskStatus()));
 			return getTransferStatus();
@@ -308,8 +351,10 @@ public class Transfer {
 			throws IOException, TransferDeniedException {
 		try {
 
-			_in = new FileInputStream(new PhysicalFile(_slave.getRoots()
+			FileInputStream fis = new FileInputStream(new PhysicalFile(_slave.getRoots()
 					.getFile(path)));
+			_fileChannel = fis.getChannel();
+			_in = fis;
 
 			if (_slave.getDownloadChecksums()) {
 				_checksum = new CRC32();
@@ -391,25 +436,35 @@ public class Transfer {
 	private void transfer(Transfer associatedUpload) throws IOException {
 		try {
 			_started = System.currentTimeMillis();
+			_lastStatusSent = _started;
+			_shaping = _slave.getBandwidthShaper().getChain(_user, _group, _maxSpeed);
 			if (_mode == 'A') {
 				_out = new AddAsciiOutputStream(_out);
 			}
 
-			byte[] buff = new byte[Math.max(_slave.getBufferSize(), 65535)];
-			int count;
-			long currentTime = System.currentTimeMillis();
-			//max speed buffer
-			_int = new ThrottledInputStream(_in,_maxSpeed);
+			try {
+				if (canUseChannels(associatedUpload)) {
+					if (_direction == Transfer.TRANSFER_SENDING_DOWNLOAD) {
+						sendFromChannel();
+					} else {
+						receiveToChannel();
+					}
+					return;
+				}
 
-			boolean first = true;
-			long lastCheck = 0;
+				byte[] buff = new byte[Math.max(_slave.getBufferSize(), 65535)];
+				int count;
 
-			try {
 				while (true) {
 					if (_abortReason != null) {
 						throw new TransferFailedException("Transfer was aborted - " + _abortReason, getTransferStatus());
 					}
-					count = _int.read(buff);
+					int allowed = (int) BandwidthShaper.acquire(_shaping, buff.length);
+					if (allowed == 0) {
+						continue; // parked until the buckets refill
+					}
+					count = _in.read(buff, 0, allowed);
+					BandwidthShaper.release(_shaping, allowed - Math.max(count, 0));
 					if (count == -1) {
 						if (associatedUpload == null) {
 							break; // done transferring
@@ -424,29 +479,7 @@ public class Transfer {
 						continue; // waiting for upload to catch up
 					}
 					// count != -1
-					if ((System.currentTimeMillis() - currentTime) >= 1000) {
-						TransferStatus ts = getTransferStatus();
-						if (ts.isFinished()) {
-							throw new TransferFailedException("Transfer was aborted - " + _abortReason,ts);
-						}
-						_slave.sendResponse(new AsyncResponseTransferStatus(ts));
-						currentTime = System.currentTimeMillis();
-					}
-
-					// Min Speed Check
-					if (_minSpeed > 0) {
-						lastCheck = (lastCheck == 0 ? System.currentTimeMillis() : lastCheck);
-						long delay = System.currentTimeMillis() - lastCheck;
-
-						// This is used to check speedkick delays and its running 2 passes of a combined time of both values
-						// TODO delay value should be set in trafficmanager.conf and defined in seconds to then be converted into two passes in ms
-						if (first ? delay >= 5000 : delay >= 5000) {
-							first = false;
-							if (getXferSpeed() < _minSpeed) {
-								throw new TransferSlowException("Transfer was aborted - '" + String.valueOf(getXferSpeed() + "' is < '" + _minSpeed + "'"), getTransferStatus());
-							}
-						}
-					}
+					checkProgress();
 
 					_transfered += count;
 					_out.write(buff, 0, count);
@@ -461,12 +494,152 @@ public class Transfer {
 			}
 		} finally {
 			_finished = System.currentTimeMillis();
+			if (_shaping != null) {
+				_slave.getBandwidthShaper().transferEnded(_user, _group);
+			}
 			_slave.removeTransfer(this); // transfers are added in setting up
 											// the transfer,
 											// issueListenToSlave()/issueConnectToSlave()
 		}
 	}
 
+	/**
+	 * Plain binary transfers don't need to see the data, so they can be done
+	 * by the kernel, checksums are computed from the region just transferred.<br>
+	 * Downloads of files which are still being uploaded take the stream path
+	 * which knows how to wait for the upload.
+	 */
+	private boolean canUseChannels(Transfer associatedUpload) {
+		return _fileChannel != null && _sock.getChannel() != null
+				&& _mode == 'I'
+				&& associatedUpload == null;
+	}
+
+	/**
+	 * Sends the file with FileChannel.transferTo(), which uses sendfile() where available.
+	 */
+	private void sendFromChannel() throws IOException {
+		SocketChannel socket = _sock.getChannel();
+		long position = _fileChannel.position();
+		long chunk = Math.max(_slave.getBufferSize(), CHANNEL_CHUNK);
+		ByteBuffer checksumBuffer = _checksum == null ? null : ByteBuffer.allocate(CHECKSUM_CHUNK);
+		while (true) {
+			if (_abortReason != null) {
+				throw new TransferFailedException("Transfer was aborted - " + _abortReason, getTransferStatus());
+			}
+			long allowed = BandwidthShaper.acquire(_shaping, chunk);
+			if (allowed == 0) {
+				continue; // parked until the buckets refill
+			}
+			long count = _fileChannel.transferTo(position, allowed, socket);
+			BandwidthShaper.release(_shaping, allowed - count);
+			if (count == 0 && position >= _fileChannel.size()) {
+				break; // done transferring
+			}
+			checkProgress();
+			if (checksumBuffer != null) {
+				// sendfile() just read these pages, reading them again hits the page cache
+				updateChecksum(checksumBuffer, position, count);
+			}
+			position += count;
+			_transfered += count;
+		}
+	}
+
+	private void updateChecksum(ByteBuffer buffer, long position, long count) throws IOException {
+		while (count > 0) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count));
+			int read = _fileChannel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("File was truncated during the transfer");
+			}
+			_checksum.update(buffer.array(), 0, read);
+			position += read;
+			count -= read;
+		}
+	}
+
+	/**
+	 * Receives the file through a direct buffer, or a heap buffer when the
+	 * checksum has to see the data, the socket is read in non blocking mode
+	 * so that the socket timeout is still honoured.
+	 */
+	private void receiveToChannel() throws IOException {
+		SocketChannel socket = _sock.getChannel();
+		int size = (int) Math.max(_slave.getBufferSize(), CHANNEL_CHUNK);
+		ByteBuffer buffer = _checksum == null ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		socket.configureBlocking(false);
+		Selector selector = Selector.open();
+		_selector = selector;
+		try {
+			socket.register(selector, SelectionKey.OP_READ);
+			while (true) {
+				if (_abortReason != null) {
+					throw new TransferFailedException("Transfer was aborted - " + _abortReason, getTransferStatus());
+				}
+				int allowed = (int) BandwidthShaper.acquire(_shaping, buffer.capacity());
+				if (allowed == 0) {
+					continue; // parked until the buckets refill
+				}
+				buffer.limit(allowed);
+				int count = socket.read(buffer);
+				BandwidthShaper.release(_shaping, allowed - Math.max(count, 0));
+				if (count == -1) {
+					break; // done transferring
+				}
+				if (count == 0) {
+					if (selector.select(_sock.getSoTimeout()) == 0 && _abortReason == null) {
+						throw new SocketTimeoutException("Read timed out");
+					}
+					selector.selectedKeys().clear();
+					continue;
+				}
+				checkProgress();
+				_transfered += count;
+				buffer.flip();
+				if (_checksum != null) {
+					_checksum.update(buffer.array(), 0, buffer.limit());
+				}
+				while (buffer.hasRemaining()) {
+					_fileChannel.write(buffer);
+				}
+				buffer.clear();
+			}
+		} finally {
+			_selector = null;
+			selector.close();
+		}
+	}
+
+	/**
+	 * Reports the TransferStatus to the master every second and enforces the minimum speed.
+	 */
+	private void checkProgress() throws IOException {
+		if ((System.currentTimeMillis() - _lastStatusSent) >= 1000) {
+			TransferStatus ts = getTransferStatus();
+			if (ts.isFinished()) {
+				throw new TransferFailedException("Transfer was aborted - " + _abortReason,ts);
+			}
+			_slave.sendResponse(new AsyncResponseTransferStatus(ts));
+			_lastStatusSent = System.currentTimeMillis();
+		}
+
+		// Min Speed Check
+		if (_minSpeed > 0) {
+			_lastSpeedCheck = (_lastSpeedCheck == 0 ? System.currentTimeMillis() : _lastSpeedCheck);
+			long delay = System.currentTimeMillis() - _lastSpeedCheck;
+
+			// This is used to check speedkick delays and its running 2 passes of a combined time of both values
+			// TODO delay value should be set in trafficmanager.conf and defined in seconds to then be converted into two passes in ms
+			if (delay >= 5000) {
+				if (getXferSpeed() < _minSpeed) {
+					throw new TransferSlowException("Transfer was aborted - '" + String.valueOf(getXferSpeed() + "' is < '" + _minSpeed + "'"), getTransferStatus());
+				}
+			}
+		}
+	}
+
 	private boolean checkMasks(String maskString, InetAddress connectedAddress) {
 		HostMask mask = new HostMask(maskString);
 
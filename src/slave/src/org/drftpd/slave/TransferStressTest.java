@@ -0,0 +1,125 @@
+/*
+ * This file is part of DrFTPD, Distributed FTP Daemon.
+ *
+ * DrFTPD is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * DrFTPD is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * DrFTPD; if not, write to the Free Software Foundation, Inc., 59 Temple Place,
+ * Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.drftpd.slave;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the stream copy loop used by {@link Transfer} with the
+ * FileChannel.transferTo() path, sending a file to a loopback socket.
+ */
+public class TransferStressTest extends TestCase {
+
+	private static final long FILE_SIZE = 64L * 1024 * 1024;
+
+	private File _file;
+
+	public TransferStressTest(String fName) {
+		super(fName);
+	}
+
+	protected void setUp() throws IOException {
+		_file = File.createTempFile("transfer", ".bin");
+		RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+		byte[] block = new byte[1024 * 1024];
+		for (int i = 0; i < block.length; i++) {
+			block[i] = (byte) i;
+		}
+		for (long written = 0; written < FILE_SIZE; written += block.length) {
+			raf.write(block);
+		}
+		raf.close();
+	}
+
+	protected void tearDown() {
+		_file.delete();
+	}
+
+	public void testThroughput() throws Exception {
+		// first pass warms up the page cache and the jit
+		send(false);
+		send(true);
+		long stream = send(false);
+		long channel = send(true);
+		System.out.println("stream loop: " + stream + " MB/s, transferTo: " + channel + " MB/s");
+	}
+
+	private long send(boolean zeroCopy) throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		final long[] received = new long[1];
+		Thread drain = new Thread("Drain") {
+			public void run() {
+				try {
+					Socket s = server.accept();
+					InputStream in = s.getInputStream();
+					byte[] buff = new byte[256 * 1024];
+					int count;
+					while ((count = in.read(buff)) != -1) {
+						received[0] += count;
+					}
+					s.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		drain.start();
+
+		long start = System.nanoTime();
+		FileInputStream fis = new FileInputStream(_file);
+		if (zeroCopy) {
+			SocketChannel socket = SocketChannel.open(new InetSocketAddress(server.getInetAddress(), server.getLocalPort()));
+			FileChannel file = fis.getChannel();
+			long position = 0;
+			long count;
+			while ((count = file.transferTo(position, 1024 * 1024, socket)) > 0 || position < file.size()) {
+				position += count;
+			}
+			socket.close();
+		} else {
+			Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+			OutputStream out = socket.getOutputStream();
+			byte[] buff = new byte[65535];
+			int count;
+			while ((count = fis.read(buff)) != -1) {
+				out.write(buff, 0, count);
+			}
+			out.flush();
+			socket.close();
+		}
+		fis.close();
+		drain.join();
+		long elapsed = System.nanoTime() - start;
+		server.close();
+
+		assertEquals(FILE_SIZE, received[0]);
+		return FILE_SIZE * 1000000000L / Math.max(elapsed, 1) / (1024 * 1024);
+	}
+}